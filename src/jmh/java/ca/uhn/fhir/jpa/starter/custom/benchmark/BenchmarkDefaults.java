@@ -0,0 +1,22 @@
+package ca.uhn.fhir.jpa.starter.custom.benchmark;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gemeinsame JMH-Einstellungen aller Benchmarks: Durchsatz in Operationen pro Sekunde.
+ * Die GC-Allokationsrate wird über den Profiler {@code -prof gc} (siehe Maven-Profil {@code jmh}) erfasst.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class BenchmarkDefaults {
+}
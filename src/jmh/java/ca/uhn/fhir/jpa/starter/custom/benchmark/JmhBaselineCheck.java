@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.starter.custom.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Vergleicht ein JMH-Ergebnis (JSON) mit der eingecheckten Baseline.
+ * <p>
+ * Als Regression gilt ein Durchsatz unterhalb von {@code baseline * (1 - toleranz)} oder eine normierte
+ * Allokation ({@code gc.alloc.rate.norm}, Bytes pro Operation) oberhalb von {@code baseline * (1 + toleranz)}.
+ * Solange die Baseline leer ist, wird der Vergleich mit einem Hinweis übersprungen; sie lässt sich nur auf der
+ * Referenzmaschine sinnvoll messen.
+ * <p>
+ * Aufruf: {@code JmhBaselineCheck <ergebnis.json> <baseline.json> <toleranz> [check|record]}. Mit {@code record}
+ * wird das Ergebnis als neue Baseline geschrieben statt verglichen.
+ */
+public final class JmhBaselineCheck {
+
+    private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+
+    private JmhBaselineCheck() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Aufruf: JmhBaselineCheck <ergebnis.json> <baseline.json> <toleranz> [check|record]");
+            System.exit(2);
+        }
+        Map<String, JSONObject> results = load(Path.of(args[0]));
+        double tolerance = Double.parseDouble(args[2]);
+
+        if (args.length == 4 && "record".equals(args[3])) {
+            if (results.isEmpty()) {
+                System.err.println("Ergebnis " + args[0] + " enthält keine Benchmarks, Baseline bleibt unverändert.");
+                System.exit(1);
+            }
+            Files.copy(Path.of(args[0]), Path.of(args[1]), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println(results.size() + " Benchmarks als Baseline nach " + args[1] + " geschrieben.");
+            return;
+        }
+
+        Map<String, JSONObject> baseline = load(Path.of(args[1]));
+        if (baseline.isEmpty()) {
+            System.out.println("WARNUNG: Baseline " + args[1] + " enthält keine Einträge, Vergleich übersprungen. "
+                + "Auf der Referenzmaschine mit -Djmh.mode=record festschreiben.");
+            return;
+        }
+
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, JSONObject> entry : results.entrySet()) {
+            JSONObject base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.printf("%-90s neu (kein Baseline-Eintrag)%n", entry.getKey());
+                continue;
+            }
+
+            double score = primaryScore(entry.getValue());
+            double baseScore = primaryScore(base);
+            double alloc = allocationNorm(entry.getValue());
+            double baseAlloc = allocationNorm(base);
+
+            System.out.printf("%-90s %12.1f ops/s (Baseline %12.1f)  %10.1f B/op (Baseline %10.1f)%n",
+                entry.getKey(), score, baseScore, alloc, baseAlloc);
+
+            if (score < baseScore * (1 - tolerance)) {
+                regressions.add(String.format("%s: Durchsatz %.1f < %.1f ops/s", entry.getKey(), score, baseScore));
+            }
+            if (baseAlloc >= 0 && alloc > baseAlloc * (1 + tolerance)) {
+                regressions.add(String.format("%s: Allokation %.1f > %.1f B/op", entry.getKey(), alloc, baseAlloc));
+            }
+        }
+
+        if (!regressions.isEmpty()) {
+            System.err.println("Regressionen gegenüber der Baseline (Toleranz " + tolerance + "):");
+            regressions.forEach(r -> System.err.println("  " + r));
+            System.exit(1);
+        }
+        System.out.println("Keine Regressionen gegenüber der Baseline.");
+    }
+
+    private static Map<String, JSONObject> load(Path path) throws IOException {
+        Map<String, JSONObject> byKey = new LinkedHashMap<>();
+        JSONArray array = new JSONArray(Files.readString(path, StandardCharsets.UTF_8));
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            byKey.put(key(result), result);
+        }
+        return byKey;
+    }
+
+    private static String key(JSONObject result) {
+        StringBuilder key = new StringBuilder(result.getString("benchmark"));
+        JSONObject params = result.optJSONObject("params");
+        if (params != null) {
+            // Sortiert, damit die Reihenfolge der Parameter im JSON keine Rolle spielt
+            Map<String, Object> sorted = new TreeMap<>(params.toMap());
+            sorted.forEach((name, value) -> key.append(':').append(name).append('=').append(value));
+        }
+        return key.toString();
+    }
+
+    private static double primaryScore(JSONObject result) {
+        return result.getJSONObject("primaryMetric").getDouble("score");
+    }
+
+    private static double allocationNorm(JSONObject result) {
+        JSONObject secondary = result.optJSONObject("secondaryMetrics");
+        if (secondary == null || !secondary.has(ALLOC_NORM)) {
+            return -1;
+        }
+        return secondary.getJSONObject(ALLOC_NORM).getDouble("score");
+    }
+}
@@ -0,0 +1,46 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.auth;
+
+import ca.uhn.fhir.jpa.starter.custom.benchmark.BenchmarkDefaults;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPair;
+
+/**
+ * Misst {@link AccessTokenService#verifyAndDecode(String)} für IDP-Tokens mit BP256R1 und ES256.
+ */
+@State(Scope.Benchmark)
+public class AccessTokenServiceBenchmark extends BenchmarkDefaults {
+
+    private AccessTokenService bp256r1Service;
+    private AccessTokenService es256Service;
+    private String bp256r1Header;
+    private String es256Header;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair brainpool = BenchmarkTokens.generateKeyPair(BenchmarkTokens.CURVE_BRAINPOOL);
+        bp256r1Service = new AccessTokenService(BenchmarkTokens.fixedPukTokenManager(brainpool.getPublic()));
+        bp256r1Header = "Bearer " + BenchmarkTokens.createAccessToken("BP256R1", brainpool.getPrivate());
+
+        KeyPair nist = BenchmarkTokens.generateKeyPair(BenchmarkTokens.CURVE_NIST);
+        es256Service = new AccessTokenService(BenchmarkTokens.fixedPukTokenManager(nist.getPublic()));
+        es256Header = "Bearer " + BenchmarkTokens.createAccessToken("ES256", nist.getPrivate());
+
+        // Fehlerhafte Testdaten sollen den Lauf sofort abbrechen und nicht Exceptions messen
+        bp256r1Service.verifyAndDecode(bp256r1Header);
+        es256Service.verifyAndDecode(es256Header);
+    }
+
+    @Benchmark
+    public AccessToken verifyAndDecodeBp256r1() {
+        return bp256r1Service.verifyAndDecode(bp256r1Header);
+    }
+
+    @Benchmark
+    public AccessToken verifyAndDecodeEs256() {
+        return es256Service.verifyAndDecode(es256Header);
+    }
+}
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.auth;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Erzeugt Schlüsselpaare und signierte Access Tokens für die Benchmarks.
+ * Die Tokens entsprechen im Aufbau denen des IDP (gleicher Issuer, gleiche Claims).
+ */
+public final class BenchmarkTokens {
+
+    public static final String CURVE_BRAINPOOL = "brainpoolP256r1";
+    public static final String CURVE_NIST = "secp256r1";
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private BenchmarkTokens() {
+    }
+
+    public static KeyPair generateKeyPair(String curve) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", BouncyCastleProvider.PROVIDER_NAME);
+        generator.initialize(new ECGenParameterSpec(curve));
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Signiert ein Access Token mit dem angegebenen JWS-Algorithmus (BP256R1 oder ES256).
+     * Die Signatur wird wie bei JWS üblich als R || S kodiert.
+     */
+    public static String createAccessToken(String alg, PrivateKey privateKey) throws Exception {
+        Instant now = Instant.now();
+        JSONObject header = new JSONObject()
+            .put("alg", alg)
+            .put("typ", "at+JWT")
+            .put("kid", "puk_idp_sig");
+        JSONObject payload = new JSONObject()
+            .put("iss", "https://idp.zentral.idp.splitdns.ti-dienste.de")
+            .put("sub", "benchmark-subject")
+            .put("aud", "https://erp-test.zentral.erp.splitdns.ti-dienste.de/")
+            .put("iat", now.getEpochSecond())
+            .put("exp", now.plusSeconds(24 * 60 * 60).getEpochSecond())
+            .put("professionOID", Profession.ARZT_KRANKENHAUS.getOid())
+            .put("idNummer", "5-SMC-B-Testkarte-883110000129072")
+            .put("organizationName", "Krankenhaus St. KilianTEST-ONLY")
+            .put("client_id", "eRezeptApp")
+            .put("scope", "openid e-rezept");
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String headerAndPayload = encoder.encodeToString(header.toString().getBytes(StandardCharsets.UTF_8))
+            + "." + encoder.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+
+        Signature signature = Signature.getInstance("SHA256withPLAIN-ECDSA", BouncyCastleProvider.PROVIDER_NAME);
+        signature.initSign(privateKey);
+        signature.update(headerAndPayload.getBytes(StandardCharsets.UTF_8));
+        return headerAndPayload + "." + encoder.encodeToString(signature.sign());
+    }
+
+    /**
+     * PukTokenManager, der ohne Discovery-Dokument einen festen Public Key liefert.
+     */
+    public static PukTokenManager fixedPukTokenManager(PublicKey publicKey) {
+        return new PukTokenManager("https://localhost/.well-known/openid-configuration", 0) {
+            @Override
+            public PublicKey getCurrentPublicKey() {
+                return publicKey;
+            }
+        };
+    }
+}
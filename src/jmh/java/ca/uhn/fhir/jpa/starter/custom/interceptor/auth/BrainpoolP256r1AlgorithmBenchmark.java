@@ -0,0 +1,36 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.auth;
+
+import ca.uhn.fhir.jpa.starter.custom.benchmark.BenchmarkDefaults;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
+
+/**
+ * Misst die reine Signaturprüfung von {@link BrainpoolP256r1Algorithm#verify(DecodedJWT)}.
+ */
+@State(Scope.Benchmark)
+public class BrainpoolP256r1AlgorithmBenchmark extends BenchmarkDefaults {
+
+    private BrainpoolP256r1Algorithm algorithm;
+    private DecodedJWT jwt;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair keyPair = BenchmarkTokens.generateKeyPair(BenchmarkTokens.CURVE_BRAINPOOL);
+        algorithm = new BrainpoolP256r1Algorithm((ECPublicKey) keyPair.getPublic());
+        jwt = JWT.decode(BenchmarkTokens.createAccessToken("BP256R1", keyPair.getPrivate()));
+        algorithm.verify(jwt);
+    }
+
+    @Benchmark
+    public DecodedJWT verify() {
+        algorithm.verify(jwt);
+        return jwt;
+    }
+}
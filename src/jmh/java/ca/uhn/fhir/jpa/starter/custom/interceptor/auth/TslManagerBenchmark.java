@@ -0,0 +1,42 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.auth;
+
+import ca.uhn.fhir.jpa.starter.custom.benchmark.BenchmarkDefaults;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.ZonedDateTime;
+
+/**
+ * Misst {@link TslManager#verifyCertificate(X509Certificate, ZonedDateTime)} gegen die produktive TSL,
+ * ergänzt um eine Benchmark-CA (siehe benchmark/benchmark-tsl.xml), die das Leaf-Zertifikat ausgestellt hat.
+ */
+@State(Scope.Benchmark)
+public class TslManagerBenchmark extends BenchmarkDefaults {
+
+    private TslManager tslManager;
+    private X509Certificate certificate;
+    private ZonedDateTime validationTime;
+
+    @Setup
+    public void setUp() throws Exception {
+        tslManager = new TslManager();
+        tslManager.loadTslFromResource("/benchmark/benchmark-tsl.xml");
+        try (InputStream is = getClass().getResourceAsStream("/benchmark/benchmark-leaf.pem")) {
+            certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
+        }
+        validationTime = ZonedDateTime.now();
+        if (!tslManager.verifyCertificate(certificate, validationTime)) {
+            throw new IllegalStateException("Benchmark-Zertifikat konnte nicht gegen die TSL validiert werden");
+        }
+    }
+
+    @Benchmark
+    public boolean verifyCertificate() {
+        return tslManager.verifyCertificate(certificate, validationTime);
+    }
+}
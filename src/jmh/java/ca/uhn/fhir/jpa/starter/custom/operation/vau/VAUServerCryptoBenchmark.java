@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import ca.uhn.fhir.jpa.starter.custom.benchmark.BenchmarkDefaults;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Base64;
+
+/**
+ * Misst {@link VAUServerCrypto#decryptRequest(byte[])} und {@link VAUServerCrypto#encryptResponse(String, java.security.Key)}
+ * mit Requests, die wie in {@link VAUClientCrypto} verschlüsselt werden.
+ * Muss aus dem Projektverzeichnis gestartet werden, da VAUServerCrypto den Schlüssel relativ lädt.
+ */
+@State(Scope.Benchmark)
+public class VAUServerCryptoBenchmark extends BenchmarkDefaults {
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    private VAUServerCrypto serverCrypto;
+    private byte[] encryptedRequest;
+    private SecretKeySpec responseKey;
+    private String response;
+
+    @Setup
+    public void setUp() throws Exception {
+        VAUClientCrypto clientCrypto = new VAUClientCrypto();
+        serverCrypto = new VAUServerCrypto();
+        responseKey = clientCrypto.generateResponseKey();
+
+        String body = "x".repeat(bodySize);
+        String innerRequest = "POST /fhir/Patient HTTP/1.1\r\n"
+            + "Content-Type: application/fhir+json\r\n"
+            + "Content-Length: " + bodySize + "\r\n"
+            + "\r\n"
+            + body;
+        String vauRequest = String.format("1 %s %s %s %s",
+            "eyJhbGciOiJCUDI1NlIxIn0.e30.c2ln",
+            clientCrypto.generateRequestId(),
+            Base64.getEncoder().encodeToString(responseKey.getEncoded()),
+            innerRequest);
+        encryptedRequest = clientCrypto.encrypt(serverCrypto.getPublicKey(), vauRequest);
+        response = "1 " + clientCrypto.generateRequestId() + " HTTP/1.1 200 OK\r\n\r\n" + body;
+    }
+
+    @Benchmark
+    public String decryptRequest() throws Exception {
+        return serverCrypto.decryptRequest(encryptedRequest);
+    }
+
+    @Benchmark
+    public byte[] encryptResponse() throws Exception {
+        return serverCrypto.encryptResponse(response, responseKey);
+    }
+}
@@ -0,0 +1,279 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prüft Anhänge ({@code Attachment.data}, {@code Binary.data}) einmal direkt auf den dekodierten Bytes und
+ * ersetzt sie für die Profilvalidierung durch ihren Hash.
+ * <p>
+ * Geprüft werden Größe (gegen {@code Attachment.size} und {@code max_size_bytes}), Hash (SHA-1 gegen
+ * {@code Attachment.hash}) und für strukturierte Rechnungsinhalte der MIME-Typ gegen
+ * {@code erg-restricted-mime-types-vs}. Der FhirInstanceValidator serialisiert die Ressource für die
+ * Validierung erneut; ohne die Ersetzung entstünden dabei weitere Kopien der mehrere Megabyte großen
+ * Base64-Inhalte. Die Ressource selbst bleibt unverändert: kopiert werden nur die Knoten auf dem Weg zu den
+ * Anhängen (flach) und die Anhänge ohne {@code data}, alle anderen Elemente teilt sich die Sicht mit dem
+ * Original. Eine tiefe Kopie würde jeden Inhalt samt Base64-Darstellung noch einmal erzeugen.
+ */
+@Component
+public class AttachmentInspector {
+
+    static final String RESTRICTED_MIME_TYPES_VS = "https://gematik.de/fhir/erg/ValueSet/erg-restricted-mime-types-vs";
+    private static final String MIME_TYPE_SYSTEM = "http://terminology.hl7.org/CodeSystem/mimetypes";
+    private static final String ATTACHMENT_FORMAT_SYSTEM = "https://gematik.de/fhir/erg/CodeSystem/erg-attachment-format-cs";
+    private static final String FORMAT_RECHNUNGSINHALT = "rechnungsinhalt";
+
+    private final boolean enabled;
+    private final long maxSizeBytes;
+    private final DistributionSummary attachmentSizes;
+
+    public AttachmentInspector(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.attachment_validation.enabled:true}") boolean enabled,
+            @Value("${hapi.fhir.attachment_validation.max_size_bytes:20971520}") long maxSizeBytes) {
+        this.enabled = enabled;
+        this.maxSizeBytes = maxSizeBytes;
+        this.attachmentSizes = DistributionSummary.builder("validation.attachment.size")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Prüft alle Anhänge mit Inhalt und liefert die Sicht für die Profilvalidierung.
+     *
+     * @param chain  für die Prüfung der MIME-Typen
+     * @param errors erhält gefundene Fehler
+     * @return die Ressource selbst, wenn sie keine Anhänge mit Inhalt enthält, sonst eine Sicht, in der
+     * {@code Attachment.data} durch den SHA-1-Hash des Inhalts ersetzt ist
+     */
+    public IBaseResource prepareForValidation(IBaseResource resource, IValidationSupport chain,
+                                              List<SingleValidationMessage> errors) {
+        if (!enabled || !(resource instanceof Resource) || !containsData((Resource) resource)) {
+            return resource;
+        }
+
+        Resource original = (Resource) resource;
+        List<AttachmentLocation> attachments = new ArrayList<>();
+        collect(original, null, original.fhirType(), attachments);
+        ValidationSupportContext context = new ValidationSupportContext(chain);
+        Map<Attachment, byte[]> digests = new IdentityHashMap<>();
+        for (AttachmentLocation location : attachments) {
+            digests.put(location.attachment, inspect(location, chain, context, errors));
+        }
+
+        Resource view = (Resource) view(original, digests);
+        if (original instanceof Binary && ((Binary) original).hasData()) {
+            byte[] data = ((Binary) original).getData();
+            attachmentSizes.record(data.length);
+            if (data.length > maxSizeBytes) {
+                error(errors, "Binary.data", "Inhalt ist mit " + data.length
+                    + " Bytes größer als die zulässigen " + maxSizeBytes + " Bytes");
+            }
+            ((Binary) view).setData(sha1(data));
+        }
+        return view;
+    }
+
+    // Flache Kopie der Knoten, unter denen Inhalte liegen; Teilbäume ohne Inhalt werden übernommen
+    private static Base view(Base original, Map<Attachment, byte[]> digests) {
+        if (original instanceof Attachment) {
+            byte[] digest = digests.get(original);
+            return digest == null ? original : attachmentView((Attachment) original, digest);
+        }
+        if (!containsData(original)) {
+            return original;
+        }
+        Base view = newInstance(original);
+        for (Property property : original.children()) {
+            if (original instanceof Binary && "data".equals(property.getName())) {
+                continue;
+            }
+            for (Base value : property.getValues()) {
+                view.setProperty(property.getName(), value.isPrimitive() ? value : view(value, digests));
+            }
+        }
+        return view;
+    }
+
+    // Der Hash hält den Cache-Schlüssel der Profilvalidierung inhaltsabhängig; Größe und Hash der Sicht passen
+    // zum Ersatzinhalt, damit der Validator keinen Widerspruch meldet
+    private static Attachment attachmentView(Attachment original, byte[] digest) {
+        Attachment view = new Attachment();
+        for (Property property : original.children()) {
+            if ("data".equals(property.getName())) {
+                continue;
+            }
+            for (Base value : property.getValues()) {
+                view.setProperty(property.getName(), value.copy());
+            }
+        }
+        view.setData(digest);
+        if (view.hasSize()) {
+            view.setSize(digest.length);
+        }
+        if (view.hasHash()) {
+            view.setHash(sha1(digest));
+        }
+        return view;
+    }
+
+    private static Base newInstance(Base original) {
+        try {
+            return original.getClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Sicht auf " + original.fhirType() + " nicht erzeugbar", e);
+        }
+    }
+
+    /**
+     * Prüft einen Anhang, dessen Inhalt beim Lesen ausgelagert wurde ({@code $erechnung-submit}), mit denselben
+     * Regeln wie {@code Attachment.data}. Größe und SHA-1 wurden beim Auslagern auf den Bytes ermittelt.
+     *
+     * @param content Inhalt der DocumentReference mit den Angaben des Einreichers ({@code size}, {@code hash},
+     *                {@code contentType})
+     * @param path    Pfad des Anhangs für die Fehlermeldungen
+     */
+    public void inspectExternalized(DocumentReference.DocumentReferenceContentComponent content, String path,
+                                    long size, byte[] sha1, IValidationSupport chain,
+                                    List<SingleValidationMessage> errors) {
+        if (!enabled) {
+            return;
+        }
+        check(path, content.getAttachment(), isRechnungsinhalt(content), size, sha1, chain,
+            new ValidationSupportContext(chain), errors);
+    }
+
+    private byte[] inspect(AttachmentLocation location, IValidationSupport chain, ValidationSupportContext context,
+                           List<SingleValidationMessage> errors) {
+        byte[] data = location.attachment.getData();
+        byte[] digest = sha1(data);
+        check(location.path, location.attachment, location.restrictedMimeType, data.length, digest, chain, context,
+            errors);
+        return digest;
+    }
+
+    private void check(String path, Attachment attachment, boolean restrictedMimeType, long size, byte[] digest,
+                       IValidationSupport chain, ValidationSupportContext context,
+                       List<SingleValidationMessage> errors) {
+        attachmentSizes.record(size);
+
+        if (size > maxSizeBytes) {
+            error(errors, path + ".data", "Anhang ist mit " + size
+                + " Bytes größer als die zulässigen " + maxSizeBytes + " Bytes");
+        }
+        if (attachment.hasSize() && attachment.getSize() != size) {
+            error(errors, path + ".size", "Angegebene Größe " + attachment.getSize()
+                + " entspricht nicht der Größe des Inhalts (" + size + " Bytes)");
+        }
+        if (attachment.hasHash() && !Arrays.equals(attachment.getHash(), digest)) {
+            error(errors, path + ".hash", "Angegebener Hash entspricht nicht dem SHA-1 des Inhalts ("
+                + Base64.getEncoder().encodeToString(digest) + ")");
+        }
+
+        if (restrictedMimeType) {
+            String contentType = attachment.getContentType();
+            IValidationSupport.CodeValidationResult result = contentType == null ? null : chain.validateCode(
+                context, new ConceptValidationOptions(), MIME_TYPE_SYSTEM, contentType, null, RESTRICTED_MIME_TYPES_VS);
+            if (result == null || !result.isOk()) {
+                error(errors, path + ".contentType", "MIME-Typ '" + contentType
+                    + "' ist für strukturierte Rechnungsinhalte nicht zulässig (" + RESTRICTED_MIME_TYPES_VS + ")");
+            }
+        }
+    }
+
+    private static boolean containsData(Base base) {
+        if (base instanceof Binary) {
+            return ((Binary) base).hasData();
+        }
+        if (base instanceof Attachment) {
+            return ((Attachment) base).hasData();
+        }
+        for (Property property : base.children()) {
+            for (Base value : property.getValues()) {
+                if (!value.isPrimitive() && containsData(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void collect(Base base, Base parent, String path, List<AttachmentLocation> attachments) {
+        if (base instanceof Attachment) {
+            if (((Attachment) base).hasData()) {
+                attachments.add(new AttachmentLocation(path, (Attachment) base, isRechnungsinhalt(parent)));
+            }
+            return;
+        }
+        for (Property property : base.children()) {
+            List<Base> values = property.getValues();
+            for (int i = 0; i < values.size(); i++) {
+                Base value = values.get(i);
+                if (!value.isPrimitive()) {
+                    collect(value, base, path + "." + property.getName() + "[" + i + "]", attachments);
+                }
+            }
+        }
+    }
+
+    private static boolean isRechnungsinhalt(Base parent) {
+        if (!(parent instanceof DocumentReference.DocumentReferenceContentComponent)) {
+            return false;
+        }
+        DocumentReference.DocumentReferenceContentComponent content =
+            (DocumentReference.DocumentReferenceContentComponent) parent;
+        return ATTACHMENT_FORMAT_SYSTEM.equals(content.getFormat().getSystem())
+            && FORMAT_RECHNUNGSINHALT.equals(content.getFormat().getCode());
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 nicht verfügbar", e);
+        }
+    }
+
+    private static void error(List<SingleValidationMessage> errors, String path, String message) {
+        SingleValidationMessage error = new SingleValidationMessage();
+        error.setSeverity(ResultSeverityEnum.ERROR);
+        error.setLocationString(path);
+        error.setMessage(message);
+        errors.add(error);
+    }
+
+    private static final class AttachmentLocation {
+        private final String path;
+        private final Attachment attachment;
+        private final boolean restrictedMimeType;
+
+        AttachmentLocation(String path, Attachment attachment, boolean restrictedMimeType) {
+            this.path = path;
+            this.attachment = attachment;
+            this.restrictedMimeType = restrictedMimeType;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Validiert die Einträge eines Bundles parallel auf einem begrenzten Pool.
+ * <p>
+ * Ist die Queue voll, validiert der aufrufende Request-Thread selbst (CallerRunsPolicy); große Bundles bremsen
+ * sich dadurch gegenseitig, statt den Pool zu überlaufen. Einträge mit gleichem Schlüssel (z.B. derselbe Patient
+ * in mehreren Rechnungen) werden je Bundle nur einmal validiert.
+ */
+@Component
+public class BundleValidationExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(BundleValidationExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+
+    public BundleValidationExecutor(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.bundle_validation.pool_size:0}") int poolSize,
+            @Value("${hapi.fhir.bundle_validation.queue_capacity:1000}") int queueCapacity) {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "bundle-validation-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        Gauge.builder("validation.bundle.queue.depth", executor, e -> e.getQueue().size())
+            .description("Anzahl wartender Bundle-Einträge")
+            .register(meterRegistry);
+        logger.info("Bundle-Validierung mit {} Threads (Queue {}) initialisiert", threads, queueCapacity);
+    }
+
+    /**
+     * Validiert alle Ressourcen und wartet auf das Ergebnis.
+     *
+     * @param resources  die zu validierenden Ressourcen, Ergebnis in derselben Reihenfolge
+     * @param sharedKey  Schlüssel für inhaltsgleiche Ressourcen oder {@code null}, wenn nicht geteilt wird
+     * @param validation wirft bei ungültigen Ressourcen eine {@link BaseServerResponseException}
+     * @param failFast   nach dem ersten Fehler noch nicht begonnene Validierungen überspringen
+     */
+    public List<EntryResult> validateAll(List<IBaseResource> resources, Function<IBaseResource, String> sharedKey,
+                                         Consumer<IBaseResource> validation, boolean failFast) {
+        AtomicBoolean failed = new AtomicBoolean();
+        Map<String, CompletableFuture<EntryResult>> shared = new HashMap<>();
+        List<CompletableFuture<EntryResult>> futures = new ArrayList<>(resources.size());
+        for (IBaseResource resource : resources) {
+            String key = sharedKey.apply(resource);
+            CompletableFuture<EntryResult> future = key == null
+                ? submit(resource, validation, failed, failFast)
+                : shared.computeIfAbsent(key, k -> submit(resource, validation, failed, failFast));
+            futures.add(future);
+        }
+
+        List<EntryResult> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<EntryResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private CompletableFuture<EntryResult> submit(IBaseResource resource, Consumer<IBaseResource> validation,
+                                                  AtomicBoolean failed, boolean failFast) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (failFast && failed.get()) {
+                return EntryResult.SKIPPED;
+            }
+            try {
+                validation.accept(resource);
+                return EntryResult.VALID;
+            } catch (BaseServerResponseException e) {
+                failed.set(true);
+                return EntryResult.failed(toOperationOutcome(e));
+            } catch (RuntimeException e) {
+                failed.set(true);
+                logger.error("Fehler bei der Validierung eines Bundle-Eintrags", e);
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.EXCEPTION)
+                    .setDiagnostics("Fehler bei der Validierung: " + e.getMessage());
+                return EntryResult.failed(outcome);
+            }
+        }, executor);
+    }
+
+    private static OperationOutcome toOperationOutcome(BaseServerResponseException e) {
+        if (e.getOperationOutcome() instanceof OperationOutcome) {
+            return (OperationOutcome) e.getOperationOutcome();
+        }
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+            .setCode(OperationOutcome.IssueType.INVALID)
+            .setDiagnostics(e.getMessage());
+        return outcome;
+    }
+
+    /**
+     * Ergebnis eines Eintrags: gültig, ungültig (mit OperationOutcome) oder nach einem Fehler übersprungen.
+     */
+    public static final class EntryResult {
+        static final EntryResult VALID = new EntryResult(true, null);
+        static final EntryResult SKIPPED = new EntryResult(false, null);
+
+        private final boolean valid;
+        private final OperationOutcome outcome;
+
+        private EntryResult(boolean valid, OperationOutcome outcome) {
+            this.valid = valid;
+            this.outcome = outcome;
+        }
+
+        static EntryResult failed(OperationOutcome outcome) {
+            return new EntryResult(false, outcome);
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * @return die Fehler oder {@code null}, wenn der Eintrag gültig ist oder übersprungen wurde
+         */
+        public OperationOutcome getOutcome() {
+            return outcome;
+        }
+    }
+}
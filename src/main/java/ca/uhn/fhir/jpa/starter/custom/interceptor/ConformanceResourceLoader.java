@@ -0,0 +1,183 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.common.hapi.validation.support.NpmPackageValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Lädt NPM-Packages und lokale Konformitätsressourcen für den {@link CustomValidator}.
+ * <p>
+ * Die Dateien werden über {@link PathMatchingResourcePatternResolver} aufgezählt und funktionieren damit auch
+ * im gepackten WAR/JAR. Packages und Dateien werden parallel auf einem eigenen Fork-Join-Pool geparst,
+ * registriert wird anschließend in einem Schritt auf dem aufrufenden Thread. Die Ladezeiten werden als
+ * {@code validation.startup.load} (Tag {@code stage}) gemeldet.
+ */
+@Component
+public class ConformanceResourceLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConformanceResourceLoader.class);
+
+    public static final String LOCAL_RESOURCES_PATTERN = "classpath*:gematik-erg-resources(new)/*.json";
+
+    private final FhirContext ctx;
+    private final MeterRegistry meterRegistry;
+    private final PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+
+    public ConformanceResourceLoader(FhirContext ctx, MeterRegistry meterRegistry) {
+        this.ctx = ctx;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Lädt jedes Package parallel in einen eigenen {@link NpmPackageValidationSupport}.
+     *
+     * @param classpathPackages Pfade der Packages, z.B. {@code classpath:package/de.basisprofil.r4-1.5.3.tgz}
+     * @return ein Support je Package, in der Reihenfolge der Eingabe
+     */
+    public List<NpmPackageValidationSupport> loadNpmPackages(List<String> classpathPackages) throws IOException {
+        long start = System.nanoTime();
+        List<NpmPackageValidationSupport> supports = runParallel(() -> classpathPackages.parallelStream()
+            .map(this::loadNpmPackage)
+            .collect(Collectors.toList()));
+        recordStage("npm_packages", start);
+        logger.info("{} NPM-Packages geladen ({} ms)", supports.size(), elapsedMillis(start));
+        return supports;
+    }
+
+    /**
+     * Parst alle lokalen StructureDefinitions, ValueSets und CodeSystems parallel und registriert sie danach
+     * in {@code target}.
+     *
+     * @return Anzahl der registrierten Ressourcen
+     */
+    public int loadLocalResources(PrePopulatedValidationSupport target) throws IOException {
+        long start = System.nanoTime();
+        Resource[] files = resolver.getResources(LOCAL_RESOURCES_PATTERN);
+        if (files.length == 0) {
+            logger.warn("Keine lokalen Ressourcen unter {} gefunden", LOCAL_RESOURCES_PATTERN);
+            return 0;
+        }
+
+        // Sortiert, damit bei doppelten URLs unabhängig vom Classpath immer dieselbe Datei gewinnt
+        List<Resource> sorted = Arrays.stream(files)
+            .sorted(Comparator.comparing(Resource::getFilename, Comparator.nullsFirst(Comparator.naturalOrder())))
+            .collect(Collectors.toList());
+
+        ThreadLocal<IParser> parsers = ThreadLocal.withInitial(ctx::newJsonParser);
+        List<IBaseResource> parsed = runParallel(() -> sorted.parallelStream()
+            .map(file -> parse(file, parsers.get()))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList()));
+
+        int registered = 0;
+        for (IBaseResource resource : parsed) {
+            if (resource instanceof StructureDefinition) {
+                target.addStructureDefinition(resource);
+            } else if (resource instanceof ValueSet) {
+                target.addValueSet(resource);
+            } else if (resource instanceof CodeSystem) {
+                target.addCodeSystem(resource);
+            } else {
+                continue;
+            }
+            registered++;
+        }
+
+        recordStage("local_resources", start);
+        logger.info("{} lokale Konformitätsressourcen aus {} Dateien geladen ({} ms)",
+            registered, files.length, elapsedMillis(start));
+        return registered;
+    }
+
+    private NpmPackageValidationSupport loadNpmPackage(String classpathPackage) {
+        try {
+            NpmPackageValidationSupport support = new NpmPackageValidationSupport(ctx);
+            support.loadPackageFromClasspath(classpathPackage);
+            logger.debug("NPM-Package {} geladen", classpathPackage);
+            return support;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Fehler beim Laden des NPM-Packages " + classpathPackage, e);
+        }
+    }
+
+    private IBaseResource parse(Resource file, IParser parser) {
+        try (InputStream stream = file.getInputStream();
+             Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            IBaseResource resource = parser.parseResource(reader);
+            logger.debug("Datei '{}' geladen ({})", file.getFilename(), resource.fhirType());
+            return resource;
+        } catch (Exception e) {
+            logger.error("Fehler beim Laden der Datei {}: {}", file.getFilename(), e.getMessage());
+            return null;
+        }
+    }
+
+    private <T> T runParallel(Callable<T> task) throws IOException {
+        // Worker erhalten den Classloader der Anwendung, sonst schlagen Classpath-Zugriffe im Boot-JAR fehl
+        ClassLoader classLoader = getClass().getClassLoader();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("validation-loader-" + thread.getPoolIndex());
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }, null, false);
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Laden der Validierungsressourcen unterbrochen", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Fehler beim Laden der Validierungsressourcen", cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Meldet die seit {@code startNanos} vergangene Zeit als Ladezeit der angegebenen Phase.
+     */
+    public void recordStage(String stage, long startNanos) {
+        Timer.builder("validation.startup.load")
+            .description("Ladezeit der Validierungsressourcen beim Start")
+            .tag("stage", stage)
+            .register(meterRegistry)
+            .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
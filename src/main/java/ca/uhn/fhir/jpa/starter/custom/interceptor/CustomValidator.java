@@ -2,12 +2,15 @@ package ca.uhn.fhir.jpa.starter.custom.interceptor;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath.FastPathValidator;
 import ca.uhn.fhir.validation.FhirValidator;
-import ca.uhn.fhir.validation.ValidationResult;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import org.hl7.fhir.common.hapi.validation.support.*;
 import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.beans.factory.BeanCreationException;
 import org.slf4j.Logger;
@@ -16,13 +19,22 @@ import jakarta.annotation.PostConstruct;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import org.hl7.fhir.r4.model.*;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
 import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath.FastPathResult;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.io.IOException;
 import java.util.stream.Collectors;
 import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 @Component
@@ -30,51 +42,117 @@ import java.util.List;
 public class CustomValidator {
     private static final Logger logger = LoggerFactory.getLogger(CustomValidator.class);
     private static final Pattern KVID_PATTERN = Pattern.compile("^[A-Z][0-9]{9}$");
-    private static final Pattern GOAE_PATTERN = Pattern.compile("^[A-Z]?\\d{1,4}[A-Z]?$");
-    private static final Pattern GOZ_PATTERN = Pattern.compile("^\\d{3,4}[a-z]?$");
-    private static final String GOAE_SYSTEM = "http://fhir.de/CodeSystem/bäk/goä";
-    private static final String GOZ_SYSTEM = "http://fhir.de/CodeSystem/bzäk/goz";
+    private static final List<String> NPM_PACKAGES = List.of(
+        "classpath:package/de.basisprofil.r4-1.5.3.tgz",
+        "classpath:package/de.ihe-d.terminology-3.0.1.tgz",
+        "classpath:package/dvmd.kdl.r4-2024.0.0.tgz");
+    // UserData-Schlüssel für bereits vor der Speicherung validierte Ressourcen (Identität)
+    private static final String VALIDATED_RESOURCES = CustomValidator.class.getName() + ".validated";
+    // Für den Cache-Schlüssel irrelevante, vom Server gesetzte Elemente
+    private static final Set<String> NON_CANONICAL_ELEMENTS = Set.of(
+        "*.meta.versionId", "*.meta.lastUpdated", "*.meta.source");
     private final FhirValidator validator;
     private final ValidationSupportChain validationSupportChain;
-    private final PrePopulatedValidationSupport prePopulatedSupport;
+    private final TrackingPrePopulatedValidationSupport prePopulatedSupport;
+    private final TerminologyIndex terminologyIndex;
+    private final ValidationResultCache validationResultCache;
+    private final FastPathValidator fastPathValidator;
+    private final ValidationProfiler validationProfiler;
+    private final AttachmentInspector attachmentInspector;
+    private final LineItemValidator lineItemValidator;
+    private final BundleValidationExecutor bundleValidationExecutor;
+    private final MeterRegistry meterRegistry;
+    private final boolean scopedRevalidationEnabled;
+    private final String packageSetVersion;
     private final FhirContext ctx;
 
-    public CustomValidator(FhirContext ctx) {
+    public CustomValidator(FhirContext ctx, ValidationResultCache validationResultCache, SnapshotStore snapshotStore,
+                           ConformanceResourceLoader resourceLoader, FastPathValidator fastPathValidator,
+                           ValidationProfiler validationProfiler, AttachmentInspector attachmentInspector,
+                           LineItemValidator lineItemValidator, BundleValidationExecutor bundleValidationExecutor,
+                           MeterRegistry meterRegistry,
+                           @Value("${hapi.fhir.scoped_revalidation.enabled:true}") boolean scopedRevalidationEnabled,
+                           @Value("${hapi.fhir.terminology_index.enabled:true}") boolean terminologyIndexEnabled,
+                           @Value("${hapi.fhir.terminology_index.max_codes_per_value_set:10000}") int maxCodesPerValueSet) {
         this.ctx = ctx;
+        this.validationResultCache = validationResultCache;
+        this.fastPathValidator = fastPathValidator;
+        this.validationProfiler = validationProfiler;
+        this.attachmentInspector = attachmentInspector;
+        this.lineItemValidator = lineItemValidator;
+        this.bundleValidationExecutor = bundleValidationExecutor;
+        this.meterRegistry = meterRegistry;
+        this.scopedRevalidationEnabled = scopedRevalidationEnabled;
         logger.info("CustomValidator wird initialisiert...");
+        long start = System.nanoTime();
         try {
-            // NPM Package Support erstellen und Packages laden
-            NpmPackageValidationSupport npmPackageSupport = new NpmPackageValidationSupport(ctx);
-            npmPackageSupport.loadPackageFromClasspath("classpath:package/de.basisprofil.r4-1.5.3.tgz");
-            npmPackageSupport.loadPackageFromClasspath("classpath:package/de.ihe-d.terminology-3.0.1.tgz");
-            npmPackageSupport.loadPackageFromClasspath("classpath:package/dvmd.kdl.r4-2024.0.0.tgz");
-
-            logger.info("NPM Package Support erstellt und Packages geladen");
+            // NPM Packages parallel laden, je Package ein eigener Support
+            List<NpmPackageValidationSupport> npmPackageSupports = resourceLoader.loadNpmPackages(NPM_PACKAGES);
+            this.packageSetVersion = String.join(",", NPM_PACKAGES);
 
             // PrePopulatedValidationSupport für lokale Ressourcen erstellen und im Feld speichern
-            this.prePopulatedSupport = new PrePopulatedValidationSupport(ctx);
+            this.prePopulatedSupport = new TrackingPrePopulatedValidationSupport(ctx);
             
             // Alle lokalen Ressourcen aus dem resources-Verzeichnis laden
-            loadAllResources(this.prePopulatedSupport);
+            resourceLoader.loadLocalResources(this.prePopulatedSupport);
             
-            // Validation Support Chain erstellen
-            this.validationSupportChain = new ValidationSupportChain(
-                npmPackageSupport,
-                this.prePopulatedSupport,
-                new DefaultProfileValidationSupport(ctx),
-                new CommonCodeSystemsTerminologyService(ctx),
-                new InMemoryTerminologyServerValidationSupport(ctx),
-                new SnapshotGeneratingValidationSupport(ctx)
-            );
+            // Validation Support Chain erstellen, der Terminologie-Index steht an erster Stelle
+            this.terminologyIndex = new TerminologyIndex(ctx, maxCodesPerValueSet);
+            List<IValidationSupport> supports = new ArrayList<>();
+            supports.add(this.terminologyIndex);
+            supports.addAll(npmPackageSupports);
+            supports.add(this.prePopulatedSupport);
+            supports.add(new DefaultProfileValidationSupport(ctx));
+            supports.add(new CommonCodeSystemsTerminologyService(ctx));
+            supports.add(new InMemoryTerminologyServerValidationSupport(ctx));
+            supports.add(new SnapshotGeneratingValidationSupport(ctx));
+            this.validationSupportChain = new ValidationSupportChain(supports.toArray(new IValidationSupport[0]));
             logger.info("Validation Support Chain erstellt");
 
+            // Snapshots der differentiellen Profile aus dem Store laden bzw. einmalig erzeugen,
+            // statt sie beim ersten Request zu generieren
+            for (NpmPackageValidationSupport npmPackageSupport : npmPackageSupports) {
+                snapshotStore.applySnapshots(npmPackageSupport, this.validationSupportChain, packageSetVersion);
+            }
+            snapshotStore.applySnapshots(this.prePopulatedSupport, this.validationSupportChain, packageSetVersion);
+            this.validationSupportChain.invalidateCaches();
+
+            // ValueSets des Package-Sets einmal expandieren
+            if (terminologyIndexEnabled) {
+                List<IBaseResource> valueSetSources = new ArrayList<>();
+                for (NpmPackageValidationSupport npmPackageSupport : npmPackageSupports) {
+                    valueSetSources.addAll(npmPackageSupport.fetchAllConformanceResources());
+                }
+                valueSetSources.addAll(this.prePopulatedSupport.fetchAllConformanceResources());
+                this.terminologyIndex.build(this.validationSupportChain, valueSetSources);
+                this.validationSupportChain.invalidateCaches();
+            }
+
+            // Häufigste ERG-Profile in Prüfbäume übersetzen; required-Bindings nur über indexierte ValueSets
+            ValidationSupportContext indexContext = new ValidationSupportContext(this.validationSupportChain);
+            fastPathValidator.initialize(this.validationSupportChain,
+                valueSetUrl -> terminologyIndex.isValueSetSupported(indexContext, valueSetUrl));
+            if (validationProfiler.isEnabled()) {
+                fastPathValidator.setConstraintTimer(validationProfiler);
+            }
+
+            // Spätere Änderungen an den lokalen Ressourcen machen gecachte Validierungsergebnisse und den
+            // Terminologie-Index ungültig; die übersetzten Profile werden beim nächsten Zugriff neu übersetzt
+            this.prePopulatedSupport.setChangeListener(() -> {
+                terminologyIndex.clear();
+                fastPathValidator.invalidate();
+                validationResultCache.invalidate();
+            });
+
             // Validator mit Caching erstellen
             this.validator = ctx.newValidator();
-            FhirInstanceValidator instanceValidator = new FhirInstanceValidator(this.validationSupportChain);
+            FhirInstanceValidator instanceValidator =
+                new FhirInstanceValidator(validationProfiler.timed(ctx, this.validationSupportChain));
             instanceValidator.setNoTerminologyChecks(false);
             instanceValidator.setErrorForUnknownProfiles(true);
             validator.registerValidatorModule(instanceValidator);
             logger.info("Validator erfolgreich konfiguriert");
+            resourceLoader.recordStage("total", start);
         } catch (IOException e) {
             logger.error("Fehler beim Laden der FHIR-Packages", e);
             throw new BeanCreationException("Fehler beim Laden der FHIR-Packages", e);
@@ -87,20 +165,175 @@ public class CustomValidator {
         logger.info("Verwendeter FHIR-Kontext: {}", ctx.getVersion().getVersion());
     }
 
+    /**
+     * Vollständige Validierung vor der Verarbeitung, also außerhalb der Datenbanktransaktion.
+     * Bei Batch- und Transaction-Bundles werden die Ressourcen der POST- und PUT-Einträge parallel validiert.
+     * Läuft nach dem ResourceAuthorizationInterceptor, damit nicht autorisierte Requests nicht validiert werden.
+     * Updates von DocumentReferences werden erst vor dem Commit geprüft, weil nur dort die bisherige Version
+     * für die eingeschränkte Revalidierung vorliegt; neu angelegte DocumentReferences werden hier vollständig
+     * validiert.
+     */
+    @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = 10)
+    public void validateBeforeStorage(RequestDetails requestDetails, RestOperationTypeEnum operationType) {
+        IBaseResource resource = requestDetails.getResource();
+        if (resource == null) {
+            return;
+        }
+
+        switch (operationType) {
+            case CREATE:
+                validateAndThrowIfInvalid(resource);
+                markValidated(requestDetails, resource);
+                break;
+            case UPDATE:
+                if (!(scopedRevalidationEnabled && resource instanceof DocumentReference)) {
+                    validateAndThrowIfInvalid(resource);
+                    markValidated(requestDetails, resource);
+                }
+                break;
+            case TRANSACTION:
+                if (resource instanceof Bundle) {
+                    validateBundleAndThrowIfInvalid((Bundle) resource, requestDetails);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Einträge parallel validieren, bevor der erste gespeichert wird. Alle Fehler werden in einem
+    // OperationOutcome gesammelt, jede Meldung verweist auf ihren Eintrag.
+    private void validateBundleAndThrowIfInvalid(Bundle bundle, RequestDetails requestDetails) {
+        // ChargeItems des Bundles einmal indexieren, für die Rechnungspositionen aller Invoices
+        Map<String, ChargeItem> bundleChargeItems = LineItemValidator.indexChargeItems(bundle);
+        List<Integer> entryIndexes = new ArrayList<>();
+        List<IBaseResource> resources = new ArrayList<>();
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        for (int i = 0; i < entries.size(); i++) {
+            Bundle.BundleEntryComponent entry = entries.get(i);
+            Bundle.HTTPVerb method = entry.getRequest().getMethod();
+            if (entry.hasResource() && (method == Bundle.HTTPVerb.POST || method == Bundle.HTTPVerb.PUT)) {
+                entryIndexes.add(i);
+                resources.add(entry.getResource());
+            }
+        }
+        if (resources.isEmpty()) {
+            return;
+        }
+
+        List<BundleValidationExecutor.EntryResult> results = bundleValidationExecutor.validateAll(resources,
+            this::sharedValidationKey, entryResource -> validateAndThrowIfInvalid(entryResource, bundleChargeItems),
+            true);
+
+        OperationOutcome aggregated = new OperationOutcome();
+        int invalidEntries = 0;
+        for (int i = 0; i < results.size(); i++) {
+            OperationOutcome entryOutcome = results.get(i).getOutcome();
+            if (entryOutcome == null) {
+                continue;
+            }
+            invalidEntries++;
+            String entryPath = "Bundle.entry[" + entryIndexes.get(i) + "]";
+            for (OperationOutcome.OperationOutcomeIssueComponent issue : entryOutcome.getIssue()) {
+                OperationOutcome.OperationOutcomeIssueComponent entryIssue = issue.copy();
+                entryIssue.setDiagnostics(entryPath + ": " + issue.getDiagnostics());
+                entryIssue.addExpression(entryPath + ".resource");
+                aggregated.addIssue(entryIssue);
+            }
+        }
+        if (aggregated.hasIssue()) {
+            logger.error("Validierungsfehler in {} Einträgen des Bundles", invalidEntries);
+            throw new UnprocessableEntityException("Validierungsfehler in den Einträgen des Bundles", aggregated);
+        }
+        resources.forEach(entryResource -> markValidated(requestDetails, entryResource));
+    }
+
+    // Patienten und Organisationen wiederholen sich in Bundles mit mehreren Rechnungen; inhaltsgleiche
+    // Einträge (ohne id) werden je Bundle nur einmal validiert
+    private String sharedValidationKey(IBaseResource resource) {
+        if (!(resource instanceof Patient) && !(resource instanceof Organization)) {
+            return null;
+        }
+        return resource.fhirType() + ctx.newJsonParser()
+            .setOmitResourceId(true)
+            .setDontEncodeElements(NON_CANONICAL_ELEMENTS)
+            .encodeResourceToString(resource);
+    }
+
     @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
-    public void validateResourceCreate(IBaseResource resource) {
-        logger.error("====== HOOK CALLED: STORAGE_PRECOMMIT_RESOURCE_CREATED for {} ======", resource.fhirType());
-        validateAndThrowIfInvalid(resource);
+    public void validateResourceCreate(IBaseResource resource, RequestDetails requestDetails) {
+        logger.debug("STORAGE_PRECOMMIT_RESOURCE_CREATED für {}", resource.fhirType());
+        validateBeforeCommit(resource, requestDetails);
     }
 
     @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void validateResourceUpdate(IBaseResource oldResource, IBaseResource newResource,
+                                       RequestDetails requestDetails) {
+        if (scopedRevalidationEnabled && oldResource instanceof DocumentReference
+                && newResource instanceof DocumentReference
+                && StatusMetadataDiff.onlyStatusMetadataChanged((Resource) oldResource, (Resource) newResource)
+                && validateStatusMetadataOnly(newResource)) {
+            meterRegistry.counter("validation.revalidation", "scope", "meta").increment();
+            return;
+        }
+        meterRegistry.counter("validation.revalidation", "scope", "full").increment();
+        validateBeforeCommit(newResource, requestDetails);
+    }
+
+    public void validateResourceCreate(IBaseResource resource) {
+        validateResourceCreate(resource, null);
+    }
+
     public void validateResourceUpdate(IBaseResource resource) {
+        validateBeforeCommit(resource, null);
+    }
+
+    // Innerhalb der Transaktion nur noch die günstigen Prüfungen auf dem endgültigen Stand. Die
+    // Profilvalidierung läuft hier nur für Ressourcen, die nicht über die REST-Schnittstelle kamen
+    // (z.B. PATCH, interne DAO-Aufrufe).
+    private void validateBeforeCommit(IBaseResource resource, RequestDetails requestDetails) {
+        if (wasValidatedBeforeStorage(requestDetails, resource)) {
+            runCustomChecks(resource);
+            return;
+        }
         validateAndThrowIfInvalid(resource);
     }
 
+    // Nur Status und Markierungen haben sich geändert ($process-flag, $change-status): meta gegen die übersetzten
+    // Profile prüfen, statt die ganze Ressource samt Anhängen zu validieren. Liefert false, wenn das nicht
+    // möglich ist und vollständig validiert werden muss.
+    private boolean validateStatusMetadataOnly(IBaseResource resource) {
+        FastPathResult result = fastPathValidator.evaluateElement(resource, "meta");
+        if (result == null) {
+            return false;
+        }
+        runCustomChecks(resource);
+        throwIfErrors(result.getErrors());
+        return true;
+    }
+
     public void validateAndThrowIfInvalid(IBaseResource resource) {
+        validateAndThrowIfInvalid(resource, Map.of());
+    }
+
+    private void validateAndThrowIfInvalid(IBaseResource resource, Map<String, ChargeItem> bundleChargeItems) {
         logger.debug("Validiere Resource vom Typ: {}", resource.getClass().getSimpleName());
-        
+
+        runCustomChecks(resource, bundleChargeItems);
+
+        // Anhänge einmal auf den Bytes prüfen; der Profilvalidierung nur deren Hash übergeben
+        List<SingleValidationMessage> attachmentErrors = new ArrayList<>();
+        IBaseResource validationView = attachmentInspector.prepareForValidation(
+            resource, validationSupportChain, attachmentErrors);
+        throwIfErrors(attachmentErrors);
+        validateProfilesAndThrowIfInvalid(validationView);
+    }
+
+    private void runCustomChecks(IBaseResource resource) {
+        runCustomChecks(resource, Map.of());
+    }
+
+    private void runCustomChecks(IBaseResource resource, Map<String, ChargeItem> bundleChargeItems) {
         // Zusätzliche KVID-Validierung für Patienten
         if (resource instanceof Patient) {
             validateKVID((Patient) resource);
@@ -118,45 +351,23 @@ public class CustomValidator {
 
         // Neue Validierung für Invoice (Gebührenordnungen)
         if (resource instanceof Invoice) {
-            validateInvoiceGebOrd((Invoice) resource);
+            validateInvoiceGebOrd((Invoice) resource, bundleChargeItems);
         }
-        
-        ValidationResult validationResult = validator.validateWithResult(resource);
+    }
+
+    private void validateProfilesAndThrowIfInvalid(IBaseResource resource) {
+        List<SingleValidationMessage> messages = validateProfiles(resource);
         
         // Nur Nachrichten mit Severity ERROR oder FATAL sammeln
-        List<SingleValidationMessage> errors = validationResult.getMessages().stream()
+        List<SingleValidationMessage> errors = messages.stream()
             .filter(m -> m.getSeverity() == ResultSeverityEnum.ERROR || 
                         m.getSeverity() == ResultSeverityEnum.FATAL)
             .collect(Collectors.toList());
             
-        // Nur eine Exception werfen, wenn Fehler oder fatale Fehler vorhanden sind
-        if (!errors.isEmpty()) {
-            String errorMessage = errors.stream()
-                .map(single -> single.getLocationString() + ": " + single.getMessage() + " [" + single.getSeverity() + "]")
-                .collect(Collectors.joining("\n"));
-                
-            logger.error("Validierungsfehler gefunden: \n{}", errorMessage);
-            
-            // Erstelle OperationOutcome nur mit den Fehlern
-            OperationOutcome operationOutcome = new OperationOutcome();
-            errors.forEach(message -> {
-                OperationOutcome.IssueSeverity severity = OperationOutcome.IssueSeverity.NULL;
-                if (message.getSeverity() == ResultSeverityEnum.ERROR) {
-                    severity = OperationOutcome.IssueSeverity.ERROR;
-                } else if (message.getSeverity() == ResultSeverityEnum.FATAL) {
-                    severity = OperationOutcome.IssueSeverity.FATAL;
-                }
-                operationOutcome.addIssue()
-                    .setSeverity(severity)
-                    .setCode(OperationOutcome.IssueType.INVALID)
-                    .setDiagnostics(message.getLocationString() + ": " + message.getMessage());
-            });
-            
-            throw new UnprocessableEntityException("Validierungsfehler: " + errorMessage, operationOutcome);
-        }
+        throwIfErrors(errors);
 
         // Logge Warnungen und Informationen, wenn vorhanden
-        List<SingleValidationMessage> warningsOrInfo = validationResult.getMessages().stream()
+        List<SingleValidationMessage> warningsOrInfo = messages.stream()
             .filter(m -> m.getSeverity() == ResultSeverityEnum.WARNING ||
                         m.getSeverity() == ResultSeverityEnum.INFORMATION)
             .collect(Collectors.toList());
@@ -170,6 +381,79 @@ public class CustomValidator {
         logger.debug("Resource erfolgreich validiert (oder nur Warnungen/Informationen gefunden)");
     }
 
+    // Wirft eine UnprocessableEntityException mit OperationOutcome, wenn Fehler vorhanden sind
+    private static void throwIfErrors(List<SingleValidationMessage> errors) {
+        if (errors.isEmpty()) {
+            return;
+        }
+        String errorMessage = errors.stream()
+            .map(single -> single.getLocationString() + ": " + single.getMessage() + " [" + single.getSeverity() + "]")
+            .collect(Collectors.joining("\n"));
+            
+        logger.error("Validierungsfehler gefunden: \n{}", errorMessage);
+        
+        // Erstelle OperationOutcome nur mit den Fehlern
+        OperationOutcome operationOutcome = new OperationOutcome();
+        errors.forEach(message -> {
+            OperationOutcome.IssueSeverity severity = OperationOutcome.IssueSeverity.NULL;
+            if (message.getSeverity() == ResultSeverityEnum.ERROR) {
+                severity = OperationOutcome.IssueSeverity.ERROR;
+            } else if (message.getSeverity() == ResultSeverityEnum.FATAL) {
+                severity = OperationOutcome.IssueSeverity.FATAL;
+            }
+            operationOutcome.addIssue()
+                .setSeverity(severity)
+                .setCode(OperationOutcome.IssueType.INVALID)
+                .setDiagnostics(message.getLocationString() + ": " + message.getMessage());
+        });
+        
+        throw new UnprocessableEntityException("Validierungsfehler: " + errorMessage, operationOutcome);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void markValidated(RequestDetails requestDetails, IBaseResource resource) {
+        Set<IBaseResource> validated = (Set<IBaseResource>) requestDetails.getUserData()
+            .computeIfAbsent(VALIDATED_RESOURCES, key -> Collections.newSetFromMap(new IdentityHashMap<>()));
+        validated.add(resource);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean wasValidatedBeforeStorage(RequestDetails requestDetails, IBaseResource resource) {
+        if (requestDetails == null) {
+            return false;
+        }
+        Set<IBaseResource> validated = (Set<IBaseResource>) requestDetails.getUserData().get(VALIDATED_RESOURCES);
+        return validated != null && validated.contains(resource);
+    }
+
+    // Profilvalidierung mit Cache für identische Inhalte
+    private List<SingleValidationMessage> validateProfiles(IBaseResource resource) {
+        String canonicalEncoding = ctx.newJsonParser()
+            .setOmitResourceId(true)
+            .setDontEncodeElements(NON_CANONICAL_ELEMENTS)
+            .encodeResourceToString(resource);
+        List<String> profiles = resource.getMeta().getProfile().stream()
+            .map(profile -> profile.getValue())
+            .sorted()
+            .collect(Collectors.toList());
+        return validationResultCache.getOrValidate(packageSetVersion, profiles, canonicalEncoding,
+            () -> validationProfiler.profile(resource, profileTags(profiles),
+                () -> fastPathValidator.validate(resource, () -> validationProfiler.profileGeneric(
+                    () -> validator.validateWithResult(resource).getMessages()))));
+    }
+
+    // Profile ohne Version; nicht geladene Profile werden zusammengefasst, damit die Tag-Werte begrenzt bleiben
+    private List<String> profileTags(List<String> profiles) {
+        if (!validationProfiler.isEnabled()) {
+            return profiles;
+        }
+        return profiles.stream()
+            .map(profile -> profile.contains("|") ? profile.substring(0, profile.indexOf('|')) : profile)
+            .map(profile -> validationSupportChain.fetchStructureDefinition(profile) != null ? profile : "unbekannt")
+            .distinct()
+            .collect(Collectors.toList());
+    }
+
     private void validateKVID(Patient patient) {
         patient.getIdentifier().stream()
             .filter(id -> "http://fhir.de/sid/gkv/kvid-10".equals(id.getSystem()))
@@ -320,59 +604,9 @@ public class CustomValidator {
         }
     }
 
-    private void validateInvoiceGebOrd(Invoice invoice) {
-        OperationOutcome outcome = new OperationOutcome();
-        boolean hasError = false;
-
-        // Prüfe Rechnungspositionen
-        for (Invoice.InvoiceLineItemComponent lineItem : invoice.getLineItem()) {
-            if (lineItem.hasChargeItemReference()) {
-                try {
-                    IBaseResource chargeItem = lineItem.getChargeItemReference().getResource();
-                    if (chargeItem instanceof ChargeItem) {
-                        ChargeItem charge = (ChargeItem) chargeItem;
-                        
-                        // Prüfe nur das Format der Gebührenordnungspositionen
-                        if (charge.getCode() != null && charge.getCode().getCoding() != null) {
-                            for (Coding coding : charge.getCode().getCoding()) {
-                                String system = coding.getSystem();
-                                String code = coding.getCode();
-                                
-                                if (system != null && code != null) {
-                                    // Validiere Format der GOÄ Positionen
-                                    if (GOAE_SYSTEM.equals(system) && !GOAE_PATTERN.matcher(code).matches()) {
-                                        outcome.addIssue()
-                                            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
-                                            .setCode(OperationOutcome.IssueType.INVALID)
-                                            .setDiagnostics("Ungültiges Format der GOÄ-Position: " + code + 
-                                                ". Format muss sein: Optional Buchstabe, 1-4 Ziffern, optional Buchstabe");
-                                        hasError = true;
-                                    }
-                                    // Validiere Format der GOZ Positionen
-                                    else if (GOZ_SYSTEM.equals(system) && !GOZ_PATTERN.matcher(code).matches()) {
-                                        outcome.addIssue()
-                                            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
-                                            .setCode(OperationOutcome.IssueType.INVALID)
-                                            .setDiagnostics("Ungültiges Format der GOZ-Position: " + code + 
-                                                ". Format muss sein: 3-4 Ziffern, optional Kleinbuchstabe");
-                                        hasError = true;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.error("Fehler bei der Validierung der Gebührenordnungsposition: {}", e.getMessage());
-                    outcome.addIssue()
-                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
-                        .setCode(OperationOutcome.IssueType.INVALID)
-                        .setDiagnostics("Fehler bei der Validierung der Gebührenordnungsposition: " + e.getMessage());
-                    hasError = true;
-                }
-            }
-        }
-
-        if (hasError) {
+    private void validateInvoiceGebOrd(Invoice invoice, Map<String, ChargeItem> bundleChargeItems) {
+        OperationOutcome outcome = lineItemValidator.validate(invoice, bundleChargeItems);
+        if (outcome.hasIssue()) {
             throw new UnprocessableEntityException("Validierungsfehler in den Gebührenordnungspositionen", outcome);
         }
     }
@@ -387,55 +621,59 @@ public class CustomValidator {
         return validationSupportChain;
     }
 
+    /**
+     * Verwirft gecachte Validierungsergebnisse, z.B. nachdem Packages neu geladen wurden.
+     */
+    public void invalidateValidationCache() {
+        validationResultCache.invalidate();
+    }
+
+    public TerminologyIndex getTerminologyIndex() {
+        return terminologyIndex;
+    }
+
     public PrePopulatedValidationSupport getPrePopulatedSupport() {
         logger.debug("PrePopulatedValidationSupport wird abgerufen");
         return prePopulatedSupport;
     }
 
-    // Hilfsmethode zum Laden von Ressourcen
-    private String loadResourceAsString(String path) throws IOException {
-        try (var inputStream = getClass().getResourceAsStream(path)) {
-            if (inputStream == null) {
-                throw new IOException("Resource nicht gefunden: " + path);
-            }
-            return new String(inputStream.readAllBytes());
+    /**
+     * PrePopulatedValidationSupport, das Änderungen an StructureDefinitions, ValueSets und CodeSystems meldet.
+     */
+    private static class TrackingPrePopulatedValidationSupport extends PrePopulatedValidationSupport {
+        private volatile Runnable changeListener;
+
+        TrackingPrePopulatedValidationSupport(FhirContext ctx) {
+            super(ctx);
         }
-    }
 
-    // Hilfsmethode zum Laden aller Ressourcen (StructureDefinitions, ValueSets, CodeSystems)
-    private void loadAllResources(PrePopulatedValidationSupport prePopulatedSupport) throws IOException {
-        try (var stream = getClass().getResourceAsStream("/gematik-erg-resources(new)")) {
-            if (stream == null) {
-                logger.warn("Verzeichnis /gematik-erg-resources(new) nicht gefunden");
-                return;
-            }
-            
-            var bufferedReader = new java.io.BufferedReader(new java.io.InputStreamReader(stream));
-            String fileName;
-            while ((fileName = bufferedReader.readLine()) != null) {
-                if (fileName.endsWith(".json")) {
-                    try {
-                        String resourceContent = loadResourceAsString("/gematik-erg-resources(new)/" + fileName);
-                        IBaseResource resource = ctx.newJsonParser().parseResource(resourceContent);
-                        
-                        if (resource instanceof StructureDefinition) {
-                            StructureDefinition sd = (StructureDefinition) resource;
-                            prePopulatedSupport.addStructureDefinition(sd);
-                            logger.info("StructureDefinition '{}' aus Datei '{}' geladen", sd.getUrl(), fileName);
-                        } else if (resource instanceof ValueSet) {
-                            ValueSet vs = (ValueSet) resource;
-                            prePopulatedSupport.addValueSet(vs);
-                            logger.info("ValueSet '{}' aus Datei '{}' geladen", vs.getUrl(), fileName);
-                        } else if (resource instanceof CodeSystem) {
-                            CodeSystem cs = (CodeSystem) resource;
-                            prePopulatedSupport.addCodeSystem(cs);
-                            logger.info("CodeSystem '{}' aus Datei '{}' geladen", cs.getUrl(), fileName);
-                        }
-                    } catch (Exception e) {
-                        logger.error("Fehler beim Laden der Datei {}: {}", fileName, e.getMessage());
-                    }
-                }
+        void setChangeListener(Runnable changeListener) {
+            this.changeListener = changeListener;
+        }
+
+        @Override
+        public void addStructureDefinition(IBaseResource structureDefinition) {
+            super.addStructureDefinition(structureDefinition);
+            notifyChanged();
+        }
+
+        @Override
+        public void addValueSet(IBaseResource valueSet) {
+            super.addValueSet(valueSet);
+            notifyChanged();
+        }
+
+        @Override
+        public void addCodeSystem(IBaseResource codeSystem) {
+            super.addCodeSystem(codeSystem);
+            notifyChanged();
+        }
+
+        private void notifyChanged() {
+            Runnable listener = changeListener;
+            if (listener != null) {
+                listener.run();
             }
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,285 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ChargeItem;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Invoice;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Prüft die Rechnungspositionen ({@code Invoice.lineItem}) auf das Format der GOÄ- und GOZ-Positionen.
+ * <p>
+ * Die referenzierten ChargeItems werden einmal über einen Index aufgelöst (contained, Einträge des
+ * umgebenden Bundles, bereits aufgelöste Referenzen). Ab {@code parallel_threshold} Positionen wird die Liste
+ * auf einem eigenen Fork-Join-Pool geteilt; die Meldungen werden in der Reihenfolge der Positionen
+ * zusammengeführt, das OperationOutcome ist also unabhängig von der Aufteilung.
+ */
+@Component
+public class LineItemValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LineItemValidator.class);
+
+    static final String GOAE_SYSTEM = "http://fhir.de/CodeSystem/bäk/goä";
+    static final String GOZ_SYSTEM = "http://fhir.de/CodeSystem/bzäk/goz";
+
+    // Zeichenklassen für ASCII, vorab berechnet statt Pattern.matcher je Code
+    private static final byte DIGIT = 1;
+    private static final byte UPPER = 2;
+    private static final byte LOWER = 4;
+    private static final byte[] CHAR_CLASSES = new byte[128];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASSES[c] = DIGIT;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            CHAR_CLASSES[c] = UPPER;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASSES[c] = LOWER;
+        }
+    }
+
+    private final int parallelThreshold;
+    private final ForkJoinPool pool;
+
+    public LineItemValidator(
+            @Value("${hapi.fhir.line_item_validation.parallel_threshold:500}") int parallelThreshold,
+            @Value("${hapi.fhir.line_item_validation.parallelism:0}") int parallelism) {
+        this.parallelThreshold = Math.max(1, parallelThreshold);
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("line-item-validation-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Index der ChargeItems eines Bundles, Schlüssel sind fullUrl und {@code ChargeItem/<id>}.
+     */
+    public static Map<String, ChargeItem> indexChargeItems(Bundle bundle) {
+        Map<String, ChargeItem> index = new HashMap<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof ChargeItem) {
+                ChargeItem chargeItem = (ChargeItem) entry.getResource();
+                if (entry.hasFullUrl()) {
+                    index.put(entry.getFullUrl(), chargeItem);
+                }
+                if (chargeItem.getIdElement().hasIdPart()) {
+                    index.put("ChargeItem/" + chargeItem.getIdElement().getIdPart(), chargeItem);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param bundleChargeItems ChargeItems des umgebenden Bundles, siehe {@link #indexChargeItems(Bundle)}
+     * @return OperationOutcome mit den Fehlern in der Reihenfolge der Positionen, ohne Issues wenn gültig
+     */
+    public OperationOutcome validate(Invoice invoice, Map<String, ChargeItem> bundleChargeItems) {
+        List<Invoice.InvoiceLineItemComponent> lineItems = invoice.getLineItem();
+        Map<String, ChargeItem> index = new HashMap<>(bundleChargeItems);
+        for (Resource contained : invoice.getContained()) {
+            if (contained instanceof ChargeItem) {
+                String id = contained.getIdElement().getIdPart();
+                index.put(id.startsWith("#") ? id : "#" + id, (ChargeItem) contained);
+            }
+        }
+
+        List<OperationOutcome.OperationOutcomeIssueComponent> issues = lineItems.size() < parallelThreshold
+            ? validateRange(lineItems, index, 0, lineItems.size())
+            : pool.invoke(new LineItemTask(lineItems, index, 0, lineItems.size(), chunkSize(lineItems.size())));
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.setIssue(new ArrayList<>(issues));
+        return outcome;
+    }
+
+    // Etwa vier Teilbereiche je Thread, damit ungleich teure Positionen ausgeglichen werden
+    private int chunkSize(int lineItemCount) {
+        return Math.max(64, lineItemCount / (pool.getParallelism() * 4));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static List<OperationOutcome.OperationOutcomeIssueComponent> validateRange(
+            List<Invoice.InvoiceLineItemComponent> lineItems, Map<String, ChargeItem> index, int from, int to) {
+        List<OperationOutcome.OperationOutcomeIssueComponent> issues = null;
+        for (int i = from; i < to; i++) {
+            Invoice.InvoiceLineItemComponent lineItem = lineItems.get(i);
+            if (!lineItem.hasChargeItemReference()) {
+                continue;
+            }
+            try {
+                ChargeItem chargeItem = resolve(lineItem.getChargeItemReference(), index);
+                if (chargeItem == null || !chargeItem.hasCode()) {
+                    continue;
+                }
+                // Prüfe nur das Format der Gebührenordnungspositionen
+                for (Coding coding : chargeItem.getCode().getCoding()) {
+                    String message = checkFormat(coding.getSystem(), coding.getCode());
+                    if (message != null) {
+                        issues = add(issues, i, message);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Fehler bei der Validierung der Gebührenordnungsposition: {}", e.getMessage());
+                issues = add(issues, i, "Fehler bei der Validierung der Gebührenordnungsposition: " + e.getMessage());
+            }
+        }
+        return issues == null ? Collections.emptyList() : issues;
+    }
+
+    private static ChargeItem resolve(Type reference, Map<String, ChargeItem> index) {
+        if (!(reference instanceof Reference)) {
+            return null;
+        }
+        Reference chargeItemReference = (Reference) reference;
+        IBaseResource resolved = chargeItemReference.getResource();
+        if (resolved instanceof ChargeItem) {
+            return (ChargeItem) resolved;
+        }
+        return chargeItemReference.hasReference() ? index.get(chargeItemReference.getReference()) : null;
+    }
+
+    private static String checkFormat(String system, String code) {
+        if (system == null || code == null) {
+            return null;
+        }
+        // Validiere Format der GOÄ Positionen
+        if (GOAE_SYSTEM.equals(system) && !isGoaeCode(code)) {
+            return "Ungültiges Format der GOÄ-Position: " + code
+                + ". Format muss sein: Optional Buchstabe, 1-4 Ziffern, optional Buchstabe";
+        }
+        // Validiere Format der GOZ Positionen
+        if (GOZ_SYSTEM.equals(system) && !isGozCode(code)) {
+            return "Ungültiges Format der GOZ-Position: " + code
+                + ". Format muss sein: 3-4 Ziffern, optional Kleinbuchstabe";
+        }
+        return null;
+    }
+
+    /**
+     * GOÄ: optional Großbuchstabe, 1-4 Ziffern, optional Großbuchstabe ({@code ^[A-Z]?\d{1,4}[A-Z]?$}).
+     */
+    static boolean isGoaeCode(String code) {
+        int length = code.length();
+        int i = 0;
+        if (i < length && charClass(code.charAt(i)) == UPPER) {
+            i++;
+        }
+        int digitsStart = i;
+        while (i < length && charClass(code.charAt(i)) == DIGIT) {
+            i++;
+        }
+        int digits = i - digitsStart;
+        if (digits < 1 || digits > 4) {
+            return false;
+        }
+        if (i < length && charClass(code.charAt(i)) == UPPER) {
+            i++;
+        }
+        return i == length;
+    }
+
+    /**
+     * GOZ: 3-4 Ziffern, optional Kleinbuchstabe ({@code ^\d{3,4}[a-z]?$}).
+     */
+    static boolean isGozCode(String code) {
+        int length = code.length();
+        int i = 0;
+        while (i < length && charClass(code.charAt(i)) == DIGIT) {
+            i++;
+        }
+        if (i < 3 || i > 4) {
+            return false;
+        }
+        if (i < length && charClass(code.charAt(i)) == LOWER) {
+            i++;
+        }
+        return i == length;
+    }
+
+    private static byte charClass(char c) {
+        return c < 128 ? CHAR_CLASSES[c] : 0;
+    }
+
+    private static List<OperationOutcome.OperationOutcomeIssueComponent> add(
+            List<OperationOutcome.OperationOutcomeIssueComponent> issues, int index, String message) {
+        List<OperationOutcome.OperationOutcomeIssueComponent> result = issues == null ? new ArrayList<>() : issues;
+        OperationOutcome.OperationOutcomeIssueComponent issue = new OperationOutcome.OperationOutcomeIssueComponent()
+            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+            .setCode(OperationOutcome.IssueType.INVALID)
+            .setDiagnostics(message);
+        issue.addExpression("Invoice.lineItem[" + index + "]");
+        result.add(issue);
+        return result;
+    }
+
+    /**
+     * Teilt den Bereich, bis er höchstens {@code chunkSize} Positionen umfasst; die Ergebnisse werden links vor rechts zusammengeführt.
+     */
+    private static final class LineItemTask extends RecursiveTask<List<OperationOutcome.OperationOutcomeIssueComponent>> {
+        private final List<Invoice.InvoiceLineItemComponent> lineItems;
+        private final Map<String, ChargeItem> index;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        LineItemTask(List<Invoice.InvoiceLineItemComponent> lineItems, Map<String, ChargeItem> index,
+                     int from, int to, int chunkSize) {
+            this.lineItems = lineItems;
+            this.index = index;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected List<OperationOutcome.OperationOutcomeIssueComponent> compute() {
+            if (to - from <= chunkSize) {
+                return validateRange(lineItems, index, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            LineItemTask left = new LineItemTask(lineItems, index, from, middle, chunkSize);
+            LineItemTask right = new LineItemTask(lineItems, index, middle, to, chunkSize);
+            right.fork();
+            List<OperationOutcome.OperationOutcomeIssueComponent> leftIssues = left.compute();
+            List<OperationOutcome.OperationOutcomeIssueComponent> rightIssues = right.join();
+            if (rightIssues.isEmpty()) {
+                return leftIssues;
+            }
+            if (leftIssues.isEmpty()) {
+                return rightIssues;
+            }
+            List<OperationOutcome.OperationOutcomeIssueComponent> merged = new ArrayList<>(leftIssues.size() + rightIssues.size());
+            merged.addAll(leftIssues);
+            merged.addAll(rightIssues);
+            return merged;
+        }
+    }
+}
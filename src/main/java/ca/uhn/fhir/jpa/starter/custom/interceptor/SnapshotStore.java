@@ -0,0 +1,194 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistenter Speicher für generierte Snapshots von StructureDefinitions, die nur ein Differential enthalten.
+ * <p>
+ * Ohne Store erzeugt {@code SnapshotGeneratingValidationSupport} die Snapshots der ERG-Profile nach jedem
+ * Neustart erneut, und zwar beim ersten Request, der das Profil benötigt. Der Store erzeugt sie stattdessen
+ * beim Start bzw. lädt sie von der Platte und registriert sie mit Snapshot im jeweiligen
+ * {@link PrePopulatedValidationSupport}.
+ * <p>
+ * Dateiname ist ein SHA-256 über URL, Version und einen Abhängigkeits-Hash. Dieser umfasst den Inhalt der
+ * StructureDefinition, die Inhalte ihrer lokal geladenen Basisprofile und die Version des Package-Sets.
+ * Ändert sich eine Abhängigkeit, wird der Snapshot neu erzeugt; veraltete Dateien werden nie gelesen.
+ * <p>
+ * Das Verzeichnis ({@code hapi.fhir.snapshot_cache.directory}) muss Neustarts überdauern, im Container also auf
+ * einem Volume liegen; ein temporäres Verzeichnis würde die Snapshots bei jedem Neustart verwerfen.
+ * <p>
+ * Vor dem Verzeichnis wird {@code classpath:/erg-snapshots/} geprüft. Dort können bereits zur Build-Zeit
+ * erzeugte Snapshots (Inhalt des Verzeichnisses nach einem Start) mit ausgeliefert werden.
+ */
+@Component
+public class SnapshotStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotStore.class);
+    private static final String CLASSPATH_LOCATION = "/erg-snapshots/";
+
+    private final FhirContext ctx;
+    private final boolean enabled;
+    private final Path directory;
+    private final Counter loaded;
+    private final Counter generated;
+
+    public SnapshotStore(
+            FhirContext ctx,
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.snapshot_cache.enabled:true}") boolean enabled,
+            @Value("${hapi.fhir.snapshot_cache.directory:data/erg-snapshots}") String directory) {
+        this.ctx = ctx;
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.loaded = meterRegistry.counter("validation.snapshot.cache", "result", "loaded");
+        this.generated = meterRegistry.counter("validation.snapshot.cache", "result", "generated");
+    }
+
+    /**
+     * Stellt sicher, dass alle StructureDefinitions in {@code target} einen Snapshot haben.
+     *
+     * @param target            Support, dessen StructureDefinitions ergänzt werden
+     * @param chain             vollständige Chain, über die Basisprofile aufgelöst und Snapshots erzeugt werden
+     * @param packageSetVersion Kennung der geladenen NPM-Packages
+     * @return Anzahl der ergänzten Snapshots
+     */
+    public int applySnapshots(PrePopulatedValidationSupport target, IValidationSupport chain, String packageSetVersion) {
+        if (!enabled) {
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        int fromStore = 0;
+        int fresh = 0;
+        // Dateinamen vorab berechnen, solange alle Basisprofile noch im Originalzustand vorliegen
+        Map<StructureDefinition, String> pending = new LinkedHashMap<>();
+        List<IBaseResource> structureDefinitions = target.fetchAllStructureDefinitions();
+        for (IBaseResource resource : structureDefinitions) {
+            if (resource instanceof StructureDefinition) {
+                StructureDefinition sd = (StructureDefinition) resource;
+                if (!sd.hasSnapshot() && sd.hasDifferential()) {
+                    pending.put(sd, fileName(sd, target, packageSetVersion));
+                }
+            }
+        }
+
+        for (Map.Entry<StructureDefinition, String> entry : pending.entrySet()) {
+            StructureDefinition sd = entry.getKey();
+            String fileName = entry.getValue();
+            StructureDefinition withSnapshot = load(fileName);
+            if (withSnapshot != null) {
+                fromStore++;
+                loaded.increment();
+            } else {
+                withSnapshot = generate(sd, chain);
+                if (withSnapshot == null) {
+                    continue;
+                }
+                store(fileName, withSnapshot);
+                fresh++;
+                generated.increment();
+            }
+            target.addStructureDefinition(withSnapshot);
+        }
+
+        if (fromStore + fresh > 0) {
+            logger.info("{} Snapshots aus dem Store geladen, {} neu erzeugt ({} ms)",
+                fromStore, fresh, System.currentTimeMillis() - start);
+        }
+        return fromStore + fresh;
+    }
+
+    private StructureDefinition generate(StructureDefinition sd, IValidationSupport chain) {
+        try {
+            IBaseResource result = chain.generateSnapshot(
+                new ValidationSupportContext(chain), sd.copy(), sd.getUrl(), null, sd.getName());
+            if (result instanceof StructureDefinition && ((StructureDefinition) result).hasSnapshot()) {
+                return (StructureDefinition) result;
+            }
+            logger.warn("Für '{}' konnte kein Snapshot erzeugt werden", sd.getUrl());
+        } catch (Exception e) {
+            logger.warn("Fehler beim Erzeugen des Snapshots für '{}': {}", sd.getUrl(), e.getMessage());
+        }
+        return null;
+    }
+
+    private StructureDefinition load(String fileName) {
+        try (InputStream bundled = getClass().getResourceAsStream(CLASSPATH_LOCATION + fileName)) {
+            if (bundled != null) {
+                return ctx.newJsonParser().parseResource(StructureDefinition.class, bundled);
+            }
+            Path file = directory.resolve(fileName);
+            if (Files.isRegularFile(file)) {
+                return ctx.newJsonParser().parseResource(StructureDefinition.class, Files.readString(file));
+            }
+        } catch (Exception e) {
+            logger.warn("Snapshot {} konnte nicht gelesen werden, wird neu erzeugt: {}", fileName, e.getMessage());
+        }
+        return null;
+    }
+
+    private void store(String fileName, StructureDefinition sd) {
+        try {
+            Files.createDirectories(directory);
+            // Erst temporär schreiben, damit parallel startende Instanzen keine halben Dateien lesen
+            Path temp = Files.createTempFile(directory, fileName, ".tmp");
+            Files.writeString(temp, ctx.newJsonParser().encodeResourceToString(sd));
+            Files.move(temp, directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Snapshot für '{}' konnte nicht gespeichert werden: {}", sd.getUrl(), e.getMessage());
+        }
+    }
+
+    private String fileName(StructureDefinition sd, PrePopulatedValidationSupport target, String packageSetVersion) {
+        MessageDigest digest = sha256();
+        digest.update((sd.getUrl() + '|' + sd.getVersion() + '|' + packageSetVersion + '|'
+            + ctx.getVersion().getVersion()).getBytes(StandardCharsets.UTF_8));
+
+        // Inhalt der StructureDefinition und aller lokal vorhandenen Basisprofile
+        Set<String> visited = new HashSet<>();
+        StructureDefinition current = sd;
+        while (current != null && visited.add(current.getUrl())) {
+            digest.update(ctx.newJsonParser().encodeResourceToString(current).getBytes(StandardCharsets.UTF_8));
+            IBaseResource base = current.hasBaseDefinition()
+                ? target.fetchStructureDefinition(current.getBaseDefinition())
+                : null;
+            current = base instanceof StructureDefinition ? (StructureDefinition) base : null;
+        }
+        return HexFormat.of().formatHex(digest.digest()) + ".json";
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 nicht verfügbar", e);
+        }
+    }
+}
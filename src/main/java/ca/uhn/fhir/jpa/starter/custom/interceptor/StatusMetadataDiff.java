@@ -0,0 +1,85 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Vergleicht zwei Versionen einer Ressource und erkennt Änderungen, die nur Status und Markierungen betreffen
+ * ($process-flag, $change-status): {@code meta.tag}, {@code meta.security} und die Extension
+ * {@code erg-documentreference-markierung}. Vom Server gesetzte Elemente (versionId, lastUpdated, source)
+ * werden ignoriert.
+ * <p>
+ * Verglichen wird Property für Property ohne Kopie der Ressource; große Anhänge werden dabei nur per
+ * {@code equalsDeep} auf den Bytes verglichen.
+ */
+final class StatusMetadataDiff {
+
+    static final String MARKIERUNG_URL = "https://gematik.de/fhir/erg/StructureDefinition/erg-documentreference-markierung";
+
+    // id wird vom Server beim Update erzwungen, meta wird separat verglichen
+    private static final Set<String> IGNORED_RESOURCE_PROPERTIES = Set.of("id", "meta");
+    private static final Set<String> STATUS_META_PROPERTIES = Set.of(
+        "tag", "security", "versionId", "lastUpdated", "source", "extension");
+
+    private StatusMetadataDiff() {
+    }
+
+    /**
+     * @return {@code true}, wenn sich höchstens meta.tag, meta.security oder die Markierungs-Extension
+     * unterscheiden
+     */
+    static boolean onlyStatusMetadataChanged(Resource oldResource, Resource newResource) {
+        if (!oldResource.fhirType().equals(newResource.fhirType())) {
+            return false;
+        }
+        for (Property property : newResource.children()) {
+            if (IGNORED_RESOURCE_PROPERTIES.contains(property.getName())) {
+                continue;
+            }
+            if (!sameValues(property.getValues(), oldResource.getNamedProperty(property.getName()))) {
+                return false;
+            }
+        }
+        return sameNonStatusMeta(oldResource.getMeta(), newResource.getMeta());
+    }
+
+    private static boolean sameNonStatusMeta(Meta oldMeta, Meta newMeta) {
+        for (Property property : newMeta.children()) {
+            if (STATUS_META_PROPERTIES.contains(property.getName())) {
+                continue;
+            }
+            if (!sameValues(property.getValues(), oldMeta.getNamedProperty(property.getName()))) {
+                return false;
+            }
+        }
+        List<Extension> oldExtensions = oldMeta.getExtension().stream()
+            .filter(extension -> !MARKIERUNG_URL.equals(extension.getUrl()))
+            .toList();
+        List<Extension> newExtensions = newMeta.getExtension().stream()
+            .filter(extension -> !MARKIERUNG_URL.equals(extension.getUrl()))
+            .toList();
+        return sameValues(newExtensions, oldExtensions);
+    }
+
+    private static boolean sameValues(List<Base> newValues, Property oldProperty) {
+        return oldProperty != null && sameValues(newValues, oldProperty.getValues());
+    }
+
+    private static boolean sameValues(List<? extends Base> newValues, List<? extends Base> oldValues) {
+        if (newValues.size() != oldValues.size()) {
+            return false;
+        }
+        for (int i = 0; i < newValues.size(); i++) {
+            if (!newValues.get(i).equalsDeep(oldValues.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,202 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vorab expandierte ValueSets als erstes Glied der Validation Support Chain.
+ * <p>
+ * {@code InMemoryTerminologyServerValidationSupport} expandiert ValueSets zur Laufzeit und sucht Codes linear in
+ * der Expansion. Der Index expandiert alle ValueSets des Package-Sets einmal beim Start und hält je ValueSet eine
+ * Hash-Menge der Codes pro (internierter) System-URL, sodass {@code validateCode} eine O(1)-Suche ist.
+ * <p>
+ * Der Index beantwortet nur Treffer. Fehlt ein Code, ist das ValueSet nicht (vollständig) expandierbar oder wird
+ * eine Display-Prüfung benötigt, deren Display nicht übereinstimmt, liefert er {@code null}. Die übrigen Glieder
+ * der Chain erzeugen dann wie bisher die Meldung. Displays werden erst bei Bedarf über die Chain nachgeschlagen
+ * und zwischengespeichert.
+ */
+public class TerminologyIndex implements IValidationSupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(TerminologyIndex.class);
+
+    private final FhirContext ctx;
+    private final int maxCodesPerValueSet;
+    private volatile Map<String, Map<String, Set<String>>> codesByValueSet = Map.of();
+    private volatile IValidationSupport displaySource;
+    private final Map<String, String> displays = new ConcurrentHashMap<>();
+
+    public TerminologyIndex(FhirContext ctx, int maxCodesPerValueSet) {
+        this.ctx = ctx;
+        this.maxCodesPerValueSet = maxCodesPerValueSet;
+    }
+
+    /**
+     * Expandiert alle übergebenen ValueSets über die Chain und ersetzt den Index.
+     *
+     * @param chain     vollständige Chain, in der dieser Index an erster Stelle steht
+     * @param resources Konformitätsressourcen des Package-Sets; andere als ValueSets werden ignoriert
+     * @return Anzahl der indexierten ValueSets
+     */
+    public int build(IValidationSupport chain, Collection<? extends IBaseResource> resources) {
+        long start = System.currentTimeMillis();
+        // Bis zum Ende des Aufbaus beantwortet der Index nichts, damit die Expansion nicht auf ihn zurückfällt
+        clear();
+
+        Map<String, String> systems = new HashMap<>();
+        Map<String, Map<String, Set<String>>> index = new HashMap<>();
+        ValueSetExpansionOptions options = new ValueSetExpansionOptions().setCount(maxCodesPerValueSet + 1);
+        for (IBaseResource resource : resources) {
+            if (!(resource instanceof ValueSet)) {
+                continue;
+            }
+            ValueSet valueSet = (ValueSet) resource;
+            if (!valueSet.hasUrl() || index.containsKey(valueSet.getUrl())) {
+                continue;
+            }
+            Map<String, Set<String>> codes = expand(chain, options, valueSet, systems);
+            if (codes != null) {
+                index.put(valueSet.getUrl(), codes);
+                if (valueSet.hasVersion()) {
+                    index.put(valueSet.getUrl() + "|" + valueSet.getVersion(), codes);
+                }
+            }
+        }
+
+        this.codesByValueSet = index;
+        this.displaySource = chain;
+        logger.info("Terminologie-Index mit {} ValueSets aufgebaut ({} ms)", index.size(), System.currentTimeMillis() - start);
+        return index.size();
+    }
+
+    /**
+     * Leert den Index; alle Anfragen gehen danach an die übrigen Glieder der Chain.
+     */
+    public void clear() {
+        codesByValueSet = Map.of();
+        displays.clear();
+    }
+
+    public int size() {
+        return codesByValueSet.size();
+    }
+
+    @Override
+    public FhirContext getFhirContext() {
+        return ctx;
+    }
+
+    @Override
+    public String getName() {
+        return "TerminologyIndex";
+    }
+
+    @Override
+    public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
+        return theValueSetUrl != null && codesByValueSet.containsKey(theValueSetUrl);
+    }
+
+    @Override
+    public CodeValidationResult validateCode(ValidationSupportContext theValidationSupportContext,
+                                             ConceptValidationOptions theOptions, String theCodeSystem,
+                                             String theCode, String theDisplay, String theValueSetUrl) {
+        return lookup(theCodeSystem, theCode, theDisplay, theValueSetUrl);
+    }
+
+    @Override
+    public CodeValidationResult validateCodeInValueSet(ValidationSupportContext theValidationSupportContext,
+                                                       ConceptValidationOptions theOptions, String theCodeSystem,
+                                                       String theCode, String theDisplay, IBaseResource theValueSet) {
+        if (!(theValueSet instanceof ValueSet)) {
+            return null;
+        }
+        return lookup(theCodeSystem, theCode, theDisplay, ((ValueSet) theValueSet).getUrl());
+    }
+
+    private CodeValidationResult lookup(String system, String code, String display, String valueSetUrl) {
+        if (system == null || code == null || valueSetUrl == null) {
+            return null;
+        }
+        Map<String, Set<String>> codes = codesByValueSet.get(valueSetUrl);
+        if (codes == null) {
+            return null;
+        }
+        Set<String> codesOfSystem = codes.get(system);
+        if (codesOfSystem == null || !codesOfSystem.contains(code)) {
+            return null;
+        }
+
+        CodeValidationResult result = new CodeValidationResult().setCode(code);
+        if (display != null) {
+            String expected = display(system, code);
+            if (expected == null || !expected.equalsIgnoreCase(display)) {
+                // Abweichendes oder unbekanntes Display: Meldung wie bisher von der Chain
+                return null;
+            }
+            result.setDisplay(expected);
+        }
+        return result;
+    }
+
+    private String display(String system, String code) {
+        IValidationSupport source = displaySource;
+        if (source == null) {
+            return null;
+        }
+        return displays.computeIfAbsent(system + '|' + code, key -> {
+            LookupCodeResult lookup = source.lookupCode(
+                new ValidationSupportContext(source), new LookupCodeRequest(system, code));
+            return lookup != null && lookup.isFound() ? lookup.getCodeDisplay() : null;
+        });
+    }
+
+    private Map<String, Set<String>> expand(IValidationSupport chain, ValueSetExpansionOptions options,
+                                            ValueSet valueSet, Map<String, String> systems) {
+        try {
+            ValueSetExpansionOutcome outcome = chain.expandValueSet(new ValidationSupportContext(chain), options, valueSet);
+            if (outcome == null || outcome.getError() != null || !(outcome.getValueSet() instanceof ValueSet)) {
+                return null;
+            }
+            ValueSet.ValueSetExpansionComponent expansion = ((ValueSet) outcome.getValueSet()).getExpansion();
+            Map<String, Set<String>> codes = new HashMap<>();
+            int count = collect(expansion.getContains(), codes, systems);
+            if (count > maxCodesPerValueSet) {
+                logger.debug("ValueSet {} mit mehr als {} Codes wird nicht indexiert", valueSet.getUrl(), maxCodesPerValueSet);
+                return null;
+            }
+            return codes;
+        } catch (Exception e) {
+            logger.debug("ValueSet {} konnte nicht expandiert werden: {}", valueSet.getUrl(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static int collect(List<ValueSet.ValueSetExpansionContainsComponent> contains,
+                               Map<String, Set<String>> codes, Map<String, String> systems) {
+        int count = 0;
+        for (ValueSet.ValueSetExpansionContainsComponent concept : contains) {
+            if (concept.hasSystem() && concept.hasCode() && !concept.getAbstract()) {
+                String system = systems.computeIfAbsent(concept.getSystem(), s -> s);
+                codes.computeIfAbsent(system, s -> new HashSet<>()).add(concept.getCode());
+                count++;
+            }
+            count += collect(concept.getContains(), codes, systems);
+        }
+        return count;
+    }
+}
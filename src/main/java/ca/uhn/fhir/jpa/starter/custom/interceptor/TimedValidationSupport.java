@@ -0,0 +1,97 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupportWrapper;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.function.Supplier;
+
+/**
+ * Misst die Phasen der generischen Validierung, in denen der {@code FhirInstanceValidator} die Chain befragt:
+ * Terminologie (Code-Prüfung, Lookup, Expansion), Snapshot-Erzeugung und das Laden von StructureDefinitions.
+ * <p>
+ * Glieder der Chain rufen über den Root-Support wieder diesen Wrapper auf (z.B. expandiert die Code-Prüfung
+ * ein ValueSet); gemessen wird daher nur der äußerste Aufruf je Thread, damit keine Zeit doppelt zählt.
+ */
+class TimedValidationSupport extends BaseValidationSupportWrapper {
+
+    static final String PHASE_TERMINOLOGY = "terminology";
+    static final String PHASE_SNAPSHOT = "snapshot";
+    static final String PHASE_STRUCTURE_DEFINITION = "structure_definition";
+
+    private final ValidationProfiler profiler;
+    private final ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+
+    TimedValidationSupport(FhirContext ctx, IValidationSupport chain, ValidationProfiler profiler) {
+        super(ctx, chain);
+        this.profiler = profiler;
+    }
+
+    @Override
+    public String getName() {
+        return "TimedValidationSupport";
+    }
+
+    @Override
+    public CodeValidationResult validateCode(ValidationSupportContext theValidationSupportContext,
+                                             ConceptValidationOptions theOptions, String theCodeSystem,
+                                             String theCode, String theDisplay, String theValueSetUrl) {
+        return timed(PHASE_TERMINOLOGY, () -> super.validateCode(
+            theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSetUrl));
+    }
+
+    @Override
+    public CodeValidationResult validateCodeInValueSet(ValidationSupportContext theValidationSupportContext,
+                                                       ConceptValidationOptions theOptions, String theCodeSystem,
+                                                       String theCode, String theDisplay, IBaseResource theValueSet) {
+        return timed(PHASE_TERMINOLOGY, () -> super.validateCodeInValueSet(
+            theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSet));
+    }
+
+    @Override
+    public LookupCodeResult lookupCode(ValidationSupportContext theValidationSupportContext,
+                                       LookupCodeRequest theLookupCodeRequest) {
+        return timed(PHASE_TERMINOLOGY, () -> super.lookupCode(theValidationSupportContext, theLookupCodeRequest));
+    }
+
+    @Override
+    public ValueSetExpansionOutcome expandValueSet(ValidationSupportContext theValidationSupportContext,
+                                                   ValueSetExpansionOptions theExpansionOptions,
+                                                   IBaseResource theValueSetToExpand) {
+        return timed(PHASE_TERMINOLOGY, () -> super.expandValueSet(
+            theValidationSupportContext, theExpansionOptions, theValueSetToExpand));
+    }
+
+    @Override
+    public IBaseResource generateSnapshot(ValidationSupportContext theValidationSupportContext,
+                                          IBaseResource theInput, String theUrl, String theWebUrl,
+                                          String theProfileName) {
+        return timed(PHASE_SNAPSHOT, () -> super.generateSnapshot(
+            theValidationSupportContext, theInput, theUrl, theWebUrl, theProfileName));
+    }
+
+    @Override
+    public IBaseResource fetchStructureDefinition(String theUrl) {
+        return timed(PHASE_STRUCTURE_DEFINITION, () -> super.fetchStructureDefinition(theUrl));
+    }
+
+    private <T> T timed(String phase, Supplier<T> call) {
+        int[] calls = depth.get();
+        if (calls[0] > 0) {
+            return call.get();
+        }
+        calls[0]++;
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            calls[0]--;
+            profiler.recordPhase(phase, System.nanoTime() - start);
+        }
+    }
+}
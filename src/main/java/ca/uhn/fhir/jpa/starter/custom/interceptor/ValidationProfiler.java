@@ -0,0 +1,230 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath.ConstraintTimer;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Optionale Laufzeitmessung der Profilvalidierung.
+ * <p>
+ * Je Validierung (Cache-Miss) wird {@code validation.duration} mit Ressourcentyp, deklarierten Profilen und
+ * Durchlauf ({@code pass=fast_path|generic}) erfasst; im Schattenmodus laufen beide Durchläufe und werden getrennt
+ * gemessen. Je Invariante wird {@code validation.constraint} mit Profil und Schlüssel erfasst. Invarianten werden
+ * im schnellen Pfad gemessen, also nur für die dort übersetzten Profile. Die generische Validierung wird über
+ * {@link #timed(FhirContext, IValidationSupport)} in Phasen zerlegt: {@code validation.phase} mit
+ * {@code phase=terminology|snapshot|structure_definition}.
+ * <p>
+ * Validierungen über {@code slow_threshold_ms} werden mit Stichprobenrate {@code slow_log_sample_rate}
+ * protokolliert, zusammen mit der Ressource, der Zeit je Durchlauf und Phase und den teuersten Invarianten samt
+ * Elementpfad.
+ */
+@Component
+public class ValidationProfiler implements ConstraintTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValidationProfiler.class);
+    private static final int SLOWEST_PER_RUN = 5;
+
+    public static final String PASS_FAST_PATH = "fast_path";
+    public static final String PASS_GENERIC = "generic";
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final long slowThresholdNanos;
+    private final double slowLogSampleRate;
+    private final Map<String, Timer> constraintTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> phaseTimers = new ConcurrentHashMap<>();
+    // Laufende Validierung im aktuellen Thread: Tags, Zeiten je Durchlauf/Phase, teuerste Invarianten
+    private final ThreadLocal<Run> currentRun = new ThreadLocal<>();
+
+    public ValidationProfiler(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.validation_profiling.enabled:false}") boolean enabled,
+            @Value("${hapi.fhir.validation_profiling.slow_threshold_ms:500}") long slowThresholdMs,
+            @Value("${hapi.fhir.validation_profiling.slow_log_sample_rate:0.1}") double slowLogSampleRate) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMs);
+        this.slowLogSampleRate = slowLogSampleRate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Führt die Validierung aus und misst sie, sofern die Messung aktiviert ist.
+     *
+     * @param profiles deklarierte Profile ohne Version; unbekannte Profile sollten vorher zusammengefasst
+     *                 werden, damit die Zahl der Tag-Werte begrenzt bleibt
+     */
+    public List<SingleValidationMessage> profile(IBaseResource resource, List<String> profiles,
+                                                 Supplier<List<SingleValidationMessage>> validation) {
+        if (!enabled) {
+            return validation.get();
+        }
+
+        Run previous = currentRun.get();
+        Run run = new Run(resource.fhirType(), profiles.isEmpty() ? "none" : String.join(",", profiles));
+        currentRun.set(run);
+        long start = System.nanoTime();
+        try {
+            return validation.get();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            if (previous != null) {
+                currentRun.set(previous);
+            } else {
+                currentRun.remove();
+            }
+
+            if (nanos >= slowThresholdNanos && ThreadLocalRandom.current().nextDouble() < slowLogSampleRate) {
+                logSlowValidation(resource, nanos, run);
+            }
+        }
+    }
+
+    /**
+     * Misst die generische Validierung als eigenen Durchlauf der laufenden {@link #profile}-Messung.
+     */
+    public List<SingleValidationMessage> profileGeneric(Supplier<List<SingleValidationMessage>> validation) {
+        if (!enabled || currentRun.get() == null) {
+            return validation.get();
+        }
+        long start = System.nanoTime();
+        try {
+            return validation.get();
+        } finally {
+            recordPass(PASS_GENERIC, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Hüllt die Chain für den FhirInstanceValidator, sodass dessen Phasen gemessen werden. Ohne aktivierte
+     * Messung wird die Chain unverändert zurückgegeben.
+     */
+    public IValidationSupport timed(FhirContext ctx, IValidationSupport chain) {
+        return enabled ? new TimedValidationSupport(ctx, chain, this) : chain;
+    }
+
+    @Override
+    public void recordFastPath(long nanos) {
+        recordPass(PASS_FAST_PATH, nanos);
+    }
+
+    void recordPhase(String phase, long nanos) {
+        phaseTimers.computeIfAbsent(phase, key -> Timer.builder("validation.phase")
+                .tag("phase", phase)
+                .register(meterRegistry))
+            .record(nanos, TimeUnit.NANOSECONDS);
+
+        Run run = currentRun.get();
+        if (run != null) {
+            run.phaseNanos.merge(phase, nanos, Long::sum);
+        }
+    }
+
+    private void recordPass(String pass, long nanos) {
+        Run run = currentRun.get();
+        if (!enabled || run == null) {
+            return;
+        }
+        Timer.builder("validation.duration")
+            .tag("resource", run.resourceType)
+            .tag("profile", run.profileTag)
+            .tag("pass", pass)
+            .register(meterRegistry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+        run.passNanos.merge(pass, nanos, Long::sum);
+    }
+
+    @Override
+    public void record(String profileUrl, String constraintKey, String location, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        constraintTimers.computeIfAbsent(profileUrl + '|' + constraintKey, key -> Timer.builder("validation.constraint")
+                .tag("profile", profileUrl)
+                .tag("constraint", constraintKey)
+                .register(meterRegistry))
+            .record(nanos, TimeUnit.NANOSECONDS);
+
+        Run run = currentRun.get();
+        if (run != null) {
+            run.constraints.add(new ConstraintSample(constraintKey, location, nanos));
+            if (run.constraints.size() > SLOWEST_PER_RUN) {
+                run.constraints.poll();
+            }
+        }
+    }
+
+    private void logSlowValidation(IBaseResource resource, long nanos, Run run) {
+        String location = resource.getIdElement().hasIdPart()
+            ? resource.getIdElement().toUnqualifiedVersionless().getValue()
+            : resource.fhirType() + " (ohne ID)";
+        List<ConstraintSample> slowest = new ArrayList<>(run.constraints);
+        slowest.sort(Comparator.comparingLong(ConstraintSample::nanos).reversed());
+        String constraints = slowest.isEmpty() ? "keine gemessen" : slowest.stream()
+            .map(sample -> sample.key + " an " + sample.location + " ("
+                + TimeUnit.NANOSECONDS.toMicros(sample.nanos) + " µs)")
+            .collect(Collectors.joining(", "));
+        logger.warn("Langsame Validierung von {} gegen {}: {} ms; Durchläufe: {}; Phasen: {}; teuerste Invarianten: {}",
+            location, run.profileTag, TimeUnit.NANOSECONDS.toMillis(nanos), millis(run.passNanos),
+            millis(run.phaseNanos), constraints);
+    }
+
+    private static String millis(Map<String, Long> nanosByName) {
+        return nanosByName.isEmpty() ? "keine gemessen" : nanosByName.entrySet().stream()
+            .map(entry -> entry.getKey() + " " + TimeUnit.NANOSECONDS.toMillis(entry.getValue()) + " ms")
+            .collect(Collectors.joining(", "));
+    }
+
+    private static final class Run {
+        private final String resourceType;
+        private final String profileTag;
+        private final Map<String, Long> passNanos = new LinkedHashMap<>();
+        private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+        private final PriorityQueue<ConstraintSample> constraints =
+            new PriorityQueue<>(Comparator.comparingLong(ConstraintSample::nanos));
+
+        Run(String resourceType, String profileTag) {
+            this.resourceType = resourceType;
+            this.profileTag = profileTag;
+        }
+    }
+
+    private static final class ConstraintSample {
+        private final String key;
+        private final String location;
+        private final long nanos;
+
+        ConstraintSample(String key, String location, long nanos) {
+            this.key = key;
+            this.location = location;
+            this.nanos = nanos;
+        }
+
+        long nanos() {
+            return nanos;
+        }
+    }
+}
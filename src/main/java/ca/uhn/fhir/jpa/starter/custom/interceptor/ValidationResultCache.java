@@ -0,0 +1,125 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Begrenzter LRU-Cache für Ergebnisse der Profilvalidierung.
+ * <p>
+ * Schlüssel ist ein SHA-256 über die kanonische Kodierung der Ressource (ohne id, versionId, lastUpdated),
+ * die deklarierten Profile und die Version des geladenen Package-Sets. Gespeichert werden alle Meldungen
+ * (Fehler und Warnungen), damit identische Inhalte – z.B. Patient und Practitioner, die mit jeder Rechnung
+ * erneut gesendet werden – nicht erneut gegen die Profile geprüft werden.
+ * <p>
+ * {@link #invalidate()} erhöht die Generation, die Teil jedes Schlüssels ist. Ergebnisse laufender
+ * Validierungen gegen den alten Stand werden dadurch nie wieder getroffen.
+ */
+@Component
+public class ValidationResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValidationResultCache.class);
+
+    private final Map<String, List<SingleValidationMessage>> entries;
+    private final AtomicLong generation = new AtomicLong();
+    private final boolean enabled;
+    private final Counter hits;
+    private final Counter misses;
+
+    public ValidationResultCache(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.validation_cache.enabled:true}") boolean enabled,
+            @Value("${hapi.fhir.validation_cache.max_entries:5000}") int maxEntries) {
+        this.enabled = enabled;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<SingleValidationMessage>> eldest) {
+                return size() > maxEntries;
+            }
+        });
+        this.hits = meterRegistry.counter("validation.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("validation.cache.requests", "result", "miss");
+        meterRegistry.gauge("validation.cache.entries", entries, Map::size);
+        meterRegistry.gauge("validation.cache.hit_ratio", this, ValidationResultCache::getHitRatio);
+    }
+
+    /**
+     * Liefert die gespeicherten Meldungen oder führt die Validierung aus und speichert deren Ergebnis.
+     *
+     * @param packageSetVersion Kennung der geladenen NPM-Packages und lokalen Konformitätsressourcen
+     * @param profiles          deklarierte Profile (meta.profile)
+     * @param canonicalEncoding kanonische Kodierung der Ressource
+     * @param validation        führt die Profilvalidierung aus
+     */
+    public List<SingleValidationMessage> getOrValidate(String packageSetVersion, List<String> profiles,
+                                                       String canonicalEncoding,
+                                                       Supplier<List<SingleValidationMessage>> validation) {
+        if (!enabled) {
+            return validation.get();
+        }
+
+        String key = key(packageSetVersion, profiles, canonicalEncoding);
+        List<SingleValidationMessage> cached = entries.get(key);
+        if (cached != null) {
+            hits.increment();
+            logger.debug("Validierungsergebnis aus dem Cache verwendet");
+            return cached;
+        }
+
+        misses.increment();
+        List<SingleValidationMessage> messages = List.copyOf(validation.get());
+        entries.put(key, messages);
+        return messages;
+    }
+
+    /**
+     * Verwirft alle Einträge. Muss aufgerufen werden, wenn sich Packages oder lokale Ressourcen ändern.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+        logger.info("Validierungs-Cache verworfen (Generation {})", generation.get());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public double getHitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    private String key(String packageSetVersion, List<String> profiles, String canonicalEncoding) {
+        MessageDigest digest = sha256();
+        digest.update((packageSetVersion + '|' + generation.get() + '|').getBytes(StandardCharsets.UTF_8));
+        for (String profile : profiles) {
+            digest.update((profile + '|').getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update(canonicalEncoding.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 nicht verfügbar", e);
+        }
+    }
+}
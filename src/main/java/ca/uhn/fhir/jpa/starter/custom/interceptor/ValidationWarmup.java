@@ -0,0 +1,141 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wärmt den {@link CustomValidator} nach dem Start mit den Beispielen aus {@code gematik-erg-resources(new)} auf.
+ * <p>
+ * Die ersten Validierungen nach einem Deployment bezahlen JIT-Kompilierung, FHIRPath-Kompilierung und
+ * Terminologie-Expansion. Die Beispiele werden daher im Hintergrund mehrfach validiert, und zwar über
+ * {@link CustomValidator#validateAndThrowIfInvalid}, denselben Einstieg wie im Request. So werden neben dem
+ * HAPI-Validator auch Anhangsprüfung, schneller Pfad und die eigenen Prüfungen aufgewärmt. Als Health-Indikator
+ * {@code validationWarmup} in der Readiness-Gruppe hält die Klasse den Readiness-Probe auf OUT_OF_SERVICE, bis
+ * das Aufwärmen abgeschlossen oder das Timeout erreicht ist. Die Dauer wird als {@code validation.warmup}
+ * gemeldet.
+ */
+@Component
+public class ValidationWarmup implements HealthIndicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValidationWarmup.class);
+    private static final String SAMPLE_LOCATION = "/gematik-erg-resources(new)/";
+
+    private final CustomValidator customValidator;
+    private final FhirContext ctx;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final long timeoutMillis;
+    private final int iterations;
+    private final List<String> samples;
+
+    private volatile boolean finished;
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile long durationMillis = -1;
+
+    public ValidationWarmup(
+            CustomValidator customValidator,
+            FhirContext ctx,
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.validation_warmup.enabled:true}") boolean enabled,
+            @Value("${hapi.fhir.validation_warmup.timeout_seconds:120}") long timeoutSeconds,
+            @Value("${hapi.fhir.validation_warmup.iterations:3}") int iterations,
+            @Value("${hapi.fhir.validation_warmup.samples:DocumentReference-BeispielDocumentReferenceRechnung3-LE.json,"
+                + "Patient-BeispielPatient3-FD.json,Parameters-BeispielParameterSubmitInput3-LE.json}") List<String> samples) {
+        this.customValidator = customValidator;
+        this.ctx = ctx;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        this.iterations = iterations;
+        this.samples = samples;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            finished = true;
+            return;
+        }
+        deadline = System.currentTimeMillis() + timeoutMillis;
+        Thread thread = new Thread(this::warmUp, "validation-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Health health() {
+        if (finished) {
+            return Health.up().withDetail("durationMillis", durationMillis).build();
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            return Health.up().withDetail("timedOut", true).build();
+        }
+        return Health.outOfService().withDetail("samples", samples.size()).build();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void warmUp() {
+        long start = System.nanoTime();
+        try {
+            List<IBaseResource> resources = loadSamples();
+            logger.info("Aufwärmen der Validierung mit {} Beispielen ({} Durchläufe)", resources.size(), iterations);
+            for (int i = 0; i < iterations && System.currentTimeMillis() < deadline; i++) {
+                // Sonst träfen die Wiederholungen nur den Ergebnis-Cache
+                customValidator.invalidateValidationCache();
+                for (IBaseResource resource : resources) {
+                    try {
+                        customValidator.validateAndThrowIfInvalid(resource);
+                        logger.debug("Aufwärmen: {} gültig", resource.fhirType());
+                    } catch (UnprocessableEntityException e) {
+                        logger.debug("Aufwärmen: {} ungültig: {}", resource.fhirType(), e.getMessage());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Aufwärmen der Validierung fehlgeschlagen: {}", e.getMessage());
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            Timer.builder("validation.warmup")
+                .description("Dauer des Aufwärmens der Validierung beim Start")
+                .register(meterRegistry)
+                .record(elapsed, TimeUnit.NANOSECONDS);
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+            finished = true;
+            logger.info("Aufwärmen der Validierung abgeschlossen ({} ms)", durationMillis);
+        }
+    }
+
+    private List<IBaseResource> loadSamples() {
+        List<IBaseResource> resources = new ArrayList<>();
+        for (String sample : samples) {
+            try (InputStream stream = getClass().getResourceAsStream(SAMPLE_LOCATION + sample.trim())) {
+                if (stream == null) {
+                    logger.warn("Beispiel {} für das Aufwärmen nicht gefunden", sample);
+                    continue;
+                }
+                resources.add(ctx.newJsonParser().parseResource(stream));
+            } catch (Exception e) {
+                logger.warn("Beispiel {} konnte nicht gelesen werden: {}", sample, e.getMessage());
+            }
+        }
+        return resources;
+    }
+}
@@ -69,7 +69,8 @@ public class AuthenticationInterceptor {
             // Prüfe spezielle Berechtigungen für die Submit-Operation
             boolean isSubmitOperation = requestPath != null && 
                                       requestDetails.getOperation() != null && 
-                                      requestDetails.getOperation().equals("$erechnung-submit");
+                                      (requestDetails.getOperation().equals("$erechnung-submit")
+                                       || requestDetails.getOperation().equals("$erechnung-bulk-submit"));
             
             if (isSubmitOperation && accessToken.getProfession() == Profession.VERSICHERTER) {
                 throw new AuthenticationException("Keine ausreichende Berechtigung für die Submit-Operation. Nur Leistungserbringer und Kostenträger dürfen Rechnungen einreichen.");
@@ -48,7 +48,13 @@ public class ResourceAuthorizationInterceptor {
         LOGGER.debug("Prüfe Autorisierung für Ressource: {}, Operation: {}", resourceName, operationType);
         
         // Prüfe Autorisierung für verschiedene Ressourcen
-        if ("Patient".equals(resourceName)) {
+        if ("$erechnung-bulk-retrieve".equals(requestDetails.getOperation())) {
+            // Systemweite Operation ohne Ressourcentyp, ruft aber DocumentReferences ab
+            validateDocumentReferenceAccess(accessToken, operationType);
+        } else if ("$inbox".equals(requestDetails.getOperation())) {
+            // Der Posteingang ist eine Suche über DocumentReferences
+            validateDocumentReferenceAccess(accessToken, RestOperationTypeEnum.SEARCH_TYPE);
+        } else if ("Patient".equals(resourceName)) {
             validatePatientAccess(accessToken, operationType);
         } else if ("DocumentReference".equals(resourceName)) {
             validateDocumentReferenceAccess(accessToken, operationType);
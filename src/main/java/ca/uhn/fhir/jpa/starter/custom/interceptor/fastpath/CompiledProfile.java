@@ -0,0 +1,392 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Aus dem Snapshot einer StructureDefinition erzeugter Prüfbaum.
+ * <p>
+ * Geprüft werden Kardinalitäten, fixed- und pattern-Werte, required-Bindings (über die Chain und damit den
+ * Terminologie-Index), Invarianten mit Schweregrad error (vorab geparste FHIRPath-Ausdrücke) sowie Slices mit
+ * value-/pattern-Diskriminatoren. Typprofile, z.B. von Extensions oder Identifiern aus de.basisprofil, werden
+ * als eigene {@code CompiledProfile} referenziert.
+ * <p>
+ * Was sich nicht abbilden lässt, wird unter {@link #getUnsupported()} vermerkt. Ein Profil ist nur
+ * {@link #isComplete() vollständig}, wenn weder es selbst noch ein referenziertes Profil solche Einträge hat.
+ */
+public final class CompiledProfile {
+
+    private final String url;
+    private final String type;
+    private ElementNode root;
+    private final List<String> unsupported = new ArrayList<>();
+    // Element-IDs zu den Einträgen in unsupported
+    private final List<String> unsupportedIds = new ArrayList<>();
+    private final List<CompiledProfile> references = new ArrayList<>();
+
+    CompiledProfile(String url, String type) {
+        this.url = url;
+        this.type = type;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public List<String> getUnsupported() {
+        return Collections.unmodifiableList(unsupported);
+    }
+
+    public boolean isComplete() {
+        return isComplete(Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    /**
+     * Prüft eine Ressource gegen das Profil.
+     *
+     * @param chain Chain für required-Bindings
+     */
+    public FastPathResult validate(Resource resource, FHIRPathEngine engine, IValidationSupport chain) {
+        return validate(resource, engine, chain, null);
+    }
+
+    /**
+     * Wie {@link #validate(Resource, FHIRPathEngine, IValidationSupport)}, misst zusätzlich jede Invariante.
+     *
+     * @param timer erhält die Laufzeiten, darf {@code null} sein
+     */
+    public FastPathResult validate(Resource resource, FHIRPathEngine engine, IValidationSupport chain,
+                                   ConstraintTimer timer) {
+        Run run = new Run(resource, engine, chain, timer);
+        if (root == null) {
+            run.fallback = true;
+        } else {
+            validateInstance(root, resource, resource.fhirType(), run);
+        }
+        return new FastPathResult(run.errors, run.fallback);
+    }
+
+    /**
+     * Ob ein Element der obersten Ebene, z.B. {@code meta}, samt aller Kinder, Slices und Typprofile
+     * vollständig übersetzt ist.
+     */
+    public boolean isComplete(String elementName) {
+        ElementNode node = root == null ? null : root.child(elementName);
+        if (node == null) {
+            return false;
+        }
+        for (String id : unsupportedIds) {
+            if (id.equals(node.id) || id.startsWith(node.id + ".") || id.startsWith(node.id + ":")) {
+                return false;
+            }
+        }
+        return typeProfilesComplete(node);
+    }
+
+    /**
+     * Prüft nur ein Element der obersten Ebene, z.B. {@code meta}, gegen das Profil. Invarianten auf
+     * Ressourcenebene werden dabei nicht ausgewertet.
+     */
+    public FastPathResult validateElement(Resource resource, String elementName, FHIRPathEngine engine,
+                                          IValidationSupport chain) {
+        Run run = new Run(resource, engine, chain, null);
+        ElementNode node = root == null ? null : root.child(elementName);
+        if (node == null) {
+            run.fallback = true;
+        } else {
+            validateElement(node, resource, resource.fhirType(), run);
+        }
+        return new FastPathResult(run.errors, run.fallback);
+    }
+
+    void setRoot(ElementNode root) {
+        this.root = root;
+    }
+
+    ElementNode getRoot() {
+        return root;
+    }
+
+    void addUnsupported(String elementId, String reason) {
+        unsupportedIds.add(elementId);
+        unsupported.add(reason);
+    }
+
+    void addReference(CompiledProfile profile) {
+        references.add(profile);
+    }
+
+    private boolean isComplete(Set<CompiledProfile> visited) {
+        if (!visited.add(this)) {
+            return true;
+        }
+        if (root == null || !unsupported.isEmpty()) {
+            return false;
+        }
+        for (CompiledProfile reference : references) {
+            if (!reference.isComplete(visited)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean typeProfilesComplete(ElementNode node) {
+        if (node.typeProfile != null && !node.typeProfile.isComplete()) {
+            return false;
+        }
+        for (ElementNode child : node.children) {
+            if (!typeProfilesComplete(child)) {
+                return false;
+            }
+        }
+        for (ElementNode slice : node.slices) {
+            if (!typeProfilesComplete(slice)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void validateElement(ElementNode node, Base parent, String parentPath, Run run) {
+        List<Base> values = values(parent, node.name);
+        if (values == null) {
+            // Element im HAPI-Modell unbekannt
+            run.fallback = true;
+            return;
+        }
+        String path = parentPath + "." + displayName(node.name);
+        checkCardinality(node, values.size(), path, run);
+        for (int i = 0; i < values.size(); i++) {
+            validateInstance(node, values.get(i), path + "[" + i + "]", run);
+        }
+        if (!node.slices.isEmpty() && node.discriminators != null) {
+            validateSlices(node, values, path, run);
+        }
+    }
+
+    private static void validateInstance(ElementNode node, Base value, String path, Run run) {
+        if (node.fixed != null && !matchesFixed(node.fixed, value)) {
+            run.error(path, "Wert entspricht nicht dem festgelegten Wert (fixed)");
+        }
+        if (node.pattern != null && !matchesPattern(node.pattern, value)) {
+            run.error(path, "Wert entspricht nicht dem vorgegebenen Muster (pattern)");
+        }
+        if (node.requiredValueSet != null) {
+            checkBinding(node.requiredValueSet, value, path, run);
+        }
+        for (ElementNode.Constraint constraint : node.constraints) {
+            try {
+                long start = run.timer != null ? System.nanoTime() : 0;
+                boolean satisfied = run.engine.evaluateToBoolean(run.resource, run.resource, value, constraint.expression);
+                if (run.timer != null) {
+                    run.timer.record(constraint.profileUrl, constraint.key, path, System.nanoTime() - start);
+                }
+                if (!satisfied) {
+                    run.error(path, constraint.key + ": " + constraint.human);
+                }
+            } catch (Exception e) {
+                run.fallback = true;
+            }
+        }
+        if (node.typeProfile != null && node.typeProfile.root != null) {
+            validateInstance(node.typeProfile.root, value, path, run);
+        }
+        for (ElementNode child : node.children) {
+            validateElement(child, value, path, run);
+        }
+    }
+
+    private static void validateSlices(ElementNode node, List<Base> values, String path, Run run) {
+        boolean[] matched = new boolean[values.size()];
+        for (ElementNode slice : node.slices) {
+            int count = 0;
+            for (int i = 0; i < values.size(); i++) {
+                if (matchesSlice(node, slice, values.get(i), run)) {
+                    matched[i] = true;
+                    count++;
+                    validateInstance(slice, values.get(i), path + "[" + i + "]", run);
+                }
+            }
+            checkCardinality(slice, count, path + ":" + slice.sliceName, run);
+        }
+        if (node.closed) {
+            for (int i = 0; i < values.size(); i++) {
+                if (!matched[i]) {
+                    run.error(path + "[" + i + "]", "Element passt zu keinem Slice (geschlossenes Slicing)");
+                }
+            }
+        }
+    }
+
+    private static boolean matchesSlice(ElementNode sliced, ElementNode slice, Base value, Run run) {
+        if (slice.discriminatorValueSet != null) {
+            return inValueSet(slice.discriminatorValueSet, codes(value), run);
+        }
+        for (int i = 0; i < sliced.discriminators.size(); i++) {
+            Base expected = slice.discriminatorValues.get(i);
+            boolean found = false;
+            for (Base actual : navigate(value, sliced.discriminators.get(i))) {
+                if (matchesPattern(expected, actual)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkCardinality(ElementNode node, int count, String path, Run run) {
+        if (count < node.min) {
+            run.error(path, "Mindestens " + node.min + " Element(e) erwartet, gefunden: " + count);
+        } else if (node.max >= 0 && count > node.max) {
+            run.error(path, "Höchstens " + node.max + " Element(e) erlaubt, gefunden: " + count);
+        }
+    }
+
+    private static void checkBinding(String valueSet, Base value, String path, Run run) {
+        List<String[]> codes = codes(value);
+        if (!codes.isEmpty() && !inValueSet(valueSet, codes, run)) {
+            run.error(path, "Code ist nicht im ValueSet " + valueSet + " enthalten (required)");
+        }
+    }
+
+    // Paare aus System (null bei code) und Code
+    private static List<String[]> codes(Base value) {
+        List<String[]> codes = new ArrayList<>();
+        if (value instanceof CodeableConcept) {
+            for (Coding coding : ((CodeableConcept) value).getCoding()) {
+                codes.add(new String[]{coding.getSystem(), coding.getCode()});
+            }
+        } else if (value instanceof Coding) {
+            codes.add(new String[]{((Coding) value).getSystem(), ((Coding) value).getCode()});
+        } else if (value.isPrimitive()) {
+            codes.add(new String[]{null, value.primitiveValue()});
+        }
+        codes.removeIf(code -> code[1] == null);
+        return codes;
+    }
+
+    private static boolean inValueSet(String valueSet, List<String[]> codes, Run run) {
+        ValidationSupportContext context = new ValidationSupportContext(run.chain);
+        for (String[] code : codes) {
+            ConceptValidationOptions options = new ConceptValidationOptions().setInferSystem(code[0] == null);
+            IValidationSupport.CodeValidationResult result =
+                run.chain.validateCode(context, options, code[0], code[1], null, valueSet);
+            if (result != null && result.isOk()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean matchesFixed(Base fixed, Base value) {
+        if (fixed.isPrimitive()) {
+            return value.isPrimitive() && Objects.equals(fixed.primitiveValue(), value.primitiveValue());
+        }
+        return fixed.equalsDeep(value);
+    }
+
+    /**
+     * Pattern-Semantik: jedes im Muster gesetzte Element muss in der Instanz vorkommen, bei Wiederholungen
+     * muss je Musterwert mindestens ein passender Instanzwert existieren.
+     */
+    static boolean matchesPattern(Base pattern, Base value) {
+        if (pattern.isPrimitive()) {
+            return value.isPrimitive() && Objects.equals(pattern.primitiveValue(), value.primitiveValue());
+        }
+        for (Property property : pattern.children()) {
+            for (Base patternValue : property.getValues()) {
+                List<Base> candidates = values(value, property.getName());
+                if (candidates == null) {
+                    return false;
+                }
+                boolean found = false;
+                for (Base candidate : candidates) {
+                    if (matchesPattern(patternValue, candidate)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static List<Base> navigate(Base value, String[] segments) {
+        List<Base> current = List.of(value);
+        for (String segment : segments) {
+            if ("$this".equals(segment)) {
+                continue;
+            }
+            List<Base> next = new ArrayList<>();
+            for (Base base : current) {
+                List<Base> children = values(base, segment);
+                if (children != null) {
+                    next.addAll(children);
+                }
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    private static List<Base> values(Base parent, String name) {
+        Property property = parent.getNamedProperty(name);
+        return property == null ? null : property.getValues();
+    }
+
+    private static String displayName(String name) {
+        return name.endsWith("[x]") ? name.substring(0, name.length() - 3) : name;
+    }
+
+    private static final class Run {
+        private final Resource resource;
+        private final FHIRPathEngine engine;
+        private final IValidationSupport chain;
+        private final ConstraintTimer timer;
+        private final List<SingleValidationMessage> errors = new ArrayList<>();
+        private boolean fallback;
+
+        Run(Resource resource, FHIRPathEngine engine, IValidationSupport chain, ConstraintTimer timer) {
+            this.resource = resource;
+            this.engine = engine;
+            this.chain = chain;
+            this.timer = timer;
+        }
+
+        void error(String path, String message) {
+            SingleValidationMessage error = new SingleValidationMessage();
+            error.setSeverity(ResultSeverityEnum.ERROR);
+            error.setLocationString(path);
+            error.setMessage(message);
+            errors.add(error);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+/**
+ * Empfängt die Laufzeit jeder im schnellen Pfad ausgewerteten Invariante und des schnellen Pfads insgesamt.
+ */
+@FunctionalInterface
+public interface ConstraintTimer {
+
+    /**
+     * @param profileUrl    Profil, das die Invariante definiert
+     * @param constraintKey Schlüssel der Invariante, z.B. {@code ele-1}
+     * @param location      Pfad des geprüften Elements in der Instanz
+     * @param nanos         Dauer der Auswertung
+     */
+    void record(String profileUrl, String constraintKey, String location, long nanos);
+
+    /**
+     * @param nanos Dauer des schnellen Pfads für eine Ressource über alle deklarierten Profile
+     */
+    default void recordFastPath(long nanos) {
+    }
+}
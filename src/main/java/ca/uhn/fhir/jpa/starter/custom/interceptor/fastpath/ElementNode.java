@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ein Element aus dem Snapshot einer StructureDefinition mit den daraus abgeleiteten Prüfungen.
+ * Kinder und Slices bilden den Baum, den {@link CompiledProfile} gegen eine Instanz auswertet.
+ */
+final class ElementNode {
+
+    final String id;
+    // Name der Property im HAPI-Modell, z.B. "identifier" oder "value[x]"; null für das Wurzelelement
+    final String name;
+    final String sliceName;
+
+    int min;
+    // -1 = unbegrenzt
+    int max = -1;
+    Base fixed;
+    Base pattern;
+    String requiredValueSet;
+    CompiledProfile typeProfile;
+
+    final List<Constraint> constraints = new ArrayList<>();
+    final List<ElementNode> children = new ArrayList<>();
+
+    // Slicing; discriminators == null bedeutet, dass die Slices nicht ausgewertet werden können
+    List<String[]> discriminators;
+    boolean closed;
+    final List<ElementNode> slices = new ArrayList<>();
+    // Erwartete Werte je Diskriminator, gesetzt am Slice
+    List<Base> discriminatorValues;
+    // Alternativ: Slice über ein required-Binding ($this-Diskriminator ohne Muster), gesetzt am Slice
+    String discriminatorValueSet;
+
+    ElementNode(String id, String name, String sliceName) {
+        this.id = id;
+        this.name = name;
+        this.sliceName = sliceName;
+    }
+
+    String label() {
+        return sliceName == null ? name : name + ":" + sliceName;
+    }
+
+    ElementNode child(String childName) {
+        for (ElementNode child : children) {
+            if (child.name.equals(childName)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    static final class Constraint {
+        final String profileUrl;
+        final String key;
+        final String human;
+        final ExpressionNode expression;
+
+        Constraint(String profileUrl, String key, String human, ExpressionNode expression) {
+            this.profileUrl = profileUrl;
+            this.key = key;
+            this.human = human;
+            this.expression = expression;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import ca.uhn.fhir.validation.SingleValidationMessage;
+
+import java.util.List;
+
+/**
+ * Ergebnis eines {@link CompiledProfile}: gefundene Fehler und ob die generische Validierung nötig ist,
+ * weil ein Teil der Instanz nicht ausgewertet werden konnte.
+ */
+public final class FastPathResult {
+
+    private final List<SingleValidationMessage> errors;
+    private final boolean fallbackRequired;
+
+    FastPathResult(List<SingleValidationMessage> errors, boolean fallbackRequired) {
+        this.errors = List.copyOf(errors);
+        this.fallbackRequired = fallbackRequired;
+    }
+
+    public List<SingleValidationMessage> getErrors() {
+        return errors;
+    }
+
+    public boolean isFallbackRequired() {
+        return fallbackRequired;
+    }
+}
@@ -0,0 +1,330 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Schneller Validierungspfad für die häufigsten ERG-Profile auf Basis von {@link CompiledProfile}s.
+ * <p>
+ * Modi ({@code hapi.fhir.fast_path.mode}):
+ * <ul>
+ *     <li>{@code off}: nur generische Validierung.</li>
+ *     <li>{@code shadow}: die generische Validierung entscheidet, der schnelle Pfad läuft mit und Abweichungen
+ *     im Ergebnis (gültig/ungültig) werden als {@code validation.fastpath.drift} gezählt.</li>
+ *     <li>{@code primary}: für vollständig übersetzte Profile entscheidet der schnelle Pfad. Die generische
+ *     Validierung läuft nur als Fallback (unvollständiges Profil, nicht auswertbare Instanz) und für einen
+ *     Anteil von {@code drift_sample_rate} Requests zum Abgleich.</li>
+ * </ul>
+ * Datentyp-Invarianten außerhalb der Profile (z.B. per-1) und Referenzziele prüft nur die generische
+ * Validierung; vor dem Umschalten auf {@code primary} sollte der Drift-Zähler im Schattenbetrieb bei 0 liegen.
+ * <p>
+ * Die übersetzten Profile liegen als unveränderlicher Stand vor, der nach {@link #invalidate()} beim nächsten
+ * Zugriff unter einer Sperre neu übersetzt und als Ganzes ersetzt wird. Laufende Validierungen arbeiten mit dem
+ * Stand weiter, mit dem sie begonnen haben.
+ */
+@Component
+public class FastPathValidator {
+
+    private static final Logger logger = LoggerFactory.getLogger(FastPathValidator.class);
+
+    public enum Mode { OFF, SHADOW, PRIMARY }
+
+    private final FhirContext ctx;
+    private final MeterRegistry meterRegistry;
+    private final Mode mode;
+    private final List<String> profileUrls;
+    private final double driftSampleRate;
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile Compilation compilation;
+    private volatile ConstraintTimer constraintTimer;
+
+    public FastPathValidator(
+            FhirContext ctx,
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.fast_path.mode:shadow}") String mode,
+            @Value("${hapi.fhir.fast_path.profiles:https://gematik.de/fhir/erg/StructureDefinition/erg-rechnung,"
+                + "https://gematik.de/fhir/erg/StructureDefinition/erg-rechnungsdokument,"
+                + "https://gematik.de/fhir/erg/StructureDefinition/erg-patient,"
+                + "https://gematik.de/fhir/erg/StructureDefinition/erg-rechnungsposition}") List<String> profileUrls,
+            @Value("${hapi.fhir.fast_path.drift_sample_rate:0.05}") double driftSampleRate) {
+        this.ctx = ctx;
+        this.meterRegistry = meterRegistry;
+        this.mode = Mode.valueOf(mode.trim().toUpperCase());
+        this.profileUrls = profileUrls;
+        this.driftSampleRate = driftSampleRate;
+    }
+
+    /**
+     * Übersetzt die konfigurierten Profile. Wird vom {@code CustomValidator} aufgerufen, sobald die Chain
+     * mit Snapshots und Terminologie-Index steht. Die Profile werden auch im Modus {@code off} übersetzt,
+     * weil die eingeschränkte Revalidierung ({@link #evaluateElement}) sie unabhängig vom Modus nutzt und
+     * nicht erst im Request übersetzen soll.
+     */
+    public synchronized void initialize(IValidationSupport chain, Predicate<String> valueSetIndexed) {
+        ThreadLocal<FHIRPathEngine> engines =
+            ThreadLocal.withInitial(() -> new FHIRPathEngine(new HapiWorkerContext(ctx, chain)));
+        this.compilation = compile(chain, engines, valueSetIndexed, invalidations.get());
+    }
+
+    /**
+     * Markiert die übersetzten Profile als veraltet, z.B. nach Änderungen an den StructureDefinitions. Sie werden
+     * beim nächsten Zugriff neu übersetzt; bis dahin bleibt der Aufruf billig, auch wenn viele Ressourcen
+     * nacheinander geändert werden.
+     */
+    public void invalidate() {
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Setzt den Empfänger für die Laufzeiten der Invarianten, {@code null} schaltet die Messung ab.
+     */
+    public void setConstraintTimer(ConstraintTimer constraintTimer) {
+        this.constraintTimer = constraintTimer;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public CompiledProfile getProfile(String url) {
+        Compilation current = current();
+        return current == null ? null : current.profiles.get(url);
+    }
+
+    /**
+     * Validiert die Ressource je nach Modus über den schnellen Pfad und/oder die generische Validierung.
+     *
+     * @param generic generische Validierung (FhirInstanceValidator)
+     */
+    public List<SingleValidationMessage> validate(IBaseResource resource,
+                                                  Supplier<List<SingleValidationMessage>> generic) {
+        Compilation current = mode == Mode.OFF ? null : current();
+        List<CompiledProfile> declared = current == null ? null : declaredProfiles(current, resource);
+        if (declared == null) {
+            count("skipped");
+            return generic.get();
+        }
+
+        ConstraintTimer timer = constraintTimer;
+        long start = System.nanoTime();
+        FastPathResult fast = evaluate(current, (Resource) resource, declared);
+        if (timer != null) {
+            timer.recordFastPath(System.nanoTime() - start);
+        }
+        boolean complete = declared.stream().allMatch(CompiledProfile::isComplete);
+
+        if (mode == Mode.SHADOW || fast.isFallbackRequired() || !complete) {
+            List<SingleValidationMessage> genericMessages = generic.get();
+            if (!fast.isFallbackRequired()) {
+                compare(resource, fast, genericMessages);
+            }
+            count(mode == Mode.SHADOW ? "shadow" : "fallback");
+            return genericMessages;
+        }
+
+        if (ThreadLocalRandom.current().nextDouble() < driftSampleRate) {
+            List<SingleValidationMessage> genericMessages = generic.get();
+            compare(resource, fast, genericMessages);
+            count("sampled");
+            return genericMessages;
+        }
+
+        count(fast.getErrors().isEmpty() ? "accepted" : "rejected");
+        return fast.getErrors();
+    }
+
+    /**
+     * Wertet nur den schnellen Pfad aus, ohne Modus und Stichprobe. Liefert {@code null}, wenn nicht alle
+     * deklarierten Profile übersetzt sind.
+     */
+    public FastPathResult evaluate(IBaseResource resource) {
+        Compilation current = current();
+        List<CompiledProfile> declared = current == null ? null : declaredProfiles(current, resource);
+        return declared == null ? null : evaluate(current, (Resource) resource, declared);
+    }
+
+    /**
+     * Prüft nur ein Element der obersten Ebene, z.B. {@code meta}, gegen alle deklarierten Profile.
+     * Unabhängig vom Modus; die konfigurierten Profile liegen seit dem Start übersetzt vor, andere werden beim
+     * ersten Bedarf übersetzt.
+     *
+     * @return {@code null}, wenn ein Profil fehlt oder das Element darin nicht vollständig übersetzt ist
+     */
+    public FastPathResult evaluateElement(IBaseResource resource, String elementName) {
+        Compilation current = current();
+        if (current == null || !(resource instanceof Resource) || resource.getMeta().getProfile().isEmpty()) {
+            return null;
+        }
+        List<SingleValidationMessage> errors = new ArrayList<>();
+        boolean fallback = false;
+        for (IPrimitiveType<String> declared : resource.getMeta().getProfile()) {
+            CompiledProfile profile =
+                declared.getValue() == null ? null : compileOnDemand(current, declared.getValue());
+            if (profile == null || !profile.getType().equals(resource.fhirType()) || !profile.isComplete(elementName)) {
+                return null;
+            }
+            FastPathResult result = profile.validateElement((Resource) resource, elementName,
+                current.engines.get(), current.chain);
+            errors.addAll(result.getErrors());
+            fallback |= result.isFallbackRequired();
+        }
+        return fallback ? null : new FastPathResult(errors, false);
+    }
+
+    // Liefert den gültigen Stand und übersetzt ihn nach einer Invalidierung neu. Wer während der Übersetzung
+    // kommt, wartet an der Sperre, statt mit veralteten Profilen zu validieren.
+    private Compilation current() {
+        Compilation current = this.compilation;
+        if (current == null || current.generation == invalidations.get()) {
+            return current;
+        }
+        synchronized (this) {
+            current = this.compilation;
+            long generation = invalidations.get();
+            if (current.generation != generation) {
+                // Die Chain cached StructureDefinitions und Expansionen, sonst würde der alte Stand neu übersetzt
+                current.chain.invalidateCaches();
+                current = compile(current.chain, current.engines, current.valueSetIndexed, generation);
+                this.compilation = current;
+            }
+            return current;
+        }
+    }
+
+    private Compilation compile(IValidationSupport chain, ThreadLocal<FHIRPathEngine> engines,
+                                Predicate<String> valueSetIndexed, long generation) {
+        ProfileCompiler compiler = new ProfileCompiler(chain, engines.get(), valueSetIndexed);
+        Map<String, CompiledProfile> compiledProfiles = new LinkedHashMap<>();
+        Map<String, CompiledProfile> elementProfiles = new ConcurrentHashMap<>();
+        for (String url : profileUrls) {
+            CompiledProfile profile = compiler.compile(url.trim());
+            if (profile == null) {
+                logger.warn("Profil {} für den schnellen Validierungspfad nicht gefunden", url);
+                continue;
+            }
+            elementProfiles.put(profile.getUrl(), profile);
+            if (mode == Mode.OFF) {
+                continue;
+            }
+            compiledProfiles.put(profile.getUrl(), profile);
+            if (profile.isComplete()) {
+                logger.info("Profil {} für den schnellen Validierungspfad übersetzt", url);
+            } else {
+                logger.info("Profil {} nur teilweise übersetzt, Annahme über generische Validierung: {}",
+                    url, profile.getUnsupported());
+            }
+        }
+        return new Compilation(chain, engines, valueSetIndexed, compiledProfiles, elementProfiles, generation);
+    }
+
+    // Ohne Sperre: ein eigener Compiler je Aufruf (mit der FHIRPath-Engine des aufrufenden Threads). Übersetzen
+    // zwei Requests dasselbe Profil gleichzeitig, gewinnt das zuerst eingetragene Ergebnis. Ist der Stand
+    // inzwischen ersetzt, landet das Ergebnis nur im alten Stand.
+    private CompiledProfile compileOnDemand(Compilation current, String url) {
+        String canonical = url.contains("|") ? url.substring(0, url.indexOf('|')) : url;
+        CompiledProfile existing = current.elementProfiles.get(canonical);
+        if (existing != null) {
+            return existing;
+        }
+        CompiledProfile profile =
+            new ProfileCompiler(current.chain, current.engines.get(), current.valueSetIndexed).compile(canonical);
+        if (profile == null) {
+            return null;
+        }
+        logger.info("Profil {} für die eingeschränkte Revalidierung übersetzt", canonical);
+        CompiledProfile raced = current.elementProfiles.putIfAbsent(canonical, profile);
+        return raced != null ? raced : profile;
+    }
+
+    private FastPathResult evaluate(Compilation current, Resource resource, List<CompiledProfile> declared) {
+        List<SingleValidationMessage> errors = new ArrayList<>();
+        boolean fallback = false;
+        ConstraintTimer timer = constraintTimer;
+        for (CompiledProfile profile : declared) {
+            FastPathResult result = profile.validate(resource, current.engines.get(), current.chain, timer);
+            errors.addAll(result.getErrors());
+            fallback |= result.isFallbackRequired();
+        }
+        return new FastPathResult(errors, fallback);
+    }
+
+    private List<CompiledProfile> declaredProfiles(Compilation current, IBaseResource resource) {
+        Map<String, CompiledProfile> compiledProfiles = current.profiles;
+        if (compiledProfiles.isEmpty() || !(resource instanceof Resource)) {
+            return null;
+        }
+        List<CompiledProfile> declared = new ArrayList<>();
+        for (IPrimitiveType<String> profile : resource.getMeta().getProfile()) {
+            String url = profile.getValue();
+            CompiledProfile compiled = url == null ? null : compiledProfiles.get(url.contains("|") ? url.substring(0, url.indexOf('|')) : url);
+            if (compiled == null || !compiled.getType().equals(resource.fhirType())) {
+                return null;
+            }
+            declared.add(compiled);
+        }
+        return declared.isEmpty() ? null : declared;
+    }
+
+    private void compare(IBaseResource resource, FastPathResult fast, List<SingleValidationMessage> genericMessages) {
+        boolean genericValid = genericMessages.stream().noneMatch(m ->
+            m.getSeverity() == ResultSeverityEnum.ERROR || m.getSeverity() == ResultSeverityEnum.FATAL);
+        boolean fastValid = fast.getErrors().isEmpty();
+        if (genericValid != fastValid) {
+            meterRegistry.counter("validation.fastpath.drift", "resource", resource.fhirType()).increment();
+            logger.warn("Abweichung schneller Pfad/generische Validierung für {}: schnell={}, generisch={}, Fehler schnell: {}",
+                resource.fhirType(), fastValid ? "gültig" : "ungültig", genericValid ? "gültig" : "ungültig",
+                fast.getErrors().stream().map(e -> e.getLocationString() + ": " + e.getMessage()).toList());
+        }
+    }
+
+    private void count(String result) {
+        meterRegistry.counter("validation.fastpath.requests", "result", result).increment();
+    }
+
+    /**
+     * Ein Stand der übersetzten Profile mit der Chain und den Engines, gegen die sie übersetzt wurden.
+     */
+    private static final class Compilation {
+        private final IValidationSupport chain;
+        private final ThreadLocal<FHIRPathEngine> engines;
+        private final Predicate<String> valueSetIndexed;
+        // Nach Modus, für validate/evaluate
+        private final Map<String, CompiledProfile> profiles;
+        // Unabhängig vom Modus, für evaluateElement; wächst bei Bedarf ohne Sperre
+        private final Map<String, CompiledProfile> elementProfiles;
+        private final long generation;
+
+        private Compilation(IValidationSupport chain, ThreadLocal<FHIRPathEngine> engines,
+                            Predicate<String> valueSetIndexed, Map<String, CompiledProfile> profiles,
+                            Map<String, CompiledProfile> elementProfiles, long generation) {
+            this.chain = chain;
+            this.engines = engines;
+            this.valueSetIndexed = valueSetIndexed;
+            this.profiles = profiles;
+            this.elementProfiles = elementProfiles;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.UriType;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Übersetzt StructureDefinitions (Snapshot) in {@link CompiledProfile}s.
+ * <p>
+ * Der Baum wird über die Element-IDs aufgebaut ({@code Patient.identifier:KVNR.type} ist Kind des Slices
+ * {@code KVNR} von {@code Patient.identifier}). FHIRPath-Invarianten werden einmal geparst. Typprofile
+ * außerhalb des FHIR-Kerns werden rekursiv übersetzt und zwischengespeichert.
+ */
+public class ProfileCompiler {
+
+    private static final String CORE_PREFIX = "http://hl7.org/fhir/StructureDefinition/";
+    private static final Set<String> CODED_TYPES = Set.of("code", "Coding", "CodeableConcept");
+    private static final Pattern SIMPLE_PATH = Pattern.compile("^[A-Za-z]+(\\.[A-Za-z]+)*$");
+
+    private final IValidationSupport chain;
+    private final FHIRPathEngine engine;
+    private final Predicate<String> valueSetIndexed;
+    private final Map<String, CompiledProfile> compiled = new HashMap<>();
+
+    /**
+     * @param chain           Chain, aus der die StructureDefinitions (mit Snapshot) gelesen werden
+     * @param engine          zum Parsen der Invarianten
+     * @param valueSetIndexed ob ein ValueSet vollständig im Terminologie-Index liegt
+     */
+    public ProfileCompiler(IValidationSupport chain, FHIRPathEngine engine, Predicate<String> valueSetIndexed) {
+        this.chain = chain;
+        this.engine = engine;
+        this.valueSetIndexed = valueSetIndexed;
+    }
+
+    /**
+     * @return das übersetzte Profil oder {@code null}, wenn keine StructureDefinition mit Snapshot vorliegt
+     */
+    public CompiledProfile compile(String url) {
+        String canonical = url.contains("|") ? url.substring(0, url.indexOf('|')) : url;
+        CompiledProfile existing = compiled.get(canonical);
+        if (existing != null) {
+            return existing;
+        }
+
+        IBaseResource resource = chain.fetchStructureDefinition(canonical);
+        if (!(resource instanceof StructureDefinition) || !((StructureDefinition) resource).hasSnapshot()) {
+            return null;
+        }
+        StructureDefinition sd = (StructureDefinition) resource;
+        CompiledProfile profile = new CompiledProfile(canonical, sd.getType());
+        // Vor dem Aufbau registrieren, damit zyklische Typprofile auf dieselbe Instanz zeigen
+        compiled.put(canonical, profile);
+
+        Map<String, ElementNode> byId = new HashMap<>();
+        List<ElementNode> slicedNodes = new ArrayList<>();
+        ElementNode root = null;
+        for (ElementDefinition element : sd.getSnapshot().getElement()) {
+            String id = element.hasId() ? element.getId() : element.getPath();
+            int dot = id.lastIndexOf('.');
+            ElementNode node;
+            if (dot < 0) {
+                node = new ElementNode(id, null, null);
+                root = node;
+            } else {
+                String parentId = id.substring(0, dot);
+                String segment = id.substring(dot + 1);
+                ElementNode parent = byId.get(parentId);
+                if (parent == null || segment.contains("/")) {
+                    profile.addUnsupported(id, "Element " + id + " kann nicht zugeordnet werden");
+                    continue;
+                }
+                int colon = segment.indexOf(':');
+                if (colon >= 0) {
+                    String name = segment.substring(0, colon);
+                    ElementNode sliced = byId.get(parentId + "." + name);
+                    if (sliced == null) {
+                        profile.addUnsupported(id, "Slice " + id + " ohne Basiselement");
+                        continue;
+                    }
+                    node = new ElementNode(id, name, segment.substring(colon + 1));
+                    sliced.slices.add(node);
+                } else {
+                    node = new ElementNode(id, segment, null);
+                    parent.children.add(node);
+                }
+            }
+            configure(node, element, profile);
+            if (node.discriminators != null) {
+                slicedNodes.add(node);
+            }
+            byId.put(id, node);
+        }
+
+        for (ElementNode sliced : slicedNodes) {
+            resolveDiscriminators(sliced, profile);
+        }
+        profile.setRoot(root);
+        return profile;
+    }
+
+    private void configure(ElementNode node, ElementDefinition element, CompiledProfile profile) {
+        node.min = element.getMin();
+        node.max = !element.hasMax() || "*".equals(element.getMax()) ? -1 : Integer.parseInt(element.getMax());
+        node.fixed = element.hasFixed() ? element.getFixed() : null;
+        node.pattern = element.hasPattern() ? element.getPattern() : null;
+
+        if (element.hasBinding() && element.getBinding().getStrength() == Enumerations.BindingStrength.REQUIRED
+                && element.getBinding().hasValueSet()) {
+            String valueSet = element.getBinding().getValueSet();
+            boolean coded = !element.getType().isEmpty()
+                && element.getType().stream().allMatch(type -> CODED_TYPES.contains(type.getCode()));
+            if (!coded) {
+                profile.addUnsupported(node.id, "Binding an " + node.id + " für nicht kodierten Typ");
+            } else if (!valueSetIndexed.test(valueSet)) {
+                profile.addUnsupported(node.id, "ValueSet " + valueSet + " an " + node.id + " nicht indexiert");
+            } else {
+                node.requiredValueSet = valueSet;
+            }
+        }
+
+        for (ElementDefinition.ElementDefinitionConstraintComponent constraint : element.getConstraint()) {
+            if (constraint.getSeverity() != ElementDefinition.ConstraintSeverity.ERROR || !constraint.hasExpression()) {
+                continue;
+            }
+            try {
+                node.constraints.add(new ElementNode.Constraint(profile.getUrl(),
+                    constraint.getKey(), constraint.getHuman(), engine.parse(constraint.getExpression())));
+            } catch (Exception e) {
+                profile.addUnsupported(node.id, "Invariante " + constraint.getKey() + " nicht übersetzbar: " + e.getMessage());
+            }
+        }
+
+        List<String> profiles = new ArrayList<>();
+        for (ElementDefinition.TypeRefComponent type : element.getType()) {
+            type.getProfile().stream()
+                .map(canonical -> canonical.getValue())
+                .filter(url -> url != null && !url.startsWith(CORE_PREFIX))
+                .forEach(profiles::add);
+        }
+        if (profiles.size() > 1) {
+            profile.addUnsupported(node.id, "Mehrere Typprofile an " + node.id);
+        } else if (profiles.size() == 1) {
+            CompiledProfile typeProfile = compile(profiles.get(0));
+            if (typeProfile == null) {
+                profile.addUnsupported(node.id, "Typprofil " + profiles.get(0) + " nicht verfügbar");
+            } else {
+                node.typeProfile = typeProfile;
+                profile.addReference(typeProfile);
+            }
+        }
+
+        if (element.hasSlicing()) {
+            List<String[]> discriminators = new ArrayList<>();
+            for (ElementDefinition.ElementDefinitionSlicingDiscriminatorComponent discriminator
+                    : element.getSlicing().getDiscriminator()) {
+                ElementDefinition.DiscriminatorType type = discriminator.getType();
+                String path = discriminator.getPath();
+                if ((type != ElementDefinition.DiscriminatorType.VALUE && type != ElementDefinition.DiscriminatorType.PATTERN)
+                        || path == null || !("$this".equals(path) || SIMPLE_PATH.matcher(path).matches())) {
+                    profile.addUnsupported(node.id, "Diskriminator " + type + " '" + path + "' an " + node.id);
+                    return;
+                }
+                discriminators.add("$this".equals(path) ? new String[]{"$this"} : path.split("\\."));
+            }
+            node.discriminators = discriminators;
+            node.closed = element.getSlicing().getRules() == ElementDefinition.SlicingRules.CLOSED;
+        }
+    }
+
+    private void resolveDiscriminators(ElementNode sliced, CompiledProfile profile) {
+        for (ElementNode slice : sliced.slices) {
+            List<Base> expected = new ArrayList<>();
+            for (String[] path : sliced.discriminators) {
+                Base value = expectedValue(slice, path);
+                if (value == null && isThis(path) && slice.requiredValueSet != null
+                        && sliced.discriminators.size() == 1) {
+                    // Slice über ein required-Binding statt über ein Muster, z.B. meta.tag:erg-rechnungsstatus
+                    slice.discriminatorValueSet = slice.requiredValueSet;
+                    continue;
+                }
+                if (value == null) {
+                    profile.addUnsupported(slice.id, "Kein Diskriminatorwert für Slice " + slice.id);
+                    sliced.discriminators = null;
+                    return;
+                }
+                expected.add(value);
+            }
+            slice.discriminatorValues = expected;
+        }
+    }
+
+    private static boolean isThis(String[] path) {
+        return path.length == 1 && "$this".equals(path[0]);
+    }
+
+    private static Base expectedValue(ElementNode slice, String[] path) {
+        if (isThis(path)) {
+            return slice.fixed != null ? slice.fixed : slice.pattern;
+        }
+
+        // Wert im Teilbaum des Slices, danach im Typprofil (z.B. Extension.url)
+        ElementNode target = find(slice, path);
+        if (target == null && slice.typeProfile != null && slice.typeProfile.getRoot() != null) {
+            target = find(slice.typeProfile.getRoot(), path);
+        }
+        if (target != null && (target.fixed != null || target.pattern != null)) {
+            return target.fixed != null ? target.fixed : target.pattern;
+        }
+        if (path.length == 1 && "url".equals(path[0]) && slice.typeProfile != null) {
+            return new UriType(slice.typeProfile.getUrl());
+        }
+
+        // Wert aus dem Muster des Slices selbst, z.B. patternIdentifier.system
+        Base own = slice.fixed != null ? slice.fixed : slice.pattern;
+        if (own != null) {
+            List<Base> values = CompiledProfile.navigate(own, path);
+            if (values.size() == 1) {
+                return values.get(0);
+            }
+        }
+        return null;
+    }
+
+    private static ElementNode find(ElementNode start, String[] path) {
+        ElementNode current = start;
+        for (String segment : path) {
+            ElementNode next = current.child(segment);
+            if (next == null) {
+                next = current.child(segment + "[x]");
+            }
+            if (next == null) {
+                return null;
+            }
+            current = next;
+        }
+        return current;
+    }
+}
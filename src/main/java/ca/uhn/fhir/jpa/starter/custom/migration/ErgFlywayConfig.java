@@ -0,0 +1,47 @@
+package ca.uhn.fhir.jpa.starter.custom.migration;
+
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.springframework.boot.autoconfigure.flyway.FlywayConfigurationCustomizer;
+import org.springframework.boot.jdbc.DatabaseDriver;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+import javax.sql.DataSource;
+import java.sql.DatabaseMetaData;
+import java.util.Set;
+
+/**
+ * Die Migrationen der ERG-Tabellen gibt es nur für die Datenbanken in {@link #SUPPORTED_VENDORS}
+ * ({@code db/erg/<Datenbank>}). Für jede andere bricht der Start mit einer eindeutigen Meldung ab, statt erst an
+ * einem fehlenden Migrationsverzeichnis zu scheitern.
+ */
+@Configuration
+public class ErgFlywayConfig {
+
+    static final Set<String> SUPPORTED_VENDORS = Set.of("h2", "postgresql");
+
+    @Bean
+    public FlywayConfigurationCustomizer ergVendorCheck() {
+        return ErgFlywayConfig::checkVendor;
+    }
+
+    static void checkVendor(FluentConfiguration configuration) {
+        String vendor = vendor(configuration.getDataSource());
+        if (!SUPPORTED_VENDORS.contains(vendor)) {
+            throw new IllegalStateException("Für die Datenbank '" + vendor + "' gibt es keine Migrationen der"
+                + " ERG-Tabellen; unterstützt werden " + SUPPORTED_VENDORS.stream().sorted().toList());
+        }
+    }
+
+    private static String vendor(DataSource dataSource) {
+        try {
+            String productName = JdbcUtils.extractDatabaseMetaData(dataSource,
+                DatabaseMetaData::getDatabaseProductName);
+            return DatabaseDriver.fromProductName(productName).getId();
+        } catch (MetaDataAccessException e) {
+            throw new IllegalStateException("Datenbank für die Migrationen der ERG-Tabellen nicht bestimmbar", e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.enrich;
+
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Dokumente, für die noch ein angereichertes PDF erzeugt werden muss, mit Anzahl der Versuche und Zeitpunkt des
+ * nächsten Versuchs.
+ * <p>
+ * Die Einträge werden in der Transaktion des Submits geschrieben und gehen bei einem Neustart nicht verloren. Ein
+ * Knoten übernimmt einen Eintrag per Compare-and-Set auf {@code CLAIMED_UNTIL}; bricht er ab, wird der Eintrag
+ * nach Ablauf der Frist wieder frei. Die Tabelle gehört nicht zum HAPI-Schema und wird von den Migrationen
+ * unter {@code db/erg} angelegt.
+ */
+@Component
+public class EnrichmentQueue {
+
+    static final String TABLE = "ERG_PDF_ENRICH";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public EnrichmentQueue(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    public void add(Collection<Long> pids) {
+        Timestamp now = Timestamp.from(Instant.now());
+        List<Object[]> rows = pids.stream().map(pid -> new Object[]{pid, now}).toList();
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO " + TABLE + " (RES_ID, ATTEMPTS, NEXT_ATTEMPT) VALUES (?, 0, ?)", rows);
+    }
+
+    /**
+     * Übernimmt bis zu {@code limit} fällige Einträge für die Dauer von {@code lease}.
+     *
+     * @return die übernommenen Einträge, ältere zuerst
+     */
+    public List<Pending> claim(int limit, Duration lease) {
+        Instant now = Instant.now();
+        Timestamp nowTs = Timestamp.from(now);
+        // Die Anzahl begrenzt Statement.setMaxRows statt LIMIT, das nicht jede Datenbank kennt
+        List<Pending> candidates = jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement("SELECT RES_ID, ATTEMPTS FROM " + TABLE
+                + " WHERE NEXT_ATTEMPT <= ? AND (CLAIMED_UNTIL IS NULL OR CLAIMED_UNTIL < ?) ORDER BY NEXT_ATTEMPT");
+            statement.setMaxRows(limit);
+            new ArgumentPreparedStatementSetter(new Object[]{nowTs, nowTs}).setValues(statement);
+            return statement;
+        }, (rs, rowNum) -> new Pending(rs.getLong("RES_ID"), rs.getInt("ATTEMPTS")));
+        List<Pending> claimed = new ArrayList<>();
+        Timestamp until = Timestamp.from(now.plus(lease));
+        for (Pending candidate : candidates) {
+            // Ein anderer Knoten kann den Eintrag zwischenzeitlich übernommen haben
+            if (jdbcTemplate.update("UPDATE " + TABLE + " SET CLAIMED_UNTIL = ?"
+                    + " WHERE RES_ID = ? AND (CLAIMED_UNTIL IS NULL OR CLAIMED_UNTIL < ?)",
+                    until, candidate.getPid(), nowTs) == 1) {
+                claimed.add(candidate);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Gibt einen Eintrag für einen späteren Versuch frei.
+     */
+    public void retryLater(long pid, int attempts, Instant nextAttempt) {
+        jdbcTemplate.update("UPDATE " + TABLE + " SET ATTEMPTS = ?, NEXT_ATTEMPT = ?, CLAIMED_UNTIL = NULL"
+            + " WHERE RES_ID = ?", attempts, Timestamp.from(nextAttempt), pid);
+    }
+
+    /**
+     * @return {@code false}, wenn der Eintrag nicht (mehr) existiert, z.B. weil das Dokument gelöscht wurde
+     */
+    public boolean remove(long pid) {
+        return jdbcTemplate.update("DELETE FROM " + TABLE + " WHERE RES_ID = ?", pid) == 1;
+    }
+
+    public static final class Pending {
+        private final long pid;
+        private final int attempts;
+
+        Pending(long pid, int attempts) {
+            this.pid = pid;
+            this.attempts = attempts;
+        }
+
+        public long getPid() {
+            return pid;
+        }
+
+        /**
+         * @return Anzahl bereits fehlgeschlagener Versuche
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
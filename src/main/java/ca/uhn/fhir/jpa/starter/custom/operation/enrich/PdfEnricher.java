@@ -0,0 +1,94 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.enrich;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDDocumentNameDictionary;
+import org.apache.pdfbox.pdmodel.PDEmbeddedFilesNameTreeNode;
+import org.apache.pdfbox.pdmodel.common.filespecification.PDComplexFileSpecification;
+import org.apache.pdfbox.pdmodel.common.filespecification.PDEmbeddedFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Erzeugt das angereicherte PDF: das eingereichte PDF mit dem strukturierten Rechnungsinhalt als eingebetteter
+ * Datei und dem Dokumenttoken in den Dokumentinformationen.
+ * <p>
+ * Der Rechnungsinhalt wird wie bei PDF/A-3 (ZUGFeRD) als Associated File mit {@code AFRelationship
+ * /Alternative} eingebettet. Das PDF wird mit temporären Dateien statt im Heap verarbeitet, damit der Speicherbedarf
+ * nicht von der Dateigröße abhängt.
+ */
+final class PdfEnricher {
+
+    static final String TOKEN_KEY = "ERG-Dokumenttoken";
+
+    private static final COSName AF = COSName.getPDFName("AF");
+    private static final COSName AF_RELATIONSHIP = COSName.getPDFName("AFRelationship");
+
+    private PdfEnricher() {
+    }
+
+    /**
+     * @param source                 das eingereichte PDF
+     * @param rechnungsinhalt        strukturierter Rechnungsinhalt oder {@code null}
+     * @param rechnungsinhaltType    Content-Type des Rechnungsinhalts
+     * @param token                  Dokumenttoken oder {@code null}
+     */
+    static void enrich(File source, byte[] rechnungsinhalt, String rechnungsinhaltType, String token,
+                       OutputStream out) throws IOException {
+        try (PDDocument pdf = PDDocument.load(source, MemoryUsageSetting.setupTempFileOnly())) {
+            if (rechnungsinhalt != null) {
+                embed(pdf, rechnungsinhalt, rechnungsinhaltType);
+            }
+            if (token != null) {
+                pdf.getDocumentInformation().setCustomMetadataValue(TOKEN_KEY, token);
+            }
+            pdf.save(out);
+        }
+    }
+
+    private static void embed(PDDocument pdf, byte[] content, String contentType) throws IOException {
+        String fileName = "rechnungsinhalt" + (contentType != null && contentType.contains("xml") ? ".xml" : ".json");
+        PDEmbeddedFile embeddedFile = new PDEmbeddedFile(pdf, new ByteArrayInputStream(content));
+        embeddedFile.setSubtype(contentType != null ? contentType : "application/octet-stream");
+        embeddedFile.setSize(content.length);
+        embeddedFile.setModDate(Calendar.getInstance());
+
+        PDComplexFileSpecification fileSpec = new PDComplexFileSpecification();
+        fileSpec.setFile(fileName);
+        fileSpec.setFileUnicode(fileName);
+        fileSpec.setFileDescription("Strukturierter Rechnungsinhalt");
+        fileSpec.setEmbeddedFile(embeddedFile);
+        fileSpec.setEmbeddedFileUnicode(embeddedFile);
+        fileSpec.getCOSObject().setName(AF_RELATIONSHIP, "Alternative");
+
+        // Vorhandene eingebettete Dateien (flache Namensliste) bleiben erhalten
+        PDDocumentCatalog catalog = pdf.getDocumentCatalog();
+        PDDocumentNameDictionary names = catalog.getNames() != null
+            ? catalog.getNames() : new PDDocumentNameDictionary(catalog);
+        Map<String, PDComplexFileSpecification> files = new HashMap<>();
+        PDEmbeddedFilesNameTreeNode existing = names.getEmbeddedFiles();
+        if (existing != null && existing.getNames() != null) {
+            files.putAll(existing.getNames());
+        }
+        files.put(fileName, fileSpec);
+        PDEmbeddedFilesNameTreeNode tree = new PDEmbeddedFilesNameTreeNode();
+        tree.setNames(files);
+        names.setEmbeddedFiles(tree);
+        catalog.setNames(names);
+
+        COSBase af = catalog.getCOSObject().getDictionaryObject(AF);
+        COSArray associatedFiles = af instanceof COSArray ? (COSArray) af : new COSArray();
+        associatedFiles.add(fileSpec);
+        catalog.getCOSObject().setItem(AF, associatedFiles);
+    }
+}
@@ -0,0 +1,172 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.enrich;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Begrenzter Pool, der die angereicherten PDFs außerhalb der Submit-Requests erzeugt.
+ * <p>
+ * Die Arbeit steht in der {@link EnrichmentQueue}; ein einzelner Thread übernimmt fällige Einträge, sobald der Pool
+ * Platz hat: nach jedem Submit ({@link #signal()}), nach jedem erledigten Eintrag und zusätzlich alle
+ * {@code poll_interval_seconds} für Wiederholungen und Einträge abgebrochener Knoten. Fehlgeschlagene Einträge
+ * werden mit exponentiell wachsendem Abstand wiederholt und nach {@code max_attempts} Versuchen aufgegeben;
+ * {@code $retrieve} liefert dann weiter das eingereichte PDF.
+ */
+@Component
+public class PdfEnrichmentExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(PdfEnrichmentExecutor.class);
+
+    private final EnrichmentQueue enrichmentQueue;
+    private final PdfEnrichmentWorker worker;
+    private final MeterRegistry meterRegistry;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService dispatcher;
+    private final int maxAttempts;
+    private final Duration retryDelay;
+    private final Duration lease;
+    private final long pollIntervalSeconds;
+    private final Timer duration;
+
+    public PdfEnrichmentExecutor(
+            EnrichmentQueue enrichmentQueue,
+            PdfEnrichmentWorker worker,
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.pdf_enrichment.threads:2}") int threads,
+            @Value("${hapi.fhir.pdf_enrichment.queue_capacity:50}") int queueCapacity,
+            @Value("${hapi.fhir.pdf_enrichment.max_attempts:5}") int maxAttempts,
+            @Value("${hapi.fhir.pdf_enrichment.retry_delay_seconds:30}") long retryDelaySeconds,
+            @Value("${hapi.fhir.pdf_enrichment.lease_seconds:600}") long leaseSeconds,
+            @Value("${hapi.fhir.pdf_enrichment.poll_interval_seconds:30}") long pollIntervalSeconds) {
+        this.enrichmentQueue = enrichmentQueue;
+        this.worker = worker;
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = Duration.ofSeconds(retryDelaySeconds);
+        this.lease = Duration.ofSeconds(leaseSeconds);
+        this.pollIntervalSeconds = pollIntervalSeconds;
+        int poolSize = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            poolSize,
+            poolSize,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "pdf-enrichment-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pdf-enrichment-dispatch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("pdf.enrichment.queue.depth", executor, e -> e.getQueue().size())
+            .description("Anzahl übernommener, noch nicht begonnener PDF-Anreicherungen")
+            .register(meterRegistry);
+        this.duration = Timer.builder("pdf.enrichment.duration")
+            .description("Dauer einer PDF-Anreicherung")
+            .register(meterRegistry);
+        logger.info("PDF-Anreicherung mit {} Threads (Queue {}) initialisiert", poolSize, queueCapacity);
+    }
+
+    @PostConstruct
+    void start() {
+        if (pollIntervalSeconds > 0) {
+            dispatcher.scheduleWithFixedDelay(this::dispatch, pollIntervalSeconds, pollIntervalSeconds,
+                TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stößt die Verarbeitung neuer Einträge an, ohne den aufrufenden Thread zu blockieren.
+     */
+    public void signal() {
+        try {
+            dispatcher.execute(this::dispatch);
+        } catch (RejectedExecutionException e) {
+            // Beim Herunterfahren; der Eintrag bleibt in der Queue
+        }
+    }
+
+    private void dispatch() {
+        int free = executor.getQueue().remainingCapacity();
+        if (free == 0) {
+            return;
+        }
+        List<EnrichmentQueue.Pending> claimed;
+        try {
+            claimed = enrichmentQueue.claim(free, lease);
+        } catch (RuntimeException e) {
+            logger.warn("Offene PDF-Anreicherungen konnten nicht gelesen werden", e);
+            return;
+        }
+        for (EnrichmentQueue.Pending pending : claimed) {
+            try {
+                executor.execute(() -> process(pending));
+            } catch (RejectedExecutionException e) {
+                // Der Eintrag wird nach Ablauf der Frist erneut übernommen
+                logger.debug("PDF-Anreicherung für PID {} zurückgestellt", pending.getPid());
+            }
+        }
+    }
+
+    private void process(EnrichmentQueue.Pending pending) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            worker.enrich(pending.getPid());
+            meterRegistry.counter("pdf.enrichment", "outcome", "success").increment();
+        } catch (Exception e) {
+            failed(pending, e);
+        } finally {
+            sample.stop(duration);
+            signal();
+        }
+    }
+
+    private void failed(EnrichmentQueue.Pending pending, Exception e) {
+        int attempts = pending.getAttempts() + 1;
+        try {
+            if (attempts >= maxAttempts) {
+                enrichmentQueue.remove(pending.getPid());
+                meterRegistry.counter("pdf.enrichment", "outcome", "failed").increment();
+                logger.error("PDF-Anreicherung für PID {} nach {} Versuchen aufgegeben", pending.getPid(), attempts, e);
+                return;
+            }
+            Duration delay = retryDelay.multipliedBy(1L << Math.min(attempts - 1, 16));
+            enrichmentQueue.retryLater(pending.getPid(), attempts, Instant.now().plus(delay));
+            meterRegistry.counter("pdf.enrichment", "outcome", "retry").increment();
+            logger.warn("PDF-Anreicherung für PID {} fehlgeschlagen, neuer Versuch in {} s: {}",
+                pending.getPid(), delay.toSeconds(), e.getMessage());
+        } catch (RuntimeException queueError) {
+            logger.error("Fehlversuch der PDF-Anreicherung für PID {} konnte nicht vermerkt werden",
+                pending.getPid(), queueError);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,161 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.enrich;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.RetrieveProjection;
+import ca.uhn.fhir.jpa.starter.custom.operation.submit.SubmitProcessor;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Erzeugt für ein Dokument das angereicherte PDF ({@link PdfEnricher}) und hängt es als Inhalt mit dem Format
+ * {@code angereichertesPDF} an die DocumentReference an; ab dann liefert {@code $retrieve} diese Fassung.
+ * <p>
+ * Eingereichtes PDF und Ergebnis liegen nur in temporären Dateien. Das Anhängen und das Entfernen aus der
+ * {@link EnrichmentQueue} geschehen in einer Transaktion. Fehlt der Eintrag dort, wurde das Dokument inzwischen
+ * gelöscht ({@code $erase}); das erzeugte PDF wird dann wieder entfernt.
+ */
+@Component
+public class PdfEnrichmentWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(PdfEnrichmentWorker.class);
+
+    private static final String CONTENT_TYPE_PDF = "application/pdf";
+
+    private final DaoRegistry daoRegistry;
+    private final IBinaryStorageSvc binaryStorageSvc;
+    private final EnrichmentQueue enrichmentQueue;
+    private final TransactionTemplate transactionTemplate;
+
+    public PdfEnrichmentWorker(DaoRegistry daoRegistry, IBinaryStorageSvc binaryStorageSvc,
+                               EnrichmentQueue enrichmentQueue, PlatformTransactionManager transactionManager) {
+        this.daoRegistry = daoRegistry;
+        this.binaryStorageSvc = binaryStorageSvc;
+        this.enrichmentQueue = enrichmentQueue;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    void enrich(long pid) throws IOException {
+        IFhirResourceDao<DocumentReference> dao = daoRegistry.getResourceDao(DocumentReference.class);
+        DocumentReference document;
+        try {
+            document = dao.readByPid(JpaPid.fromId(pid));
+        } catch (ResourceGoneException | ResourceNotFoundException e) {
+            enrichmentQueue.remove(pid);
+            return;
+        }
+        IdType documentId = document.getIdElement().toUnqualifiedVersionless();
+        Attachment original = attachmentWithFormat(document, RetrieveProjection.FORMAT_ERECHNUNG);
+        if (original == null || attachmentWithFormat(document, RetrieveProjection.FORMAT_ANGEREICHERT) != null) {
+            enrichmentQueue.remove(pid);
+            return;
+        }
+        Attachment rechnungsinhalt = attachmentWithFormat(document, RetrieveProjection.FORMAT_RECHNUNGSINHALT);
+        byte[] structured = rechnungsinhalt != null
+            ? binaryStorageSvc.fetchBinaryContent(documentId, blobIdOf(rechnungsinhalt)) : null;
+        String token = document.getIdentifier().stream()
+            .filter(identifier -> SubmitProcessor.TOKEN_SYSTEM.equals(identifier.getSystem()))
+            .map(identifier -> identifier.getValue())
+            .findFirst().orElse(null);
+
+        Path source = Files.createTempFile("erg-enrich-", ".pdf");
+        Path target = Files.createTempFile("erg-enriched-", ".pdf");
+        try {
+            try (OutputStream out = Files.newOutputStream(source)) {
+                binaryStorageSvc.writeBinaryContent(documentId, blobIdOf(original), out);
+            }
+            MessageDigest sha1 = sha1();
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(target), sha1)) {
+                PdfEnricher.enrich(source.toFile(), structured,
+                    rechnungsinhalt != null ? rechnungsinhalt.getContentType() : null, token, out);
+            }
+            String blobId;
+            try (InputStream in = Files.newInputStream(target)) {
+                StoredDetails details = binaryStorageSvc.storeBinaryContent(
+                    documentId, null, CONTENT_TYPE_PDF, in, new SystemRequestDetails());
+                blobId = details.getBinaryContentId();
+            }
+            attach(dao, pid, document, blobId, Files.size(target), sha1.digest());
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private void attach(IFhirResourceDao<DocumentReference> dao, long pid, DocumentReference document,
+                        String blobId, long size, byte[] sha1) {
+        IdType documentId = document.getIdElement().toUnqualifiedVersionless();
+        Boolean attached;
+        try {
+            attached = transactionTemplate.execute(status -> {
+                if (!enrichmentQueue.remove(pid)) {
+                    return false;
+                }
+                DocumentReference.DocumentReferenceContentComponent content = document.addContent();
+                content.getAttachment()
+                    .setContentType(CONTENT_TYPE_PDF)
+                    .setUrl(SubmitProcessor.ATTACHMENT_URL_PREFIX + blobId)
+                    .setSize((int) size)
+                    .setHash(sha1);
+                content.setFormat(new Coding(
+                    RetrieveProjection.FORMAT_SYSTEM, RetrieveProjection.FORMAT_ANGEREICHERT, null));
+                // Die Version in der ID verhindert, dass eine zwischenzeitliche Änderung überschrieben wird
+                dao.update(document, new SystemRequestDetails());
+                return true;
+            });
+        } catch (RuntimeException e) {
+            binaryStorageSvc.expungeBinaryContent(documentId, blobId);
+            throw e;
+        }
+        if (!Boolean.TRUE.equals(attached)) {
+            binaryStorageSvc.expungeBinaryContent(documentId, blobId);
+            logger.debug("Dokument {} wurde vor dem Anhängen des angereicherten PDFs gelöscht",
+                documentId.getIdPart());
+            return;
+        }
+        logger.info("Angereichertes PDF für Dokument {} erzeugt ({} Bytes)", documentId.getIdPart(), size);
+    }
+
+    private static Attachment attachmentWithFormat(DocumentReference document, String format) {
+        return document.getContent().stream()
+            .filter(content -> format.equals(RetrieveProjection.formatOf(content)))
+            .map(DocumentReference.DocumentReferenceContentComponent::getAttachment)
+            .filter(attachment -> attachment.hasUrl()
+                && attachment.getUrl().startsWith(SubmitProcessor.ATTACHMENT_URL_PREFIX))
+            .findFirst().orElse(null);
+    }
+
+    private static String blobIdOf(Attachment attachment) {
+        return attachment.getUrl().substring(SubmitProcessor.ATTACHMENT_URL_PREFIX.length());
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 nicht verfügbar", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ein Arbeitspaket des Erase-Jobs: die PIDs der Dokumente, die gemeinsam gelöscht werden.
+ */
+public class EraseBatchJson implements IModelJson {
+
+    @JsonProperty("pids")
+    private List<Long> pids = new ArrayList<>();
+
+    public EraseBatchJson() {
+    }
+
+    public EraseBatchJson(List<Long> pids) {
+        this.pids = pids;
+    }
+
+    public List<Long> getPids() {
+        return pids;
+    }
+}
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.ILastJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.jpa.api.svc.IDeleteExpungeSvc;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentTokenIndex;
+import ca.uhn.fhir.jpa.starter.custom.operation.status.DocumentStateStore;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Löscht ein Arbeitspaket logisch gelöschter Dokumente endgültig: erst die Anhänge im Binary Storage, dann in
+ * einer Transaktion alle HAPI-Tabellen (Versionen, Suchindizes, Ressource) per Delete-Expunge, den
+ * {@link DocumentTokenIndex}, den {@link DocumentStateStore} und die Einträge der {@link EraseQueue}.
+ * <p>
+ * Die Pakete werden je Knoten auf {@code max_pids_per_second} gedrosselt, damit das Löschen lesende Requests nicht
+ * durch lange Sperren und volle Datenbankverbindungen ausbremst. Ein Paket kann gefahrlos wiederholt werden.
+ */
+@Component
+public class EraseBatchStep implements ILastJobStepWorker<EraseJobParameters, EraseBatchJson> {
+
+    private static final Logger logger = LoggerFactory.getLogger(EraseBatchStep.class);
+
+    private final EraseQueue eraseQueue;
+    private final DocumentTokenIndex tokenIndex;
+    private final DocumentStateStore stateStore;
+    private final IBinaryStorageSvc binaryStorageSvc;
+    private final IDeleteExpungeSvc<JpaPid> deleteExpungeSvc;
+    private final TransactionTemplate transactionTemplate;
+    private final double maxPidsPerSecond;
+
+    private final Object paceLock = new Object();
+    private long nextSlotNanos = System.nanoTime();
+
+    public EraseBatchStep(EraseQueue eraseQueue, DocumentTokenIndex tokenIndex, DocumentStateStore stateStore,
+                          IBinaryStorageSvc binaryStorageSvc, IDeleteExpungeSvc<JpaPid> deleteExpungeSvc,
+                          PlatformTransactionManager transactionManager,
+                          @Value("${hapi.fhir.erase.max_pids_per_second:200}") double maxPidsPerSecond) {
+        this.eraseQueue = eraseQueue;
+        this.tokenIndex = tokenIndex;
+        this.stateStore = stateStore;
+        this.binaryStorageSvc = binaryStorageSvc;
+        this.deleteExpungeSvc = deleteExpungeSvc;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxPidsPerSecond = maxPidsPerSecond;
+    }
+
+    @Override
+    public RunOutcome run(StepExecutionDetails<EraseJobParameters, EraseBatchJson> details,
+                          IJobDataSink<VoidModel> sink) {
+        pace(details.getData().getPids().size());
+
+        // Bereits von einem anderen Job gelöschte Dokumente stehen nicht mehr in der Queue
+        List<EraseQueue.Pending> pending = eraseQueue.find(details.getData().getPids());
+        if (pending.isEmpty()) {
+            return new RunOutcome(0);
+        }
+        for (EraseQueue.Pending document : pending) {
+            IdType resourceId = new IdType(document.getResourceId());
+            for (String blobId : document.getBlobIds()) {
+                binaryStorageSvc.expungeBinaryContent(resourceId, blobId);
+            }
+        }
+        List<Long> pids = pending.stream().map(EraseQueue.Pending::getPid).toList();
+        transactionTemplate.executeWithoutResult(status -> {
+            deleteExpungeSvc.deleteExpunge(pids.stream().map(JpaPid::fromId).toList(), false, null);
+            tokenIndex.removeByPids(pids);
+            stateStore.removeAll(pending.stream().map(EraseQueue.Pending::getResourceId).toList());
+            eraseQueue.remove(pids);
+        });
+        logger.info("{} gelöschte Dokumente endgültig entfernt", pids.size());
+        return new RunOutcome(pids.size());
+    }
+
+    // Vergibt je Paket ein Zeitfenster proportional zur Anzahl PIDs und wartet bis zu dessen Beginn
+    private void pace(int pidCount) {
+        if (maxPidsPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (paceLock) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextSlotNanos);
+            nextSlotNanos = start + (long) (pidCount * TimeUnit.SECONDS.toNanos(1) / maxPidsPerSecond);
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JobExecutionFailedException("Erase-Job unterbrochen", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import ca.uhn.fhir.batch2.api.IFirstJobStepWorker;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+
+/**
+ * Batch2-Job für das endgültige Löschen nach {@code $erase}. Der erste Schritt teilt die wartenden PIDs der
+ * {@link EraseQueue} in Pakete, der zweite löscht je Paket ({@link EraseBatchStep}).
+ */
+@Configuration
+public class EraseJobConfig {
+
+    public static final String JOB_DEFINITION_ID = "ERG_ERASE";
+
+    @Bean
+    public JobDefinition<EraseJobParameters> eraseJobDefinition(EraseQueue eraseQueue, EraseBatchStep batchStep) {
+        return JobDefinition.newBuilder()
+            .setJobDefinitionId(JOB_DEFINITION_ID)
+            .setJobDescription("Gelöschte E-Rechnungen endgültig entfernen")
+            .setJobDefinitionVersion(1)
+            .setParametersType(EraseJobParameters.class)
+            .addFirstStep(
+                "collect-pids",
+                "Wartende Dokumente in Pakete teilen",
+                EraseBatchJson.class,
+                new CollectPidsStep(eraseQueue))
+            .addLastStep(
+                "erase-batch",
+                "Paket endgültig löschen",
+                batchStep)
+            .build();
+    }
+
+    private static final class CollectPidsStep implements IFirstJobStepWorker<EraseJobParameters, EraseBatchJson> {
+
+        private final EraseQueue eraseQueue;
+
+        CollectPidsStep(EraseQueue eraseQueue) {
+            this.eraseQueue = eraseQueue;
+        }
+
+        @Override
+        public RunOutcome run(StepExecutionDetails<EraseJobParameters, VoidModel> details,
+                              IJobDataSink<EraseBatchJson> sink) {
+            int batchSize = Math.max(1, details.getParameters().getBatchSize());
+            List<Long> pids = eraseQueue.pendingPids();
+            for (int from = 0; from < pids.size(); from += batchSize) {
+                sink.accept(new EraseBatchJson(
+                    List.copyOf(pids.subList(from, Math.min(from + batchSize, pids.size())))));
+            }
+            return new RunOutcome(pids.size());
+        }
+    }
+}
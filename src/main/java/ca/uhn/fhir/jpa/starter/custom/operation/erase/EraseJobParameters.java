@@ -0,0 +1,24 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Parameter des Erase-Jobs. Die zu löschenden Dokumente stehen in der {@link EraseQueue}.
+ */
+public class EraseJobParameters implements IModelJson {
+
+    @JsonProperty("batchSize")
+    private int batchSize;
+
+    /**
+     * @return Anzahl PIDs je Arbeitspaket
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
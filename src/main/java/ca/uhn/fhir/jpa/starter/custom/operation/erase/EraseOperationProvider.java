@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.operation.enrich.EnrichmentQueue;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentAccess;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentTokenIndex;
+import ca.uhn.fhir.jpa.starter.custom.operation.submit.SubmitProcessor;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@code DocumentReference/{id}/$erase}: löscht ein Dokument endgültig.
+ * <p>
+ * Im Request wird das Dokument nur logisch gelöscht und zusammen mit seinen Anhängen in der {@link EraseQueue}
+ * vermerkt; ab dann ist es nicht mehr lesbar. Das eigentliche Entfernen aus allen Tabellen und dem Binary Storage
+ * übernimmt gebündelt und gedrosselt der Job {@link EraseJobConfig#JOB_DEFINITION_ID}, damit kein synchrones
+ * Expunge im Request Sperren hält.
+ */
+@Component
+public class EraseOperationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(EraseOperationProvider.class);
+
+    private final DaoRegistry daoRegistry;
+    private final DocumentTokenIndex tokenIndex;
+    private final EraseQueue eraseQueue;
+    private final EnrichmentQueue enrichmentQueue;
+    private final IJobCoordinator jobCoordinator;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+
+    public EraseOperationProvider(DaoRegistry daoRegistry, DocumentTokenIndex tokenIndex, EraseQueue eraseQueue,
+                                  EnrichmentQueue enrichmentQueue, IJobCoordinator jobCoordinator,
+                                  PlatformTransactionManager transactionManager,
+                                  @Value("${hapi.fhir.erase.batch_size:500}") int batchSize) {
+        this.daoRegistry = daoRegistry;
+        this.tokenIndex = tokenIndex;
+        this.eraseQueue = eraseQueue;
+        this.enrichmentQueue = enrichmentQueue;
+        this.jobCoordinator = jobCoordinator;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+    }
+
+    @Operation(name = "$erase", type = DocumentReference.class, idempotent = false)
+    public OperationOutcome erase(@IdParam IdType documentId, RequestDetails requestDetails) {
+        IFhirResourceDao<DocumentReference> dao = daoRegistry.getResourceDao(DocumentReference.class);
+        IdType id = documentId.toUnqualifiedVersionless();
+        DocumentReference document = dao.read(id, requestDetails);
+        long pid = ((JpaPid) dao.readEntity(id, requestDetails).getPersistentId()).getId();
+        // Gleiche Regeln wie beim Abruf
+        DocumentAccess.checkDocument(document, pid, tokenIndex, requestDetails);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            // Eine laufende PDF-Anreicherung hängt danach nichts mehr an; ein bereits angehängtes PDF ist im
+            // erneut gelesenen Stand enthalten
+            enrichmentQueue.remove(pid);
+            List<String> blobIds = blobIdsOf(dao.readByPid(JpaPid.fromId(pid)));
+            dao.delete(id, requestDetails);
+            eraseQueue.add(pid, id.getValue(), blobIds);
+        });
+        ensureJobQueued(requestDetails);
+        logger.info("Dokument {} gelöscht, endgültiges Entfernen eingeplant", id.getIdPart());
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+            .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+            .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+            .setDiagnostics("Dokument wurde gelöscht; die Daten werden in Kürze endgültig entfernt");
+        return outcome;
+    }
+
+    private static List<String> blobIdsOf(DocumentReference document) {
+        List<String> blobIds = new ArrayList<>();
+        for (DocumentReference.DocumentReferenceContentComponent content : document.getContent()) {
+            String url = content.getAttachment().getUrl();
+            if (url != null && url.startsWith(SubmitProcessor.ATTACHMENT_URL_PREFIX)) {
+                blobIds.add(url.substring(SubmitProcessor.ATTACHMENT_URL_PREFIX.length()));
+            }
+        }
+        return blobIds;
+    }
+
+    // Ein wartender Job liest die Queue erst beim Start; nur wenn keiner wartet, wird ein neuer eingeplant. Prüfen
+    // und Starten laufen unter der Sperre der EraseQueue, damit gleichzeitige Löschungen nur einen Job einplanen
+    private void ensureJobQueued(RequestDetails requestDetails) {
+        transactionTemplate.executeWithoutResult(status -> {
+            eraseQueue.lockJobStart();
+            if (!jobCoordinator.getJobInstancesByJobDefinitionIdAndStatuses(
+                    EraseJobConfig.JOB_DEFINITION_ID, Set.of(StatusEnum.QUEUED), 1, 0).isEmpty()) {
+                return;
+            }
+            EraseJobParameters parameters = new EraseJobParameters();
+            parameters.setBatchSize(batchSize);
+            JobInstanceStartRequest startRequest = new JobInstanceStartRequest();
+            startRequest.setJobDefinitionId(EraseJobConfig.JOB_DEFINITION_ID);
+            startRequest.setParameters(parameters);
+            jobCoordinator.startInstance(requestDetails, startRequest);
+        });
+    }
+}
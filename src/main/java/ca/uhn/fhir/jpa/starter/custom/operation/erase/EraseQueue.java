@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Warteschlange der logisch gelöschten Dokumente, die der Job {@link EraseJobConfig#JOB_DEFINITION_ID}
+ * endgültig entfernt. Je Dokument werden PID, Ressourcen-ID und die Blob-IDs der Anhänge (eine Zeile je Blob)
+ * festgehalten, da die gelöschte Ressource selbst nicht mehr gelesen werden kann. Die Tabellen werden von den
+ * Migrationen unter {@code db/erg} angelegt.
+ */
+@Component
+public class EraseQueue {
+
+    static final String TABLE = "ERG_ERASE_PENDING";
+    static final String BLOB_TABLE = "ERG_ERASE_PENDING_BLOB";
+    static final String LOCK_TABLE = "ERG_ERASE_JOB_LOCK";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    public EraseQueue(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    /**
+     * Muss in der Transaktion laufen, die die Ressource logisch löscht.
+     */
+    public void add(long pid, String resourceId, List<String> blobIds) {
+        jdbcTemplate.update("INSERT INTO " + TABLE + " (RES_ID, RESOURCE_ID) VALUES (?, ?)", pid, resourceId);
+        if (!blobIds.isEmpty()) {
+            jdbcTemplate.batchUpdate("INSERT INTO " + BLOB_TABLE + " (RES_ID, BLOB_ID) VALUES (?, ?)",
+                blobIds.stream().distinct().map(blobId -> new Object[] {pid, blobId}).toList());
+        }
+    }
+
+    /**
+     * Sperrt bis zum Ende der laufenden Transaktion das Einplanen des Jobs, damit gleichzeitige Löschungen nicht
+     * mehrere Jobs starten. Muss in einer Transaktion laufen.
+     */
+    public void lockJobStart() {
+        jdbcTemplate.queryForList("SELECT ID FROM " + LOCK_TABLE + " WHERE ID = 1 FOR UPDATE", Integer.class);
+    }
+
+    /**
+     * @return die PIDs aller wartenden Dokumente, aufsteigend
+     */
+    public List<Long> pendingPids() {
+        return jdbcTemplate.queryForList("SELECT RES_ID FROM " + TABLE + " ORDER BY RES_ID", Long.class);
+    }
+
+    public List<Pending> find(Collection<Long> pids) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource("pids", pids);
+        Map<Long, List<String>> blobIds = new HashMap<>();
+        namedJdbcTemplate.query("SELECT RES_ID, BLOB_ID FROM " + BLOB_TABLE + " WHERE RES_ID IN (:pids)"
+                + " ORDER BY RES_ID, BLOB_ID", parameters,
+            rs -> {
+                blobIds.computeIfAbsent(rs.getLong("RES_ID"), pid -> new ArrayList<>()).add(rs.getString("BLOB_ID"));
+            });
+        return namedJdbcTemplate.query(
+            "SELECT RES_ID, RESOURCE_ID FROM " + TABLE + " WHERE RES_ID IN (:pids)", parameters,
+            (rs, rowNum) -> new Pending(rs.getLong("RES_ID"), rs.getString("RESOURCE_ID"),
+                blobIds.getOrDefault(rs.getLong("RES_ID"), List.of())));
+    }
+
+    public void remove(Collection<Long> pids) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource("pids", pids);
+        namedJdbcTemplate.update("DELETE FROM " + BLOB_TABLE + " WHERE RES_ID IN (:pids)", parameters);
+        namedJdbcTemplate.update("DELETE FROM " + TABLE + " WHERE RES_ID IN (:pids)", parameters);
+    }
+
+    public static final class Pending {
+        private final long pid;
+        private final String resourceId;
+        private final List<String> blobIds;
+
+        Pending(long pid, String resourceId, List<String> blobIds) {
+            this.pid = pid;
+            this.resourceId = resourceId;
+            this.blobIds = blobIds;
+        }
+
+        public long getPid() {
+            return pid;
+        }
+
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        public List<String> getBlobIds() {
+            return blobIds;
+        }
+    }
+}
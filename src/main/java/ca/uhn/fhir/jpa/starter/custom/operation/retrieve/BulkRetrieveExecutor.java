@@ -0,0 +1,71 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Begrenzter Pool, auf dem der Bulk-Retrieve die Dokumente liest.
+ * <p>
+ * Die Parallelität ist bewusst klein gehalten, damit ein großer Abgleich eines Kostenträgers nicht alle
+ * Datenbankverbindungen belegt. Ist die Queue voll, liest der Request-Thread selbst (CallerRunsPolicy).
+ */
+@Component
+public class BulkRetrieveExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkRetrieveExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final int parallelism;
+
+    public BulkRetrieveExecutor(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.bulk_retrieve.parallelism:8}") int parallelism,
+            @Value("${hapi.fhir.bulk_retrieve.queue_capacity:100}") int queueCapacity) {
+        this.parallelism = Math.max(1, parallelism);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            this.parallelism,
+            this.parallelism,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "bulk-retrieve-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        Gauge.builder("retrieve.bulk.queue.depth", executor, e -> e.getQueue().size())
+            .description("Anzahl wartender Dokumentabrufe des Bulk-Retrieve")
+            .register(meterRegistry);
+        logger.info("Bulk-Retrieve mit {} Threads (Queue {}) initialisiert", this.parallelism, queueCapacity);
+    }
+
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    /**
+     * @return Anzahl Threads; je Request sind höchstens doppelt so viele Abrufe gleichzeitig offen
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,253 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.AccessToken;
+import ca.uhn.fhir.jpa.starter.custom.operation.status.DocumentStateService;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * {@code $erechnung-bulk-retrieve}: ruft viele Dokumente in einem Aufruf ab. Der Body ist ein Bundle wie
+ * {@code Bundle-BulkRetrieveExampleInput} mit je einer {@code $retrieve}-Eingabe ({@code Parameters}) pro Eintrag,
+ * die Antwort ein {@code transaction-response}-Bundle in derselben Reihenfolge.
+ * <p>
+ * Alle Tokens werden mit gebündelten IN-Abfragen im {@link DocumentTokenIndex} aufgelöst und gemeinsam gegen
+ * KVNR bzw. Telematik-ID des Aufrufers geprüft. Die Dokumente werden auf dem {@link BulkRetrieveExecutor}
+ * parallel gelesen; die Antwort wird geschrieben, sobald der jeweils nächste Eintrag fertig ist, und die Inhalte
+ * werden wie bei {@code $retrieve} direkt aus dem Binary Storage gestreamt. Fehler einzelner Einträge stehen in
+ * deren {@code response}, der Aufruf selbst schlägt dadurch nicht fehl.
+ */
+@Component
+public class BulkRetrieveProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkRetrieveProvider.class);
+
+    private final FhirContext ctx;
+    private final DaoRegistry daoRegistry;
+    private final DocumentTokenResolver tokenResolver;
+    private final IBinaryStorageSvc binaryStorageSvc;
+    private final BulkRetrieveExecutor executor;
+    private final DocumentStateService stateService;
+    private final int maxEntries;
+
+    public BulkRetrieveProvider(FhirContext ctx, DaoRegistry daoRegistry, DocumentTokenResolver tokenResolver,
+                                IBinaryStorageSvc binaryStorageSvc, BulkRetrieveExecutor executor,
+                                DocumentStateService stateService,
+                                @Value("${hapi.fhir.bulk_retrieve.max_entries:1000}") int maxEntries) {
+        this.ctx = ctx;
+        this.daoRegistry = daoRegistry;
+        this.tokenResolver = tokenResolver;
+        this.binaryStorageSvc = binaryStorageSvc;
+        this.executor = executor;
+        this.stateService = stateService;
+        this.maxEntries = maxEntries;
+    }
+
+    @Operation(name = "$erechnung-bulk-retrieve", idempotent = false, manualRequest = true, manualResponse = true)
+    public void bulkRetrieve(ServletRequestDetails requestDetails) throws IOException {
+        List<RetrieveRequest> requests = readRequests(requestDetails);
+        Map<String, DocumentTokenIndex.Entry> entries = tokenResolver.findAll(
+            requests.stream().map(request -> request.token).filter(Objects::nonNull).toList());
+        AccessToken accessToken = DocumentAccess.accessToken(requestDetails);
+
+        HttpServletResponse response = requestDetails.getServletResponse();
+        response.setStatus(Constants.STATUS_HTTP_200_OK);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        OutputStream out = response.getOutputStream();
+        String serverBase = requestDetails.getFhirServerBase();
+
+        // Höchstens maxInFlight Abrufe vorausladen, damit fertige, noch nicht geschriebene Einträge begrenzt bleiben
+        int maxInFlight = executor.getParallelism() * 2;
+        Deque<CompletableFuture<RetrieveResult>> inFlight = new ArrayDeque<>();
+        int found = 0;
+        try (JsonGenerator generator = RetrieveResponseWriter.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Bundle");
+            generator.writeStringField("id", UUID.randomUUID().toString());
+            generator.writeStringField("type", "transaction-response");
+            generator.writeArrayFieldStart("entry");
+            for (RetrieveRequest request : requests) {
+                if (inFlight.size() >= maxInFlight) {
+                    found += writeEntry(generator, out, serverBase, inFlight.poll().join());
+                }
+                inFlight.add(start(request, entries, accessToken));
+            }
+            while (!inFlight.isEmpty()) {
+                found += writeEntry(generator, out, serverBase, inFlight.poll().join());
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        logger.info("Bulk-Retrieve: {} von {} Dokumenten geliefert", found, requests.size());
+    }
+
+    private List<RetrieveRequest> readRequests(ServletRequestDetails requestDetails) throws IOException {
+        String contentType = requestDetails.getHeader(Constants.HEADER_CONTENT_TYPE);
+        IParser parser = contentType != null && contentType.contains("xml") ? ctx.newXmlParser() : ctx.newJsonParser();
+        Bundle bundle;
+        try {
+            bundle = parser.parseResource(Bundle.class,
+                new InputStreamReader(requestDetails.getInputStream(), StandardCharsets.UTF_8));
+        } catch (DataFormatException e) {
+            throw new InvalidRequestException("Bulk-Retrieve erwartet ein Bundle: " + e.getMessage());
+        }
+        if (bundle.getEntry().size() > maxEntries) {
+            throw new InvalidRequestException("Bulk-Retrieve mit " + bundle.getEntry().size()
+                + " Einträgen überschreitet das Maximum von " + maxEntries);
+        }
+        List<RetrieveRequest> requests = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            requests.add(RetrieveRequest.of(entry));
+        }
+        return requests;
+    }
+
+    private CompletableFuture<RetrieveResult> start(RetrieveRequest request, Map<String, DocumentTokenIndex.Entry> entries,
+                                                    AccessToken accessToken) {
+        if (request.error != null) {
+            return CompletableFuture.completedFuture(
+                RetrieveResult.failed("400 Bad Request", OperationOutcome.IssueType.INVALID, request.error));
+        }
+        // Fremde Tokens verhalten sich wie unbekannte
+        DocumentTokenIndex.Entry entry = entries.get(request.token);
+        if (entry == null || !DocumentAccess.isAllowed(accessToken, entry)) {
+            return CompletableFuture.completedFuture(RetrieveResult.failed(
+                "404 Not Found", OperationOutcome.IssueType.NOTFOUND, "Kein Dokument zum Token gefunden"));
+        }
+        return load(entry, request);
+    }
+
+    private CompletableFuture<RetrieveResult> load(DocumentTokenIndex.Entry entry, RetrieveRequest request) {
+        return executor.supply(() -> {
+            DocumentReference document =
+                daoRegistry.getResourceDao(DocumentReference.class).readByPid(JpaPid.fromId(entry.getPid()));
+            stateService.apply(document);
+            IIdType documentId = document.getIdElement().toUnqualifiedVersionless();
+            RetrieveProjection.apply(document, request.strukturierterRechnungsinhalt, request.originaleRechnung);
+            return RetrieveResult.loaded(documentId, ctx.newJsonParser().encodeResourceToString(document));
+        }).exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof BaseServerResponseException) {
+                // z.B. 410, wenn das Dokument inzwischen gelöscht wurde
+                BaseServerResponseException error = (BaseServerResponseException) cause;
+                return RetrieveResult.failed(error.getStatusCode() + " " + error.getStatusDescription(),
+                    OperationOutcome.IssueType.PROCESSING, error.getMessage());
+            }
+            logger.error("Bulk-Retrieve: Dokument mit PID {} konnte nicht gelesen werden", entry.getPid(), cause);
+            return RetrieveResult.failed("500 Internal Server Error", OperationOutcome.IssueType.EXCEPTION,
+                "Dokument konnte nicht gelesen werden");
+        });
+    }
+
+    // Schreibt einen Eintrag der Antwort; liefert 1, wenn er ein Dokument enthält
+    private int writeEntry(JsonGenerator generator, OutputStream out, String serverBase, RetrieveResult result)
+            throws IOException {
+        generator.writeStartObject();
+        if (result.json != null) {
+            generator.writeStringField("fullUrl", serverBase + "/" + result.documentId.getValue());
+            generator.writeFieldName("resource");
+            RetrieveResponseWriter.copy(result.json, generator, out,
+                (blobId, target) -> binaryStorageSvc.writeBinaryContent(result.documentId, blobId, target));
+        }
+        generator.writeObjectFieldStart("response");
+        generator.writeStringField("status", result.status);
+        if (result.outcome != null) {
+            generator.writeFieldName("outcome");
+            generator.writeRawValue(ctx.newJsonParser().encodeResourceToString(result.outcome));
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+        return result.json != null ? 1 : 0;
+    }
+
+    private static final class RetrieveRequest {
+        String token;
+        boolean strukturierterRechnungsinhalt;
+        boolean originaleRechnung;
+        String error;
+
+        static RetrieveRequest of(Bundle.BundleEntryComponent entry) {
+            RetrieveRequest request = new RetrieveRequest();
+            if (!(entry.getResource() instanceof Parameters)) {
+                request.error = "Eintrag muss Parameters für $retrieve enthalten";
+                return request;
+            }
+            Parameters parameters = (Parameters) entry.getResource();
+            request.token = value(parameters, "token");
+            request.strukturierterRechnungsinhalt = "true".equals(value(parameters, "strukturierterRechnungsinhalt"));
+            request.originaleRechnung = "true".equals(value(parameters, "originaleRechnung"));
+            if (request.token == null) {
+                request.error = "Parameter 'token' fehlt";
+            }
+            return request;
+        }
+
+        private static String value(Parameters parameters, String name) {
+            Parameters.ParametersParameterComponent parameter = parameters.getParameter(name);
+            Type value = parameter != null ? parameter.getValue() : null;
+            return value != null ? value.primitiveValue() : null;
+        }
+    }
+
+    private static final class RetrieveResult {
+        final IIdType documentId;
+        final String json;
+        final String status;
+        final OperationOutcome outcome;
+
+        private RetrieveResult(IIdType documentId, String json, String status, OperationOutcome outcome) {
+            this.documentId = documentId;
+            this.json = json;
+            this.status = status;
+            this.outcome = outcome;
+        }
+
+        static RetrieveResult loaded(IIdType documentId, String json) {
+            return new RetrieveResult(documentId, json, "200 OK", null);
+        }
+
+        static RetrieveResult failed(String status, OperationOutcome.IssueType type, String diagnostics) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(type)
+                .setDiagnostics(diagnostics);
+            return new RetrieveResult(null, null, status, outcome);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.AccessToken;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.Profession;
+import ca.uhn.fhir.jpa.starter.custom.operation.submit.SubmitProcessor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.DocumentReference;
+
+/**
+ * Berechtigung für den Abruf per Token, allein anhand des {@link DocumentTokenIndex.Entry}:
+ * Versicherte erhalten Dokumente mit ihrer KVNR, Kostenträger jedes Dokument, dessen Token ihnen weitergegeben
+ * wurde, Leistungserbringer nur selbst eingereichte Dokumente (Telematik-ID).
+ */
+public final class DocumentAccess {
+
+    private DocumentAccess() {
+    }
+
+    /**
+     * @return das vom AuthenticationInterceptor abgelegte Token oder {@code null} (Whitelist, interne Requests)
+     */
+    public static AccessToken accessToken(RequestDetails requestDetails) {
+        Object tokenObj = requestDetails.getUserData().get("ACCESS_TOKEN");
+        return tokenObj instanceof AccessToken ? (AccessToken) tokenObj : null;
+    }
+
+    /**
+     * @return die Telematik-ID des Aufrufers oder {@code null}
+     */
+    public static String submitterOf(RequestDetails requestDetails) {
+        AccessToken accessToken = accessToken(requestDetails);
+        return accessToken != null ? accessToken.getTelematikId().orElse(null) : null;
+    }
+
+    public static boolean isAllowed(AccessToken accessToken, DocumentTokenIndex.Entry entry) {
+        if (accessToken == null) {
+            return true;
+        }
+        if (accessToken.getProfession() == Profession.VERSICHERTER) {
+            return entry.getKvnr() != null && entry.getKvnr().equals(accessToken.getIdNumber());
+        }
+        if (accessToken.getProfession() == Profession.KOSTENTRAEGER) {
+            return true;
+        }
+        return entry.getSubmitter() != null && entry.getSubmitter().equals(accessToken.getIdNumber());
+    }
+
+    /**
+     * Prüft den Zugriff auf ein bereits gelesenes Dokument. Ohne Eintrag im Index (nicht per Submit eingereicht)
+     * gilt die KVNR aus {@code subject}. Fremde Dokumente verhalten sich wie unbekannte.
+     *
+     * @throws ResourceNotFoundException wenn der Aufrufer das Dokument nicht sehen darf
+     */
+    public static void checkDocument(DocumentReference document, long pid, DocumentTokenIndex tokenIndex,
+                                     RequestDetails requestDetails) {
+        String token = document.getIdentifier().stream()
+            .filter(identifier -> SubmitProcessor.TOKEN_SYSTEM.equals(identifier.getSystem()))
+            .map(identifier -> identifier.getValue())
+            .findFirst().orElse(null);
+        DocumentTokenIndex.Entry entry = token != null ? tokenIndex.find(token) : null;
+        if (entry == null) {
+            entry = new DocumentTokenIndex.Entry(token, pid, document.getSubject().getIdentifier().getValue(), null);
+        }
+        if (!isAllowed(accessToken(requestDetails), entry)) {
+            throw new ResourceNotFoundException(document.getIdElement().toUnqualifiedVersionless());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Index vom Dokumenttoken auf die PID der DocumentReference ({@code HFJ_RESOURCE.RES_ID}), zusammen mit der
+ * KVNR des Versicherten und der Telematik-ID des Einreichers für die Berechtigungsprüfung.
+ * <p>
+ * Der Eintrag wird beim Submit in derselben Transaktion wie die DocumentReference geschrieben (JDBC nimmt über
+ * den JpaTransactionManager an der Transaktion teil). {@code $retrieve} braucht damit nur einen
+ * Primärschlüssel-Zugriff statt einer Token-Suche über {@code HFJ_SPIDX_TOKEN} und den Search-Coordinator.
+ * Die Tabelle gehört nicht zum HAPI-Schema und wird von den Migrationen unter {@code db/erg} angelegt.
+ * <p>
+ * Gespeichert wird der 128-Bit-Wert des Tokens als 16 Byte statt der Zeichenkette; der Primärschlüssel und damit
+ * jede Indexseite fasst so deutlich mehr Einträge. Neue Tokens sind ULIDs ({@link
+ * ca.uhn.fhir.jpa.starter.custom.operation.submit.TokenGenerator}), früher vergebene UUIDs (36 Zeichen) tragen
+ * ebenfalls 128 Bit und werden in dieselbe Spalte abgebildet. Andere Zeichenketten gibt es im Index nicht; sie
+ * werden ohne Abfrage als unbekannt behandelt. Gefundene Einträge tragen den Token so, wie er angefragt wurde.
+ */
+@Component
+public class DocumentTokenIndex {
+
+    static final String TABLE = "ERG_DOC_TOKEN";
+
+    // Obergrenze für die Anzahl Werte in einer IN-Liste
+    private static final int IN_BATCH_SIZE = 500;
+
+    // Crockford-Base32 wie im TokenGenerator; 26 Zeichen tragen 130 Bit, das erste ist also höchstens 7
+    private static final String ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ";
+    private static final int TOKEN_LENGTH = 26;
+
+    private static final Pattern UUID_PATTERN =
+        Pattern.compile("\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    public DocumentTokenIndex(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    /**
+     * Schreibt die Einträge gebündelt; muss in der Transaktion laufen, die die Ressourcen speichert.
+     *
+     * @throws IllegalArgumentException wenn ein Token weder ULID noch UUID ist
+     */
+    public void putAll(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            byte[] token = toBytes(entry.token);
+            if (token == null) {
+                throw new IllegalArgumentException("Token " + entry.token + " ist weder ULID noch UUID");
+            }
+            rows.add(new Object[]{token, entry.pid, entry.kvnr, entry.submitter});
+        }
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO " + TABLE + " (TOKEN, RES_ID, KVNR, SUBMITTER) VALUES (?, ?, ?, ?)", rows);
+    }
+
+    /**
+     * @return der Eintrag oder {@code null}, wenn der Token unbekannt ist
+     */
+    public Entry find(String token) {
+        byte[] key = toBytes(token);
+        if (key == null) {
+            return null;
+        }
+        List<Entry> entries = jdbcTemplate.query(
+            "SELECT RES_ID, KVNR, SUBMITTER FROM " + TABLE + " WHERE TOKEN = ?", entryMapper(token), key);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * Löst viele Tokens mit je einer IN-Abfrage pro {@value #IN_BATCH_SIZE} Tokens auf.
+     *
+     * @return Einträge nach Token; unbekannte Tokens fehlen
+     */
+    public Map<String, Entry> findAll(Collection<String> tokens) {
+        // Je Schlüssel die angefragten Schreibweisen, z.B. eine UUID in Groß- und Kleinbuchstaben
+        Map<ByteBuffer, List<String>> requested = new LinkedHashMap<>();
+        for (String token : tokens) {
+            byte[] key = toBytes(token);
+            if (key != null) {
+                List<String> spellings = requested.computeIfAbsent(ByteBuffer.wrap(key), k -> new ArrayList<>(1));
+                if (!spellings.contains(token)) {
+                    spellings.add(token);
+                }
+            }
+        }
+        List<byte[]> keys = requested.keySet().stream().map(ByteBuffer::array).toList();
+        Map<String, Entry> entries = new HashMap<>();
+        for (int from = 0; from < keys.size(); from += IN_BATCH_SIZE) {
+            List<byte[]> batch = keys.subList(from, Math.min(from + IN_BATCH_SIZE, keys.size()));
+            namedJdbcTemplate.query(
+                "SELECT TOKEN, RES_ID, KVNR, SUBMITTER FROM " + TABLE + " WHERE TOKEN IN (:tokens)",
+                new MapSqlParameterSource("tokens", batch), rs -> {
+                    for (String token : requested.get(ByteBuffer.wrap(rs.getBytes("TOKEN")))) {
+                        entries.put(token, entryMapper(token).mapRow(rs, 0));
+                    }
+                });
+        }
+        return entries;
+    }
+
+    /**
+     * Entfernt die Einträge der angegebenen Ressourcen, z.B. beim endgültigen Löschen.
+     */
+    public void removeByPids(Collection<Long> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        namedJdbcTemplate.update("DELETE FROM " + TABLE + " WHERE RES_ID IN (:pids)",
+            new MapSqlParameterSource("pids", pids));
+    }
+
+    private static RowMapper<Entry> entryMapper(String token) {
+        return (rs, rowNum) ->
+            new Entry(token, rs.getLong("RES_ID"), rs.getString("KVNR"), rs.getString("SUBMITTER"));
+    }
+
+    /**
+     * @return ob der Token eine früher vergebene UUID ist
+     */
+    static boolean isUuid(String token) {
+        return token != null && UUID_PATTERN.matcher(token).matches();
+    }
+
+    /**
+     * @return der 128-Bit-Wert der ULID oder UUID, oder {@code null}, wenn der Token keines von beiden ist
+     */
+    static byte[] toBytes(String token) {
+        if (isUuid(token)) {
+            UUID uuid = UUID.fromString(token);
+            return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+        }
+        if (token == null || token.length() != TOKEN_LENGTH || ALPHABET.indexOf(token.charAt(0)) > 7) {
+            return null;
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            int value = ALPHABET.indexOf(token.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            high = (high << 5) | (low >>> 59);
+            low = (low << 5) | value;
+        }
+        return ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+    }
+
+    public static final class Entry {
+        private final String token;
+        private final long pid;
+        private final String kvnr;
+        private final String submitter;
+
+        /**
+         * @param kvnr      KVNR aus {@code DocumentReference.subject}, falls angegeben
+         * @param submitter Telematik-ID des Einreichers, falls bekannt
+         */
+        public Entry(String token, long pid, String kvnr, String submitter) {
+            this.token = token;
+            this.pid = pid;
+            this.kvnr = kvnr;
+            this.submitter = submitter;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public long getPid() {
+            return pid;
+        }
+
+        public String getKvnr() {
+            return kvnr;
+        }
+
+        public String getSubmitter() {
+            return submitter;
+        }
+    }
+}
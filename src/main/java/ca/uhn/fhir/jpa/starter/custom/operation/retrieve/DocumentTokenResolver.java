@@ -0,0 +1,85 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.custom.operation.submit.SubmitProcessor;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Löst Tokens für {@code $retrieve} und den Bulk-Retrieve auf. Maßgeblich ist der {@link DocumentTokenIndex}.
+ * <p>
+ * Dokumente, die vor dem Index eingereicht wurden, haben eine UUID als Token und keinen Eintrag. Fehlt eine UUID im
+ * Index, wird sie einmalig über {@code identifier} gesucht und der Eintrag nachgetragen; jeder weitere Abruf trifft
+ * den Primärschlüssel. Der Einreicher solcher Dokumente ist nicht bekannt.
+ */
+@Component
+public class DocumentTokenResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentTokenResolver.class);
+
+    private final DocumentTokenIndex tokenIndex;
+    private final DaoRegistry daoRegistry;
+
+    public DocumentTokenResolver(DocumentTokenIndex tokenIndex, DaoRegistry daoRegistry) {
+        this.tokenIndex = tokenIndex;
+        this.daoRegistry = daoRegistry;
+    }
+
+    /**
+     * @return der Eintrag oder {@code null}, wenn der Token unbekannt ist
+     */
+    public DocumentTokenIndex.Entry find(String token) {
+        DocumentTokenIndex.Entry entry = tokenIndex.find(token);
+        return entry != null || !DocumentTokenIndex.isUuid(token) ? entry : findByIdentifier(token);
+    }
+
+    /**
+     * @return Einträge nach Token; unbekannte Tokens fehlen
+     */
+    public Map<String, DocumentTokenIndex.Entry> findAll(Collection<String> tokens) {
+        Map<String, DocumentTokenIndex.Entry> entries = tokenIndex.findAll(tokens);
+        tokens.stream()
+            .filter(token -> !entries.containsKey(token) && DocumentTokenIndex.isUuid(token))
+            .distinct()
+            .forEach(token -> {
+                DocumentTokenIndex.Entry entry = findByIdentifier(token);
+                if (entry != null) {
+                    entries.put(token, entry);
+                }
+            });
+        return entries;
+    }
+
+    private DocumentTokenIndex.Entry findByIdentifier(String token) {
+        IFhirResourceDao<DocumentReference> dao = daoRegistry.getResourceDao(DocumentReference.class);
+        List<JpaPid> pids = dao.searchForResourceIds(SearchParameterMap.newSynchronous(
+            DocumentReference.SP_IDENTIFIER, new TokenParam(SubmitProcessor.TOKEN_SYSTEM, token)),
+            new SystemRequestDetails());
+        if (pids.isEmpty()) {
+            return null;
+        }
+        JpaPid pid = pids.get(0);
+        DocumentReference document = dao.readByPid(pid);
+        DocumentTokenIndex.Entry entry = new DocumentTokenIndex.Entry(token, pid.getId(),
+            document.getSubject().getIdentifier().getValue(), null);
+        try {
+            tokenIndex.putAll(List.of(entry));
+            logger.debug("Token des Dokuments {} in den Index nachgetragen", document.getIdElement().getIdPart());
+        } catch (DuplicateKeyException e) {
+            // Ein paralleler Abruf hat den Eintrag bereits nachgetragen
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,116 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.operation.status.DocumentStateService;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@code DocumentReference/$retrieve}: liefert das Dokument zu einem beim Submit vergebenen Token.
+ * <p>
+ * Der Token wird über den {@link DocumentTokenIndex} auf die PID aufgelöst ({@link DocumentTokenResolver}) und
+ * die Ressource per PID gelesen; es entsteht kein Eintrag im Such-Cache. Geliefert werden nur die angeforderten Inhalte
+ * ({@link RetrieveProjection}); deren Daten werden bei JSON direkt aus dem Binary Storage in die Antwort
+ * gestreamt ({@link RetrieveResponseWriter}), sodass Latenz und Speicherbedarf von den angeforderten Teilen
+ * abhängen.
+ */
+@Component
+public class RetrieveOperationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetrieveOperationProvider.class);
+
+    private final FhirContext ctx;
+    private final DaoRegistry daoRegistry;
+    private final DocumentTokenResolver tokenResolver;
+    private final IBinaryStorageSvc binaryStorageSvc;
+    private final DocumentStateService stateService;
+
+    public RetrieveOperationProvider(FhirContext ctx, DaoRegistry daoRegistry, DocumentTokenResolver tokenResolver,
+                                     IBinaryStorageSvc binaryStorageSvc, DocumentStateService stateService) {
+        this.ctx = ctx;
+        this.daoRegistry = daoRegistry;
+        this.tokenResolver = tokenResolver;
+        this.binaryStorageSvc = binaryStorageSvc;
+        this.stateService = stateService;
+    }
+
+    @Operation(name = "$retrieve", type = DocumentReference.class, idempotent = true, manualResponse = true)
+    public void retrieve(
+            @OperationParam(name = "token", min = 1, max = 1) StringType token,
+            @OperationParam(name = "strukturierterRechnungsinhalt", max = 1) BooleanType strukturierterRechnungsinhalt,
+            @OperationParam(name = "originaleRechnung", max = 1) BooleanType originaleRechnung,
+            ServletRequestDetails requestDetails) throws IOException {
+        if (token == null || !token.hasValue()) {
+            throw new InvalidRequestException("Parameter 'token' fehlt");
+        }
+        // Fremde Tokens verhalten sich wie unbekannte
+        DocumentTokenIndex.Entry entry = tokenResolver.find(token.getValue());
+        if (entry == null || !DocumentAccess.isAllowed(DocumentAccess.accessToken(requestDetails), entry)) {
+            throw new ResourceNotFoundException("Kein Dokument zum Token gefunden");
+        }
+        DocumentReference document =
+            daoRegistry.getResourceDao(DocumentReference.class).readByPid(JpaPid.fromId(entry.getPid()));
+        // readByPid löst den Preshow-Hook nicht aus
+        stateService.apply(document);
+
+        IIdType documentId = document.getIdElement().toUnqualifiedVersionless();
+        List<String> blobIds = RetrieveProjection.apply(document,
+            strukturierterRechnungsinhalt != null && strukturierterRechnungsinhalt.booleanValue(),
+            originaleRechnung != null && originaleRechnung.booleanValue());
+        Parameters output = new Parameters();
+        output.addParameter().setName("dokument").setResource(document);
+
+        HttpServletResponse response = requestDetails.getServletResponse();
+        response.setStatus(Constants.STATUS_HTTP_200_OK);
+        ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingNoDefault(requestDetails, null);
+        if (encoding != null && encoding.getEncoding() == EncodingEnum.XML) {
+            // XML wird nicht gestreamt: Inhalte einsetzen und regulär kodieren
+            inlineContents(document, documentId);
+            response.setContentType(Constants.CT_FHIR_XML_NEW);
+            response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+            ctx.newXmlParser().encodeResourceToWriter(output, response.getWriter());
+        } else {
+            response.setContentType(Constants.CT_FHIR_JSON_NEW);
+            response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+            RetrieveResponseWriter.write(ctx.newJsonParser().encodeResourceToString(output),
+                response.getOutputStream(),
+                (blobId, out) -> binaryStorageSvc.writeBinaryContent(documentId, blobId, out));
+        }
+        logger.debug("Dokument {} per Token abgerufen, {} Inhalte aus dem Binary Storage",
+            documentId.getIdPart(), blobIds.size());
+    }
+
+    private void inlineContents(DocumentReference document, IIdType documentId) throws IOException {
+        for (DocumentReference.DocumentReferenceContentComponent content : document.getContent()) {
+            Extension marker = content.getAttachment().getDataElement().getExtensionByUrl(RetrieveProjection.MARKER_URL);
+            if (marker != null) {
+                content.getAttachment().setDataElement(new Base64BinaryType(
+                    binaryStorageSvc.fetchBinaryContent(documentId, marker.getValue().primitiveValue())));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.jpa.starter.custom.operation.submit.SubmitProcessor;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wählt die Inhalte einer DocumentReference aus, die {@code $retrieve} liefert, anhand von
+ * {@code content.format} ({@link #FORMAT_SYSTEM}):
+ * <ul>
+ *     <li>{@code angereichertesPDF} immer, solange es fehlt ersatzweise {@code erechnung},</li>
+ *     <li>{@code rechnungsinhalt} nur mit {@code strukturierterRechnungsinhalt},</li>
+ *     <li>{@code erechnung} (original mit Signatur) nur mit {@code originaleRechnung}.</li>
+ * </ul>
+ * Alle übrigen Inhalte werden entfernt. Ausgewählte Inhalte aus dem Binary Storage bekommen statt der URL eine
+ * Markierungs-Extension ({@link #MARKER_URL}) am Element {@code data}; die Daten selbst schreibt erst
+ * {@link RetrieveResponseWriter} in die Antwort.
+ */
+public final class RetrieveProjection {
+
+    public static final String FORMAT_SYSTEM = "https://gematik.de/fhir/erg/CodeSystem/erg-attachment-format-cs";
+    static final String MARKER_URL = "urn:erg:retrieve:binary";
+
+    public static final String FORMAT_ERECHNUNG = "erechnung";
+    public static final String FORMAT_ANGEREICHERT = "angereichertesPDF";
+    public static final String FORMAT_RECHNUNGSINHALT = "rechnungsinhalt";
+
+    private RetrieveProjection() {
+    }
+
+    /**
+     * Reduziert {@code document.content} auf die angeforderten Inhalte.
+     *
+     * @return die Blob-IDs der ausgewählten Inhalte in Dokumentreihenfolge
+     */
+    static List<String> apply(DocumentReference document, boolean strukturierterRechnungsinhalt,
+                              boolean originaleRechnung) {
+        boolean hasEnriched = document.getContent().stream()
+            .anyMatch(content -> FORMAT_ANGEREICHERT.equals(formatOf(content)));
+        document.getContent().removeIf(content -> {
+            String format = formatOf(content);
+            if (FORMAT_ANGEREICHERT.equals(format)) {
+                return false;
+            }
+            if (FORMAT_ERECHNUNG.equals(format)) {
+                return hasEnriched && !originaleRechnung;
+            }
+            if (FORMAT_RECHNUNGSINHALT.equals(format)) {
+                return !strukturierterRechnungsinhalt;
+            }
+            return true;
+        });
+
+        List<String> blobIds = new ArrayList<>();
+        for (DocumentReference.DocumentReferenceContentComponent content : document.getContent()) {
+            Attachment attachment = content.getAttachment();
+            String url = attachment.getUrl();
+            if (url == null || !url.startsWith(SubmitProcessor.ATTACHMENT_URL_PREFIX)) {
+                continue;
+            }
+            String blobId = url.substring(SubmitProcessor.ATTACHMENT_URL_PREFIX.length());
+            attachment.setUrl(null);
+            attachment.getDataElement().addExtension(MARKER_URL, new StringType(blobId));
+            blobIds.add(blobId);
+        }
+        return blobIds;
+    }
+
+    /**
+     * @return {@code format.code} aus {@link #FORMAT_SYSTEM} oder {@code null}
+     */
+    public static String formatOf(DocumentReference.DocumentReferenceContentComponent content) {
+        // Beispiele der Spezifikation setzen format.code ohne system
+        if (!content.hasFormat() || (content.getFormat().hasSystem()
+                && !FORMAT_SYSTEM.equals(content.getFormat().getSystem()))) {
+            return null;
+        }
+        return content.getFormat().getCode();
+    }
+}
@@ -0,0 +1,129 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+
+/**
+ * Schreibt die JSON-Antwort von {@code $retrieve}: Das kleine, bereits kodierte Ergebnis wird als Token-Strom
+ * kopiert; an jeder Markierung von {@link RetrieveProjection} wird {@code data} direkt aus dem Binary Storage
+ * Base64-kodiert in den Ausgabestrom geschrieben. Der Inhalt liegt dabei nie vollständig im Speicher.
+ * {@code _data} ohne Markierung (z.B. mit einer anderen Extension) wird unverändert übernommen.
+ */
+final class RetrieveResponseWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private RetrieveResponseWriter() {
+    }
+
+    interface BlobSource {
+        void writeTo(String blobId, OutputStream out) throws IOException;
+    }
+
+    static void write(String json, OutputStream out, BlobSource blobs) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            copy(json, generator, out, blobs);
+        }
+    }
+
+    static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return JSON_FACTORY.createGenerator(out);
+    }
+
+    /**
+     * Kopiert {@code json} als Wert in {@code generator}, z.B. als {@code entry.resource} eines Bundles.
+     *
+     * @param out der Strom, in den {@code generator} schreibt; nimmt die Daten direkt auf
+     */
+    static void copy(String json, JsonGenerator generator, OutputStream out, BlobSource blobs) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && "_data".equals(parser.currentName())) {
+                    // Das Objekt ist klein; gepuffert, damit es ohne Markierung unverändert übernommen werden kann
+                    parser.nextToken();
+                    TokenBuffer element = new TokenBuffer(parser);
+                    element.copyCurrentStructure(parser);
+                    String blobId = markerValue(element.asParser());
+                    if (blobId != null) {
+                        writeData(generator, out, blobs, blobId);
+                    } else {
+                        generator.writeFieldName("_data");
+                        element.serialize(generator);
+                    }
+                    continue;
+                }
+                if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                    // Schreibweise erhalten (FHIR-Präzision, z.B. 1.50)
+                    generator.writeNumber(parser.getText());
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        }
+    }
+
+    // Liest das Objekt unter "_data" und liefert den Wert der Markierungs-Extension
+    private static String markerValue(JsonParser parser) throws IOException {
+        if (parser.nextToken() == null) {
+            return null;
+        }
+        String url = null;
+        String value = null;
+        int depth = 0;
+        do {
+            JsonToken token = parser.currentToken();
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+            } else if (token == JsonToken.VALUE_STRING) {
+                if ("url".equals(parser.currentName())) {
+                    url = parser.getText();
+                } else if ("valueString".equals(parser.currentName())) {
+                    value = parser.getText();
+                }
+            }
+        } while (depth > 0 && parser.nextToken() != null);
+        return RetrieveProjection.MARKER_URL.equals(url) ? value : null;
+    }
+
+    private static void writeData(JsonGenerator generator, OutputStream out, BlobSource blobs, String blobId)
+            throws IOException {
+        generator.writeFieldName("data");
+        // Öffnendes Anführungszeichen als Rohwert, damit der Generator den Wert als geschrieben betrachtet
+        generator.writeRawValue("\"");
+        generator.flush();
+        try (OutputStream base64 = Base64.getEncoder().wrap(new NonClosingOutputStream(out))) {
+            blobs.writeTo(blobId, base64);
+        }
+        generator.writeRaw('"');
+    }
+
+    // Base64-Encoder schreibt beim close() das Padding, der Antwortstrom muss offen bleiben
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
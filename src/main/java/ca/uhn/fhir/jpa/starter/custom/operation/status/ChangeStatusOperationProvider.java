@@ -0,0 +1,48 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+
+/**
+ * {@code DocumentReference/{id}/$change-status}: setzt den Rechnungsstatus ({@code offen}, {@code erledigt},
+ * {@code papierkorb}), siehe {@link DocumentStateService}.
+ */
+@Component
+public class ChangeStatusOperationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeStatusOperationProvider.class);
+
+    private final DocumentStateService stateService;
+
+    public ChangeStatusOperationProvider(DocumentStateService stateService) {
+        this.stateService = stateService;
+    }
+
+    @Operation(name = "$change-status", type = DocumentReference.class, idempotent = false)
+    public Parameters changeStatus(
+            @IdParam IdType documentId,
+            @OperationParam(name = "tag", min = 1, max = 1) CodeType tag,
+            RequestDetails requestDetails) {
+        if (tag == null || !DocumentStateService.STATUS_CODES.contains(tag.getCode())) {
+            throw new InvalidRequestException("Parameter 'tag' muss einer der Codes " + DocumentStateService.STATUS_CODES + " sein");
+        }
+        Meta meta = stateService.changeStatus(documentId, tag.getCode(), requestDetails);
+        logger.debug("Status von Dokument {} auf {} gesetzt", documentId.getIdPart(), tag.getCode());
+
+        Parameters output = new Parameters();
+        output.addParameter().setName("meta").setValue(meta);
+        return output;
+    }
+}
@@ -0,0 +1,81 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Setzt beim Lesen Status-Tag und Markierungen aus dem {@link DocumentStateStore} in die ausgelieferten
+ * DocumentReferences ein; für eine Seite genügt eine Abfrage. Ältere Versionen ({@code _history}) bleiben, wie sie
+ * gespeichert wurden, da der Zustand nur zur aktuellen Version gehört.
+ * <p>
+ * Suchen nach dem Status ({@code _tag}) beantwortet HAPIs Suchindex, den {@link DocumentStateService} bei jeder
+ * Statusänderung nachführt.
+ */
+@Component
+@Interceptor
+public class DocumentStateInterceptor {
+
+    private final DocumentStateStore stateStore;
+    private final DocumentStateService stateService;
+
+    public DocumentStateInterceptor(DocumentStateStore stateStore, DocumentStateService stateService) {
+        this.stateStore = stateStore;
+        this.stateService = stateService;
+    }
+
+    @Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+    public void applyState(IPreResourceShowDetails details, RequestDetails requestDetails) {
+        List<DocumentReference> documents = new ArrayList<>();
+        for (int i = 0; i < details.size(); i++) {
+            IBaseResource resource = details.getResource(i);
+            if (resource instanceof DocumentReference && resource.getIdElement().hasIdPart()) {
+                documents.add((DocumentReference) resource);
+            }
+        }
+        if (isHistory(requestDetails)) {
+            documents = currentVersionsOnly(documents);
+        }
+        if (documents.isEmpty()) {
+            return;
+        }
+        Map<String, DocumentStateStore.DocumentState> states = stateStore.findAll(documents.stream()
+            .map(document -> document.getIdElement().toUnqualifiedVersionless().getValue())
+            .distinct()
+            .toList());
+        for (DocumentReference document : documents) {
+            stateService.applyTo(document.getMeta(),
+                states.get(document.getIdElement().toUnqualifiedVersionless().getValue()));
+        }
+    }
+
+    private static boolean isHistory(RequestDetails requestDetails) {
+        RestOperationTypeEnum operation = requestDetails != null ? requestDetails.getRestOperationType() : null;
+        return operation == RestOperationTypeEnum.VREAD || operation == RestOperationTypeEnum.HISTORY_INSTANCE
+            || operation == RestOperationTypeEnum.HISTORY_TYPE || operation == RestOperationTypeEnum.HISTORY_SYSTEM;
+    }
+
+    // Die aktuellen Versionen aller Dokumente der Seite mit einer Abfrage; gelöschte haben keine
+    private List<DocumentReference> currentVersionsOnly(List<DocumentReference> documents) {
+        Map<String, Long> current = stateStore.currentVersions(documents.stream()
+            .filter(document -> document.getIdElement().hasVersionIdPart())
+            .map(document -> document.getIdElement().getIdPart())
+            .distinct()
+            .toList());
+        return documents.stream()
+            .filter(document -> !document.getIdElement().hasVersionIdPart()
+                || document.getIdElement().getVersionIdPartAsLong().equals(
+                    current.get(document.getIdElement().getIdPart())))
+            .toList();
+    }
+}
@@ -0,0 +1,282 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentAccess;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentTokenIndex;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Basic;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Meta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Ändert Status-Tag und Markierungen einer DocumentReference, ohne die Ressource neu zu schreiben.
+ * <p>
+ * Beides liegt im {@link DocumentStateStore}; eine Änderung ist damit ein einzelnes Compare-and-Set auf einer
+ * kleinen Zeile statt einer neuen Ressourcenversion mit Neuindizierung. Bei einer konkurrierenden Änderung wird
+ * der Zustand neu gelesen und die Änderung erneut angewendet, wie es der {@code
+ * UserRequestRetryVersionConflictsInterceptor} für Ressourcen macht. Beim Lesen wird der Zustand über
+ * {@link #applyTo(Meta, DocumentStateStore.DocumentState)} in {@code meta} eingesetzt.
+ * <p>
+ * Für {@code _tag}-Suchen bleibt HAPIs Suchindex maßgeblich: ändert sich der Status, wird der Tag in derselben
+ * Transaktion per {@code $meta-delete}/{@code $meta-add} umgesetzt, die ebenfalls keine neue Version anlegen.
+ * Dokumente ohne Zustand (z.B. per REST angelegt) bleiben so mit dem Tag auffindbar, mit dem sie gespeichert
+ * wurden. Die Markierungen in {@code meta.extension} kennt der Suchindex nicht; {@link #MARKIERUNG_PARAM} indiziert
+ * eine Extension der Ressource selbst.
+ */
+@Component
+public class DocumentStateService {
+
+    public static final String STATUS_SYSTEM = "https://gematik.de/fhir/erg/CodeSystem/erg-rechnungsstatus-cs";
+    public static final String STATUS_OFFEN = "offen";
+    public static final Set<String> STATUS_CODES = Set.of(STATUS_OFFEN, "erledigt", "papierkorb");
+    public static final String MARKIERUNG_URL =
+        "https://gematik.de/fhir/erg/StructureDefinition/erg-documentreference-markierung";
+    public static final String MARKIERUNG_PARAM = "erg-makierung";
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentStateService.class);
+
+    private final FhirContext ctx;
+    private final DaoRegistry daoRegistry;
+    private final DocumentTokenIndex tokenIndex;
+    private final DocumentStateStore stateStore;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxRetries;
+
+    public DocumentStateService(FhirContext ctx, DaoRegistry daoRegistry, DocumentTokenIndex tokenIndex,
+                                DocumentStateStore stateStore, PlatformTransactionManager transactionManager,
+                                @Value("${hapi.fhir.document_state.max_retries:5}") int maxRetries) {
+        this.ctx = ctx;
+        this.daoRegistry = daoRegistry;
+        this.tokenIndex = tokenIndex;
+        this.stateStore = stateStore;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Setzt {@link #STATUS_OFFEN}, wenn das Dokument keinen Status-Tag trägt. Vor dem Speichern aufzurufen, damit
+     * HAPIs Suchindex denselben Status kennt wie der Anfangszustand.
+     */
+    public void prepare(DocumentReference document) {
+        if (status(document.getMeta()) == null) {
+            document.getMeta().addTag(STATUS_SYSTEM, STATUS_OFFEN, null);
+        }
+    }
+
+    /**
+     * Legt den Anfangszustand eingereichter Dokumente an: Status aus dem Tag ({@link #STATUS_OFFEN}, wenn keiner
+     * gesetzt ist), Markierungen aus {@code meta} sowie KVNR und Datum für den Posteingang
+     * ({@link InboxOperationProvider}). Läuft in der Transaktion, die die Dokumente speichert.
+     *
+     * @param pids die PIDs der Dokumente in derselben Reihenfolge
+     */
+    public void register(List<DocumentReference> documents, List<Long> pids) {
+        Instant now = Instant.now();
+        List<DocumentStateStore.DocumentState> states = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            DocumentReference document = documents.get(i);
+            String status = status(document.getMeta());
+            states.add(initialState(document, pids.get(i), status != null ? status : STATUS_OFFEN,
+                markings(document.getMeta()), now));
+        }
+        stateStore.insertAll(states);
+    }
+
+    /**
+     * Ersetzt den Status-Tag.
+     *
+     * @return das vollständige {@code meta} nach der Änderung
+     */
+    public Meta changeStatus(IdType documentId, String status, RequestDetails requestDetails) {
+        return update(documentId, requestDetails, meta -> {
+            meta.getTag().removeIf(tag -> STATUS_SYSTEM.equals(tag.getSystem()));
+            meta.addTag(STATUS_SYSTEM, status, null);
+        });
+    }
+
+    /**
+     * Setzt eine Markierung; eine vorhandene Markierung mit demselben Code wird ersetzt.
+     *
+     * @return das vollständige {@code meta} nach der Änderung
+     */
+    public Meta processFlag(IdType documentId, Extension markierung, RequestDetails requestDetails) {
+        String code = markierungCode(markierung);
+        return update(documentId, requestDetails, meta -> {
+            meta.getExtension().removeIf(extension ->
+                MARKIERUNG_URL.equals(extension.getUrl()) && code.equals(markierungCode(extension)));
+            meta.addExtension(markierung);
+        });
+    }
+
+    /**
+     * Setzt den gespeicherten Zustand eines Dokuments in dessen {@code meta} ein, z.B. nach {@code readByPid},
+     * das den Preshow-Hook nicht auslöst.
+     */
+    public void apply(DocumentReference document) {
+        applyTo(document.getMeta(), stateStore.find(document.getIdElement().toUnqualifiedVersionless().getValue()));
+    }
+
+    /**
+     * Ersetzt Status-Tag und Markierungen in {@code meta} durch den gespeicherten Zustand. Ohne Zustand bleibt
+     * {@code meta} unverändert.
+     */
+    public void applyTo(Meta meta, DocumentStateStore.DocumentState state) {
+        if (state == null) {
+            return;
+        }
+        meta.getTag().removeIf(tag -> STATUS_SYSTEM.equals(tag.getSystem()));
+        if (state.getStatus() != null) {
+            meta.addTag(STATUS_SYSTEM, state.getStatus(), null);
+        }
+        meta.getExtension().removeIf(extension -> MARKIERUNG_URL.equals(extension.getUrl()));
+        meta.getExtension().addAll(decodeMarkings(state.getMarkings()));
+        if (meta.getLastUpdated() == null || meta.getLastUpdated().toInstant().isBefore(state.getUpdated())) {
+            meta.setLastUpdatedElement(new InstantType(Date.from(state.getUpdated())));
+        }
+    }
+
+    private Meta update(IdType documentId, RequestDetails requestDetails, Consumer<Meta> change) {
+        // Das gespeicherte Dokument ist klein (Anhänge liegen im Binary Storage); 404/410 wie beim Lesen
+        DocumentReference document = daoRegistry.getResourceDao(DocumentReference.class)
+            .read(documentId.toUnqualifiedVersionless(), requestDetails);
+        DocumentAccess.checkDocument(document, 0, tokenIndex, requestDetails);
+        String resourceId = document.getIdElement().toUnqualifiedVersionless().getValue();
+
+        for (int attempt = 0; ; attempt++) {
+            DocumentStateStore.DocumentState current = stateStore.find(resourceId);
+            Meta meta = document.getMeta().copy();
+            applyTo(meta, current);
+            String previousStatus = status(meta);
+            change.accept(meta);
+
+            Instant now = Instant.now();
+            String status = status(meta);
+            List<Extension> markings = markings(meta);
+            boolean written = Boolean.TRUE.equals(transactionTemplate.execute(transaction -> {
+                // Ohne Zustand (z.B. nicht über $erechnung-submit eingereicht) wird er hier angelegt
+                boolean ok = current == null
+                    ? stateStore.register(initialState(document, pid(document, requestDetails), status, markings,
+                        now))
+                    : stateStore.compareAndSet(resourceId, current.getVersion(), status, encodeMarkings(markings),
+                        now);
+                if (!ok) {
+                    transaction.setRollbackOnly();
+                } else if (!Objects.equals(previousStatus, status)) {
+                    replaceStatusTag(document.getIdElement().toUnqualifiedVersionless(), previousStatus, status);
+                }
+                return ok;
+            }));
+            if (written) {
+                meta.setLastUpdatedElement(new InstantType(Date.from(now)));
+                return meta;
+            }
+            if (attempt >= maxRetries) {
+                throw new ResourceVersionConflictException(
+                    "Status von " + resourceId + " wurde gleichzeitig geändert, bitte erneut versuchen");
+            }
+            logger.debug("Konkurrierende Statusänderung an {}, Versuch {}", resourceId, attempt + 1);
+            backoff(attempt);
+        }
+    }
+
+    private DocumentStateStore.DocumentState initialState(DocumentReference document, Long pid, String status,
+                                                          List<Extension> markings, Instant now) {
+        return new DocumentStateStore.DocumentState(
+            document.getIdElement().toUnqualifiedVersionless().getValue(), pid,
+            document.getSubject().getIdentifier().getValue(),
+            // Millisekunden wie in der Fortsetzungsmarke des Posteingangs
+            (document.hasDate() ? document.getDate().toInstant() : now).truncatedTo(ChronoUnit.MILLIS),
+            1, status, encodeMarkings(markings), now);
+    }
+
+    private long pid(DocumentReference document, RequestDetails requestDetails) {
+        return ((JpaPid) daoRegistry.getResourceDao(DocumentReference.class)
+            .readEntity(document.getIdElement().toUnqualifiedVersionless(), requestDetails).getPersistentId()).getId();
+    }
+
+    // Hält HAPIs _tag-Index aktuell; beide Operationen schreiben nur die Tag-Zeilen der aktuellen Version
+    private void replaceStatusTag(IIdType documentId, String previousStatus, String status) {
+        IFhirResourceDao<DocumentReference> dao = daoRegistry.getResourceDao(DocumentReference.class);
+        SystemRequestDetails requestDetails = new SystemRequestDetails();
+        if (previousStatus != null) {
+            dao.metaDeleteOperation(documentId, new Meta().addTag(new Coding(STATUS_SYSTEM, previousStatus, null)),
+                requestDetails);
+        }
+        if (status != null) {
+            dao.metaAddOperation(documentId, new Meta().addTag(new Coding(STATUS_SYSTEM, status, null)),
+                requestDetails);
+        }
+    }
+
+    private static String status(Meta meta) {
+        return meta.getTag().stream()
+            .filter(tag -> STATUS_SYSTEM.equals(tag.getSystem()))
+            .map(Coding::getCode)
+            .findFirst().orElse(null);
+    }
+
+    private static List<Extension> markings(Meta meta) {
+        return meta.getExtension().stream()
+            .filter(extension -> MARKIERUNG_URL.equals(extension.getUrl()))
+            .toList();
+    }
+
+    // Kurze, zufällige Wartezeit, damit gleichzeitige Versuche nicht erneut kollidieren
+    private static void backoff(int attempt) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(5, 20) * (attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceVersionConflictException("Statusänderung unterbrochen");
+        }
+    }
+
+    // Die Markierungen werden als Extensions einer Basic-Ressource kodiert, damit der FHIR-Parser sie liest
+    private String encodeMarkings(List<Extension> markings) {
+        if (markings.isEmpty()) {
+            return null;
+        }
+        Basic container = new Basic();
+        markings.forEach(markierung -> container.addExtension(markierung.copy()));
+        return ctx.newJsonParser().encodeResourceToString(container);
+    }
+
+    private List<Extension> decodeMarkings(String markings) {
+        if (markings == null) {
+            return new ArrayList<>();
+        }
+        return ctx.newJsonParser().parseResource(Basic.class, markings).getExtension();
+    }
+
+    private static String markierungCode(Extension markierung) {
+        Extension inner = markierung.getExtensionByUrl("markierung");
+        return inner != null && inner.getValue() instanceof Coding ? ((Coding) inner.getValue()).getCode() : "";
+    }
+}
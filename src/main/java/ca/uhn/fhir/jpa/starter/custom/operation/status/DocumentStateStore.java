@@ -0,0 +1,249 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Status und Markierungen je DocumentReference als kompakte Zeile mit eigener Versionsnummer.
+ * <p>
+ * {@code $change-status} und {@code $process-flag} schreiben diese Zeile per Compare-and-Set auf
+ * {@code VERSION}; die Ressource selbst bekommt keine neue Version. Für eingereichte Dokumente enthält die Zeile
+ * außerdem KVNR, Rechnungsdatum und PID; der Index {@code (KVNR, STATUS, DOC_DATE, RESOURCE_ID)} trägt den
+ * Posteingang ({@link #inbox}). Die Tabelle gehört nicht zum HAPI-Schema und wird von den Migrationen unter
+ * {@code db/erg} angelegt.
+ */
+@Component
+public class DocumentStateStore {
+
+    static final String TABLE = "ERG_DOC_STATE";
+
+    private static final String COLUMNS = "RESOURCE_ID, RES_ID, KVNR, DOC_DATE, VERSION, STATUS, MARKINGS, UPDATED";
+
+    private static final RowMapper<DocumentState> STATE_MAPPER = (rs, rowNum) -> {
+        long pid = rs.getLong("RES_ID");
+        Long resPid = rs.wasNull() ? null : pid;
+        Timestamp docDate = rs.getTimestamp("DOC_DATE");
+        return new DocumentState(rs.getString("RESOURCE_ID"), resPid, rs.getString("KVNR"),
+            docDate != null ? docDate.toInstant() : null, rs.getLong("VERSION"), rs.getString("STATUS"),
+            rs.getString("MARKINGS"), rs.getTimestamp("UPDATED").toInstant());
+    };
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    public DocumentStateStore(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    /**
+     * Legt den Anfangszustand eingereichter Dokumente an.
+     */
+    public void insertAll(List<DocumentState> states) {
+        List<Object[]> rows = states.stream()
+            .map(state -> new Object[]{state.getResourceId(), state.getPid(), state.getKvnr(),
+                state.getDocDate() != null ? Timestamp.from(state.getDocDate()) : null, state.getVersion(),
+                state.getStatus(), state.getMarkings(), Timestamp.from(state.getUpdated())})
+            .toList();
+        jdbcTemplate.batchUpdate(
+            "INSERT INTO " + TABLE + " (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)", rows);
+    }
+
+    /**
+     * Legt den Zustand eines Dokuments an, das noch keinen hat (z.B. nicht über {@code $erechnung-submit}
+     * eingereicht). Läuft in einer Transaktion; schlägt das Anlegen fehl, ist sie nur noch zum Zurückrollen gut.
+     *
+     * @return {@code false}, wenn gleichzeitig ein Zustand angelegt wurde
+     */
+    public boolean register(DocumentState state) {
+        try {
+            insertAll(List.of(state));
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param resourceId unqualifizierte ID ohne Version, z.B. {@code DocumentReference/123}
+     * @return der Zustand oder {@code null}, solange nie Status oder Markierung gesetzt wurden
+     */
+    public DocumentState find(String resourceId) {
+        List<DocumentState> states = jdbcTemplate.query(
+            "SELECT " + COLUMNS + " FROM " + TABLE + " WHERE RESOURCE_ID = ?",
+            STATE_MAPPER, resourceId);
+        return states.isEmpty() ? null : states.get(0);
+    }
+
+    public Map<String, DocumentState> findAll(Collection<String> resourceIds) {
+        Map<String, DocumentState> states = new HashMap<>();
+        if (resourceIds.isEmpty()) {
+            return states;
+        }
+        namedJdbcTemplate.query(
+                "SELECT " + COLUMNS + " FROM " + TABLE + " WHERE RESOURCE_ID IN (:ids)",
+                new MapSqlParameterSource("ids", resourceIds), STATE_MAPPER)
+            .forEach(state -> states.put(state.getResourceId(), state));
+        return states;
+    }
+
+    /**
+     * Schreibt den neuen Zustand, sofern die Zeile noch die erwartete Version hat. Ein noch nicht vorhandener
+     * Zustand wird mit {@link #register} angelegt.
+     *
+     * @param expectedVersion gelesene Version, mindestens 1
+     * @return {@code false} bei einer konkurrierenden Änderung
+     */
+    public boolean compareAndSet(String resourceId, long expectedVersion, String status, String markings,
+                                 Instant updated) {
+        if (expectedVersion < 1) {
+            throw new IllegalArgumentException("Erwartete Version " + expectedVersion + " für " + resourceId
+                + "; ein neuer Zustand wird mit register angelegt");
+        }
+        return jdbcTemplate.update("UPDATE " + TABLE
+                + " SET VERSION = VERSION + 1, STATUS = ?, MARKINGS = ?, UPDATED = ?"
+                + " WHERE RESOURCE_ID = ? AND VERSION = ?",
+            status, markings, Timestamp.from(updated), resourceId, expectedVersion) == 1;
+    }
+
+    /**
+     * Eine Seite des Posteingangs, neueste zuerst. Die Position wird über die Sortierschlüssel der letzten Zeile
+     * der vorigen Seite angegeben (Keyset), die Kosten hängen damit nicht von der Seitennummer ab.
+     *
+     * @param afterDate       {@code DOC_DATE} der letzten Zeile der vorigen Seite, {@code null} für die erste Seite
+     * @param afterResourceId {@code RESOURCE_ID} der letzten Zeile der vorigen Seite
+     */
+    public List<DocumentState> inbox(String kvnr, String status, Instant afterDate, String afterResourceId,
+                                     int limit) {
+        if (afterDate == null) {
+            return queryPage("SELECT " + COLUMNS + " FROM " + TABLE
+                    + " WHERE KVNR = ? AND STATUS = ? AND DOC_DATE IS NOT NULL"
+                    + " ORDER BY DOC_DATE DESC, RESOURCE_ID DESC",
+                limit, kvnr, status);
+        }
+        Timestamp after = Timestamp.from(afterDate);
+        return queryPage("SELECT " + COLUMNS + " FROM " + TABLE
+                + " WHERE KVNR = ? AND STATUS = ? AND (DOC_DATE < ? OR (DOC_DATE = ? AND RESOURCE_ID < ?))"
+                + " ORDER BY DOC_DATE DESC, RESOURCE_ID DESC",
+            limit, kvnr, status, after, after, afterResourceId);
+    }
+
+    // Die Seitengröße begrenzt Statement.setMaxRows statt LIMIT, das nicht jede Datenbank kennt
+    private List<DocumentState> queryPage(String sql, int limit, Object... args) {
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            statement.setMaxRows(limit);
+            new ArgumentPreparedStatementSetter(args).setValues(statement);
+            return statement;
+        }, STATE_MAPPER);
+    }
+
+    /**
+     * Die aktuelle Versionsnummer gespeicherter DocumentReferences, mit einer Abfrage auf HAPIs
+     * {@code HFJ_RESOURCE} statt eines Lesezugriffs je Dokument.
+     *
+     * @param idParts die IDs ohne Typ und Version
+     * @return Version nach ID; gelöschte und unbekannte Dokumente fehlen
+     */
+    public Map<String, Long> currentVersions(Collection<String> idParts) {
+        Map<String, Long> versions = new HashMap<>();
+        if (idParts.isEmpty()) {
+            return versions;
+        }
+        namedJdbcTemplate.query("SELECT FHIR_ID, RES_VER FROM HFJ_RESOURCE WHERE RES_TYPE = 'DocumentReference'"
+                + " AND FHIR_ID IN (:ids) AND RES_DELETED_AT IS NULL", new MapSqlParameterSource("ids", idParts),
+            rs -> {
+                versions.put(rs.getString("FHIR_ID"), rs.getLong("RES_VER"));
+            });
+        return versions;
+    }
+
+    public void removeAll(Collection<String> resourceIds) {
+        if (resourceIds.isEmpty()) {
+            return;
+        }
+        namedJdbcTemplate.update("DELETE FROM " + TABLE + " WHERE RESOURCE_ID IN (:ids)",
+            new MapSqlParameterSource("ids", resourceIds));
+    }
+
+    public static final class DocumentState {
+        private final String resourceId;
+        private final Long pid;
+        private final String kvnr;
+        private final Instant docDate;
+        private final long version;
+        private final String status;
+        private final String markings;
+        private final Instant updated;
+
+        DocumentState(String resourceId, Long pid, String kvnr, Instant docDate, long version, String status,
+                      String markings, Instant updated) {
+            this.resourceId = resourceId;
+            this.pid = pid;
+            this.kvnr = kvnr;
+            this.docDate = docDate;
+            this.version = version;
+            this.status = status;
+            this.markings = markings;
+            this.updated = updated;
+        }
+
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        /**
+         * @return PID der DocumentReference; nur für eingereichte Dokumente gesetzt
+         */
+        public Long getPid() {
+            return pid;
+        }
+
+        public String getKvnr() {
+            return kvnr;
+        }
+
+        /**
+         * @return {@code DocumentReference.date} bzw. der Einreichungszeitpunkt
+         */
+        public Instant getDocDate() {
+            return docDate;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Code aus {@code erg-rechnungsstatus-cs} oder {@code null}
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return die Markierungs-Extensions, kodiert von {@link DocumentStateService}
+         */
+        public String getMarkings() {
+            return markings;
+        }
+
+        public Instant getUpdated() {
+            return updated;
+        }
+    }
+}
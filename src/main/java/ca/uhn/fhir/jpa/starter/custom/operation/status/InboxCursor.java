@@ -0,0 +1,50 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Fortsetzungsmarke des Posteingangs: Datum und Ressourcen-ID der letzten gelieferten Zeile, für Clients opak
+ * (Base64url). Da die Abfrage immer auf die KVNR des Aufrufers eingeschränkt ist, muss die Marke nicht signiert
+ * werden.
+ */
+final class InboxCursor {
+
+    private final Instant docDate;
+    private final String resourceId;
+
+    InboxCursor(Instant docDate, String resourceId) {
+        this.docDate = docDate;
+        this.resourceId = resourceId;
+    }
+
+    Instant getDocDate() {
+        return docDate;
+    }
+
+    String getResourceId() {
+        return resourceId;
+    }
+
+    String encode() {
+        String plain = docDate.toEpochMilli() + ":" + resourceId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static InboxCursor decode(String cursor) {
+        try {
+            String plain = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = plain.indexOf(':');
+            if (separator <= 0 || separator == plain.length() - 1) {
+                throw new IllegalArgumentException(plain);
+            }
+            return new InboxCursor(Instant.ofEpochMilli(Long.parseLong(plain.substring(0, separator))),
+                plain.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Ungültiger Parameter 'cursor'");
+        }
+    }
+}
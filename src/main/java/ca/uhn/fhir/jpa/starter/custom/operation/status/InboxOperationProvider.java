@@ -0,0 +1,129 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.AccessToken;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.Profession;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentAccess;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * {@code DocumentReference/$inbox}: die Rechnungen des Versicherten mit einem Status, neueste zuerst.
+ * <p>
+ * Statt der generischen Suche (Token- und Referenz-Joins, Offset-Paging über den Such-Cache) liest die Operation
+ * eine Seite direkt über den Index {@code (KVNR, STATUS, DOC_DATE)} des {@link DocumentStateStore} und setzt an
+ * der Position der Fortsetzungsmarke fort. Die Antwortzeit hängt damit weder von der Zahl der Rechnungen noch von
+ * der Seite ab. Die Dokumente werden per PID gelesen.
+ */
+@Component
+public class InboxOperationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboxOperationProvider.class);
+
+    private final DaoRegistry daoRegistry;
+    private final DocumentStateStore stateStore;
+    private final DocumentStateService stateService;
+    private final int defaultCount;
+    private final int maxCount;
+
+    public InboxOperationProvider(DaoRegistry daoRegistry, DocumentStateStore stateStore,
+                                  DocumentStateService stateService,
+                                  @Value("${hapi.fhir.inbox.default_count:20}") int defaultCount,
+                                  @Value("${hapi.fhir.inbox.max_count:100}") int maxCount) {
+        this.daoRegistry = daoRegistry;
+        this.stateStore = stateStore;
+        this.stateService = stateService;
+        this.defaultCount = defaultCount;
+        this.maxCount = maxCount;
+    }
+
+    @Operation(name = "$inbox", type = DocumentReference.class, idempotent = true)
+    public Bundle inbox(
+            @OperationParam(name = "status", max = 1) CodeType status,
+            @OperationParam(name = "anzahl", max = 1) IntegerType anzahl,
+            @OperationParam(name = "cursor", max = 1) StringType cursor,
+            @OperationParam(name = "kvnr", max = 1) StringType kvnr,
+            RequestDetails requestDetails) {
+        String statusCode = status != null && status.hasValue() ? status.getCode() : DocumentStateService.STATUS_OFFEN;
+        if (!DocumentStateService.STATUS_CODES.contains(statusCode)) {
+            throw new InvalidRequestException("Parameter 'status' muss einer der Codes " + DocumentStateService.STATUS_CODES + " sein");
+        }
+        int count = anzahl != null && anzahl.hasValue() ? anzahl.getValue() : defaultCount;
+        if (count < 1 || count > maxCount) {
+            throw new InvalidRequestException("Parameter 'anzahl' muss zwischen 1 und " + maxCount + " liegen");
+        }
+        String caller = kvnrOf(requestDetails, kvnr);
+        InboxCursor position = cursor != null && cursor.hasValue() ? InboxCursor.decode(cursor.getValue()) : null;
+
+        List<DocumentStateStore.DocumentState> rows = stateStore.inbox(caller, statusCode,
+            position != null ? position.getDocDate() : null, position != null ? position.getResourceId() : null,
+            count);
+        IFhirResourceDao<DocumentReference> dao = daoRegistry.getResourceDao(DocumentReference.class);
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        for (DocumentStateStore.DocumentState row : rows) {
+            DocumentReference document;
+            try {
+                document = dao.readByPid(JpaPid.fromId(row.getPid()));
+            } catch (ResourceGoneException | ResourceNotFoundException e) {
+                // Gelöscht, aber noch nicht endgültig entfernt ($erase)
+                continue;
+            }
+            stateService.applyTo(document.getMeta(), row);
+            bundle.addEntry()
+                .setFullUrl(requestDetails.getFhirServerBase() + "/"
+                    + document.getIdElement().toUnqualifiedVersionless().getValue())
+                .setResource(document)
+                .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        // Eine volle Seite kann weitere Zeilen haben; die Marke zeigt auf die letzte gelesene Zeile
+        if (rows.size() == count) {
+            DocumentStateStore.DocumentState last = rows.get(rows.size() - 1);
+            String next = new InboxCursor(last.getDocDate(), last.getResourceId()).encode();
+            bundle.addLink().setRelation("next").setUrl(requestDetails.getFhirServerBase()
+                + "/DocumentReference/$inbox?status=" + statusCode + "&anzahl=" + count + "&cursor=" + next
+                + (kvnr != null && kvnr.hasValue()
+                    ? "&kvnr=" + URLEncoder.encode(kvnr.getValue(), StandardCharsets.UTF_8) : ""));
+        }
+        logger.debug("Posteingang: {} Dokumente mit Status {}", bundle.getEntry().size(), statusCode);
+        return bundle;
+    }
+
+    // Versicherte sehen ihren eigenen Posteingang; ohne Access Token (interne Aufrufe) ist die KVNR anzugeben
+    private static String kvnrOf(RequestDetails requestDetails, StringType kvnr) {
+        AccessToken accessToken = DocumentAccess.accessToken(requestDetails);
+        if (accessToken == null) {
+            if (kvnr == null || !kvnr.hasValue()) {
+                throw new InvalidRequestException("Parameter 'kvnr' fehlt");
+            }
+            return kvnr.getValue();
+        }
+        if (accessToken.getProfession() != Profession.VERSICHERTER) {
+            throw new ForbiddenOperationException("Der Posteingang steht nur Versicherten zur Verfügung");
+        }
+        if (kvnr != null && kvnr.hasValue() && !kvnr.getValue().equals(accessToken.getIdNumber())) {
+            throw new ForbiddenOperationException("Zugriff auf den Posteingang einer anderen KVNR ist nicht erlaubt");
+        }
+        return accessToken.getIdNumber();
+    }
+}
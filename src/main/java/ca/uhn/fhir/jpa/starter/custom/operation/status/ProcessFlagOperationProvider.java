@@ -0,0 +1,69 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code DocumentReference/{id}/$process-flag}: setzt eine Markierung (z.B. {@code gelesen}, {@code bezahlt}) als
+ * {@code erg-documentreference-markierung}-Extension in {@code meta}, siehe {@link DocumentStateService}.
+ */
+@Component
+public class ProcessFlagOperationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessFlagOperationProvider.class);
+
+    static final String MARKIERUNG_SYSTEM = "https://gematik.de/fhir/erg/CodeSystem/erg-rechnung-markierung-cs";
+
+    private final DocumentStateService stateService;
+
+    public ProcessFlagOperationProvider(DocumentStateService stateService) {
+        this.stateService = stateService;
+    }
+
+    @Operation(name = "$process-flag", type = DocumentReference.class, idempotent = false)
+    public Parameters processFlag(
+            @IdParam IdType documentId,
+            @OperationParam(name = "markierung", min = 1, max = 1) Coding markierung,
+            @OperationParam(name = "zeitpunkt", max = 1) DateTimeType zeitpunkt,
+            @OperationParam(name = "details", max = 1) StringType details,
+            @OperationParam(name = "gelesen", max = 1) BooleanType gelesen,
+            @OperationParam(name = "artDerArchivierung", max = 1) Coding artDerArchivierung,
+            RequestDetails requestDetails) {
+        if (markierung == null || !MARKIERUNG_SYSTEM.equals(markierung.getSystem()) || !markierung.hasCode()) {
+            throw new InvalidRequestException("Parameter 'markierung' muss ein Code aus " + MARKIERUNG_SYSTEM + " sein");
+        }
+        Extension extension = new Extension(DocumentStateService.MARKIERUNG_URL);
+        extension.addExtension("markierung", markierung);
+        extension.addExtension("zeitpunkt", zeitpunkt != null && zeitpunkt.hasValue() ? zeitpunkt : DateTimeType.now());
+        if (details != null && details.hasValue()) {
+            extension.addExtension("details", details);
+        }
+        if (gelesen != null && gelesen.hasValue()) {
+            extension.addExtension("gelesen", gelesen);
+        }
+        if (artDerArchivierung != null && !artDerArchivierung.isEmpty()) {
+            extension.addExtension("artDerArchivierung", artDerArchivierung);
+        }
+        Meta meta = stateService.processFlag(documentId, extension, requestDetails);
+        logger.debug("Markierung {} an Dokument {} gesetzt", markierung.getCode(), documentId.getIdPart());
+
+        Parameters output = new Parameters();
+        output.addParameter().setName("meta").setValue(meta);
+        return output;
+    }
+}
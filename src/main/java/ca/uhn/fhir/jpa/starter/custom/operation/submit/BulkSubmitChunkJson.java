@@ -0,0 +1,43 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Ein Chunk des Bulk-Submits: NDJSON mit je einer Einreichung ({@code Parameters}) pro Zeile im Binary Storage.
+ */
+public class BulkSubmitChunkJson implements IModelJson {
+
+    @JsonProperty("blobId")
+    private String blobId;
+
+    @JsonProperty("firstIndex")
+    private int firstIndex;
+
+    @JsonProperty("count")
+    private int count;
+
+    public BulkSubmitChunkJson() {
+    }
+
+    public BulkSubmitChunkJson(String blobId, int firstIndex, int count) {
+        this.blobId = blobId;
+        this.firstIndex = firstIndex;
+        this.count = count;
+    }
+
+    public String getBlobId() {
+        return blobId;
+    }
+
+    /**
+     * @return Index der ersten Einreichung des Chunks im Upload
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
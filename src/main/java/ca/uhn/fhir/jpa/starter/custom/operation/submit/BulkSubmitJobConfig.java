@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.batch2.api.IFirstJobStepWorker;
+import ca.uhn.fhir.batch2.api.IJobCompletionHandler;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Batch2-Job für den Bulk-Submit. Der Upload liegt bereits in Chunks im Binary Storage; der erste Schritt
+ * verteilt die Chunks, der zweite validiert und speichert je Chunk, die Reduktion fasst die Ergebnisse zum
+ * Job-Report zusammen (sichtbar unter {@code /control/jobs}).
+ */
+@Configuration
+public class BulkSubmitJobConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkSubmitJobConfig.class);
+
+    public static final String JOB_DEFINITION_ID = "ERG_BULK_SUBMIT";
+
+    @Bean
+    public JobDefinition<BulkSubmitJobParameters> bulkSubmitJobDefinition(BulkSubmitStoreStep storeStep,
+                                                                         BulkSubmitReportStep reportStep,
+                                                                         IBinaryStorageSvc binaryStorageSvc) {
+        return JobDefinition.newBuilder()
+            .setJobDefinitionId(JOB_DEFINITION_ID)
+            .setJobDescription("E-Rechnungen im Bulk einreichen")
+            .setJobDefinitionVersion(1)
+            .setParametersType(BulkSubmitJobParameters.class)
+            .gatedExecution()
+            .addFirstStep(
+                "distribute-chunks",
+                "Chunks des Uploads verteilen",
+                BulkSubmitChunkJson.class,
+                new DistributeChunksStep())
+            .addIntermediateStep(
+                "store-chunk",
+                "Einreichungen eines Chunks validieren und in einer Transaktion speichern",
+                BulkSubmitResultJson.class,
+                storeStep)
+            .addFinalReducerStep(
+                "create-report",
+                "Ergebnisse zum Job-Report zusammenfassen",
+                BulkSubmitResultJson.class,
+                reportStep)
+            .completionHandler(expungeUpload(binaryStorageSvc))
+            .errorHandler(expungeUpload(binaryStorageSvc))
+            .build();
+    }
+
+    // Die Chunks des Uploads werden nach dem Ende des Jobs nicht mehr gebraucht, auch wenn er fehlgeschlagen oder
+    // abgebrochen ist; ein neuer Bulk-Submit lädt sie erneut hoch
+    private static IJobCompletionHandler<BulkSubmitJobParameters> expungeUpload(IBinaryStorageSvc binaryStorageSvc) {
+        return details -> {
+            IdType uploadId = new IdType(details.getParameters().getUploadId());
+            for (BulkSubmitChunkJson chunk : details.getParameters().getChunks()) {
+                binaryStorageSvc.expungeBinaryContent(uploadId, chunk.getBlobId());
+            }
+            logger.info("Upload {} des Bulk-Submits entfernt (Job {})", uploadId.getIdPart(),
+                details.getInstance().getStatus());
+        };
+    }
+
+    private static final class DistributeChunksStep
+            implements IFirstJobStepWorker<BulkSubmitJobParameters, BulkSubmitChunkJson> {
+
+        @Override
+        public RunOutcome run(StepExecutionDetails<BulkSubmitJobParameters, VoidModel> details,
+                              IJobDataSink<BulkSubmitChunkJson> sink) {
+            for (BulkSubmitChunkJson chunk : details.getParameters().getChunks()) {
+                sink.accept(chunk);
+            }
+            return new RunOutcome(details.getParameters().getChunks().size());
+        }
+    }
+}
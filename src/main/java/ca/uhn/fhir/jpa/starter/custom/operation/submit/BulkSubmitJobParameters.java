@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parameter des Bulk-Submit-Jobs: die beim Upload im Binary Storage abgelegten Chunks.
+ */
+public class BulkSubmitJobParameters implements IModelJson {
+
+    @JsonProperty("uploadId")
+    private String uploadId;
+
+    @JsonProperty("submitter")
+    private String submitter;
+
+    @JsonProperty("chunks")
+    private List<BulkSubmitChunkJson> chunks = new ArrayList<>();
+
+    /**
+     * @return Ressourcen-ID, unter der die Chunks im Binary Storage liegen
+     */
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    /**
+     * @return Telematik-ID des Einreichers oder {@code null}
+     */
+    public String getSubmitter() {
+        return submitter;
+    }
+
+    public void setSubmitter(String submitter) {
+        this.submitter = submitter;
+    }
+
+    public List<BulkSubmitChunkJson> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<BulkSubmitChunkJson> chunks) {
+        this.chunks = chunks;
+    }
+}
@@ -0,0 +1,98 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentAccess;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * {@code $erechnung-bulk-submit}: nimmt viele Einreichungen (NDJSON mit je einer {@code Parameters}-Ressource
+ * pro Zeile oder ein Bundle wie {@code Bundle-BulkSubmitExample}) an und verarbeitet sie asynchron im
+ * Batch2-Job {@link BulkSubmitJobConfig#JOB_DEFINITION_ID}.
+ * <p>
+ * Der Upload wird beim Lesen in Chunks zu je {@code chunk_size} Einreichungen geteilt und im Binary Storage
+ * abgelegt. Geantwortet wird mit der Job-ID; Fortschritt und Report liefert {@code /control/jobs}.
+ */
+@Component
+public class BulkSubmitProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkSubmitProvider.class);
+
+    private final IJobCoordinator jobCoordinator;
+    private final IBinaryStorageSvc binaryStorageSvc;
+    private final int chunkSize;
+
+    public BulkSubmitProvider(IJobCoordinator jobCoordinator, IBinaryStorageSvc binaryStorageSvc,
+                              @Value("${hapi.fhir.bulk_submit.chunk_size:20}") int chunkSize) {
+        this.jobCoordinator = jobCoordinator;
+        this.binaryStorageSvc = binaryStorageSvc;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    @Operation(name = "$erechnung-bulk-submit", idempotent = false, manualRequest = true)
+    public Parameters bulkSubmit(ServletRequestDetails requestDetails) throws IOException {
+        String contentType = requestDetails.getHeader(Constants.HEADER_CONTENT_TYPE);
+        boolean ndjson = contentType != null && contentType.contains("ndjson");
+        IdType uploadId = new IdType("Bundle", UUID.randomUUID().toString());
+        BulkSubmitJobParameters parameters = new BulkSubmitJobParameters();
+        parameters.setUploadId(uploadId.getValue());
+        parameters.setSubmitter(DocumentAccess.submitterOf(requestDetails));
+
+        int total;
+        try {
+            total = BulkSubmitSplitter.split(requestDetails.getInputStream(), ndjson, chunkSize,
+                (chunk, firstIndex, count) -> {
+                    StoredDetails details = binaryStorageSvc.storeBinaryContent(uploadId, null,
+                        Constants.CT_FHIR_NDJSON, new ByteArrayInputStream(chunk), requestDetails);
+                    parameters.getChunks().add(new BulkSubmitChunkJson(details.getBinaryContentId(), firstIndex, count));
+                });
+            if (total == 0) {
+                throw new InvalidRequestException("Bulk-Submit enthält keine Einreichungen");
+            }
+        } catch (JsonProcessingException e) {
+            expungeChunks(uploadId, parameters);
+            throw new InvalidRequestException("Ungültiger JSON-Body: " + e.getOriginalMessage());
+        } catch (RuntimeException | IOException e) {
+            expungeChunks(uploadId, parameters);
+            throw e;
+        }
+
+        JobInstanceStartRequest startRequest = new JobInstanceStartRequest();
+        startRequest.setJobDefinitionId(BulkSubmitJobConfig.JOB_DEFINITION_ID);
+        startRequest.setParameters(parameters);
+        Batch2JobStartResponse response = jobCoordinator.startInstance(requestDetails, startRequest);
+        logger.info("Bulk-Submit mit {} Einreichungen in {} Chunks gestartet, Job {}",
+            total, parameters.getChunks().size(), response.getInstanceId());
+
+        Parameters output = new Parameters();
+        output.addParameter().setName("jobId").setValue(new StringType(response.getInstanceId()));
+        output.addParameter().setName("anzahl").setValue(new IntegerType(total));
+        output.addParameter().setName("chunks").setValue(new IntegerType(parameters.getChunks().size()));
+        return output;
+    }
+
+    private void expungeChunks(IdType uploadId, BulkSubmitJobParameters parameters) {
+        for (BulkSubmitChunkJson chunk : parameters.getChunks()) {
+            binaryStorageSvc.expungeBinaryContent(uploadId, chunk.getBlobId());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.batch2.api.ChunkExecutionDetails;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IReductionStepWorker;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.model.ChunkOutcome;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fasst die Ergebnisse aller Chunks zum Job-Report zusammen, sortiert nach Index im Upload.
+ */
+@Component
+public class BulkSubmitReportStep
+        implements IReductionStepWorker<BulkSubmitJobParameters, BulkSubmitResultJson, BulkSubmitResultJson> {
+
+    // Je Job-Instanz, da die Schritt-Instanz von allen Jobs geteilt wird
+    private final Map<String, BulkSubmitResultJson> reports = new ConcurrentHashMap<>();
+
+    @Override
+    public ChunkOutcome consume(ChunkExecutionDetails<BulkSubmitJobParameters, BulkSubmitResultJson> details) {
+        BulkSubmitResultJson report = reports.computeIfAbsent(details.getInstanceId(), id -> new BulkSubmitResultJson());
+        synchronized (report) {
+            details.getData().getItems().forEach(report::add);
+        }
+        return ChunkOutcome.SUCCESS();
+    }
+
+    @Override
+    public RunOutcome run(StepExecutionDetails<BulkSubmitJobParameters, BulkSubmitResultJson> details,
+                          IJobDataSink<BulkSubmitResultJson> sink) {
+        BulkSubmitResultJson report = reports.remove(details.getInstance().getInstanceId());
+        if (report == null) {
+            report = new BulkSubmitResultJson();
+        }
+        report.getItems().sort(Comparator.comparingInt(BulkSubmitResultJson.Item::getIndex));
+        sink.accept(report);
+        return RunOutcome.SUCCESS;
+    }
+}
@@ -0,0 +1,77 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ergebnis der Einreichungen eines Chunks bzw., nach der Reduktion, des ganzen Jobs (Job-Report).
+ */
+public class BulkSubmitResultJson implements IModelJson {
+
+    @JsonProperty("submitted")
+    private int submitted;
+
+    @JsonProperty("failed")
+    private int failed;
+
+    @JsonProperty("items")
+    private List<Item> items = new ArrayList<>();
+
+    public int getSubmitted() {
+        return submitted;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    void add(Item item) {
+        items.add(item);
+        if (item.getErrors().isEmpty()) {
+            submitted++;
+        } else {
+            failed++;
+        }
+    }
+
+    /**
+     * Ergebnis einer Einreichung: Tokens der gespeicherten Dokumente oder die Fehler.
+     */
+    public static class Item implements IModelJson {
+
+        @JsonProperty("index")
+        private int index;
+
+        @JsonProperty("tokens")
+        private List<String> tokens = new ArrayList<>();
+
+        @JsonProperty("errors")
+        private List<String> errors = new ArrayList<>();
+
+        public Item() {
+        }
+
+        Item(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public List<String> getTokens() {
+            return tokens;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+}
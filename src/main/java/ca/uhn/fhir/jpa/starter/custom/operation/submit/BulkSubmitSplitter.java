@@ -0,0 +1,145 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Teilt einen Bulk-Submit-Upload beim Lesen in Chunks zu je {@code chunkSize} Einreichungen, als NDJSON mit
+ * einer {@code Parameters}-Ressource pro Zeile.
+ * <p>
+ * NDJSON wird nur an den Zeilenumbrüchen geteilt, ohne die Zeilen zu parsen. Bei einem Bundle wird
+ * {@code entry[].resource} als Token-Strom kopiert; {@code entry.request} wird ignoriert. Es liegt also nie mehr
+ * als ein Chunk im Speicher.
+ */
+final class BulkSubmitSplitter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private BulkSubmitSplitter() {
+    }
+
+    interface ChunkSink {
+        void accept(byte[] ndjson, int firstIndex, int count) throws IOException;
+    }
+
+    /**
+     * @return Anzahl der Einreichungen
+     */
+    static int split(InputStream body, boolean ndjson, int chunkSize, ChunkSink sink) throws IOException {
+        ChunkBuffer buffer = new ChunkBuffer(chunkSize, sink);
+        if (ndjson) {
+            splitNdjson(body, buffer);
+        } else {
+            splitBundle(body, buffer);
+        }
+        buffer.flush();
+        return buffer.total;
+    }
+
+    private static void splitNdjson(InputStream body, ChunkBuffer buffer) throws IOException {
+        byte[] bytes = new byte[8192];
+        boolean lineHasContent = false;
+        int read;
+        while ((read = body.read(bytes)) != -1) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                if (b == '\n') {
+                    buffer.out.write(bytes, start, i + 1 - start);
+                    start = i + 1;
+                    if (lineHasContent) {
+                        buffer.endItem();
+                    }
+                    lineHasContent = false;
+                } else if (b != ' ' && b != '\t' && b != '\r') {
+                    lineHasContent = true;
+                }
+            }
+            buffer.out.write(bytes, start, read - start);
+        }
+        if (lineHasContent) {
+            buffer.out.write('\n');
+            buffer.endItem();
+        }
+    }
+
+    private static void splitBundle(InputStream body, ChunkBuffer buffer) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidRequestException("Bulk-Submit erwartet ein Bundle oder NDJSON");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_ARRAY || !"entry".equals(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        parser.nextToken();
+                        if ("resource".equals(field)) {
+                            copyStructure(parser, buffer.out);
+                            buffer.out.write('\n');
+                            buffer.endItem();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copyStructure(JsonParser parser, ByteArrayOutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            int depth = 0;
+            do {
+                JsonToken token = parser.currentToken();
+                SubmitRequestReader.copyEvent(parser, generator);
+                if (token.isStructStart()) {
+                    depth++;
+                } else if (token.isStructEnd()) {
+                    depth--;
+                }
+            } while (depth > 0 && parser.nextToken() != null);
+        }
+    }
+
+    private static final class ChunkBuffer {
+        private final int chunkSize;
+        private final ChunkSink sink;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int count;
+        private int total;
+
+        ChunkBuffer(int chunkSize, ChunkSink sink) {
+            this.chunkSize = chunkSize;
+            this.sink = sink;
+        }
+
+        void endItem() throws IOException {
+            count++;
+            total++;
+            if (count == chunkSize) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (count > 0) {
+                sink.accept(out.toByteArray(), total - count, count);
+            }
+            out.reset();
+            count = 0;
+        }
+    }
+}
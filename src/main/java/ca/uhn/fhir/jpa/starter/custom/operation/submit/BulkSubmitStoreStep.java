@@ -0,0 +1,199 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.BundleValidationExecutor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verarbeitet einen Chunk des Bulk-Submits: liest die Einreichungen, validiert alle Dokumente parallel und
+ * speichert die gültigen Einreichungen in einer Transaktion. Ungültige Einreichungen werden mit ihren Fehlern
+ * berichtet, ohne den Chunk scheitern zu lassen. Schlägt die gemeinsame Transaktion fehl, wird jede Einreichung
+ * einzeln gespeichert und ein Fehler nur bei ihr berichtet.
+ * <p>
+ * Die IDs der DocumentReferences werden aus Upload-ID und Index der Einreichung abgeleitet. Wiederholt Batch2 den
+ * Chunk, werden bereits gespeicherte Einreichungen daran erkannt und nur ihre Tokens berichtet.
+ */
+@Component
+public class BulkSubmitStoreStep implements IJobStepWorker<BulkSubmitJobParameters, BulkSubmitChunkJson, BulkSubmitResultJson> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkSubmitStoreStep.class);
+
+    private final SubmitProcessor submitProcessor;
+    private final BundleValidationExecutor validationExecutor;
+    private final IBinaryStorageSvc binaryStorageSvc;
+
+    public BulkSubmitStoreStep(SubmitProcessor submitProcessor, BundleValidationExecutor validationExecutor,
+                               IBinaryStorageSvc binaryStorageSvc) {
+        this.submitProcessor = submitProcessor;
+        this.validationExecutor = validationExecutor;
+        this.binaryStorageSvc = binaryStorageSvc;
+    }
+
+    @Override
+    public RunOutcome run(StepExecutionDetails<BulkSubmitJobParameters, BulkSubmitChunkJson> details,
+                          IJobDataSink<BulkSubmitResultJson> sink) {
+        BulkSubmitChunkJson chunk = details.getData();
+        byte[] ndjson;
+        try {
+            ndjson = binaryStorageSvc.fetchBinaryContent(new IdType(details.getParameters().getUploadId()), chunk.getBlobId());
+        } catch (IOException e) {
+            throw new JobExecutionFailedException("Chunk " + chunk.getBlobId() + " konnte nicht gelesen werden", e);
+        }
+
+        SystemRequestDetails requestDetails = new SystemRequestDetails();
+        List<BulkSubmitResultJson.Item> items = new ArrayList<>();
+        List<Submission> submissions = new ArrayList<>();
+        List<BulkSubmitResultJson.Item> submissionItems = new ArrayList<>();
+        try {
+            readSubmissions(ndjson, chunk.getFirstIndex(), details.getParameters().getUploadId(), items,
+                submissions, submissionItems);
+            List<Submission> pending = new ArrayList<>();
+            List<BulkSubmitResultJson.Item> pendingItems = new ArrayList<>();
+            for (int i = 0; i < submissions.size(); i++) {
+                List<String> tokens = submitProcessor.persistedTokens(submissions.get(i), requestDetails);
+                if (tokens != null) {
+                    submissionItems.get(i).getTokens().addAll(tokens);
+                } else {
+                    submissions.get(i).setSubmitter(details.getParameters().getSubmitter());
+                    pending.add(submissions.get(i));
+                    pendingItems.add(submissionItems.get(i));
+                }
+            }
+            validate(pending, pendingItems);
+            List<Submission> toPersist = new ArrayList<>();
+            List<BulkSubmitResultJson.Item> persistedItems = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (pendingItems.get(i).getErrors().isEmpty() && !pending.get(i).isTestMode()) {
+                    toPersist.add(pending.get(i));
+                    persistedItems.add(pendingItems.get(i));
+                }
+            }
+            persist(toPersist, persistedItems, requestDetails);
+        } catch (IOException e) {
+            throw new JobExecutionFailedException("Chunk " + chunk.getBlobId() + " konnte nicht gelesen werden", e);
+        } finally {
+            submissions.forEach(Submission::release);
+        }
+
+        BulkSubmitResultJson result = new BulkSubmitResultJson();
+        items.forEach(result::add);
+        logger.info("Bulk-Submit-Chunk ab Index {}: {} gespeichert, {} fehlerhaft",
+            chunk.getFirstIndex(), result.getSubmitted(), result.getFailed());
+        sink.accept(result);
+        return new RunOutcome(items.size());
+    }
+
+    // Alle Einreichungen in einer Transaktion; scheitert sie, einzeln, damit der Fehler bei seiner Einreichung landet
+    private void persist(List<Submission> toPersist, List<BulkSubmitResultJson.Item> persistedItems,
+                         SystemRequestDetails requestDetails) {
+        if (toPersist.isEmpty()) {
+            return;
+        }
+        try {
+            submitProcessor.persist(toPersist, requestDetails);
+            for (int i = 0; i < toPersist.size(); i++) {
+                addTokens(toPersist.get(i), persistedItems.get(i));
+            }
+            return;
+        } catch (RuntimeException | IOException e) {
+            logger.warn("Gemeinsames Speichern von {} Einreichungen fehlgeschlagen, speichere einzeln: {}",
+                toPersist.size(), e.getMessage());
+        }
+        for (int i = 0; i < toPersist.size(); i++) {
+            try {
+                submitProcessor.persist(List.of(toPersist.get(i)), requestDetails);
+                addTokens(toPersist.get(i), persistedItems.get(i));
+            } catch (BaseServerResponseException e) {
+                persistedItems.get(i).getErrors().add(e.getMessage());
+            } catch (RuntimeException | IOException e) {
+                logger.warn("Einreichung {} konnte nicht gespeichert werden", persistedItems.get(i).getIndex(), e);
+                persistedItems.get(i).getErrors().add("Speichern fehlgeschlagen: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void addTokens(Submission submission, BulkSubmitResultJson.Item item) {
+        for (DocumentReference document : submission.getDocuments()) {
+            item.getTokens().add(document.getIdentifierFirstRep().getValue());
+        }
+    }
+
+    private void readSubmissions(byte[] ndjson, int firstIndex, String uploadId, List<BulkSubmitResultJson.Item> items,
+                                 List<Submission> submissions, List<BulkSubmitResultJson.Item> submissionItems)
+            throws IOException {
+        int start = 0;
+        for (int i = 0; i <= ndjson.length; i++) {
+            if (i < ndjson.length && ndjson[i] != '\n') {
+                continue;
+            }
+            if (!isBlank(ndjson, start, i)) {
+                BulkSubmitResultJson.Item item = new BulkSubmitResultJson.Item(firstIndex + items.size());
+                items.add(item);
+                try {
+                    submissions.add(submitProcessor.read(new ByteArrayInputStream(ndjson, start, i - start),
+                        Constants.CT_FHIR_JSON_NEW, uploadId + "/" + item.getIndex()));
+                    submissionItems.add(item);
+                } catch (BaseServerResponseException e) {
+                    item.getErrors().add(e.getMessage());
+                } catch (JsonProcessingException e) {
+                    item.getErrors().add("Ungültiges JSON: " + e.getOriginalMessage());
+                }
+            }
+            start = i + 1;
+        }
+    }
+
+    // Alle Dokumente des Chunks parallel validieren; Fehler landen beim Eintrag der zugehörigen Einreichung
+    private void validate(List<Submission> submissions, List<BulkSubmitResultJson.Item> submissionItems) {
+        List<IBaseResource> documents = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        for (int i = 0; i < submissions.size(); i++) {
+            for (DocumentReference document : submissions.get(i).getDocuments()) {
+                documents.add(document);
+                owners.add(i);
+            }
+        }
+        List<BundleValidationExecutor.EntryResult> results = validationExecutor.validateAll(documents,
+            document -> null, document -> submitProcessor.validate((DocumentReference) document), false);
+        for (int d = 0; d < results.size(); d++) {
+            OperationOutcome outcome = results.get(d).getOutcome();
+            if (outcome != null) {
+                List<String> errors = submissionItems.get(owners.get(d)).getErrors();
+                outcome.getIssue().stream()
+                    .filter(issue -> issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR
+                        || issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL)
+                    .forEach(issue -> errors.add(issue.getDiagnostics()));
+            }
+        }
+    }
+
+    private static boolean isBlank(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
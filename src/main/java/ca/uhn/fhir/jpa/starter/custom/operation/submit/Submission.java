@@ -0,0 +1,107 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Eine gelesene Einreichung: die DocumentReferences von {@code rechnung} und {@code anhang} ohne
+ * Anhangsinhalte sowie die Inhalte in temporären Dateien, bis sie im Binary Storage liegen.
+ */
+final class Submission {
+
+    private final List<DocumentReference> documents = new ArrayList<>();
+    private final Map<String, SpooledAttachment> attachments = new HashMap<>();
+    private final List<StoredAttachment> stored = new ArrayList<>();
+    private boolean testMode;
+    private boolean enrichPdf;
+    private String submitter;
+
+    List<DocumentReference> getDocuments() {
+        return documents;
+    }
+
+    Map<String, SpooledAttachment> getAttachments() {
+        return attachments;
+    }
+
+    List<StoredAttachment> getStored() {
+        return stored;
+    }
+
+    boolean isTestMode() {
+        return testMode;
+    }
+
+    void setTestMode(boolean testMode) {
+        this.testMode = testMode;
+    }
+
+    /**
+     * @return {@code true}, wenn mit {@code angereichertesPDF} ein angereichertes PDF angefordert wurde
+     */
+    boolean isEnrichPdf() {
+        return enrichPdf;
+    }
+
+    void setEnrichPdf(boolean enrichPdf) {
+        this.enrichPdf = enrichPdf;
+    }
+
+    /**
+     * @return Telematik-ID des Einreichers oder {@code null}
+     */
+    String getSubmitter() {
+        return submitter;
+    }
+
+    void setSubmitter(String submitter) {
+        this.submitter = submitter;
+    }
+
+    /**
+     * Löscht die temporären Dateien.
+     */
+    void release() {
+        for (SpooledAttachment attachment : attachments.values()) {
+            try {
+                Files.deleteIfExists(attachment.file);
+            } catch (IOException e) {
+                // Das Temp-Verzeichnis wird ohnehin regelmäßig bereinigt
+            }
+        }
+    }
+
+    static final class SpooledAttachment {
+        final Path file;
+        // Die Blob-ID wird vorab vergeben, damit die URL schon vor dem Speichern feststeht
+        final String blobId;
+        String contentType;
+        IdType resourceId;
+        long size;
+        byte[] sha1;
+
+        SpooledAttachment(Path file, String blobId, String contentType) {
+            this.file = file;
+            this.blobId = blobId;
+            this.contentType = contentType;
+        }
+    }
+
+    static final class StoredAttachment {
+        final IdType resourceId;
+        final String blobId;
+
+        StoredAttachment(IdType resourceId, String blobId) {
+            this.resourceId = resourceId;
+            this.blobId = blobId;
+        }
+    }
+}
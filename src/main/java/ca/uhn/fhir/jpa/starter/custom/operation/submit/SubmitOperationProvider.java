@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentAccess;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@code Patient/{id}/$erechnung-submit}: nimmt eine E-Rechnung mit Anhängen entgegen.
+ * <p>
+ * Der Body wird nicht von HAPI geparst ({@code manualRequest}), damit die Anhänge gestreamt in den Binary
+ * Storage gehen, siehe {@link SubmitProcessor}.
+ */
+@Component
+public class SubmitOperationProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubmitOperationProvider.class);
+
+    private final DaoRegistry daoRegistry;
+    private final SubmitProcessor submitProcessor;
+
+    public SubmitOperationProvider(DaoRegistry daoRegistry, SubmitProcessor submitProcessor) {
+        this.daoRegistry = daoRegistry;
+        this.submitProcessor = submitProcessor;
+    }
+
+    @Operation(name = "$erechnung-submit", type = Patient.class, idempotent = false, manualRequest = true)
+    public Parameters submit(@IdParam IdType patientId, ServletRequestDetails requestDetails) throws IOException {
+        // Unbekannte Patienten führen zu 404, bevor Anhänge gelesen werden
+        Patient patient =
+            daoRegistry.getResourceDao(Patient.class).read(patientId.toUnqualifiedVersionless(), requestDetails);
+
+        Submission submission = submitProcessor.read(
+            requestDetails.getInputStream(), requestDetails.getHeader(Constants.HEADER_CONTENT_TYPE));
+        try {
+            submitProcessor.checkSubject(submission, patient);
+            submission.setSubmitter(DocumentAccess.submitterOf(requestDetails));
+            // Validierung vor dem Speichern; der Precommit-Hook findet das Ergebnis danach im Cache
+            submitProcessor.validate(submission);
+            if (!submission.isTestMode()) {
+                submitProcessor.persist(List.of(submission), requestDetails);
+            }
+            logger.info("E-Rechnung mit {} Dokumenten und {} Anhängen eingereicht (Modus {})",
+                submission.getDocuments().size(), submission.getAttachments().size(),
+                submission.isTestMode() ? "test" : "normal");
+            return submitProcessor.output(submission);
+        } finally {
+            submission.release();
+        }
+    }
+}
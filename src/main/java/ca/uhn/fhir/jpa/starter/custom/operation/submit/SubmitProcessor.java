@@ -0,0 +1,455 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
+import ca.uhn.fhir.jpa.binary.api.StoredDetails;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.AttachmentInspector;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.CustomValidator;
+import ca.uhn.fhir.jpa.starter.custom.operation.enrich.EnrichmentQueue;
+import ca.uhn.fhir.jpa.starter.custom.operation.enrich.PdfEnrichmentExecutor;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.DocumentTokenIndex;
+import ca.uhn.fhir.jpa.starter.custom.operation.retrieve.RetrieveProjection;
+import ca.uhn.fhir.jpa.starter.custom.operation.status.DocumentStateService;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Verarbeitet Einreichungen für {@code $erechnung-submit} und den Bulk-Submit: Lesen mit ausgelagerten
+ * Anhängen, Speichern der Inhalte im Binary Storage ({@link IBinaryStorageSvc}, wie beim
+ * BinaryStorageInterceptor) und Persistieren der DocumentReferences.
+ * <p>
+ * JSON wird als Token-Strom gelesen und jedes {@code Attachment.data} direkt in eine temporäre Datei dekodiert
+ * (siehe {@link SubmitRequestReader}); Größe und SHA-1 werden dabei ermittelt und in
+ * {@code Attachment.size}/{@code Attachment.hash} übernommen, nachdem der {@link AttachmentInspector} die Angaben
+ * des Einreichers dagegen geprüft hat. Persistiert wird nur
+ * eine kleine DocumentReference, deren Anhänge per {@code Attachment.url} ({@link #ATTACHMENT_URL_PREFIX}) auf
+ * den gespeicherten Inhalt verweisen.
+ */
+@Component
+public class SubmitProcessor {
+
+    public static final String TOKEN_SYSTEM = "https://gematik.de/fhir/sid/erg-token";
+    public static final String ATTACHMENT_URL_PREFIX = "urn:erg:binary:";
+    private static final String MODUS_TEST = "test";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String KVID_SYSTEM = "http://fhir.de/sid/gkv/kvid-10";
+
+    private final FhirContext ctx;
+    private final DaoRegistry daoRegistry;
+    private final IBinaryStorageSvc binaryStorageSvc;
+    private final CustomValidator customValidator;
+    private final AttachmentInspector attachmentInspector;
+    private final DocumentTokenIndex tokenIndex;
+    private final DocumentStateService stateService;
+    private final EnrichmentQueue enrichmentQueue;
+    private final PdfEnrichmentExecutor enrichmentExecutor;
+    private final TransactionTemplate transactionTemplate;
+    private final long maxAttachmentBytes;
+
+    public SubmitProcessor(FhirContext ctx, DaoRegistry daoRegistry, IBinaryStorageSvc binaryStorageSvc,
+                           CustomValidator customValidator, AttachmentInspector attachmentInspector,
+                           DocumentTokenIndex tokenIndex,
+                           DocumentStateService stateService, EnrichmentQueue enrichmentQueue,
+                           PdfEnrichmentExecutor enrichmentExecutor, PlatformTransactionManager transactionManager,
+                           @Value("${hapi.fhir.attachment_validation.max_size_bytes:20971520}") long maxAttachmentBytes) {
+        this.ctx = ctx;
+        this.daoRegistry = daoRegistry;
+        this.binaryStorageSvc = binaryStorageSvc;
+        this.customValidator = customValidator;
+        this.attachmentInspector = attachmentInspector;
+        this.tokenIndex = tokenIndex;
+        this.stateService = stateService;
+        this.enrichmentQueue = enrichmentQueue;
+        this.enrichmentExecutor = enrichmentExecutor;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxAttachmentBytes = maxAttachmentBytes;
+    }
+
+    /**
+     * Liest eine Einreichung. Bei Fehlern sind die temporären Dateien bereits gelöscht.
+     *
+     * @param contentType Content-Type des Bodys; XML wird vollständig geparst, sonst wird JSON gestreamt
+     */
+    Submission read(InputStream body, String contentType) throws IOException {
+        return read(body, contentType, null);
+    }
+
+    /**
+     * @param idSeed ergibt die IDs der DocumentReferences, damit eine wiederholte Einreichung (Bulk-Submit-Chunk
+     *               nach einem Fehler) dieselben IDs erhält und erkannt wird, siehe {@link #persistedTokens};
+     *               {@code null} für zufällige IDs
+     */
+    Submission read(InputStream body, String contentType, String idSeed) throws IOException {
+        Submission submission = new Submission();
+        try {
+            Parameters input = contentType != null && contentType.contains("xml")
+                ? readXml(body, submission)
+                : readJson(body, submission);
+            toDocuments(input, submission, idSeed);
+            submission.setTestMode(input.getParameter().stream()
+                .anyMatch(parameter -> "modus".equals(parameter.getName())
+                    && parameter.hasValue() && MODUS_TEST.equals(parameter.getValue().primitiveValue())));
+            submission.setEnrichPdf(input.getParameter().stream()
+                .anyMatch(parameter -> "angereichertesPDF".equals(parameter.getName())
+                    && parameter.hasValue() && "true".equals(parameter.getValue().primitiveValue())));
+            return submission;
+        } catch (RuntimeException | IOException e) {
+            submission.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stellt sicher, dass alle Dokumente den Patienten der Operation betreffen: {@code subject.identifier} muss
+     * dessen KVNR tragen und eine angegebene {@code subject.reference} auf ihn verweisen. Die KVNR wird danach als
+     * Schlüssel für den Zugriff des Versicherten indexiert.
+     */
+    void checkSubject(Submission submission, Patient patient) {
+        List<String> kvnrs = patient.getIdentifier().stream()
+            .filter(identifier -> KVID_SYSTEM.equals(identifier.getSystem()) && identifier.hasValue())
+            .map(identifier -> identifier.getValue())
+            .toList();
+        String patientId = patient.getIdElement().getIdPart();
+        for (DocumentReference document : submission.getDocuments()) {
+            Reference subject = document.getSubject();
+            boolean identifierMatches = subject.hasIdentifier()
+                && (!subject.getIdentifier().hasSystem() || KVID_SYSTEM.equals(subject.getIdentifier().getSystem()))
+                && kvnrs.contains(subject.getIdentifier().getValue());
+            boolean referenceMatches = !subject.hasReference()
+                || ("Patient".equals(subject.getReferenceElement().getResourceType())
+                    && patientId.equals(subject.getReferenceElement().getIdPart()));
+            if (!identifierMatches || !referenceMatches) {
+                throw new InvalidRequestException("DocumentReference.subject entspricht nicht Patient/" + patientId);
+            }
+        }
+    }
+
+    /**
+     * @return die Tokens der Dokumente, wenn die Einreichung bereits gespeichert ist, sonst {@code null}. Eine
+     * Einreichung wird in einer Transaktion gespeichert, daher genügt das erste Dokument.
+     */
+    List<String> persistedTokens(Submission submission, RequestDetails requestDetails) {
+        if (submission.getDocuments().isEmpty()) {
+            return null;
+        }
+        IFhirResourceDao<DocumentReference> dao = daoRegistry.getResourceDao(DocumentReference.class);
+        List<String> tokens = new ArrayList<>();
+        for (DocumentReference document : submission.getDocuments()) {
+            DocumentReference persisted;
+            try {
+                persisted = dao.read(document.getIdElement().toUnqualifiedVersionless(), requestDetails);
+            } catch (ResourceNotFoundException | ResourceGoneException e) {
+                return null;
+            }
+            persisted.getIdentifier().stream()
+                .filter(identifier -> TOKEN_SYSTEM.equals(identifier.getSystem()))
+                .findFirst()
+                .ifPresent(identifier -> tokens.add(identifier.getValue()));
+        }
+        return tokens;
+    }
+
+    void validate(Submission submission) {
+        for (DocumentReference document : submission.getDocuments()) {
+            validate(document);
+        }
+    }
+
+    void validate(DocumentReference document) {
+        customValidator.validateAndThrowIfInvalid(document);
+    }
+
+    /**
+     * Speichert die Anhänge aller Einreichungen und persistiert deren DocumentReferences samt Einträgen im
+     * {@link DocumentTokenIndex} und Anfangszustand ({@link DocumentStateService#register}) in einer Transaktion.
+     * Mit {@code angereichertesPDF} wird die Rechnung in derselben Transaktion für die PDF-Anreicherung vorgemerkt
+     * ({@link PdfEnrichmentExecutor}); erzeugt wird das PDF danach im Hintergrund.
+     * Schlägt das fehl, werden die bereits gespeicherten Inhalte wieder entfernt.
+     */
+    void persist(List<Submission> submissions, RequestDetails requestDetails) throws IOException {
+        List<Long> enrich = new ArrayList<>();
+        try {
+            for (Submission submission : submissions) {
+                storeAttachments(submission, requestDetails);
+            }
+            transactionTemplate.executeWithoutResult(status -> {
+                List<DocumentTokenIndex.Entry> entries = new ArrayList<>();
+                List<DocumentReference> documents = new ArrayList<>();
+                List<Long> pids = new ArrayList<>();
+                for (Submission submission : submissions) {
+                    for (DocumentReference document : submission.getDocuments()) {
+                        stateService.prepare(document);
+                        DaoMethodOutcome outcome =
+                            daoRegistry.getResourceDao(DocumentReference.class).update(document, requestDetails);
+                        long pid = ((JpaPid) outcome.getPersistentId()).getId();
+                        entries.add(new DocumentTokenIndex.Entry(document.getIdentifierFirstRep().getValue(), pid,
+                            document.getSubject().getIdentifier().getValue(), submission.getSubmitter()));
+                        documents.add(document);
+                        pids.add(pid);
+                        if (submission.isEnrichPdf() && hasOriginalPdf(document)) {
+                            enrich.add(pid);
+                        }
+                    }
+                }
+                tokenIndex.putAll(entries);
+                stateService.register(documents, pids);
+                enrichmentQueue.add(enrich);
+            });
+            if (!enrich.isEmpty()) {
+                enrichmentExecutor.signal();
+            }
+        } catch (RuntimeException | IOException e) {
+            for (Submission submission : submissions) {
+                expungeStored(submission);
+            }
+            throw e;
+        }
+    }
+
+    private static boolean hasOriginalPdf(DocumentReference document) {
+        return document.getContent().stream()
+            .anyMatch(content -> RetrieveProjection.FORMAT_ERECHNUNG.equals(RetrieveProjection.formatOf(content)));
+    }
+
+    Parameters output(Submission submission) {
+        Parameters output = new Parameters();
+        if (!submission.isTestMode()) {
+            for (DocumentReference document : submission.getDocuments()) {
+                output.addParameter().setName("token").setValue(document.getIdentifierFirstRep().getValueElement());
+            }
+        }
+        OperationOutcome warnungen = new OperationOutcome();
+        warnungen.addIssue()
+            .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+            .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+            .setDiagnostics(submission.isTestMode()
+                ? "E-Rechnung ist gültig und wurde im Testmodus nicht gespeichert"
+                : "E-Rechnung wurde ohne Warnungen gespeichert");
+        output.addParameter().setName("warnungen").setResource(warnungen);
+        return output;
+    }
+
+    private Parameters readJson(InputStream body, Submission submission) throws IOException {
+        String json;
+        try {
+            json = SubmitRequestReader.externalizeAttachments(body,
+                (contentType, content) -> spool(contentType, content, submission));
+        } catch (JsonProcessingException e) {
+            throw new InvalidRequestException("Ungültiger JSON-Body: " + e.getOriginalMessage());
+        }
+        return ctx.newJsonParser().parseResource(Parameters.class, json);
+    }
+
+    // XML wird vollständig geparst; die Anhänge werden anschließend wie beim JSON-Strom ausgelagert
+    private Parameters readXml(InputStream body, Submission submission) throws IOException {
+        Parameters parameters = ctx.newXmlParser()
+            .parseResource(Parameters.class, new InputStreamReader(body, StandardCharsets.UTF_8));
+        for (Parameters.ParametersParameterComponent parameter : parameters.getParameter()) {
+            Resource resource = parameter.getResource();
+            if (!(resource instanceof DocumentReference)) {
+                continue;
+            }
+            for (DocumentReference.DocumentReferenceContentComponent content : ((DocumentReference) resource).getContent()) {
+                Attachment attachment = content.getAttachment();
+                if (attachment.getDataElement().hasExtension(SubmitRequestReader.MARKER_URL)) {
+                    throw new InvalidRequestException("Unzulässige Extension " + SubmitRequestReader.MARKER_URL);
+                }
+                if (attachment.hasData()) {
+                    byte[] data = attachment.getData();
+                    String key = spool(attachment.getContentType(), out -> out.write(data), submission);
+                    attachment.setDataElement(null);
+                    attachment.getDataElement().addExtension(SubmitRequestReader.MARKER_URL, new StringType(key));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    // Dekodiert den Inhalt in eine temporäre Datei und ermittelt dabei Größe und SHA-1
+    private String spool(String contentType, SubmitRequestReader.ContentWriter content, Submission submission)
+            throws IOException {
+        String key = UUID.randomUUID().toString();
+        Path file = Files.createTempFile("erg-submit-", ".bin");
+        Submission.SpooledAttachment attachment =
+            new Submission.SpooledAttachment(file, UUID.randomUUID().toString(), contentType);
+        submission.getAttachments().put(key, attachment);
+        MessageDigest sha1 = sha1();
+        try (LimitedOutputStream out = new LimitedOutputStream(
+                new DigestOutputStream(Files.newOutputStream(file), sha1), maxAttachmentBytes)) {
+            content.writeTo(out);
+            attachment.size = out.count;
+        }
+        attachment.sha1 = sha1.digest();
+        return key;
+    }
+
+    private void toDocuments(Parameters input, Submission submission, String idSeed) {
+        OperationOutcome errors = new OperationOutcome();
+        List<SingleValidationMessage> attachmentErrors = new ArrayList<>();
+        for (Parameters.ParametersParameterComponent parameter : input.getParameter()) {
+            if (!"rechnung".equals(parameter.getName()) && !"anhang".equals(parameter.getName())) {
+                continue;
+            }
+            if (!(parameter.getResource() instanceof DocumentReference)) {
+                throw new InvalidRequestException("Parameter '" + parameter.getName() + "' muss eine DocumentReference enthalten");
+            }
+            DocumentReference document = (DocumentReference) parameter.getResource();
+            String seed = idSeed + "/" + submission.getDocuments().size();
+            UUID uuid = idSeed == null
+                ? UUID.randomUUID()
+                : UUID.nameUUIDFromBytes(seed.getBytes(StandardCharsets.UTF_8));
+            IdType documentId = new IdType("DocumentReference", uuid.toString());
+            document.setId(documentId);
+            document.getIdentifier().removeIf(identifier -> TOKEN_SYSTEM.equals(identifier.getSystem()));
+            document.addIdentifier().setSystem(TOKEN_SYSTEM).setValue(TokenGenerator.newToken());
+
+            List<DocumentReference.DocumentReferenceContentComponent> contents = document.getContent();
+            for (int c = 0; c < contents.size(); c++) {
+                Attachment attachment = contents.get(c).getAttachment();
+                Extension marker = attachment.hasDataElement()
+                    ? attachment.getDataElement().getExtensionByUrl(SubmitRequestReader.MARKER_URL) : null;
+                if (marker == null) {
+                    continue;
+                }
+                Submission.SpooledAttachment spooled = submission.getAttachments().get(marker.getValue().primitiveValue());
+                if (spooled == null) {
+                    throw new InvalidRequestException("Unzulässige Extension " + SubmitRequestReader.MARKER_URL);
+                }
+                spooled.resourceId = documentId;
+                // Die Prüfungen auf den Bytes laufen hier, solange die Angaben des Einreichers noch vorliegen
+                attachmentInspector.inspectExternalized(contents.get(c),
+                    parameter.getName() + ".content[" + c + "].attachment", spooled.size, spooled.sha1,
+                    customValidator.getValidationSupportChain(), attachmentErrors);
+                if (spooled.contentType == null) {
+                    spooled.contentType = attachment.getContentType();
+                }
+                attachment.setDataElement(null);
+                attachment.setUrl(ATTACHMENT_URL_PREFIX + spooled.blobId);
+                attachment.setSize((int) spooled.size);
+                attachment.setHash(spooled.sha1);
+            }
+            submission.getDocuments().add(document);
+        }
+        for (SingleValidationMessage attachmentError : attachmentErrors) {
+            error(errors, attachmentError.getLocationString(), attachmentError.getMessage());
+        }
+        if (errors.hasIssue()) {
+            throw new UnprocessableEntityException("Validierungsfehler in den Anhängen", errors);
+        }
+        if (submission.getDocuments().isEmpty()) {
+            throw new InvalidRequestException("Parameter 'rechnung' fehlt");
+        }
+    }
+
+    private void storeAttachments(Submission submission, RequestDetails requestDetails) throws IOException {
+        if (submission.isTestMode()) {
+            return;
+        }
+        for (Submission.SpooledAttachment attachment : submission.getAttachments().values()) {
+            // Anhänge außerhalb von rechnung/anhang werden nicht übernommen
+            if (attachment.resourceId == null) {
+                continue;
+            }
+            String contentType = attachment.contentType != null ? attachment.contentType : DEFAULT_CONTENT_TYPE;
+            try (InputStream in = Files.newInputStream(attachment.file)) {
+                StoredDetails details = binaryStorageSvc.storeBinaryContent(
+                    attachment.resourceId, attachment.blobId, contentType, in, requestDetails);
+                submission.getStored().add(
+                    new Submission.StoredAttachment(attachment.resourceId, details.getBinaryContentId()));
+            }
+        }
+    }
+
+    // Bereits gespeicherte Inhalte gehören zu keiner DocumentReference
+    private void expungeStored(Submission submission) {
+        for (Submission.StoredAttachment attachment : submission.getStored()) {
+            binaryStorageSvc.expungeBinaryContent(attachment.resourceId, attachment.blobId);
+        }
+        submission.getStored().clear();
+    }
+
+    private static void error(OperationOutcome outcome, String path, String message) {
+        outcome.addIssue()
+            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+            .setCode(OperationOutcome.IssueType.INVALID)
+            .setDiagnostics(path + ": " + message)
+            .addExpression(path);
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 nicht verfügbar", e);
+        }
+    }
+
+    // Bricht das Dekodieren ab, sobald ein Anhang die zulässige Größe überschreitet
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private final long limit;
+        private long count;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkLimit(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkLimit(len);
+            out.write(b, off, len);
+        }
+
+        private void checkLimit(int len) {
+            count += len;
+            if (count > limit) {
+                throw new PayloadTooLargeException("Anhang ist größer als die zulässigen " + limit + " Bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+/**
+ * Liest den JSON-Body von {@code $erechnung-submit} als Token-Strom und dekodiert jedes {@code Attachment.data}
+ * direkt aus dem Strom in einen {@link AttachmentSink}.
+ * <p>
+ * Der Base64-Text wird dabei nie als String oder Byte-Array aufgebaut. Im zurückgegebenen JSON steht an Stelle
+ * des Inhalts eine Markierungs-Extension ({@link #MARKER_URL}) am Element {@code data}, deren Wert der vom Sink
+ * vergebene Schlüssel ist. Das verbleibende Dokument ist klein und wird anschließend normal geparst. Ein vom
+ * Client gesendetes {@code _data} wird abgelehnt, da es mit der Markierung kollidieren oder sie vortäuschen könnte.
+ */
+final class SubmitRequestReader {
+
+    static final String MARKER_URL = "urn:erg:submit:attachment";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private SubmitRequestReader() {
+    }
+
+    /**
+     * Nimmt den dekodierten Inhalt eines Anhangs entgegen.
+     */
+    interface AttachmentSink {
+        /**
+         * @param contentType    {@code Attachment.contentType}, sofern vor {@code data} angegeben
+         * @param content        schreibt den dekodierten Inhalt
+         * @return Schlüssel, unter dem der Inhalt später zugeordnet wird
+         */
+        String store(String contentType, ContentWriter content) throws IOException;
+    }
+
+    interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return der Body ohne Anhangsinhalte, mit Markierungs-Extensions an deren Stelle
+     */
+    static String externalizeAttachments(InputStream body, AttachmentSink sink) throws IOException {
+        StringWriter result = new StringWriter();
+        try (JsonParser parser = JSON_FACTORY.createParser(body);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(result)) {
+            String contentType = null;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT && isAttachment(parser.getParsingContext())) {
+                    contentType = null;
+                } else if (token == JsonToken.FIELD_NAME && isAttachment(parser.getParsingContext())) {
+                    String fieldName = parser.currentName();
+                    if ("contentType".equals(fieldName)) {
+                        generator.copyCurrentEvent(parser);
+                        parser.nextToken();
+                        contentType = parser.getValueAsString();
+                        generator.copyCurrentEvent(parser);
+                        continue;
+                    }
+                    if ("_data".equals(fieldName)) {
+                        throw new InvalidRequestException("Element _data ist in Anhängen nicht zulässig");
+                    }
+                    if ("data".equals(fieldName) && parser.nextToken() == JsonToken.VALUE_STRING) {
+                        String key = sink.store(contentType,
+                            out -> parser.readBinaryValue(Base64Variants.getDefaultVariant(), out));
+                        writeMarker(generator, key);
+                        continue;
+                    }
+                    if ("data".equals(fieldName)) {
+                        // data ohne Inhalt (z.B. null): unverändert übernehmen
+                        generator.writeFieldName(fieldName);
+                    }
+                }
+                copyEvent(parser, generator);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Übernimmt das aktuelle Token; Dezimalzahlen mit ihrer Schreibweise (FHIR-Präzision, z.B. 1.50).
+     */
+    static void copyEvent(JsonParser parser, JsonGenerator generator) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NUMBER_FLOAT) {
+            generator.writeNumber(parser.getText());
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+
+    private static void writeMarker(JsonGenerator generator, String key) throws IOException {
+        generator.writeObjectFieldStart("_data");
+        generator.writeArrayFieldStart("extension");
+        generator.writeStartObject();
+        generator.writeStringField("url", MARKER_URL);
+        generator.writeStringField("valueString", key);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    // Objekt unter "attachment" bzw. "value[x]" vom Typ Attachment
+    private static boolean isAttachment(JsonStreamContext context) {
+        if (!context.inObject() || context.getParent() == null) {
+            return false;
+        }
+        String name = context.getParent().getCurrentName();
+        return "attachment".equals(name) || "valueAttachment".equals(name);
+    }
+}
@@ -0,0 +1,47 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Erzeugt die Dokumenttokens von {@code $erechnung-submit} im ULID-Format: 48 Bit Millisekunden-Zeitstempel gefolgt
+ * von 80 Bit aus {@link SecureRandom}, als 26 Zeichen Crockford-Base32.
+ * <p>
+ * Die Tokens sind Primärschlüssel des {@code ERG_DOC_TOKEN}-Index. Zufällige UUIDs verteilen neue Einträge über den
+ * ganzen B-Baum; durch den zeitlichen Präfix landen sie am rechten Rand des Index, dessen Seiten im Cache bleiben.
+ * Der Zufallsanteil macht die Tokens weiterhin nicht erratbar. Jeder Thread hat einen eigenen Generator, damit
+ * gleichzeitige Einreichungen nicht an dessen Sperre warten; pro Token wird nur der String angelegt.
+ */
+final class TokenGenerator {
+
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int LENGTH = 26;
+    private static final int TIME_LENGTH = 10;
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private TokenGenerator() {
+    }
+
+    static String newToken() {
+        return newToken(System.currentTimeMillis(), RANDOM.get());
+    }
+
+    static String newToken(long timeMillis, Random random) {
+        char[] chars = new char[LENGTH];
+        long time = timeMillis;
+        for (int i = TIME_LENGTH - 1; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (time & 31)];
+            time >>>= 5;
+        }
+        // 80 Bit Zufall als high (16 Bit) und low (64 Bit), von hinten in 5-Bit-Gruppen kodiert
+        long high = random.nextLong() & 0xFFFFL;
+        long low = random.nextLong();
+        for (int i = LENGTH - 1; i >= TIME_LENGTH; i--) {
+            chars[i] = ALPHABET[(int) (low & 31)];
+            low = (low >>> 5) | ((high & 31) << 59);
+            high >>>= 5;
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Stellt die Thread-Pools für die asynchrone VAU-Verarbeitung bereit.
+ * <p>
+ * Die Kryptographie (ECDH, HKDF, AES-GCM) läuft auf einem an die CPU-Anzahl gebundenen Pool,
+ * die Weiterleitung des inneren FHIR-Requests auf einem eigenen Pool. Beide Pools haben eine
+ * begrenzte Queue; ist sie voll, wird eine {@link RejectedExecutionException} geworfen, die der
+ * Controller in ein 503 übersetzt.
+ */
+@Component
+public class VAUExecutorService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VAUExecutorService.class);
+
+    public static final String POOL_CRYPTO = "crypto";
+    public static final String POOL_DISPATCH = "dispatch";
+
+    private final InstrumentedPool cryptoPool;
+    private final InstrumentedPool dispatchPool;
+    private final MeterRegistry meterRegistry;
+
+    public VAUExecutorService(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.vau.crypto_queue_capacity:256}") int cryptoQueueCapacity,
+            @Value("${hapi.fhir.vau.dispatch_pool_size:16}") int dispatchPoolSize,
+            @Value("${hapi.fhir.vau.dispatch_queue_capacity:128}") int dispatchQueueCapacity) {
+        this.meterRegistry = meterRegistry;
+        int cpuCount = Runtime.getRuntime().availableProcessors();
+        this.cryptoPool = new InstrumentedPool(POOL_CRYPTO, cpuCount, cryptoQueueCapacity);
+        this.dispatchPool = new InstrumentedPool(POOL_DISPATCH, dispatchPoolSize, dispatchQueueCapacity);
+        LOGGER.info("VAU-Executor initialisiert: {} Crypto-Threads (Queue {}), {} Dispatch-Threads (Queue {})",
+            cpuCount, cryptoQueueCapacity, dispatchPoolSize, dispatchQueueCapacity);
+    }
+
+    /**
+     * Führt eine Kryptographie-Aufgabe auf dem CPU-gebundenen Pool aus.
+     *
+     * @throws RejectedExecutionException wenn die Queue des Pools voll ist
+     */
+    public <T> CompletableFuture<T> supplyCrypto(Supplier<T> task) {
+        return cryptoPool.supply(task);
+    }
+
+    /**
+     * Führt die Weiterleitung eines inneren Requests auf dem Dispatch-Pool aus.
+     *
+     * @throws RejectedExecutionException wenn die Queue des Pools voll ist
+     */
+    public <T> CompletableFuture<T> supplyDispatch(Supplier<T> task) {
+        return dispatchPool.supply(task);
+    }
+
+    /**
+     * Aktuelle Anzahl wartender Aufgaben im angegebenen Pool.
+     */
+    public int getQueueDepth(String pool) {
+        return (POOL_CRYPTO.equals(pool) ? cryptoPool : dispatchPool).executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cryptoPool.executor.shutdown();
+        dispatchPool.executor.shutdown();
+    }
+
+    private class InstrumentedPool {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final Timer queueWait;
+        private final Timer serviceTime;
+
+        InstrumentedPool(String name, int poolSize, int queueCapacity) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                60L,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new NamedThreadFactory("vau-" + name + "-"),
+                new ThreadPoolExecutor.AbortPolicy());
+            this.queueWait = Timer.builder("vau.queue.wait")
+                .description("Wartezeit einer VAU-Aufgabe in der Queue")
+                .tag("pool", name)
+                .register(meterRegistry);
+            this.serviceTime = Timer.builder("vau.service.time")
+                .description("Bearbeitungszeit einer VAU-Aufgabe")
+                .tag("pool", name)
+                .register(meterRegistry);
+            Gauge.builder("vau.queue.depth", executor, e -> e.getQueue().size())
+                .description("Anzahl wartender VAU-Aufgaben")
+                .tag("pool", name)
+                .register(meterRegistry);
+            Gauge.builder("vau.active.threads", executor, ThreadPoolExecutor::getActiveCount)
+                .tag("pool", name)
+                .register(meterRegistry);
+        }
+
+        <T> CompletableFuture<T> supply(Supplier<T> task) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            long enqueuedAt = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    long startedAt = System.nanoTime();
+                    queueWait.record(startedAt - enqueuedAt, TimeUnit.NANOSECONDS);
+                    try {
+                        future.complete(task.get());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        serviceTime.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                meterRegistry.counter("vau.rejected", "pool", name).increment();
+                LOGGER.warn("VAU-Pool '{}' ausgelastet, Anfrage wird abgelehnt", name);
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
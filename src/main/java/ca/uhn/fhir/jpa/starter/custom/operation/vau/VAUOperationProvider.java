@@ -8,15 +8,22 @@ import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.http.*;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 @Controller
 public class VAUOperationProvider {
@@ -26,9 +33,18 @@ public class VAUOperationProvider {
     @Autowired
     private VAUServerCrypto vauServerCrypto;
 
+    @Autowired
+    private VAUExecutorService vauExecutorService;
+
+    @Autowired
+    private VAUReplayCache vauReplayCache;
+
     @Autowired
     private ApplicationContext applicationContext;
 
+    @Value("${hapi.fhir.vau.request_timeout_millis:60000}")
+    private long requestTimeoutMillis;
+
     private final FhirContext ctx;
 
     @Autowired
@@ -74,59 +90,132 @@ public class VAUOperationProvider {
     /**
      * Hauptendpoint für verschlüsselte VAU-Requests
      * Format der URL ist /VAU/{userpseudonym}, wobei für den ersten Request "0" als Pseudonym verwendet wird
+     * <p>
+     * Die Verarbeitung erfolgt asynchron: die Entschlüsselung läuft auf dem Crypto-Pool, der innere Request und
+     * die Verschlüsselung seiner Antwort auf dem Dispatch-Pool des {@link VAUExecutorService}. Der Tomcat-Worker
+     * wird sofort freigegeben. Sind die Queues voll, wird mit 503 geantwortet, solange der innere Request noch
+     * nicht ausgeführt wurde.
      */
     @PostMapping(value = "/VAU/{userpseudonym}", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-    public ResponseEntity<byte[]> handleVAURequest(
+    public DeferredResult<ResponseEntity<byte[]>> handleVAURequest(
             @PathVariable("userpseudonym") String userpseudonym,
             @RequestHeader HttpHeaders headers,
-            @RequestBody byte[] encryptedData) throws IOException {
-        
+            @RequestBody byte[] encryptedData) {
+
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(
+            requestTimeoutMillis, serviceUnavailable());
+
         try {
             // Validiere erforderliche Header
             validateHeaders(headers);
+        } catch (Exception e) {
+            LOGGER.error("Fehler bei der VAU-Verarbeitung: {}", e.getMessage());
+            result.setErrorResult(new UnprocessableEntityException("Fehler bei der VAU-Verarbeitung: " + e.getMessage()));
+            return result;
+        }
 
-            // Entschlüssele die Anfrage
-            String decryptedRequest = vauServerCrypto.decryptRequest(encryptedData);
-            
-            // Parse den entschlüsselten HTTP-Request
-            // Format: "1 ACCESS_TOKEN REQUEST_ID RESPONSE_KEY HTTP_REQUEST"
-            String[] parts = decryptedRequest.split(" ", 5);
-            if (parts.length != 5 || !parts[0].equals("1")) {
-                throw new UnprocessableEntityException("Ungültiges Request-Format");
-            }
+        // Die Base-URL muss noch auf dem Request-Thread ermittelt werden
+        String baseUrl = getBaseUrl();
 
-            String accessToken = parts[1];
-            String requestId = parts[2];
-            String responseKeyBase64 = parts[3];
-            String innerHttpRequest = parts[4];
+        try {
+            vauExecutorService
+                // Entschlüssele die Anfrage und parse den entschlüsselten HTTP-Request
+                .supplyCrypto(() -> VAURequest.parse(decrypt(encryptedData)))
+                // Wiederholte Requests (gleiches Token und gleiche Request-ID) werden aus dem Replay-Cache beantwortet
+                .thenCompose(vauRequest -> vauReplayCache.getOrCompute(
+                    vauRequest.getAccessToken(),
+                    vauRequest.getRequestId(),
+                    vauRequest.getResponseKeyBase64(),
+                    () -> processAndEncrypt(vauRequest, () -> processInnerRequest(
+                        vauRequest.getInnerHttpRequest(), vauRequest.getAccessToken(), baseUrl))))
+                .whenComplete((encryptedResponse, error) -> {
+                    if (error == null) {
+                        result.setResult(createResponse(encryptedResponse));
+                        return;
+                    }
+                    Throwable cause = unwrap(error);
+                    if (cause instanceof RejectedExecutionException) {
+                        result.setResult(serviceUnavailable());
+                    } else {
+                        LOGGER.error("Fehler bei der VAU-Verarbeitung: {}", cause.getMessage());
+                        result.setErrorResult(new UnprocessableEntityException("Fehler bei der VAU-Verarbeitung: " + cause.getMessage()));
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            result.setResult(serviceUnavailable());
+        }
 
+        return result;
+    }
+
+    /**
+     * @param innerRequest führt den inneren HTTP-Request aus und liefert die Antwort
+     */
+    CompletableFuture<VAUReplayCache.Response> processAndEncrypt(VAURequest vauRequest, Supplier<String> innerRequest) {
+        return vauExecutorService
             // Verarbeite den inneren HTTP-Request und erhalte die Antwort
-            String innerResponse = processInnerRequest(innerHttpRequest, accessToken);
+            .supplyDispatch(innerRequest)
+            // Verschlüssele die Antwort auf demselben Dispatch-Thread. Eine Ablehnung durch den vollen
+            // Crypto-Pool käme erst nach den Seiteneffekten des inneren Requests; auf das 503 hin würde der
+            // Client ihn wiederholen.
+            .thenApply(innerResponse -> new VAUReplayCache.Response(
+                encrypt(String.format("1 %s %s", vauRequest.getRequestId(), innerResponse),
+                    vauRequest.getResponseKeyBase64()),
+                isSuccessful(innerResponse)));
+    }
 
-            // Erstelle die innere HTTP-Response
-            String vauResponse = String.format("1 %s %s", requestId, innerResponse);
+    /**
+     * Prüft den Statuscode der Status-Line "HTTP/1.1 &lt;code&gt; ..." der inneren Response auf 2xx.
+     */
+    static boolean isSuccessful(String innerResponse) {
+        int start = innerResponse.indexOf(' ') + 1;
+        return start > 0 && innerResponse.length() >= start + 3 && innerResponse.charAt(start) == '2';
+    }
+
+    private String decrypt(byte[] encryptedData) {
+        try {
+            return vauServerCrypto.decryptRequest(encryptedData);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
 
+    private byte[] encrypt(String vauResponse, String responseKeyBase64) {
+        try {
             // Base64-dekodiere den Response-Key
             byte[] responseKeyBytes = java.util.Base64.getDecoder().decode(responseKeyBase64);
             SecretKeySpec responseKeySpec = new SecretKeySpec(responseKeyBytes, "AES");
-            
-            // Verschlüssele die Antwort mit dem Response-Key
-            byte[] encryptedResponse = vauServerCrypto.encryptResponse(vauResponse, responseKeySpec);
+            return vauServerCrypto.encryptResponse(vauResponse, responseKeySpec);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
 
-            // Generiere ein neues Userpseudonym für Folge-Requests
-            String newUserPseudonym = generateUserPseudonym();
+    private ResponseEntity<byte[]> createResponse(byte[] encryptedResponse) {
+        // Generiere ein neues Userpseudonym für Folge-Requests
+        String newUserPseudonym = generateUserPseudonym();
 
-            // Erstelle die Response mit Headers
-            return ResponseEntity
-                .ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header("Userpseudonym", newUserPseudonym)
-                .body(encryptedResponse);
+        // Erstelle die Response mit Headers
+        return ResponseEntity
+            .ok()
+            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+            .header("Userpseudonym", newUserPseudonym)
+            .body(encryptedResponse);
+    }
 
-        } catch (Exception e) {
-            LOGGER.error("Fehler bei der VAU-Verarbeitung: {}", e.getMessage());
-            throw new UnprocessableEntityException("Fehler bei der VAU-Verarbeitung: " + e.getMessage());
+    private ResponseEntity<byte[]> serviceUnavailable() {
+        return ResponseEntity
+            .status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .build();
+    }
+
+    private Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
         }
+        return cause;
     }
 
     private void validateHeaders(HttpHeaders headers) {
@@ -142,7 +231,7 @@ public class VAUOperationProvider {
         }
     }
 
-    private String processInnerRequest(String innerHttpRequest, String accessToken) {
+    private String processInnerRequest(String innerHttpRequest, String accessToken, String baseUrl) {
         try {
             // Parse den inneren HTTP-Request
             String[] requestLines = innerHttpRequest.split("\r\n");
@@ -192,7 +281,6 @@ public class VAUOperationProvider {
             headers.setContentLength(body.getBytes().length);
 
             // Erstelle den Request
-            String baseUrl = getBaseUrl();
             RestTemplate restTemplate = new RestTemplate();
             
             ResponseEntity<String> response = restTemplate.exchange(
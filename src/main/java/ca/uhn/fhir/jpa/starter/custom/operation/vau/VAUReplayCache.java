@@ -0,0 +1,232 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Zeitlich begrenzter Cache für verschlüsselte VAU-Antworten, Schlüssel ist (Hash des Access Tokens, Request-ID).
+ * <p>
+ * Sendet ein Client denselben VAU-Request nach einem Verbindungsabbruch erneut, wird die bereits verschlüsselte
+ * Antwort zurückgegeben, statt Entschlüsselung, Validierung und Speicherung zu wiederholen. Läuft der erste
+ * Request noch, warten Duplikate auf dessen Ergebnis. Die Anzahl gleichzeitig laufender Einträge ist begrenzt;
+ * darüber hinaus wird ohne Cache verarbeitet. Gespeichert werden nur erfolgreiche (2xx) Antworten, damit ein
+ * Retry nach einem Fehler erneut verarbeitet wird.
+ * <p>
+ * Der Schlüssel enthält den SHA-256 des vollständigen Tokens statt seines (ungeprüften) Subjects: ein Treffer
+ * setzt voraus, dass der Retry exakt das Token mitbringt, mit dem der erste Request geprüft wurde. Da die
+ * Antwort mit dem Response-Key des ersten Requests verschlüsselt ist, wird sie außerdem nur ausgeliefert, wenn
+ * der Retry denselben Response-Key mitbringt.
+ */
+@Component
+public class VAUReplayCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VAUReplayCache.class);
+
+    private final Map<ReplayKey, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final int maxInFlight;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter bypassed;
+
+    public VAUReplayCache(
+            MeterRegistry meterRegistry,
+            @Value("${hapi.fhir.vau.replay_ttl_seconds:300}") long ttlSeconds,
+            @Value("${hapi.fhir.vau.replay_max_entries:10000}") int maxEntries,
+            @Value("${hapi.fhir.vau.replay_max_in_flight:1000}") int maxInFlight) {
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.maxEntries = maxEntries;
+        this.maxInFlight = maxInFlight;
+        this.hits = meterRegistry.counter("vau.replay.requests", "result", "hit");
+        this.misses = meterRegistry.counter("vau.replay.requests", "result", "miss");
+        this.bypassed = meterRegistry.counter("vau.replay.requests", "result", "bypass");
+        meterRegistry.gauge("vau.replay.entries", entries, Map::size);
+        meterRegistry.gauge("vau.replay.in_flight", inFlight);
+    }
+
+    /**
+     * Liefert die zwischengespeicherte Antwort für (accessToken, requestId) oder führt {@code work} aus
+     * und speichert deren Ergebnis. Fehlgeschlagene und nicht cachebare Ausführungen werden nicht gespeichert.
+     *
+     * @param accessToken       Access Token des inneren Requests, geht nur als Hash in den Schlüssel ein
+     * @param requestId         REQUEST_ID aus dem äußeren VAU-Request
+     * @param responseKeyBase64 Response-Key, mit dem die Antwort verschlüsselt wird
+     * @param work              erzeugt die verschlüsselte Antwort
+     */
+    public CompletableFuture<byte[]> getOrCompute(String accessToken, String requestId, String responseKeyBase64,
+                                                  Supplier<CompletableFuture<Response>> work) {
+        if (accessToken == null || requestId == null) {
+            bypassed.increment();
+            return encrypted(work.get());
+        }
+
+        ReplayKey key = new ReplayKey(HexFormat.of().formatHex(sha256(accessToken)), requestId);
+        byte[] responseKeyHash = sha256(responseKeyBase64);
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                if (existing.isExpired(now)) {
+                    entries.remove(key, existing);
+                    continue;
+                }
+                if (!MessageDigest.isEqual(existing.responseKeyHash, responseKeyHash)) {
+                    // Anderer Response-Key: gespeicherte Antwort wäre für den Client nicht lesbar
+                    LOGGER.warn("VAU-Request {} mit abweichendem Response-Key wiederholt, verarbeite ohne Cache", requestId);
+                    bypassed.increment();
+                    return encrypted(work.get());
+                }
+                hits.increment();
+                LOGGER.debug("VAU-Request {} wird aus dem Replay-Cache beantwortet", requestId);
+                return existing.response;
+            }
+
+            if (!hasCapacity(now)) {
+                bypassed.increment();
+                return encrypted(work.get());
+            }
+
+            Entry entry = new Entry(responseKeyHash);
+            if (entries.putIfAbsent(key, entry) != null) {
+                // Ein paralleles Duplikat war schneller
+                continue;
+            }
+
+            misses.increment();
+            inFlight.incrementAndGet();
+            CompletableFuture<Response> result;
+            try {
+                result = work.get();
+            } catch (RuntimeException e) {
+                inFlight.decrementAndGet();
+                entries.remove(key, entry);
+                entry.response.completeExceptionally(e);
+                throw e;
+            }
+
+            result.whenComplete((response, error) -> {
+                inFlight.decrementAndGet();
+                if (error != null) {
+                    entries.remove(key, entry);
+                    entry.response.completeExceptionally(error);
+                } else {
+                    if (response.isCacheable()) {
+                        entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+                    } else {
+                        // Wartende Duplikate erhalten die Antwort, spätere Retries werden neu verarbeitet
+                        entries.remove(key, entry);
+                    }
+                    entry.response.complete(response.getEncrypted());
+                }
+            });
+            return entry.response;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static CompletableFuture<byte[]> encrypted(CompletableFuture<Response> result) {
+        return result.thenApply(Response::getEncrypted);
+    }
+
+    private boolean hasCapacity(long now) {
+        if (inFlight.get() >= maxInFlight) {
+            return false;
+        }
+        if (entries.size() >= maxEntries) {
+            entries.values().removeIf(e -> e.isExpired(now));
+        }
+        return entries.size() < maxEntries;
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 nicht verfügbar", e);
+        }
+    }
+
+    /**
+     * Verschlüsselte Antwort und ob sie für Retries gespeichert werden darf.
+     */
+    public static final class Response {
+        private final byte[] encrypted;
+        private final boolean cacheable;
+
+        public Response(byte[] encrypted, boolean cacheable) {
+            this.encrypted = encrypted;
+            this.cacheable = cacheable;
+        }
+
+        public byte[] getEncrypted() {
+            return encrypted;
+        }
+
+        public boolean isCacheable() {
+            return cacheable;
+        }
+    }
+
+    private static final class ReplayKey {
+        private final String tokenHash;
+        private final String requestId;
+
+        ReplayKey(String tokenHash, String requestId) {
+            this.tokenHash = tokenHash;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReplayKey)) {
+                return false;
+            }
+            ReplayKey other = (ReplayKey) o;
+            return tokenHash.equals(other.tokenHash) && requestId.equals(other.requestId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tokenHash, requestId);
+        }
+    }
+
+    private static final class Entry {
+        private final CompletableFuture<byte[]> response = new CompletableFuture<>();
+        private final byte[] responseKeyHash;
+        // Long.MAX_VALUE solange die Verarbeitung läuft
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        Entry(byte[] responseKeyHash) {
+            this.responseKeyHash = responseKeyHash;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+
+/**
+ * Entschlüsselter äußerer VAU-Request.
+ * Format: "1 ACCESS_TOKEN REQUEST_ID RESPONSE_KEY HTTP_REQUEST"
+ */
+public class VAURequest {
+
+    private final String accessToken;
+    private final String requestId;
+    private final String responseKeyBase64;
+    private final String innerHttpRequest;
+
+    private VAURequest(String accessToken, String requestId, String responseKeyBase64, String innerHttpRequest) {
+        this.accessToken = accessToken;
+        this.requestId = requestId;
+        this.responseKeyBase64 = responseKeyBase64;
+        this.innerHttpRequest = innerHttpRequest;
+    }
+
+    public static VAURequest parse(String decryptedRequest) {
+        String[] parts = decryptedRequest.split(" ", 5);
+        if (parts.length != 5 || !parts[0].equals("1")) {
+            throw new UnprocessableEntityException("Ungültiges Request-Format");
+        }
+        return new VAURequest(parts[1], parts[2], parts[3], parts[4]);
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public String getResponseKeyBase64() {
+        return responseKeyBase64;
+    }
+
+    public String getInnerHttpRequest() {
+        return innerHttpRequest;
+    }
+}
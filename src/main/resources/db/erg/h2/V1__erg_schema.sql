@@ -0,0 +1,48 @@
+-- Schema der ERG-Tabellen. HAPIs eigene Tabellen legt weiterhin Hibernate an.
+
+-- Index vom Dokumenttoken (128-Bit-Wert) auf die PID der DocumentReference, mit KVNR und Einreicher für die
+-- Berechtigungsprüfung.
+CREATE TABLE ERG_DOC_TOKEN (
+    TOKEN BINARY(16) NOT NULL PRIMARY KEY,
+    RES_ID BIGINT NOT NULL,
+    KVNR VARCHAR(20),
+    SUBMITTER VARCHAR(100)
+);
+CREATE INDEX IDX_ERG_DOC_TOKEN_RES ON ERG_DOC_TOKEN (RES_ID);
+
+-- Warteschlange der logisch gelöschten Dokumente, eine Zeile je Blob, und die Sperrzeile für das Einplanen des Jobs.
+CREATE TABLE ERG_ERASE_PENDING (
+    RES_ID BIGINT NOT NULL PRIMARY KEY,
+    RESOURCE_ID VARCHAR(200) NOT NULL
+);
+CREATE TABLE ERG_ERASE_PENDING_BLOB (
+    RES_ID BIGINT NOT NULL,
+    BLOB_ID VARCHAR(200) NOT NULL,
+    PRIMARY KEY (RES_ID, BLOB_ID)
+);
+CREATE TABLE ERG_ERASE_JOB_LOCK (
+    ID INT NOT NULL PRIMARY KEY
+);
+INSERT INTO ERG_ERASE_JOB_LOCK (ID) VALUES (1);
+
+-- Status und Markierungen je DocumentReference mit eigener Versionsnummer; PID, KVNR und Rechnungsdatum für den
+-- Posteingang.
+CREATE TABLE ERG_DOC_STATE (
+    RESOURCE_ID VARCHAR(100) NOT NULL PRIMARY KEY,
+    RES_ID BIGINT,
+    KVNR VARCHAR(20),
+    DOC_DATE TIMESTAMP,
+    VERSION BIGINT NOT NULL,
+    STATUS VARCHAR(20),
+    MARKINGS CLOB,
+    UPDATED TIMESTAMP NOT NULL
+);
+CREATE INDEX IDX_ERG_DOC_STATE_INBOX ON ERG_DOC_STATE (KVNR, STATUS, DOC_DATE, RESOURCE_ID);
+
+-- Dokumente, für die noch ein angereichertes PDF erzeugt werden muss.
+CREATE TABLE ERG_PDF_ENRICH (
+    RES_ID BIGINT NOT NULL PRIMARY KEY,
+    ATTEMPTS INT NOT NULL,
+    NEXT_ATTEMPT TIMESTAMP NOT NULL,
+    CLAIMED_UNTIL TIMESTAMP
+);
@@ -0,0 +1,139 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttachmentInspectorTest {
+
+    private static final byte[] PDF = "%PDF-1.7 Rechnung".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JSON = "{\"resourceType\":\"Invoice\"}".getBytes(StandardCharsets.UTF_8);
+
+    private AttachmentInspector inspector;
+    private IValidationSupport chain;
+    private List<SingleValidationMessage> errors;
+
+    @BeforeEach
+    void setUp() {
+        inspector = new AttachmentInspector(new SimpleMeterRegistry(), true, 1024);
+        errors = new ArrayList<>();
+        // Erlaubt nur die MIME-Typen aus erg-restricted-mime-types-vs
+        chain = new IValidationSupport() {
+            @Override
+            public FhirContext getFhirContext() {
+                return FhirContext.forR4Cached();
+            }
+
+            @Override
+            public CodeValidationResult validateCode(ValidationSupportContext theValidationSupportContext,
+                                                     ConceptValidationOptions theOptions, String theCodeSystem,
+                                                     String theCode, String theDisplay, String theValueSetUrl) {
+                boolean allowed = AttachmentInspector.RESTRICTED_MIME_TYPES_VS.equals(theValueSetUrl)
+                    && ("application/fhir+json".equals(theCode) || "application/fhir+xml".equals(theCode));
+                return allowed ? new CodeValidationResult().setCode(theCode) : null;
+            }
+        };
+    }
+
+    @Test
+    void testDataIsReplacedInViewOnly() throws Exception {
+        DocumentReference documentReference = documentReference("erechnung", "application/pdf", PDF);
+        documentReference.getContentFirstRep().getAttachment().setSize(PDF.length).setHash(sha1(PDF));
+
+        IBaseResource view = inspector.prepareForValidation(documentReference, chain, errors);
+
+        assertTrue(errors.isEmpty(), "Fehler: " + errors);
+        assertNotSame(documentReference, view);
+        assertArrayEquals(PDF, documentReference.getContentFirstRep().getAttachment().getData());
+        Attachment viewAttachment = ((DocumentReference) view).getContentFirstRep().getAttachment();
+        assertArrayEquals(sha1(PDF), viewAttachment.getData());
+        assertEquals(viewAttachment.getData().length, viewAttachment.getSize());
+    }
+
+    @Test
+    void testViewCopiesOnlyThePathToTheAttachments() throws Exception {
+        DocumentReference documentReference = documentReference("erechnung", "application/pdf", PDF);
+        documentReference.setId("DocumentReference/1");
+        documentReference.getSubject().setReference("Patient/1");
+        documentReference.getContentFirstRep().getAttachment().setSize(PDF.length).setTitle("Rechnung");
+        documentReference.addContent(new DocumentReference.DocumentReferenceContentComponent()
+            .setAttachment(new Attachment().setUrl("urn:erg:binary:1")));
+
+        DocumentReference view = (DocumentReference) inspector.prepareForValidation(documentReference, chain, errors);
+
+        assertTrue(errors.isEmpty(), "Fehler: " + errors);
+        assertEquals("DocumentReference/1", view.getIdElement().getValue());
+        assertSame(documentReference.getSubject(), view.getSubject());
+        assertSame(documentReference.getContent().get(1), view.getContent().get(1));
+        assertNotSame(documentReference.getContentFirstRep(), view.getContentFirstRep());
+        assertSame(documentReference.getContentFirstRep().getFormat(), view.getContentFirstRep().getFormat());
+        assertEquals("Rechnung", view.getContentFirstRep().getAttachment().getTitle());
+        assertEquals(PDF.length, documentReference.getContentFirstRep().getAttachment().getSize());
+        assertArrayEquals(sha1(PDF), view.getContentFirstRep().getAttachment().getData());
+    }
+
+    @Test
+    void testSizeAndHashMismatchAreReported() {
+        DocumentReference documentReference = documentReference("erechnung", "application/pdf", PDF);
+        documentReference.getContentFirstRep().getAttachment().setSize(PDF.length + 1).setHash(new byte[20]);
+
+        inspector.prepareForValidation(documentReference, chain, errors);
+
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0).getLocationString().endsWith("attachment[0].size"));
+        assertTrue(errors.get(1).getLocationString().endsWith("attachment[0].hash"));
+    }
+
+    @Test
+    void testOversizedAttachmentIsReported() {
+        inspector.prepareForValidation(documentReference("erechnung", "application/pdf", new byte[2048]), chain, errors);
+
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getLocationString().endsWith(".data"));
+    }
+
+    @Test
+    void testRestrictedMimeTypeForStructuredContent() {
+        inspector.prepareForValidation(documentReference("rechnungsinhalt", "application/fhir+json", JSON), chain, errors);
+        assertTrue(errors.isEmpty(), "Fehler: " + errors);
+
+        inspector.prepareForValidation(documentReference("rechnungsinhalt", "application/pdf", PDF), chain, errors);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getLocationString().endsWith(".contentType"));
+    }
+
+    @Test
+    void testResourceWithoutDataIsNotCopied() {
+        DocumentReference documentReference = documentReference("erechnung", "application/pdf", null);
+
+        assertSame(documentReference, inspector.prepareForValidation(documentReference, chain, errors));
+    }
+
+    private static DocumentReference documentReference(String format, String contentType, byte[] data) {
+        DocumentReference documentReference = new DocumentReference();
+        DocumentReference.DocumentReferenceContentComponent content = documentReference.addContent();
+        content.setFormat(new Coding("https://gematik.de/fhir/erg/CodeSystem/erg-attachment-format-cs", format, null));
+        content.getAttachment().setContentType(contentType).setData(data);
+        return documentReference;
+    }
+
+    private static byte[] sha1(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+}
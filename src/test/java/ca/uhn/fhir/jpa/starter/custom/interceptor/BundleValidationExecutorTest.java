@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BundleValidationExecutorTest {
+
+    private final BundleValidationExecutor executor = new BundleValidationExecutor(new SimpleMeterRegistry(), 4, 100);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void testResultsKeepEntryOrder() {
+        List<IBaseResource> resources = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            resources.add(new Organization().setName("Organisation " + i));
+        }
+
+        List<BundleValidationExecutor.EntryResult> results = executor.validateAll(resources, resource -> null,
+            resource -> {
+                if (((Organization) resource).getName().endsWith("7")) {
+                    throw invalid(((Organization) resource).getName());
+                }
+            }, false);
+
+        assertEquals(50, results.size());
+        for (int i = 0; i < 50; i++) {
+            BundleValidationExecutor.EntryResult result = results.get(i);
+            if (i % 10 == 7) {
+                assertFalse(result.isValid());
+                assertEquals("Organisation " + i, result.getOutcome().getIssueFirstRep().getDiagnostics());
+            } else {
+                assertTrue(result.isValid());
+                assertNull(result.getOutcome());
+            }
+        }
+    }
+
+    @Test
+    void testSharedEntriesAreValidatedOnce() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Mustermann");
+        List<IBaseResource> resources = List.of(patient, patient.copy(), patient.copy(), new Organization());
+        AtomicInteger validations = new AtomicInteger();
+
+        List<BundleValidationExecutor.EntryResult> results = executor.validateAll(resources,
+            resource -> resource instanceof Patient ? "Patient/Mustermann" : null,
+            resource -> validations.incrementAndGet(), true);
+
+        assertEquals(2, validations.get());
+        assertTrue(results.stream().allMatch(BundleValidationExecutor.EntryResult::isValid));
+    }
+
+    @Test
+    void testFailFastSkipsPendingEntries() {
+        BundleValidationExecutor single = new BundleValidationExecutor(new SimpleMeterRegistry(), 1, 100);
+        try {
+            List<IBaseResource> resources = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                resources.add(new Organization().setName(String.valueOf(i)));
+            }
+            AtomicInteger validations = new AtomicInteger();
+
+            List<BundleValidationExecutor.EntryResult> results = single.validateAll(resources, resource -> null,
+                resource -> {
+                    validations.incrementAndGet();
+                    throw invalid("ungültig");
+                }, true);
+
+            // Ein Thread: nach dem ersten Fehler werden alle weiteren Einträge übersprungen
+            assertEquals(1, validations.get());
+            assertNotNull(results.get(0).getOutcome());
+            for (int i = 1; i < results.size(); i++) {
+                assertFalse(results.get(i).isValid());
+                assertNull(results.get(i).getOutcome());
+            }
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    void testFullQueueRunsOnCallerThread() {
+        BundleValidationExecutor small = new BundleValidationExecutor(new SimpleMeterRegistry(), 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread caller = Thread.currentThread();
+        AtomicInteger onCaller = new AtomicInteger();
+        try {
+            List<IBaseResource> resources = List.of(new Organization(), new Organization(), new Organization());
+            List<BundleValidationExecutor.EntryResult> results = small.validateAll(resources, resource -> null,
+                resource -> {
+                    if (Thread.currentThread() == caller) {
+                        onCaller.incrementAndGet();
+                        release.countDown();
+                    } else {
+                        await(release);
+                    }
+                }, false);
+
+            assertEquals(1, onCaller.get());
+            assertTrue(results.stream().allMatch(BundleValidationExecutor.EntryResult::isValid));
+        } finally {
+            small.shutdown();
+        }
+    }
+
+    private static UnprocessableEntityException invalid(String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+            .setCode(OperationOutcome.IssueType.INVALID)
+            .setDiagnostics(diagnostics);
+        return new UnprocessableEntityException("Validierungsfehler: " + diagnostics, outcome);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConformanceResourceLoaderTest {
+
+    @Test
+    void testLoadsLocalResourcesInParallel() throws IOException {
+        FhirContext ctx = FhirContext.forR4Cached();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ConformanceResourceLoader loader = new ConformanceResourceLoader(ctx, meterRegistry);
+        PrePopulatedValidationSupport support = new PrePopulatedValidationSupport(ctx);
+
+        int registered = loader.loadLocalResources(support);
+
+        assertTrue(registered > 0);
+        assertNotNull(support.fetchStructureDefinition("https://gematik.de/fhir/erg/StructureDefinition/erg-rechnung"));
+        assertNotNull(support.fetchStructureDefinition("https://gematik.de/fhir/erg/StructureDefinition/erg-patient"));
+        assertEquals(1, meterRegistry.get("validation.startup.load").tag("stage", "local_resources").timer().count());
+    }
+}
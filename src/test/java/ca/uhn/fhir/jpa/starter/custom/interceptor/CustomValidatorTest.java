@@ -3,6 +3,8 @@ package ca.uhn.fhir.jpa.starter.custom.interceptor;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.starter.Application;
 import ca.uhn.fhir.jpa.starter.custom.ErgTestResourceUtil;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
@@ -21,6 +23,7 @@ import org.springframework.boot.test.web.server.LocalServerPort;
 import java.util.Base64;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -469,4 +472,70 @@ class CustomValidatorTest  {
 				.execute();
 		}, "Speichern einer ERG-Rechnungs-DocumentReference ohne Signatur sollte fehlschlagen.");
 	}
-}
\ No newline at end of file
+
+	@Test
+	@DisplayName("Ungültige Ressource wird vor der Transaktion abgelehnt und nicht gespeichert")
+	void testInvalidResourceRejectedBeforeStorage() {
+		String family = "Ungueltig-" + UUID.randomUUID();
+		Patient patient = new Patient();
+		patient.addName().setFamily(family);
+		patient.addIdentifier().setSystem("http://fhir.de/sid/gkv/kvid-10").setValue("123");
+
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setResource(patient);
+		assertThrows(UnprocessableEntityException.class,
+			() -> validator.validateBeforeStorage(requestDetails, RestOperationTypeEnum.CREATE));
+
+		assertThrows(UnprocessableEntityException.class, () -> client.create().resource(patient).execute());
+		assertEquals(0, countPatients(family));
+	}
+
+	@Test
+	@DisplayName("Transaction mit einem ungültigen Eintrag wird vollständig abgelehnt")
+	void testTransactionWithInvalidEntryIsRejected() {
+		String family = "Transaktion-" + UUID.randomUUID();
+		Patient valid = new Patient();
+		valid.addName().setFamily(family);
+		Patient invalid = new Patient();
+		invalid.addName().setFamily(family);
+		invalid.addIdentifier().setSystem("http://fhir.de/sid/gkv/kvid-10").setValue("123");
+
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		transaction.addEntry().setResource(valid).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+		transaction.addEntry().setResource(invalid).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+
+		UnprocessableEntityException exception = assertThrows(UnprocessableEntityException.class,
+			() -> client.transaction().withBundle(transaction).execute());
+		OperationOutcome outcome = (OperationOutcome) exception.getOperationOutcome();
+		assertTrue(outcome.getIssueFirstRep().getDiagnostics().startsWith("Bundle.entry[1]"),
+			outcome.getIssueFirstRep().getDiagnostics());
+		assertEquals(0, countPatients(family));
+	}
+
+	@Test
+	@DisplayName("Ungültige DocumentReference wird trotz eingeschränkter Revalidierung beim Anlegen abgelehnt")
+	void testInvalidDocumentReferenceCreateRejectedWithScopedRevalidation() {
+		DocumentReference rechnung = new DocumentReference();
+		rechnung.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+
+		SystemRequestDetails createDetails = new SystemRequestDetails();
+		createDetails.setResource(rechnung);
+		assertThrows(UnprocessableEntityException.class,
+			() -> validator.validateBeforeStorage(createDetails, RestOperationTypeEnum.CREATE));
+		assertThrows(UnprocessableEntityException.class, () -> client.create().resource(rechnung).execute());
+
+		// Updates werden erst vor dem Commit geprüft, wo die bisherige Version vorliegt
+		SystemRequestDetails updateDetails = new SystemRequestDetails();
+		updateDetails.setResource(rechnung);
+		assertDoesNotThrow(() -> validator.validateBeforeStorage(updateDetails, RestOperationTypeEnum.UPDATE));
+	}
+
+	private int countPatients(String family) {
+		Bundle result = client.search().forResource(Patient.class)
+			.where(Patient.FAMILY.matchesExactly().value(family))
+			.returnBundle(Bundle.class)
+			.execute();
+		return result.getEntry().size();
+	}
+}
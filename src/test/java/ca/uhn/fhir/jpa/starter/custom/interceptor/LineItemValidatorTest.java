@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ChargeItem;
+import org.hl7.fhir.r4.model.Invoice;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineItemValidatorTest {
+
+    private static final Pattern GOAE_PATTERN = Pattern.compile("^[A-Z]?\\d{1,4}[A-Z]?$");
+    private static final Pattern GOZ_PATTERN = Pattern.compile("^\\d{3,4}[a-z]?$");
+
+    private final LineItemValidator sequential = new LineItemValidator(Integer.MAX_VALUE, 1);
+    private final LineItemValidator parallel = new LineItemValidator(10, 4);
+
+    @AfterEach
+    void tearDown() {
+        sequential.shutdown();
+        parallel.shutdown();
+    }
+
+    @Test
+    void testScannersMatchRegularExpressions() {
+        List<String> codes = List.of("", "1", "12", "1234", "12345", "A1", "A1234B", "AB1", "1a", "123", "123a",
+            "1234a", "123A", "12a", "1234ab", "A", "ä1", "１２３", " 123", "123 ", "Z9999Z", "0001");
+        for (String code : codes) {
+            assertEquals(GOAE_PATTERN.matcher(code).matches(), LineItemValidator.isGoaeCode(code), "GOÄ: " + code);
+            assertEquals(GOZ_PATTERN.matcher(code).matches(), LineItemValidator.isGozCode(code), "GOZ: " + code);
+        }
+    }
+
+    @Test
+    void testParallelResultEqualsSequentialOrder() {
+        Invoice invoice = new Invoice();
+        for (int i = 0; i < 2000; i++) {
+            ChargeItem chargeItem = new ChargeItem();
+            chargeItem.setId("#position" + i);
+            boolean invalid = i % 97 == 0;
+            chargeItem.getCode().addCoding()
+                .setSystem(i % 2 == 0 ? LineItemValidator.GOAE_SYSTEM : LineItemValidator.GOZ_SYSTEM)
+                .setCode(invalid ? "x" + i : (i % 2 == 0 ? "1" : "1234"));
+            invoice.addContained(chargeItem);
+            invoice.addLineItem().setChargeItem(new Reference("#position" + i));
+        }
+
+        OperationOutcome expected = sequential.validate(invoice, Map.of());
+        OperationOutcome actual = parallel.validate(invoice, Map.of());
+
+        assertEquals(21, expected.getIssue().size());
+        assertEquals(expressions(expected), expressions(actual));
+        assertEquals("Invoice.lineItem[0]", actual.getIssueFirstRep().getExpression().get(0).getValue());
+    }
+
+    @Test
+    void testChargeItemsAreResolvedFromBundle() {
+        ChargeItem chargeItem = new ChargeItem();
+        chargeItem.getCode().addCoding().setSystem(LineItemValidator.GOZ_SYSTEM).setCode("12");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("urn:uuid:0b7c5e7e-1f0a-4c39-9b55-5f1e3c5b7d11").setResource(chargeItem);
+        Invoice invoice = new Invoice();
+        invoice.addLineItem().setChargeItem(new Reference("urn:uuid:0b7c5e7e-1f0a-4c39-9b55-5f1e3c5b7d11"));
+
+        OperationOutcome outcome = sequential.validate(invoice, LineItemValidator.indexChargeItems(bundle));
+
+        assertEquals(1, outcome.getIssue().size());
+        assertTrue(outcome.getIssueFirstRep().getDiagnostics().startsWith("Ungültiges Format der GOZ-Position: 12"));
+    }
+
+    private static List<String> expressions(OperationOutcome outcome) {
+        return outcome.getIssue().stream()
+            .map(issue -> issue.getExpression().get(0).getValue() + " " + issue.getDiagnostics())
+            .collect(Collectors.toList());
+    }
+}
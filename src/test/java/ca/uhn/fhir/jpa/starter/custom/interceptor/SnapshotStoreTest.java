@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotStoreTest {
+
+    private static final String PROFILE_URL = "https://gematik.de/fhir/erg/StructureDefinition/erg-zahlungsziel";
+    private static FhirContext ctx;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void setUpContext() {
+        ctx = FhirContext.forR4Cached();
+    }
+
+    @Test
+    void testSnapshotIsGeneratedOnceAndLoadedFromDisk() throws IOException {
+        SimpleMeterRegistry firstRegistry = new SimpleMeterRegistry();
+        PrePopulatedValidationSupport first = prePopulated();
+        assertEquals(1, new SnapshotStore(ctx, firstRegistry, true, directory.toString())
+            .applySnapshots(first, chain(first), "packages"));
+
+        assertTrue(fetch(first).hasSnapshot());
+        assertEquals(1.0, firstRegistry.get("validation.snapshot.cache").tag("result", "generated").counter().count());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(f -> f.toString().endsWith(".json")).count());
+        }
+
+        // Zweiter Start: Snapshot kommt aus dem Store
+        SimpleMeterRegistry secondRegistry = new SimpleMeterRegistry();
+        PrePopulatedValidationSupport second = prePopulated();
+        new SnapshotStore(ctx, secondRegistry, true, directory.toString())
+            .applySnapshots(second, chain(second), "packages");
+
+        assertTrue(fetch(second).hasSnapshot());
+        assertEquals(1.0, secondRegistry.get("validation.snapshot.cache").tag("result", "loaded").counter().count());
+        assertEquals(0.0, secondRegistry.get("validation.snapshot.cache").tag("result", "generated").counter().count());
+    }
+
+    @Test
+    void testChangedPackageSetRegeneratesSnapshot() throws IOException {
+        PrePopulatedValidationSupport first = prePopulated();
+        new SnapshotStore(ctx, new SimpleMeterRegistry(), true, directory.toString())
+            .applySnapshots(first, chain(first), "packages-v1");
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PrePopulatedValidationSupport second = prePopulated();
+        new SnapshotStore(ctx, registry, true, directory.toString())
+            .applySnapshots(second, chain(second), "packages-v2");
+
+        assertEquals(1.0, registry.get("validation.snapshot.cache").tag("result", "generated").counter().count());
+    }
+
+    private static PrePopulatedValidationSupport prePopulated() throws IOException {
+        PrePopulatedValidationSupport support = new PrePopulatedValidationSupport(ctx);
+        try (InputStream stream = SnapshotStoreTest.class.getResourceAsStream(
+                "/gematik-erg-resources(new)/StructureDefinition-erg-zahlungsziel.json")) {
+            assertNotNull(stream);
+            StructureDefinition sd = ctx.newJsonParser().parseResource(StructureDefinition.class, stream);
+            assertFalse(sd.hasSnapshot());
+            support.addStructureDefinition(sd);
+        }
+        return support;
+    }
+
+    private static ValidationSupportChain chain(PrePopulatedValidationSupport support) {
+        return new ValidationSupportChain(
+            support,
+            new DefaultProfileValidationSupport(ctx),
+            new SnapshotGeneratingValidationSupport(ctx));
+    }
+
+    private static StructureDefinition fetch(PrePopulatedValidationSupport support) {
+        return (StructureDefinition) support.fetchStructureDefinition(PROFILE_URL);
+    }
+}
@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.InstantType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatusMetadataDiffTest {
+
+    private static final String STATUS_SYSTEM = "https://gematik.de/fhir/erg/CodeSystem/erg-rechnungsstatus-cs";
+
+    private DocumentReference oldVersion;
+
+    @BeforeEach
+    void setUp() {
+        oldVersion = new DocumentReference();
+        oldVersion.setId("DocumentReference/1/_history/1");
+        oldVersion.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+        oldVersion.getMeta().addProfile("https://gematik.de/fhir/erg/StructureDefinition/erg-dokumentenmetadaten");
+        oldVersion.getMeta().addTag(new Coding(STATUS_SYSTEM, "offen", "Offen"));
+        oldVersion.addContent().setAttachment(new Attachment()
+            .setContentType("application/pdf")
+            .setData("%PDF-1.7 Rechnung".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void testStatusTagAndMarkierungChangeIsDetected() {
+        DocumentReference newVersion = oldVersion.copy();
+        newVersion.setId("DocumentReference/1/_history/2");
+        newVersion.getMeta().setLastUpdated(new InstantType("2025-01-01T00:00:00Z").getValue());
+        newVersion.getMeta().getTag().clear();
+        newVersion.getMeta().addTag(new Coding(STATUS_SYSTEM, "erledigt", "Erledigt"));
+        Extension markierung = newVersion.getMeta().addExtension();
+        markierung.setUrl(StatusMetadataDiff.MARKIERUNG_URL);
+        markierung.addExtension().setUrl("markierung").setValue(new Coding(
+            "https://gematik.de/fhir/erg/CodeSystem/erg-rechnung-markierung-cs", "gelesen", null));
+
+        assertTrue(StatusMetadataDiff.onlyStatusMetadataChanged(oldVersion, newVersion));
+    }
+
+    @Test
+    void testContentChangeRequiresFullValidation() {
+        DocumentReference newVersion = oldVersion.copy();
+        newVersion.getContentFirstRep().getAttachment().setData("%PDF-1.7 Geändert".getBytes(StandardCharsets.US_ASCII));
+
+        assertFalse(StatusMetadataDiff.onlyStatusMetadataChanged(oldVersion, newVersion));
+    }
+
+    @Test
+    void testProfileChangeRequiresFullValidation() {
+        DocumentReference newVersion = oldVersion.copy();
+        newVersion.getMeta().addProfile("https://gematik.de/fhir/erg/StructureDefinition/erg-rechnung");
+
+        assertFalse(StatusMetadataDiff.onlyStatusMetadataChanged(oldVersion, newVersion));
+    }
+
+    @Test
+    void testOtherMetaExtensionRequiresFullValidation() {
+        DocumentReference newVersion = oldVersion.copy();
+        newVersion.getMeta().addExtension("https://example.org/andere-extension", new Coding("urn:test", "x", null));
+
+        assertFalse(StatusMetadataDiff.onlyStatusMetadataChanged(oldVersion, newVersion));
+    }
+}
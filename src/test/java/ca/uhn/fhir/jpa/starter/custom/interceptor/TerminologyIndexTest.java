@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TerminologyIndexTest {
+
+    private static final String SYSTEM = "https://gematik.de/fhir/erg/CodeSystem/test-gruende";
+    private static final String VALUE_SET = "https://gematik.de/fhir/erg/ValueSet/test-gruende";
+
+    private TerminologyIndex index;
+    private ValidationSupportContext context;
+
+    @BeforeEach
+    void setUp() {
+        FhirContext ctx = FhirContext.forR4Cached();
+        CodeSystem codeSystem = new CodeSystem();
+        codeSystem.setUrl(SYSTEM);
+        codeSystem.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        codeSystem.setContent(CodeSystem.CodeSystemContentMode.COMPLETE);
+        codeSystem.addConcept().setCode("schwierigkeit").setDisplay("Schwierigkeit");
+        codeSystem.addConcept().setCode("zeitaufwand").setDisplay("Zeitaufwand");
+
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl(VALUE_SET);
+        valueSet.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        valueSet.getCompose().addInclude().setSystem(SYSTEM);
+
+        PrePopulatedValidationSupport prePopulated = new PrePopulatedValidationSupport(ctx);
+        prePopulated.addCodeSystem(codeSystem);
+        prePopulated.addValueSet(valueSet);
+
+        index = new TerminologyIndex(ctx, 100);
+        ValidationSupportChain chain = new ValidationSupportChain(
+            index,
+            prePopulated,
+            new DefaultProfileValidationSupport(ctx),
+            new InMemoryTerminologyServerValidationSupport(ctx));
+        index.build(chain, prePopulated.fetchAllConformanceResources());
+        context = new ValidationSupportContext(chain);
+    }
+
+    @Test
+    void testIndexedCodeIsFound() {
+        assertEquals(1, index.size());
+        assertTrue(index.isValueSetSupported(context, VALUE_SET));
+
+        IValidationSupport.CodeValidationResult result =
+            index.validateCode(context, new ConceptValidationOptions(), SYSTEM, "zeitaufwand", null, VALUE_SET);
+
+        assertNotNull(result);
+        assertTrue(result.isOk());
+    }
+
+    @Test
+    void testDisplayIsCheckedLazily() {
+        assertNotNull(index.validateCode(context, new ConceptValidationOptions(), SYSTEM, "zeitaufwand", "Zeitaufwand", VALUE_SET));
+        // Abweichendes Display und unbekannte Codes beantwortet die restliche Chain
+        assertNull(index.validateCode(context, new ConceptValidationOptions(), SYSTEM, "zeitaufwand", "Falsch", VALUE_SET));
+        assertNull(index.validateCode(context, new ConceptValidationOptions(), SYSTEM, "unbekannt", null, VALUE_SET));
+    }
+
+    @Test
+    void testClearDelegatesEverything() {
+        index.clear();
+
+        assertFalse(index.isValueSetSupported(context, VALUE_SET));
+        assertNull(index.validateCode(context, new ConceptValidationOptions(), SYSTEM, "zeitaufwand", null, VALUE_SET));
+    }
+}
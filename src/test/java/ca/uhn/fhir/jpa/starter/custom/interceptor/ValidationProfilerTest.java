@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValidationProfilerTest {
+
+    private static final String PROFILE = "https://gematik.de/fhir/erg/StructureDefinition/erg-patient";
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void testValidationAndConstraintsAreTimed() {
+        ValidationProfiler profiler = new ValidationProfiler(meterRegistry, true, 0, 1.0);
+        Patient patient = new Patient();
+        patient.setId("Patient/123");
+
+        List<SingleValidationMessage> messages = profiler.profile(patient, List.of(PROFILE), () -> {
+            profiler.record(PROFILE, "ele-1", "Patient.identifier[0]", 2_000_000);
+            profiler.record(PROFILE, "ele-1", "Patient.name[0]", 1_000_000);
+            profiler.recordFastPath(3_000_000);
+            return List.of();
+        });
+
+        assertTrue(messages.isEmpty());
+        assertEquals(1, meterRegistry.get("validation.duration").tag("resource", "Patient")
+            .tag("profile", PROFILE).tag("pass", ValidationProfiler.PASS_FAST_PATH).timer().count());
+        assertEquals(2, meterRegistry.get("validation.constraint")
+            .tag("profile", PROFILE).tag("constraint", "ele-1").timer().count());
+        assertEquals(3.0, meterRegistry.get("validation.constraint")
+            .tag("constraint", "ele-1").timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+    }
+
+    @Test
+    void testShadowPassesAndPhasesAreTimedSeparately() {
+        ValidationProfiler profiler = new ValidationProfiler(meterRegistry, true, 0, 1.0);
+
+        profiler.profile(new Patient(), List.of(PROFILE), () -> {
+            profiler.recordFastPath(1_000_000);
+            return profiler.profileGeneric(() -> {
+                profiler.recordPhase(TimedValidationSupport.PHASE_TERMINOLOGY, 4_000_000);
+                profiler.recordPhase(TimedValidationSupport.PHASE_SNAPSHOT, 2_000_000);
+                return List.of();
+            });
+        });
+
+        assertEquals(1, meterRegistry.get("validation.duration")
+            .tag("pass", ValidationProfiler.PASS_FAST_PATH).timer().count());
+        assertEquals(1.0, meterRegistry.get("validation.duration")
+            .tag("pass", ValidationProfiler.PASS_FAST_PATH).timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(1, meterRegistry.get("validation.duration")
+            .tag("pass", ValidationProfiler.PASS_GENERIC).timer().count());
+        assertEquals(4.0, meterRegistry.get("validation.phase")
+            .tag("phase", TimedValidationSupport.PHASE_TERMINOLOGY).timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(1, meterRegistry.get("validation.phase")
+            .tag("phase", TimedValidationSupport.PHASE_SNAPSHOT).timer().count());
+    }
+
+    @Test
+    void testDisabledProfilerRecordsNothing() {
+        ValidationProfiler profiler = new ValidationProfiler(meterRegistry, false, 0, 1.0);
+
+        profiler.profile(new Patient(), List.of(), () -> {
+            profiler.record(PROFILE, "ele-1", "Patient", 1_000);
+            return List.of();
+        });
+
+        assertTrue(meterRegistry.getMeters().isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValidationResultCacheTest {
+
+    private static final String PACKAGES = "basisprofil-1.5.3";
+    private static final List<String> PROFILES = List.of("https://gematik.de/fhir/erg/StructureDefinition/erg-patient");
+
+    private SimpleMeterRegistry meterRegistry;
+    private ValidationResultCache cache;
+    private AtomicInteger validations;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new ValidationResultCache(meterRegistry, true, 2);
+        validations = new AtomicInteger();
+    }
+
+    @Test
+    void testIdenticalContentIsValidatedOnce() {
+        List<SingleValidationMessage> first = cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+        List<SingleValidationMessage> second = cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+
+        assertEquals(1, validations.get());
+        assertEquals(first, second);
+        assertEquals(ResultSeverityEnum.WARNING, second.get(0).getSeverity());
+        assertEquals(1.0, meterRegistry.get("validation.cache.requests").tag("result", "hit").counter().count());
+        assertEquals(1.0, meterRegistry.get("validation.cache.requests").tag("result", "miss").counter().count());
+        assertEquals(0.5, cache.getHitRatio());
+    }
+
+    @Test
+    void testProfilesAndPackagesArePartOfTheKey() {
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+        cache.getOrValidate(PACKAGES, List.of(), "{\"a\":1}", this::validate);
+        cache.getOrValidate("basisprofil-1.5.4", PROFILES, "{\"a\":1}", this::validate);
+
+        assertEquals(3, validations.get());
+    }
+
+    @Test
+    void testInvalidateDiscardsEntries() {
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+        cache.invalidate();
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+
+        assertEquals(2, validations.get());
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntryIsEvicted() {
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":2}", this::validate);
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":3}", this::validate);
+
+        assertEquals(2, cache.size());
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":1}", this::validate);
+        assertEquals(3, validations.get());
+        cache.getOrValidate(PACKAGES, PROFILES, "{\"a\":2}", this::validate);
+        assertEquals(4, validations.get());
+    }
+
+    private List<SingleValidationMessage> validate() {
+        validations.incrementAndGet();
+        SingleValidationMessage message = new SingleValidationMessage();
+        message.setSeverity(ResultSeverityEnum.WARNING);
+        message.setMessage("Warnung");
+        return List.of(message);
+    }
+}
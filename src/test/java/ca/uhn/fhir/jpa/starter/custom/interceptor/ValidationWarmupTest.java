@@ -0,0 +1,54 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.health.Status;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValidationWarmupTest {
+
+    @Test
+    void testWarmsUpThroughRequestEntryPoint() {
+        CustomValidator customValidator = Mockito.mock(CustomValidator.class);
+        // Ein abgelehntes Beispiel bricht das Aufwärmen nicht ab
+        Mockito.doThrow(new UnprocessableEntityException("ungültig"))
+            .when(customValidator).validateAndThrowIfInvalid(Mockito.any(Patient.class));
+
+        ValidationWarmup warmup = new ValidationWarmup(customValidator, FhirContext.forR4Cached(),
+            new SimpleMeterRegistry(), true, 60, 2,
+            List.of("DocumentReference-BeispielDocumentReferenceRechnung3-LE.json", "Patient-BeispielPatient3-FD.json"));
+        assertEquals(Status.OUT_OF_SERVICE, warmup.health().getStatus());
+
+        warmup.start();
+        await().atMost(30, TimeUnit.SECONDS).until(warmup::isFinished);
+
+        Mockito.verify(customValidator, Mockito.times(2))
+            .validateAndThrowIfInvalid(Mockito.any(DocumentReference.class));
+        Mockito.verify(customValidator, Mockito.times(2)).validateAndThrowIfInvalid(Mockito.any(Patient.class));
+        Mockito.verify(customValidator, Mockito.times(2)).invalidateValidationCache();
+        Mockito.verify(customValidator, Mockito.never()).getValidator();
+        assertEquals(Status.UP, warmup.health().getStatus());
+    }
+
+    @Test
+    void testDisabledWarmupIsReadyImmediately() {
+        CustomValidator customValidator = Mockito.mock(CustomValidator.class);
+        ValidationWarmup warmup = new ValidationWarmup(customValidator, FhirContext.forR4Cached(),
+            new SimpleMeterRegistry(), false, 60, 2, List.of("Patient-BeispielPatient3-FD.json"));
+
+        warmup.start();
+
+        assertTrue(warmup.isFinished());
+        Mockito.verifyNoInteractions(customValidator);
+    }
+}
@@ -0,0 +1,87 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Änderungen an den lokalen Profilen zur Laufzeit: nach {@link FastPathValidator#invalidate()} validiert der
+ * schnelle Pfad gegen das neu übersetzte Profil weiter, statt dauerhaft auszufallen.
+ */
+class FastPathValidatorInvalidationTest {
+
+    private static final String PROFILE = "https://example.org/fhir/StructureDefinition/patient-mit-name";
+
+    private final FhirContext ctx = FhirContext.forR4Cached();
+    private final DefaultProfileValidationSupport core = new DefaultProfileValidationSupport(ctx);
+    private PrePopulatedValidationSupport local;
+    private FastPathValidator fastPathValidator;
+
+    @BeforeEach
+    void setUp() {
+        local = new PrePopulatedValidationSupport(ctx);
+        local.addStructureDefinition(patientProfile(0));
+        fastPathValidator = new FastPathValidator(ctx, new SimpleMeterRegistry(), "primary", List.of(PROFILE), 0);
+        fastPathValidator.initialize(new ValidationSupportChain(core, local), valueSet -> false);
+    }
+
+    @Test
+    void testChangedProfileIsRecompiledForTheNextValidation() {
+        Patient patient = new Patient();
+        patient.getMeta().addProfile(PROFILE);
+        CompiledProfile before = fastPathValidator.getProfile(PROFILE);
+
+        FastPathResult unchanged = fastPathValidator.evaluate(patient);
+        assertNotNull(unchanged);
+        assertFalse(hasError(unchanged, "Patient.name"), "Fehler: " + unchanged.getErrors());
+
+        local.addStructureDefinition(patientProfile(1));
+        fastPathValidator.invalidate();
+
+        FastPathResult changed = fastPathValidator.evaluate(patient);
+        assertNotNull(changed, "Schneller Pfad nach der Änderung nicht mehr verfügbar");
+        assertTrue(hasError(changed, "Patient.name"), "Fehler: " + changed.getErrors());
+        assertNotSame(before, fastPathValidator.getProfile(PROFILE));
+    }
+
+    @Test
+    void testInvalidationWithoutChangeKeepsTheFastPath() {
+        fastPathValidator.invalidate();
+        fastPathValidator.invalidate();
+
+        Patient patient = new Patient();
+        patient.getMeta().addProfile(PROFILE);
+        assertNotNull(fastPathValidator.evaluate(patient));
+        assertNotNull(fastPathValidator.getProfile(PROFILE));
+    }
+
+    private static boolean hasError(FastPathResult result, String location) {
+        return result.getErrors().stream().anyMatch(error -> error.getLocationString().startsWith(location));
+    }
+
+    // Kernprofil Patient unter eigener URL, Patient.name mit der angegebenen Mindestanzahl
+    private StructureDefinition patientProfile(int nameMin) {
+        StructureDefinition sd = ((StructureDefinition) core
+            .fetchStructureDefinition("http://hl7.org/fhir/StructureDefinition/Patient")).copy();
+        sd.setUrl(PROFILE);
+        sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+        sd.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+        for (ElementDefinition element : sd.getSnapshot().getElement()) {
+            if ("Patient.name".equals(element.getPath())) {
+                element.setMin(nameMin);
+            }
+        }
+        return sd;
+    }
+}
@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.custom.interceptor.fastpath;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.jpa.starter.custom.ErgTestResourceUtil;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.ConformanceResourceLoader;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.CustomValidator;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.ChargeItem;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Invoice;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Abgleich des schnellen Pfads mit der generischen Validierung. Wo der schnelle Pfad eine Instanz
+ * vollständig auswerten kann, muss das Ergebnis (gültig/ungültig) übereinstimmen. Die mitgelieferten
+ * gematik-Beispiele und die gültigen Testressourcen müssen ohne Fallback auswertbar sein.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class}, properties = {
+    "hapi.fhir.custom-bean-packages=ca.uhn.fhir.jpa.starter.custom.interceptor",
+    "hapi.fhir.custom-interceptor-classes=ca.uhn.fhir.jpa.starter.custom.interceptor.CustomValidator",
+    "spring.datasource.url=jdbc:h2:mem:dbr4",
+    "hapi.fhir.cr_enabled=false",
+    "hapi.fhir.fhir_version=r4"
+})
+class FastPathValidatorTest {
+
+    private static final String RECHNUNGSDOKUMENT = "https://gematik.de/fhir/erg/StructureDefinition/erg-rechnungsdokument";
+    // Ressourcentyp -> übersetztes Profil, gegen das die mitgelieferten Beispiele geprüft werden
+    private static final Map<String, String> EXAMPLE_PROFILES = Map.of(
+        "Patient", "https://gematik.de/fhir/erg/StructureDefinition/erg-patient",
+        "Invoice", "https://gematik.de/fhir/erg/StructureDefinition/erg-rechnung",
+        "ChargeItem", "https://gematik.de/fhir/erg/StructureDefinition/erg-rechnungsposition",
+        "Binary", RECHNUNGSDOKUMENT);
+
+    @Autowired
+    private CustomValidator customValidator;
+
+    @Autowired
+    private FastPathValidator fastPathValidator;
+
+    @Test
+    @DisplayName("Konfigurierte Profile werden übersetzt")
+    void testProfilesAreCompiled() {
+        assertNotNull(fastPathValidator.getProfile("https://gematik.de/fhir/erg/StructureDefinition/erg-patient"));
+        assertNotNull(fastPathValidator.getProfile(RECHNUNGSDOKUMENT));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("bundledExamples")
+    @DisplayName("Mitgelieferte gematik-Beispiele: ohne Fallback auswertbar, gleiches Ergebnis wie generisch")
+    void testBundledExamplesMatchGenericValidation(String name, IBaseResource example) {
+        assertSameVerdictWithoutFallback(example);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("validErgResources")
+    @DisplayName("Gültige ERG-Ressourcen: ohne Fallback auswertbar und gültig")
+    void testValidErgResourcesAreAcceptedWithoutFallback(String name, IBaseResource resource) {
+        FastPathResult fast = assertSameVerdictWithoutFallback(resource);
+        assertTrue(fast.getErrors().isEmpty(), "Fehler schneller Pfad: " + fast.getErrors());
+    }
+
+    static Stream<Arguments> bundledExamples() throws IOException {
+        FhirContext ctx = FhirContext.forR4Cached();
+        List<Arguments> examples = new ArrayList<>();
+        Resource[] files = new PathMatchingResourcePatternResolver()
+            .getResources(ConformanceResourceLoader.LOCAL_RESOURCES_PATTERN);
+        for (Resource file : files) {
+            IBaseResource example;
+            try (InputStream stream = file.getInputStream()) {
+                example = ctx.newJsonParser().parseResource(stream);
+            } catch (DataFormatException e) {
+                // z.B. R5-Beispiele
+                continue;
+            }
+            String profile = EXAMPLE_PROFILES.get(example.fhirType());
+            if (profile != null) {
+                // Die Beispiele deklarieren ihr Profil nicht selbst
+                example.getMeta().addProfile(profile);
+                examples.add(Arguments.of(file.getFilename(), example));
+            }
+        }
+        assertFalse(examples.isEmpty(), "Keine Beispiele für die übersetzten Profile gefunden");
+        return examples.stream();
+    }
+
+    static Stream<Arguments> validErgResources() {
+        Patient patient = ErgTestResourceUtil.createTestErgPatient();
+        patient.setId("erg-patient");
+        Practitioner practitioner = ErgTestResourceUtil.createTestErgPractitioner();
+        practitioner.setId("erg-practitioner");
+        Organization institution = ErgTestResourceUtil.createTestErgInstitution();
+        institution.setId("erg-institution");
+        ChargeItem chargeItem = ErgTestResourceUtil.createMinimalChargeItem(patient);
+        chargeItem.setId("erg-rechnungsposition");
+        Invoice invoice = ErgTestResourceUtil.createValidErgInvoice(patient, practitioner, institution, chargeItem);
+
+        Binary binary = new Binary();
+        binary.getMeta().addProfile(RECHNUNGSDOKUMENT);
+        binary.setContentType("application/pdf");
+        binary.setData("%PDF-1.7".getBytes(StandardCharsets.US_ASCII));
+
+        return Stream.of(
+            Arguments.of("ERG-Patient", patient),
+            Arguments.of("ERG-Rechnungsposition (ChargeItem)", chargeItem),
+            Arguments.of("ERG-Rechnung (Invoice)", invoice),
+            Arguments.of("ERG-Rechnungsdokument (Binary)", binary));
+    }
+
+    @Test
+    @DisplayName("Veränderte ERG-Patienten: gleiches Ergebnis wie die generische Validierung")
+    void testMutatedPatientsMatchGenericValidation() {
+        Patient withoutIdentifier = ErgTestResourceUtil.createTestErgPatient();
+        withoutIdentifier.getIdentifier().clear();
+        assertSameVerdict(withoutIdentifier);
+
+        Patient twoKvnr = ErgTestResourceUtil.createTestErgPatient();
+        Identifier second = twoKvnr.getIdentifierFirstRep().copy();
+        second.setValue("B123456789");
+        twoKvnr.addIdentifier(second);
+        assertSameVerdict(twoKvnr);
+
+        Patient withoutName = ErgTestResourceUtil.createTestErgPatient();
+        withoutName.getName().clear();
+        assertSameVerdict(withoutName);
+    }
+
+    @Test
+    @DisplayName("Fehlender Pflichtinhalt wird vom schnellen Pfad erkannt")
+    void testMissingContentTypeIsRejected() {
+        Binary binary = new Binary();
+        binary.getMeta().addProfile(RECHNUNGSDOKUMENT);
+        binary.setData("%PDF-1.7".getBytes(StandardCharsets.US_ASCII));
+
+        FastPathResult result = fastPathValidator.evaluate(binary);
+
+        assertNotNull(result);
+        assertTrue(result.getErrors().stream().anyMatch(error -> error.getLocationString().startsWith("Binary.contentType")),
+            "Fehler: " + result.getErrors());
+    }
+
+    // Für veränderte Instanzen: ist die Instanz nicht vollständig auswertbar, entscheidet ohnehin die
+    // generische Validierung
+    private void assertSameVerdict(IBaseResource resource) {
+        FastPathResult fast = fastPathValidator.evaluate(resource);
+        assertNotNull(fast, "Profil wurde nicht übersetzt");
+        if (!fast.isFallbackRequired()) {
+            assertSameVerdict(resource, fast);
+        }
+    }
+
+    private FastPathResult assertSameVerdictWithoutFallback(IBaseResource resource) {
+        FastPathResult fast = fastPathValidator.evaluate(resource);
+        assertNotNull(fast, "Profil wurde nicht übersetzt");
+        assertFalse(fast.isFallbackRequired(), "Schneller Pfad benötigt die generische Validierung");
+        assertSameVerdict(resource, fast);
+        return fast;
+    }
+
+    private void assertSameVerdict(IBaseResource resource, FastPathResult fast) {
+        boolean genericValid = customValidator.getValidator().validateWithResult(resource).getMessages().stream()
+            .noneMatch(m -> m.getSeverity() == ResultSeverityEnum.ERROR || m.getSeverity() == ResultSeverityEnum.FATAL);
+        assertEquals(genericValid, fast.getErrors().isEmpty(), "Fehler schneller Pfad: " + fast.getErrors());
+    }
+}
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.starter.custom.migration;
+
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ErgMigrationsTest {
+
+    private JdbcDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:erg-migrations-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Test
+    void testNewDatabaseIsMigratedWithoutHapiTables() {
+        ErgTestDatabase.migrate(dataSource);
+
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ERG_ERASE_JOB_LOCK", Integer.class));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ERG_DOC_TOKEN", Integer.class));
+        assertEquals(1, jdbcTemplate.queryForObject("SELECT MAX(CAST(\"version\" AS INT)) FROM ERG_SCHEMA_HISTORY",
+            Integer.class));
+    }
+
+    @Test
+    void testSupportedDatabasePassesTheVendorCheck() {
+        assertDoesNotThrow(() -> ErgFlywayConfig.checkVendor(Flyway.configure().dataSource(dataSource)));
+    }
+
+    @Test
+    void testUnsupportedDatabaseFailsClearly() throws SQLException {
+        DataSource oracle = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(oracle.getConnection()).thenReturn(connection);
+        when(connection.getMetaData()).thenReturn(metaData);
+        when(metaData.getDatabaseProductName()).thenReturn("Oracle");
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+            () -> ErgFlywayConfig.checkVendor(Flyway.configure().dataSource(oracle)));
+        assertTrue(e.getMessage().contains("'oracle'"), e.getMessage());
+        assertTrue(e.getMessage().contains("postgresql"), e.getMessage());
+    }
+}
@@ -0,0 +1,35 @@
+package ca.uhn.fhir.jpa.starter.custom.migration;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.h2.jdbcx.JdbcDataSource;
+
+import javax.sql.DataSource;
+import java.util.UUID;
+
+/**
+ * H2-Datenbank im Speicher mit den ERG-Tabellen, angelegt über dieselben Migrationen wie im Server.
+ */
+public final class ErgTestDatabase {
+
+    private ErgTestDatabase() {
+    }
+
+    public static DataSource create(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + "-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        migrate(dataSource);
+        return dataSource;
+    }
+
+    public static void migrate(DataSource dataSource) {
+        flyway(dataSource).load().migrate();
+    }
+
+    static FluentConfiguration flyway(DataSource dataSource) {
+        return Flyway.configure()
+            .dataSource(dataSource)
+            .locations("classpath:db/erg/h2")
+            .table("ERG_SCHEMA_HISTORY");
+    }
+}
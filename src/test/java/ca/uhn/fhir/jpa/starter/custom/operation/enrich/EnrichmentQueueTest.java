@@ -0,0 +1,63 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.enrich;
+
+import ca.uhn.fhir.jpa.starter.custom.migration.ErgTestDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnrichmentQueueTest {
+
+    private EnrichmentQueue enrichmentQueue;
+
+    @BeforeEach
+    void setUp() {
+        enrichmentQueue = new EnrichmentQueue(ErgTestDatabase.create("pdf-enrich"));
+    }
+
+    @Test
+    void testClaimedEntriesAreNotClaimedTwice() {
+        enrichmentQueue.add(List.of(11L, 12L, 13L));
+
+        List<EnrichmentQueue.Pending> first = enrichmentQueue.claim(2, Duration.ofMinutes(10));
+        List<EnrichmentQueue.Pending> second = enrichmentQueue.claim(10, Duration.ofMinutes(10));
+
+        assertEquals(2, first.size());
+        assertEquals(1, second.size());
+        assertTrue(enrichmentQueue.claim(10, Duration.ofMinutes(10)).isEmpty());
+    }
+
+    @Test
+    void testExpiredLeaseIsClaimedAgain() {
+        enrichmentQueue.add(List.of(11L));
+
+        assertEquals(1, enrichmentQueue.claim(1, Duration.ofSeconds(-1)).size());
+        assertEquals(1, enrichmentQueue.claim(1, Duration.ofMinutes(10)).size());
+    }
+
+    @Test
+    void testRetryIsDueOnlyAfterDelay() {
+        enrichmentQueue.add(List.of(11L));
+        enrichmentQueue.claim(1, Duration.ofMinutes(10));
+
+        enrichmentQueue.retryLater(11L, 1, Instant.now().plusSeconds(60));
+        assertTrue(enrichmentQueue.claim(1, Duration.ofMinutes(10)).isEmpty());
+
+        enrichmentQueue.retryLater(11L, 2, Instant.now().minusSeconds(1));
+        List<EnrichmentQueue.Pending> due = enrichmentQueue.claim(1, Duration.ofMinutes(10));
+        assertEquals(1, due.size());
+        assertEquals(2, due.get(0).getAttempts());
+    }
+
+    @Test
+    void testRemoveReportsMissingEntries() {
+        enrichmentQueue.add(List.of(11L));
+
+        assertTrue(enrichmentQueue.remove(11L));
+        assertFalse(enrichmentQueue.remove(11L));
+    }
+}
@@ -0,0 +1,51 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.enrich;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDEmbeddedFilesNameTreeNode;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.filespecification.PDComplexFileSpecification;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfEnricherTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testStructuredInvoiceAndTokenAreEmbedded() throws IOException {
+        File source = tempDir.resolve("rechnung.pdf").toFile();
+        try (PDDocument pdf = new PDDocument()) {
+            pdf.addPage(new PDPage());
+            pdf.save(source);
+        }
+        byte[] rechnungsinhalt = "{\"resourceType\":\"Invoice\"}".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfEnricher.enrich(source, rechnungsinhalt, "application/fhir+json", "01ARYZ6S41KKC6HYREDXM4VYCJ", out);
+
+        try (PDDocument enriched = PDDocument.load(out.toByteArray())) {
+            assertEquals(1, enriched.getNumberOfPages());
+            assertEquals("01ARYZ6S41KKC6HYREDXM4VYCJ",
+                enriched.getDocumentInformation().getCustomMetadataValue(PdfEnricher.TOKEN_KEY));
+
+            PDEmbeddedFilesNameTreeNode files = enriched.getDocumentCatalog().getNames().getEmbeddedFiles();
+            PDComplexFileSpecification fileSpec = files.getNames().get("rechnungsinhalt.json");
+            assertNotNull(fileSpec);
+            assertArrayEquals(rechnungsinhalt, fileSpec.getEmbeddedFile().toByteArray());
+            assertEquals("Alternative", fileSpec.getCOSObject().getNameAsString(COSName.getPDFName("AFRelationship")));
+            assertEquals(1, ((COSArray) enriched.getDocumentCatalog().getCOSObject()
+                .getDictionaryObject(COSName.getPDFName("AF"))).size());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.erase;
+
+import ca.uhn.fhir.jpa.starter.custom.migration.ErgTestDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EraseQueueTest {
+
+    private EraseQueue eraseQueue;
+
+    @BeforeEach
+    void setUp() {
+        eraseQueue = new EraseQueue(ErgTestDatabase.create("erase-queue"));
+    }
+
+    @Test
+    void testPendingDocumentsKeepTheirBlobs() {
+        eraseQueue.add(12L, "DocumentReference/b", List.of("blob-1", "blob-2"));
+        eraseQueue.add(11L, "DocumentReference/a", List.of());
+
+        assertEquals(List.of(11L, 12L), eraseQueue.pendingPids());
+        List<EraseQueue.Pending> pending = eraseQueue.find(List.of(11L, 12L));
+        pending.sort(Comparator.comparingLong(EraseQueue.Pending::getPid));
+        assertEquals("DocumentReference/a", pending.get(0).getResourceId());
+        assertTrue(pending.get(0).getBlobIds().isEmpty());
+        assertEquals(List.of("blob-1", "blob-2"), pending.get(1).getBlobIds());
+    }
+
+    @Test
+    void testManyBlobsPerDocument() {
+        List<String> blobIds = IntStream.range(0, 500)
+            .mapToObj(i -> String.format("blob-%04d-%s", i, UUID.randomUUID()))
+            .toList();
+        eraseQueue.add(11L, "DocumentReference/a", blobIds);
+
+        assertEquals(blobIds, eraseQueue.find(List.of(11L)).get(0).getBlobIds());
+    }
+
+    @Test
+    void testRemovedDocumentsAreNoLongerPending() {
+        eraseQueue.add(11L, "DocumentReference/a", List.of("blob-1"));
+        eraseQueue.add(12L, "DocumentReference/b", List.of());
+
+        eraseQueue.remove(List.of(11L));
+
+        assertEquals(List.of(12L), eraseQueue.pendingPids());
+        assertTrue(eraseQueue.find(List.of(11L)).isEmpty());
+        // Die Blob-Zeilen sind mit entfernt
+        eraseQueue.add(11L, "DocumentReference/a", List.of());
+        assertTrue(eraseQueue.find(List.of(11L)).get(0).getBlobIds().isEmpty());
+    }
+}
@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.AccessToken;
+import ca.uhn.fhir.jpa.starter.custom.interceptor.auth.Profession;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentAccessTest {
+
+    private static final DocumentTokenIndex.Entry ENTRY =
+        new DocumentTokenIndex.Entry("token-1", 1L, "A000000000", "1-2345");
+
+    @Test
+    void testInsuredOnlyGetsOwnDocuments() {
+        assertTrue(DocumentAccess.isAllowed(token(Profession.VERSICHERTER, "A000000000"), ENTRY));
+        assertFalse(DocumentAccess.isAllowed(token(Profession.VERSICHERTER, "B000000000"), ENTRY));
+        assertFalse(DocumentAccess.isAllowed(token(Profession.VERSICHERTER, "A000000000"),
+            new DocumentTokenIndex.Entry("token-2", 2L, null, "1-2345")));
+    }
+
+    @Test
+    void testProviderOnlyGetsSubmittedDocuments() {
+        assertTrue(DocumentAccess.isAllowed(token(Profession.LEISTUNGSERBRINGER, "1-2345"), ENTRY));
+        assertFalse(DocumentAccess.isAllowed(token(Profession.LEISTUNGSERBRINGER, "1-9999"), ENTRY));
+    }
+
+    @Test
+    void testInsurerGetsDocumentsByToken() {
+        assertTrue(DocumentAccess.isAllowed(token(Profession.KOSTENTRAEGER, "1-9999"), ENTRY));
+    }
+
+    private static AccessToken token(Profession profession, String idNumber) {
+        AccessToken accessToken = new AccessToken();
+        accessToken.setProfession(profession);
+        accessToken.setIdNumber(idNumber);
+        return accessToken;
+    }
+}
@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.jpa.starter.custom.migration.ErgTestDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentTokenIndexTest {
+
+    private DataSource dataSource;
+    private DocumentTokenIndex tokenIndex;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = ErgTestDatabase.create("token-index");
+        tokenIndex = new DocumentTokenIndex(dataSource);
+    }
+
+    @Test
+    void testTokensResolveToEntries() {
+        tokenIndex.putAll(List.of(
+            new DocumentTokenIndex.Entry(token(1), 101L, "A000000000", "1-2345"),
+            new DocumentTokenIndex.Entry(token(2), 102L, null, null)));
+
+        DocumentTokenIndex.Entry entry = tokenIndex.find(token(1));
+        assertEquals(token(1), entry.getToken());
+        assertEquals(101L, entry.getPid());
+        assertEquals("A000000000", entry.getKvnr());
+        assertEquals("1-2345", entry.getSubmitter());
+        assertEquals(102L, tokenIndex.find(token(2)).getPid());
+        assertNull(tokenIndex.find(token(3)));
+    }
+
+    @Test
+    void testTokenIsStoredAsBinaryUlid() {
+        String ulid = "01ARZ3NDEKTSV4RRFFQ69G5FAV";
+        tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry(ulid, 101L, null, null)));
+
+        assertEquals(16, DocumentTokenIndex.toBytes(ulid).length);
+        assertEquals(ulid, tokenIndex.find(ulid).getToken());
+        assertEquals(ulid, tokenIndex.findAll(List.of(ulid)).get(ulid).getToken());
+        assertArrayEquals(new byte[]{-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1},
+            DocumentTokenIndex.toBytes("7ZZZZZZZZZZZZZZZZZZZZZZZZZ"));
+    }
+
+    @Test
+    void testUuidTokensIssuedEarlierResolve() {
+        String uuid = "3f2b8c1e-9d4a-4e7b-a1c5-0b6d2e8f9a10";
+        tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry(uuid, 101L, "A000000000", null)));
+
+        assertEquals(16, DocumentTokenIndex.toBytes(uuid).length);
+        assertEquals(101L, tokenIndex.find(uuid).getPid());
+        assertEquals(uuid, tokenIndex.find(uuid).getToken());
+        // Der Eintrag trägt die angefragte Schreibweise
+        String upper = uuid.toUpperCase();
+        Map<String, DocumentTokenIndex.Entry> found = tokenIndex.findAll(List.of(uuid, upper, token(1)));
+        assertEquals(2, found.size());
+        assertEquals(upper, found.get(upper).getToken());
+        assertEquals(101L, found.get(uuid).getPid());
+    }
+
+    @Test
+    void testOtherTokensAreUnknown() {
+        assertNull(tokenIndex.find("token-1"));
+        assertNull(tokenIndex.find(null));
+        // 26 Zeichen, aber mehr als 128 Bit bzw. kein Crockford-Zeichen
+        assertNull(tokenIndex.find("8ZZZZZZZZZZZZZZZZZZZZZZZZZ"));
+        assertNull(tokenIndex.find("01ARZ3NDEKTSV4RRFFQ69G5FAU"));
+        // 36 Zeichen, aber keine UUID
+        assertNull(tokenIndex.find("3f2b8c1e-9d4a-4e7b-a1c5-0b6d2e8f9a1g"));
+        assertTrue(tokenIndex.findAll(List.of("token-1")).isEmpty());
+        assertThrows(IllegalArgumentException.class,
+            () -> tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry("token-1", 101L, null, null))));
+    }
+
+    @Test
+    void testFindAllSpansSeveralInBatches() {
+        List<DocumentTokenIndex.Entry> entries = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < 1_200; i++) {
+            entries.add(new DocumentTokenIndex.Entry(token(i), i, null, null));
+            tokens.add(token(i));
+        }
+        tokenIndex.putAll(entries);
+        tokens.add(token(5_000));
+        tokens.add(token(7));
+
+        Map<String, DocumentTokenIndex.Entry> found = tokenIndex.findAll(tokens);
+
+        assertEquals(1_200, found.size());
+        assertEquals(1_199L, found.get(token(1_199)).getPid());
+        assertFalse(found.containsKey(token(5_000)));
+    }
+
+    @Test
+    void testTokenIsUnique() {
+        tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry(token(1), 101L, null, null)));
+        assertThrows(DuplicateKeyException.class,
+            () -> tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry(token(1), 102L, null, null))));
+    }
+
+    @Test
+    void testMigrationIsIdempotent() {
+        tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry(token(1), 101L, null, null)));
+        ErgTestDatabase.migrate(dataSource);
+        assertEquals(101L, tokenIndex.find(token(1)).getPid());
+    }
+
+    // Gültige ULID, nur aus Ziffern
+    private static String token(int i) {
+        return String.format("%026d", i);
+    }
+}
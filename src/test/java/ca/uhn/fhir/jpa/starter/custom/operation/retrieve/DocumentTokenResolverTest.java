@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.custom.migration.ErgTestDatabase;
+import ca.uhn.fhir.jpa.starter.custom.operation.submit.SubmitProcessor;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DocumentTokenResolverTest {
+
+    // Vor dem Token-Index per UUID.randomUUID() vergeben
+    private static final String UUID_TOKEN = "3f2b8c1e-9d4a-4e7b-a1c5-0b6d2e8f9a10";
+    private static final String ULID_TOKEN = "01ARZ3NDEKTSV4RRFFQ69G5FAV";
+
+    private DocumentTokenIndex tokenIndex;
+    private IFhirResourceDao<DocumentReference> dao;
+    private DocumentTokenResolver resolver;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        tokenIndex = new DocumentTokenIndex(ErgTestDatabase.create("token-resolver"));
+        dao = mock(IFhirResourceDao.class);
+        DaoRegistry daoRegistry = mock(DaoRegistry.class);
+        when(daoRegistry.getResourceDao(DocumentReference.class)).thenReturn(dao);
+        resolver = new DocumentTokenResolver(tokenIndex, daoRegistry);
+    }
+
+    @Test
+    void testUuidTokenIssuedBeforeTheIndexResolvesAndIsIndexed() {
+        DocumentReference document = new DocumentReference();
+        document.setId("DocumentReference/legacy-1");
+        document.getSubject().getIdentifier().setValue("A000000000");
+        doReturn(List.of(JpaPid.fromId(7L))).when(dao).searchForResourceIds(any(), any());
+        when(dao.readByPid(any())).thenReturn(document);
+
+        DocumentTokenIndex.Entry entry = resolver.find(UUID_TOKEN);
+
+        assertEquals(UUID_TOKEN, entry.getToken());
+        assertEquals(7L, entry.getPid());
+        assertEquals("A000000000", entry.getKvnr());
+        assertNull(entry.getSubmitter());
+        ArgumentCaptor<SearchParameterMap> params = ArgumentCaptor.forClass(SearchParameterMap.class);
+        verify(dao).searchForResourceIds(params.capture(), any());
+        TokenParam identifier =
+            (TokenParam) params.getValue().get(DocumentReference.SP_IDENTIFIER).get(0).get(0);
+        assertEquals(SubmitProcessor.TOKEN_SYSTEM, identifier.getSystem());
+        assertEquals(UUID_TOKEN, identifier.getValue());
+
+        // Nachgetragen: weitere Abrufe treffen den Index
+        assertEquals(7L, tokenIndex.find(UUID_TOKEN).getPid());
+        assertEquals(7L, resolver.findAll(List.of(UUID_TOKEN)).get(UUID_TOKEN).getPid());
+        verify(dao, times(1)).searchForResourceIds(any(), any());
+    }
+
+    @Test
+    void testUnknownTokensAreNotSearchedUnlessUuid() {
+        doReturn(List.of()).when(dao).searchForResourceIds(any(), any());
+        tokenIndex.putAll(List.of(new DocumentTokenIndex.Entry(ULID_TOKEN, 5L, null, "1-2345")));
+
+        Map<String, DocumentTokenIndex.Entry> found =
+            resolver.findAll(List.of(ULID_TOKEN, "01ARZ3NDEKTSV4RRFFQ69G5FAW", "token-1", UUID_TOKEN));
+
+        assertEquals(5L, found.get(ULID_TOKEN).getPid());
+        assertEquals(1, found.size());
+        assertNull(resolver.find("01ARZ3NDEKTSV4RRFFQ69G5FAW"));
+        // Nur die UUID wird über identifier gesucht
+        verify(dao, times(1)).searchForResourceIds(any(), any());
+        verify(dao, never()).readByPid(any());
+    }
+}
@@ -0,0 +1,63 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetrieveProjectionTest {
+
+    @Test
+    void testOnlyEnrichedDocumentByDefault() {
+        DocumentReference document = document("angereichertesPDF", "erechnung", "rechnungsinhalt");
+
+        List<String> blobIds = RetrieveProjection.apply(document, false, false);
+
+        assertEquals(List.of("blob-angereichertesPDF"), blobIds);
+        assertEquals(1, document.getContent().size());
+        Attachment attachment = document.getContentFirstRep().getAttachment();
+        assertNull(attachment.getUrl());
+        assertEquals("blob-angereichertesPDF",
+            attachment.getDataElement().getExtensionByUrl(RetrieveProjection.MARKER_URL).getValue().primitiveValue());
+    }
+
+    @Test
+    void testRequestedPartsAreAdded() {
+        DocumentReference document = document("angereichertesPDF", "erechnung", "rechnungsinhalt", "rechnungsanhang");
+
+        List<String> blobIds = RetrieveProjection.apply(document, true, true);
+
+        assertEquals(List.of("blob-angereichertesPDF", "blob-erechnung", "blob-rechnungsinhalt"), blobIds);
+    }
+
+    @Test
+    void testOriginalStandsInForMissingEnrichedDocument() {
+        DocumentReference document = document("erechnung", "rechnungsinhalt");
+
+        assertEquals(List.of("blob-erechnung"), RetrieveProjection.apply(document, false, false));
+    }
+
+    @Test
+    void testExternalUrlsAreKept() {
+        DocumentReference document = new DocumentReference();
+        document.addContent().setFormat(new Coding(RetrieveProjection.FORMAT_SYSTEM, "erechnung", null))
+            .setAttachment(new Attachment().setUrl("https://example.org/rechnung.pdf"));
+
+        assertTrue(RetrieveProjection.apply(document, false, false).isEmpty());
+        assertEquals("https://example.org/rechnung.pdf", document.getContentFirstRep().getAttachment().getUrl());
+    }
+
+    private static DocumentReference document(String... formats) {
+        DocumentReference document = new DocumentReference();
+        for (String format : formats) {
+            document.addContent()
+                .setFormat(new Coding(RetrieveProjection.FORMAT_SYSTEM, format, null))
+                .setAttachment(new Attachment().setContentType("application/pdf").setUrl("urn:erg:binary:blob-" + format));
+        }
+        return document;
+    }
+}
@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.retrieve;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetrieveResponseWriterTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    @Test
+    void testBlobIsStreamedIntoDataElement() throws IOException {
+        byte[] pdf = new byte[50_001];
+        for (int i = 0; i < pdf.length; i++) {
+            pdf[i] = (byte) (i * 7);
+        }
+        DocumentReference document = new DocumentReference();
+        document.setDescription("Rechnung");
+        document.addContent()
+            .setFormat(new Coding(RetrieveProjection.FORMAT_SYSTEM, "erechnung", null))
+            .setAttachment(new Attachment().setContentType("application/pdf").setUrl("urn:erg:binary:blob-1"));
+        RetrieveProjection.apply(document, false, false);
+        Parameters output = new Parameters();
+        output.addParameter().setName("dokument").setResource(document);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RetrieveResponseWriter.write(CTX.newJsonParser().encodeResourceToString(output), out, (blobId, target) -> {
+            assertEquals("blob-1", blobId);
+            target.write(pdf);
+        });
+
+        Parameters parsed = CTX.newJsonParser().parseResource(Parameters.class, out.toString(StandardCharsets.UTF_8));
+        DocumentReference result = (DocumentReference) parsed.getParameterFirstRep().getResource();
+        assertEquals("Rechnung", result.getDescription());
+        Attachment attachment = result.getContentFirstRep().getAttachment();
+        assertArrayEquals(pdf, attachment.getData());
+        assertEquals("application/pdf", attachment.getContentType());
+        assertTrue(attachment.getDataElement().getExtension().isEmpty());
+    }
+
+    @Test
+    void testDataWithoutMarkerIsPassedThrough() throws IOException {
+        DocumentReference document = new DocumentReference();
+        Attachment attachment = new Attachment().setContentType("application/pdf");
+        attachment.getDataElement().addExtension("http://hl7.org/fhir/StructureDefinition/data-absent-reason",
+            new CodeType("masked"));
+        document.addContent().setAttachment(attachment);
+        Parameters output = new Parameters();
+        output.addParameter().setName("dokument").setResource(document);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RetrieveResponseWriter.write(CTX.newJsonParser().encodeResourceToString(output), out,
+            (blobId, target) -> fail("Kein Inhalt erwartet"));
+
+        Parameters parsed = CTX.newJsonParser().parseResource(Parameters.class, out.toString(StandardCharsets.UTF_8));
+        Attachment result = ((DocumentReference) parsed.getParameterFirstRep().getResource())
+            .getContentFirstRep().getAttachment();
+        assertFalse(result.hasData());
+        assertEquals("masked", result.getDataElement()
+            .getExtensionByUrl("http://hl7.org/fhir/StructureDefinition/data-absent-reason").getValue().primitiveValue());
+    }
+}
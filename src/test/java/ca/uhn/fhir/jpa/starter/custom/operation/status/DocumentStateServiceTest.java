@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Statusänderungen an DocumentReferences, die ohne {@code $erechnung-submit} angelegt wurden und deshalb zunächst
+ * keinen Zustand haben.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {Application.class}, properties = {
+    "hapi.fhir.custom-interceptor-classes=ca.uhn.fhir.jpa.starter.custom.operation.status.DocumentStateInterceptor",
+    "spring.datasource.url=jdbc:h2:mem:doc-state-service",
+    "hapi.fhir.cr_enabled=false",
+    "hapi.fhir.fhir_version=r4"
+})
+class DocumentStateServiceTest {
+
+    @Autowired
+    private DaoRegistry daoRegistry;
+
+    @Autowired
+    private DocumentStateService stateService;
+
+    @Autowired
+    private DocumentStateStore stateStore;
+
+    private IFhirResourceDao<DocumentReference> dao;
+
+    @BeforeEach
+    void setUp() {
+        dao = daoRegistry.getResourceDao(DocumentReference.class);
+    }
+
+    @Test
+    void testDocumentCreatedWithoutSubmitIsFoundByStatus() {
+        IdType id = create();
+
+        assertNull(stateStore.find(id.getValue()));
+        assertTrue(searchByStatus(DocumentStateService.STATUS_OFFEN).contains(id.getIdPart()));
+    }
+
+    @Test
+    void testStatusChangeKeepsTheTagIndexWithoutNewVersion() {
+        IdType id = create();
+
+        stateService.changeStatus(id, "erledigt", new SystemRequestDetails());
+
+        assertEquals("erledigt", stateStore.find(id.getValue()).getStatus());
+        assertTrue(searchByStatus("erledigt").contains(id.getIdPart()));
+        assertFalse(searchByStatus(DocumentStateService.STATUS_OFFEN).contains(id.getIdPart()));
+        DocumentReference read = dao.read(id, new SystemRequestDetails());
+        assertEquals("1", read.getIdElement().getVersionIdPart());
+        assertEquals("erledigt", read.getMeta().getTag(DocumentStateService.STATUS_SYSTEM, "erledigt").getCode());
+        assertNull(read.getMeta().getTag(DocumentStateService.STATUS_SYSTEM, DocumentStateService.STATUS_OFFEN));
+    }
+
+    // Wie ein einfaches POST /DocumentReference: Status-Tag beim Anlegen, kein Zustand
+    private IdType create() {
+        DocumentReference document = new DocumentReference();
+        document.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+        document.getMeta().addTag(DocumentStateService.STATUS_SYSTEM, DocumentStateService.STATUS_OFFEN, null);
+        return (IdType) dao.create(document, new SystemRequestDetails()).getId().toUnqualifiedVersionless();
+    }
+
+    private List<String> searchByStatus(String status) {
+        SearchParameterMap params = SearchParameterMap.newSynchronous(Constants.PARAM_TAG,
+            new TokenParam(DocumentStateService.STATUS_SYSTEM, status));
+        return dao.search(params, new SystemRequestDetails()).getAllResourceIds();
+    }
+}
@@ -0,0 +1,123 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.jpa.starter.custom.migration.ErgTestDatabase;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentStateStoreTest {
+
+    private DataSource dataSource;
+    private DocumentStateStore stateStore;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = ErgTestDatabase.create("doc-state");
+        stateStore = new DocumentStateStore(dataSource);
+    }
+
+    @Test
+    void testFirstWriteCreatesVersionOne() {
+        assertNull(stateStore.find("DocumentReference/a"));
+
+        assertTrue(stateStore.register(state("DocumentReference/a", "X110", Instant.now(), "offen")));
+        assertThrows(IllegalArgumentException.class,
+            () -> stateStore.compareAndSet("DocumentReference/b", 0, "offen", null, Instant.now()));
+        assertNull(stateStore.find("DocumentReference/b"));
+
+        DocumentStateStore.DocumentState state = stateStore.find("DocumentReference/a");
+        assertEquals(1, state.getVersion());
+        assertEquals("offen", state.getStatus());
+        assertNull(state.getMarkings());
+    }
+
+    @Test
+    void testStaleVersionIsRejected() {
+        stateStore.register(state("DocumentReference/a", "X110", Instant.now(), "offen"));
+
+        assertFalse(stateStore.register(state("DocumentReference/a", "X110", Instant.now(), "erledigt")));
+        assertTrue(stateStore.compareAndSet("DocumentReference/a", 1, "erledigt", "{}", Instant.now()));
+        assertFalse(stateStore.compareAndSet("DocumentReference/a", 1, "papierkorb", null, Instant.now()));
+
+        DocumentStateStore.DocumentState state = stateStore.find("DocumentReference/a");
+        assertEquals(2, state.getVersion());
+        assertEquals("erledigt", state.getStatus());
+        assertEquals("{}", state.getMarkings());
+    }
+
+    @Test
+    void testFindAllAndRemove() {
+        stateStore.register(state("DocumentReference/a", "X110", Instant.now(), "offen"));
+        stateStore.register(state("DocumentReference/b", "X110", Instant.now(), "erledigt"));
+
+        Map<String, DocumentStateStore.DocumentState> states =
+            stateStore.findAll(List.of("DocumentReference/a", "DocumentReference/b", "DocumentReference/c"));
+        assertEquals(2, states.size());
+        assertEquals("erledigt", states.get("DocumentReference/b").getStatus());
+
+        stateStore.removeAll(List.of("DocumentReference/a"));
+        assertNull(stateStore.find("DocumentReference/a"));
+        assertNotNull(stateStore.find("DocumentReference/b"));
+    }
+
+    @Test
+    void testCurrentVersionsAreReadInOneQuery() {
+        // Die Spalten von HFJ_RESOURCE, die die Abfrage liest
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE HFJ_RESOURCE (RES_ID BIGINT NOT NULL PRIMARY KEY, RES_TYPE VARCHAR(40),"
+            + " FHIR_ID VARCHAR(64), RES_VER BIGINT, RES_DELETED_AT TIMESTAMP)");
+        jdbcTemplate.update("INSERT INTO HFJ_RESOURCE VALUES (1, 'DocumentReference', 'a', 3, NULL)");
+        jdbcTemplate.update("INSERT INTO HFJ_RESOURCE VALUES (2, 'DocumentReference', 'b', 2, CURRENT_TIMESTAMP)");
+        jdbcTemplate.update("INSERT INTO HFJ_RESOURCE VALUES (3, 'Patient', 'c', 1, NULL)");
+
+        assertEquals(Map.of("a", 3L), stateStore.currentVersions(List.of("a", "b", "c", "d")));
+        assertTrue(stateStore.currentVersions(List.of()).isEmpty());
+    }
+
+    @Test
+    void testLargeMarkingsAreStored() {
+        stateStore.register(state("DocumentReference/a", "X110", Instant.now(), "offen"));
+        String markings = "{\"details\":\"" + "x".repeat(20_000) + "\"}";
+
+        assertTrue(stateStore.compareAndSet("DocumentReference/a", 1, "offen", markings, Instant.now()));
+
+        assertEquals(markings, stateStore.find("DocumentReference/a").getMarkings());
+    }
+
+    @Test
+    void testInboxPagesByKeyset() {
+        Instant date = Instant.parse("2024-05-11T11:00:00Z");
+        stateStore.insertAll(List.of(
+            state("DocumentReference/a", "X110", date.minusSeconds(60), "offen"),
+            state("DocumentReference/b", "X110", date, "offen"),
+            state("DocumentReference/c", "X110", date, "offen"),
+            state("DocumentReference/d", "X110", date.minusSeconds(30), "erledigt"),
+            state("DocumentReference/e", "X220", date, "offen")));
+
+        List<DocumentStateStore.DocumentState> first = stateStore.inbox("X110", "offen", null, null, 2);
+        assertEquals(List.of("DocumentReference/c", "DocumentReference/b"), ids(first));
+        assertEquals(2L, first.get(1).getPid());
+
+        DocumentStateStore.DocumentState last = first.get(1);
+        List<DocumentStateStore.DocumentState> second =
+            stateStore.inbox("X110", "offen", last.getDocDate(), last.getResourceId(), 2);
+        assertEquals(List.of("DocumentReference/a"), ids(second));
+    }
+
+    private static DocumentStateStore.DocumentState state(String resourceId, String kvnr, Instant docDate,
+                                                          String status) {
+        long pid = resourceId.charAt(resourceId.length() - 1) - 'a' + 1;
+        return new DocumentStateStore.DocumentState(resourceId, pid, kvnr, docDate, 1, status, null, Instant.now());
+    }
+
+    private static List<String> ids(List<DocumentStateStore.DocumentState> states) {
+        return states.stream().map(DocumentStateStore.DocumentState::getResourceId).toList();
+    }
+}
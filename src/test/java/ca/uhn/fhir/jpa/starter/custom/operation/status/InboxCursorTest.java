@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.status;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InboxCursorTest {
+
+    @Test
+    void testRoundTrip() {
+        Instant date = Instant.parse("2024-05-11T11:00:00.123Z");
+        String encoded = new InboxCursor(date, "DocumentReference/a:b").encode();
+
+        assertFalse(encoded.contains("DocumentReference"));
+        InboxCursor decoded = InboxCursor.decode(encoded);
+        assertEquals(date, decoded.getDocDate());
+        assertEquals("DocumentReference/a:b", decoded.getResourceId());
+    }
+
+    @Test
+    void testInvalidCursorIsRejected() {
+        assertThrows(InvalidRequestException.class, () -> InboxCursor.decode("kein cursor"));
+        assertThrows(InvalidRequestException.class, () -> InboxCursor.decode("YWJj"));
+    }
+}
@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkSubmitSplitterTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    private static final class Chunk {
+        final String ndjson;
+        final int firstIndex;
+        final int count;
+
+        Chunk(byte[] ndjson, int firstIndex, int count) {
+            this.ndjson = new String(ndjson, StandardCharsets.UTF_8);
+            this.firstIndex = firstIndex;
+            this.count = count;
+        }
+    }
+
+    @Test
+    void testNdjsonIsSplitAtChunkSize() throws IOException {
+        String body = "{\"resourceType\":\"Parameters\",\"id\":\"1\"}\n"
+            + "\n"
+            + "{\"resourceType\":\"Parameters\",\"id\":\"2\"}\r\n"
+            + "{\"resourceType\":\"Parameters\",\"id\":\"3\"}\n"
+            + "{\"resourceType\":\"Parameters\",\"id\":\"4\"}\n"
+            + "{\"resourceType\":\"Parameters\",\"id\":\"5\"}";
+
+        List<Chunk> chunks = split(body, true, 2);
+
+        assertEquals(3, chunks.size());
+        assertEquals(0, chunks.get(0).firstIndex);
+        assertEquals(2, chunks.get(0).count);
+        assertTrue(chunks.get(0).ndjson.contains("\"id\":\"2\""));
+        assertEquals(2, chunks.get(1).firstIndex);
+        assertEquals(2, chunks.get(1).count);
+        assertEquals(4, chunks.get(2).firstIndex);
+        assertEquals(1, chunks.get(2).count);
+        assertEquals("{\"resourceType\":\"Parameters\",\"id\":\"5\"}\n", chunks.get(2).ndjson);
+    }
+
+    @Test
+    void testBundleEntriesBecomeNdjsonLines() throws IOException {
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < 5; i++) {
+            Parameters submit = new Parameters();
+            submit.setId("submit-" + i);
+            submit.addParameter().setName("modus").setValue(new CodeType("test"));
+            submit.addParameter().setName("betrag").setValue(new DecimalType(new BigDecimal("1.50")));
+            bundle.addEntry().setResource(submit).getRequest()
+                .setMethod(Bundle.HTTPVerb.POST).setUrl("Patient/1/$erechnung-submit");
+        }
+
+        List<Chunk> chunks = split(CTX.newJsonParser().encodeResourceToString(bundle), false, 3);
+
+        assertEquals(2, chunks.size());
+        assertEquals(3, chunks.get(0).count);
+        assertEquals(3, chunks.get(1).firstIndex);
+        assertEquals(2, chunks.get(1).count);
+        String[] lines = chunks.get(1).ndjson.split("\n");
+        assertEquals(2, lines.length);
+        Parameters parsed = CTX.newJsonParser().parseResource(Parameters.class, lines[1]);
+        assertEquals("submit-4", parsed.getIdElement().getIdPart());
+        assertEquals("1.50", parsed.getParameter().get(1).getValue().primitiveValue());
+        assertFalse(chunks.get(1).ndjson.contains("request"));
+    }
+
+    @Test
+    void testEmptyBodyProducesNoChunk() throws IOException {
+        assertTrue(split("\n  \n", true, 10).isEmpty());
+        assertTrue(split("{\"resourceType\":\"Bundle\",\"type\":\"transaction\"}", false, 10).isEmpty());
+    }
+
+    @Test
+    void testNonObjectBodyIsRejected() {
+        assertThrows(InvalidRequestException.class, () -> split("[]", false, 10));
+    }
+
+    private static List<Chunk> split(String body, boolean ndjson, int chunkSize) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        BulkSubmitSplitter.split(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), ndjson, chunkSize,
+            (bytes, firstIndex, count) -> chunks.add(new Chunk(bytes, firstIndex, count)));
+        return chunks;
+    }
+}
@@ -0,0 +1,106 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Invoice;
+import org.hl7.fhir.r4.model.Money;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubmitRequestReaderTest {
+
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    @Test
+    void testAttachmentDataIsDecodedIntoSink() throws IOException {
+        byte[] pdf = new byte[100_000];
+        for (int i = 0; i < pdf.length; i++) {
+            pdf[i] = (byte) (i * 31);
+        }
+        Parameters input = new Parameters();
+        DocumentReference rechnung = new DocumentReference();
+        rechnung.setDescription("Rechnung");
+        rechnung.addContent().setAttachment(new Attachment().setContentType("application/pdf").setData(pdf));
+        rechnung.addContent().setAttachment(new Attachment().setContentType("application/xml")
+            .setData("<rechnung/>".getBytes(StandardCharsets.UTF_8)));
+        input.addParameter().setName("rechnung").setResource(rechnung);
+        input.addParameter().setName("modus").setValue(new CodeType("test"));
+
+        Map<String, byte[]> contents = new HashMap<>();
+        Map<String, String> contentTypes = new HashMap<>();
+        String json = SubmitRequestReader.externalizeAttachments(
+            new ByteArrayInputStream(CTX.newJsonParser().encodeResourceToString(input).getBytes(StandardCharsets.UTF_8)),
+            (contentType, content) -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                content.writeTo(out);
+                String key = "anhang-" + contents.size();
+                contents.put(key, out.toByteArray());
+                contentTypes.put(key, contentType);
+                return key;
+            });
+
+        assertFalse(json.length() > 10_000, "Base64-Inhalt darf nicht im Ergebnis stehen");
+        Parameters result = CTX.newJsonParser().parseResource(Parameters.class, json);
+        DocumentReference parsed = (DocumentReference) result.getParameterFirstRep().getResource();
+        assertEquals("Rechnung", parsed.getDescription());
+        assertEquals("test", result.getParameter().get(1).getValue().primitiveValue());
+
+        Attachment first = parsed.getContent().get(0).getAttachment();
+        assertFalse(first.getDataElement().hasValue());
+        Extension marker = first.getDataElement().getExtensionByUrl(SubmitRequestReader.MARKER_URL);
+        assertNotNull(marker);
+        String key = marker.getValue().primitiveValue();
+        assertArrayEquals(pdf, contents.get(key));
+        assertEquals("application/pdf", contentTypes.get(key));
+
+        Attachment second = parsed.getContent().get(1).getAttachment();
+        String secondKey = second.getDataElement().getExtensionByUrl(SubmitRequestReader.MARKER_URL).getValue().primitiveValue();
+        assertEquals("<rechnung/>", new String(contents.get(secondKey), StandardCharsets.UTF_8));
+        assertEquals("application/xml", contentTypes.get(secondKey));
+    }
+
+    @Test
+    void testClientDataExtensionIsRejected() {
+        Parameters input = new Parameters();
+        DocumentReference rechnung = new DocumentReference();
+        Attachment attachment = new Attachment().setContentType("application/pdf");
+        attachment.getDataElement().addExtension(SubmitRequestReader.MARKER_URL, new StringType("fremd"));
+        rechnung.addContent().setAttachment(attachment);
+        input.addParameter().setName("rechnung").setResource(rechnung);
+        byte[] body = CTX.newJsonParser().encodeResourceToString(input).getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(InvalidRequestException.class, () -> SubmitRequestReader.externalizeAttachments(
+            new ByteArrayInputStream(body), (contentType, content) -> fail("Kein Anhang erwartet")));
+    }
+
+    @Test
+    void testOtherContentIsCopiedUnchanged() throws IOException {
+        Parameters input = new Parameters();
+        Invoice invoice = new Invoice();
+        invoice.setTotalGross(new Money().setValue(new BigDecimal("12.50")).setCurrency("EUR"));
+        invoice.addNote().setText("data");
+        input.addParameter().setName("data").setResource(invoice);
+        String encoded = CTX.newJsonParser().encodeResourceToString(input);
+
+        String json = SubmitRequestReader.externalizeAttachments(
+            new ByteArrayInputStream(encoded.getBytes(StandardCharsets.UTF_8)),
+            (contentType, content) -> fail("Kein Anhang erwartet"));
+
+        assertEquals(encoded, json);
+    }
+}
@@ -0,0 +1,52 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.submit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenGeneratorTest {
+
+    @Test
+    void testTimePrefixFollowsUlidEncoding() {
+        // Beispiel aus der ULID-Spezifikation
+        String token = TokenGenerator.newToken(1469918176385L, new Random(1));
+
+        assertEquals(26, token.length());
+        assertEquals("01ARYZ6S41", token.substring(0, 10));
+        assertTrue(token.matches("[0-9A-HJKMNP-TV-Z]{26}"));
+    }
+
+    @Test
+    void testTokensAreOrderedByTime() {
+        Random random = new Random(7);
+        String earlier = TokenGenerator.newToken(1_700_000_000_000L, random);
+        String later = TokenGenerator.newToken(1_700_000_000_001L, random);
+
+        assertTrue(earlier.compareTo(later) < 0);
+    }
+
+    @Test
+    void testRandomPartDiffersWithinMillisecond() {
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 10_000; i++) {
+            tokens.add(TokenGenerator.newToken());
+        }
+        assertEquals(10_000, tokens.size());
+    }
+
+    @Test
+    void testAllRandomBitsAreEncoded() {
+        Random allOnes = new Random() {
+            @Override
+            public long nextLong() {
+                return -1L;
+            }
+        };
+        assertEquals("ZZZZZZZZZZZZZZZZ", TokenGenerator.newToken(0, allOnes).substring(10));
+        assertEquals("0000000000", TokenGenerator.newToken(0, allOnes).substring(0, 10));
+    }
+}
@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VAUExecutorServiceTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private VAUExecutorService executorService;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        executorService = new VAUExecutorService(meterRegistry, 4, 1, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdown();
+    }
+
+    @Test
+    void testTasksCompleteAndRecordMetrics() throws Exception {
+        CompletableFuture<String> future = executorService.supplyCrypto(() -> "ok");
+
+        assertEquals("ok", future.get(5, TimeUnit.SECONDS));
+        assertEquals(1, meterRegistry.get("vau.queue.wait").tag("pool", VAUExecutorService.POOL_CRYPTO).timer().count());
+        assertEquals(1, meterRegistry.get("vau.service.time").tag("pool", VAUExecutorService.POOL_CRYPTO).timer().count());
+    }
+
+    @Test
+    void testRejectsWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+
+        // Belegt den einzigen Dispatch-Thread
+        CompletableFuture<Boolean> running = executorService.supplyDispatch(() -> {
+            started.countDown();
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // Füllt die Queue (Kapazität 1)
+        CompletableFuture<String> queued = executorService.supplyDispatch(() -> "queued");
+        assertEquals(1, executorService.getQueueDepth(VAUExecutorService.POOL_DISPATCH));
+
+        // Weitere Aufgaben werden abgelehnt
+        assertThrows(RejectedExecutionException.class, () -> executorService.supplyDispatch(() -> "rejected"));
+        assertEquals(1.0, meterRegistry.get("vau.rejected").tag("pool", VAUExecutorService.POOL_DISPATCH).counter().count());
+
+        release.countDown();
+        assertTrue(running.get(5, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testExceptionsCompleteFutureExceptionally() {
+        CompletableFuture<String> future = executorService.supplyCrypto(() -> {
+            throw new IllegalStateException("Fehler");
+        });
+
+        Exception e = assertThrows(Exception.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+}
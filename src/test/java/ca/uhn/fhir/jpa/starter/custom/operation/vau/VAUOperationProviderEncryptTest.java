@@ -0,0 +1,76 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VAUOperationProviderEncryptTest {
+
+    private VAUExecutorService executorService;
+    private VAUOperationProvider provider;
+    private final CountDownLatch releaseCrypto = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        executorService = new VAUExecutorService(new SimpleMeterRegistry(), 1, 1, 1);
+        provider = new VAUOperationProvider(FhirContext.forR4Cached());
+        ReflectionTestUtils.setField(provider, "vauServerCrypto", new VAUServerCrypto());
+        ReflectionTestUtils.setField(provider, "vauExecutorService", executorService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        releaseCrypto.countDown();
+        executorService.shutdown();
+    }
+
+    @Test
+    void testResponseIsEncryptedWhenCryptoPoolIsSaturatedAfterDispatch() throws Exception {
+        VAUClientCrypto clientCrypto = new VAUClientCrypto();
+        SecretKeySpec responseKey = clientCrypto.generateResponseKey();
+        VAURequest vauRequest = VAURequest.parse(String.format("1 token req-1 %s GET /fhir/metadata HTTP/1.1\r\n\r\n",
+            Base64.getEncoder().encodeToString(responseKey.getEncoded())));
+        AtomicInteger innerRequests = new AtomicInteger();
+
+        VAUReplayCache.Response response = provider.processAndEncrypt(vauRequest, () -> {
+            innerRequests.incrementAndGet();
+            // Während der innere Request läuft, laufen alle Crypto-Threads voll und die Queue ist belegt
+            saturateCryptoPool();
+            return "HTTP/1.1 201 Created\r\n\r\n";
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, innerRequests.get());
+        assertTrue(response.isCacheable());
+        assertEquals("1 req-1 HTTP/1.1 201 Created\r\n\r\n",
+            clientCrypto.decrypt(responseKey, response.getEncrypted()));
+    }
+
+    private void saturateCryptoPool() {
+        try {
+            while (true) {
+                executorService.supplyCrypto(() -> {
+                    try {
+                        return releaseCrypto.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            // voll
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ca.uhn.fhir.jpa.starter.custom.operation.vau;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VAUReplayCacheTest {
+
+    private VAUReplayCache cache;
+    private AtomicInteger executions;
+
+    @BeforeEach
+    void setUp() {
+        cache = new VAUReplayCache(new SimpleMeterRegistry(), 300, 100, 10);
+        executions = new AtomicInteger();
+    }
+
+    private CompletableFuture<VAUReplayCache.Response> work(byte[] response) {
+        return work(response, true);
+    }
+
+    private CompletableFuture<VAUReplayCache.Response> work(byte[] response, boolean cacheable) {
+        executions.incrementAndGet();
+        return CompletableFuture.completedFuture(new VAUReplayCache.Response(response, cacheable));
+    }
+
+    @Test
+    void testRetryReturnsCachedResponse() throws Exception {
+        byte[] first = cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {1})).get(5, TimeUnit.SECONDS);
+        byte[] retry = cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {2})).get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(first, retry);
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void testConcurrentDuplicateWaitsForFirstResult() throws Exception {
+        CompletableFuture<VAUReplayCache.Response> pending = new CompletableFuture<>();
+        CompletableFuture<byte[]> first = cache.getOrCompute("sub", "req-1", "key", () -> {
+            executions.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<byte[]> duplicate = cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {2}));
+
+        assertFalse(duplicate.isDone());
+        pending.complete(new VAUReplayCache.Response(new byte[] {1}, true));
+
+        assertArrayEquals(new byte[] {1}, first.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] {1}, duplicate.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void testDifferentTokenOrResponseKeyIsNotShared() throws Exception {
+        cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {1})).get(5, TimeUnit.SECONDS);
+        cache.getOrCompute("sub.other", "req-1", "key", () -> work(new byte[] {2})).get(5, TimeUnit.SECONDS);
+        byte[] otherKey = cache.getOrCompute("sub", "req-1", "key2", () -> work(new byte[] {3})).get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(new byte[] {3}, otherKey);
+        assertEquals(3, executions.get());
+    }
+
+    @Test
+    void testFailedExecutionIsNotCached() throws Exception {
+        CompletableFuture<byte[]> failed = cache.getOrCompute("sub", "req-1", "key",
+            () -> CompletableFuture.failedFuture(new IllegalStateException("Fehler")));
+        assertTrue(failed.isCompletedExceptionally());
+
+        byte[] retry = cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {1})).get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[] {1}, retry);
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void testUnsuccessfulResponseIsNotCached() throws Exception {
+        byte[] rejected = cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {1}, false))
+            .get(5, TimeUnit.SECONDS);
+        byte[] retry = cache.getOrCompute("sub", "req-1", "key", () -> work(new byte[] {2})).get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(new byte[] {1}, rejected);
+        assertArrayEquals(new byte[] {2}, retry);
+        assertEquals(2, executions.get());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testStatusLineDecidesCacheability() {
+        assertTrue(VAUOperationProvider.isSuccessful("HTTP/1.1 201 Created\r\n\r\n"));
+        assertFalse(VAUOperationProvider.isSuccessful("HTTP/1.1 422 Unprocessable Entity\r\n\r\n"));
+        assertFalse(VAUOperationProvider.isSuccessful("HTTP/1.1 500 Internal Server Error\r\n\r\n"));
+    }
+}